@@ -0,0 +1,163 @@
+package ipfix;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import utils.Converter;
+
+/**
+ * Messages of the field set in tinyIPFIX-conf.xml (SHT12 temperature and
+ * humidity, MAX44009 light, node time, nodeID, pull flag) as sent by the
+ * nodes, as TinyIPFIX and as full IPFIX messages.
+ *
+ * @author Michael Meister
+ */
+final class BenchmarkMessages {
+
+	static final int TEMPLATE_ID = TinyIPFIXEncoder.DATA_SET_ID;
+	/** encoder of the OpenMote's messages, 1 byte sequence numbers */
+	static final TinyIPFIXEncoder ENCODER = TinyIPFIXEncoder.openMote(false, false);
+
+	/** offset of the (1 byte) sequence number in TinyIPFIX messages */
+	static final int TINY_SEQUENCE_OFFSET = 2;
+	/** offset of the sequence number in IPFIX messages */
+	static final int IPFIX_SEQUENCE_OFFSET = 8;
+
+
+	/**
+	 * TinyIPFIX template message
+	 */
+	static byte[] tinyTemplate() {
+		return ENCODER.template(TEMPLATE_ID);
+	}
+
+	/**
+	 * TinyIPFIX data message
+	 */
+	static byte[] tinyData(int sequenceNumber, long nodeID) {
+		return ENCODER.data(TEMPLATE_ID, sequenceNumber, _values(nodeID));
+	}
+
+	/**
+	 * IPFIX template message
+	 */
+	static byte[] ipfixTemplate(long sequenceNumber, long nodeID) {
+		return _ipfixMessage(2, sequenceNumber, nodeID, _templateRecord());
+	}
+
+	/**
+	 * IPFIX data message
+	 */
+	static byte[] ipfixData(long sequenceNumber, long nodeID) {
+		return _ipfixMessage(TEMPLATE_ID, sequenceNumber, nodeID, _dataRecord(nodeID));
+	}
+
+	/**
+	 * IPv6 address of a node (aaaa::nodeID)
+	 */
+	static byte[] address(long nodeID) {
+		byte[] address = new byte[16];
+		address[0] = (byte) 0xaa;
+		address[1] = (byte) 0xaa;
+		address[14] = (byte) (nodeID >> 8);
+		address[15] = (byte) nodeID;
+		return address;
+	}
+
+	/**
+	 * IPv6/UDP packet of a node carrying a payload, as written to the tun interface
+	 */
+	static byte[] udp6(byte[] payload, long nodeID) {
+		ByteBuffer packet = ByteBuffer.allocate(48 + payload.length);
+		packet.put((byte) 0x60).put((byte) 0).putShort((short) 0);
+		packet.putShort((short) (8 + payload.length)).put((byte) 17).put((byte) 64);
+		packet.put(address(nodeID));
+		packet.put(address(1));
+		packet.putShort((short) 40001).putShort((short) 40001).putShort((short) (8 + payload.length)).putShort((short) 0);
+		packet.put(payload);
+		return packet.array();
+	}
+
+	/**
+	 * lines tunslip6 -v5 prints for a packet
+	 */
+	static String tunslipDump(byte[] payload, long nodeID) {
+		byte[] packet = udp6(payload, nodeID);
+		StringBuilder dump = new StringBuilder();
+		dump.append("Packet from SLIP of length ").append(packet.length).append(" - write TUN\n");
+		dump.append("0000 ");
+		String hex = Converter.byteArrayToHexString(packet).toLowerCase();
+		for (int i = 0; i < hex.length(); i += 8) {
+			dump.append(hex, i, Math.min(hex.length(), i + 8)).append(' ');
+		}
+		return dump.append('\n').toString();
+	}
+
+	/**
+	 * copies tinyIPFIX-conf.xml from the class path to a temporary file
+	 *
+	 * @return path to the file
+	 */
+	static String metadata() throws IOException {
+		File file = File.createTempFile("tinyIPFIX-conf", ".xml");
+		file.deleteOnExit();
+		InputStream in = BenchmarkMessages.class.getResourceAsStream("/tinyIPFIX-conf.xml");
+		if (in == null) {
+			throw new IOException("tinyIPFIX-conf.xml is not on the class path.");
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return file.getPath();
+	}
+
+
+
+	/* private helper methods */
+	private static ByteBuffer _templateRecord() {
+		ByteBuffer record = ByteBuffer.allocate(ENCODER.getTemplateLength() - ENCODER.getHeaderLength());
+		record.putShort((short) TEMPLATE_ID).putShort((short) ENCODER.getFieldCount());
+		for (int i = 0; i < ENCODER.getFieldCount(); i++) {
+			record.putShort((short) ENCODER.getFieldID(i)).putShort((short) ENCODER.getFieldLength(i))
+					.putInt((int) ENCODER.getEnterpriseNumber(i));
+		}
+		record.flip();
+		return record;
+	}
+
+	private static ByteBuffer _dataRecord(long nodeID) {
+		byte[] message = tinyData(0, nodeID);
+		int header = ENCODER.getHeaderLength();
+		return ByteBuffer.wrap(message, header, message.length - header);
+	}
+
+	/** temperature 21.5 °C, humidity 45.3 %, light 123 lux, node time, nodeID, pull flag */
+	private static long[] _values(long nodeID) {
+		return new long[] { 2150 + nodeID % 100, 4530, 12300, 77, nodeID, 0 };
+	}
+
+	private static byte[] _ipfixMessage(int setID, long sequenceNumber, long nodeID, ByteBuffer payload) {
+		int length = 20 + payload.remaining();
+		ByteBuffer message = ByteBuffer.allocate(length);
+		message.putShort((short) 10).putShort((short) length).putInt(0);
+		message.putInt((int) sequenceNumber).putInt((int) nodeID);
+		message.putShort((short) setID).putShort((short) (4 + payload.remaining()));
+		message.put(payload);
+		return message.array();
+	}
+
+	private BenchmarkMessages() {
+	}
+}
@@ -0,0 +1,108 @@
+package ipfix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.Converter;
+
+/**
+ * Stage 1: getting packets off tunslip6, from the dump line to the UDP payload.
+ *
+ * @author Michael Meister
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+	/**
+	 * tunslip6 output of the node mix
+	 */
+	@State(Scope.Thread)
+	public static class Dump {
+		/** hex dump of the IPv6 packet, per node */
+		public String[] hex;
+		/** source address, per node */
+		public InetAddress[] sources;
+		public TunslipPacketSource source;
+		public PacketSource.Packet packet = new PacketSource.Packet();
+
+		@Setup(Level.Trial)
+		public void setup(NodeMix mix) throws IOException {
+			hex = new String[mix.nodes];
+			sources = new InetAddress[mix.nodes];
+			ByteArrayOutputStream dump = new ByteArrayOutputStream();
+			for (int i = 0; i < mix.nodes; i++) {
+				long nodeID = mix.nodeID(i);
+				hex[i] = Converter.byteArrayToHexString(BenchmarkMessages.udp6(mix.tiny[i], nodeID));
+				sources[i] = InetAddress.getByAddress(BenchmarkMessages.address(nodeID));
+				dump.write(BenchmarkMessages.tunslipDump(mix.tiny[i], nodeID).getBytes("US-ASCII"));
+			}
+			source = new TunslipPacketSource(new LoopInputStream(dump.toByteArray()), "benchmark");
+		}
+	}
+
+	@Benchmark
+	public byte[] hexToBytes(NodeMix mix, Dump dump) {
+		return Converter.hexStringToByteArray(dump.hex[mix.next()]);
+	}
+
+	@Benchmark
+	public PacketSource.Packet tunslip(Dump dump) throws IOException {
+		dump.source.read(dump.packet);
+		return dump.packet;
+	}
+
+	@Benchmark
+	public byte[] translateHeader(NodeMix mix, Dump dump) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		return mix.parser.translateHeader(mix.tiny[node], dump.sources[node]);
+	}
+
+
+
+	/* helper classes */
+	/**
+	 * Endless stream repeating a dump.
+	 */
+	static class LoopInputStream extends InputStream {
+		LoopInputStream(byte[] data) {
+			_data = data;
+		}
+
+		@Override
+		public int read() {
+			int b = _data[_pos] & 0xFF;
+			_pos = (_pos + 1) % _data.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int n = Math.min(len, _data.length - _pos);
+			System.arraycopy(_data, _pos, b, off, n);
+			_pos = (_pos + n) % _data.length;
+			return n;
+		}
+
+		private final byte[] _data;
+		private int _pos = 0;
+	}
+}
@@ -0,0 +1,123 @@
+package ipfix;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parse and enrich of a data message, as done by the listener's workers (Map API),
+ * on the allocation free record path and in batches of messages of different nodes.
+ *
+ * @author Michael Meister
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	/** messages per batch, results are per message */
+	public static final int BATCH_SIZE = 64;
+
+	/**
+	 * enriches all fields of the records and sums them up
+	 */
+	@State(Scope.Thread)
+	public static class Enrich implements IPFIXRecord.Handler {
+		public IPFIXEnricher enricher;
+		public double sum;
+
+		@Override
+		public void record(IPFIXRecord record) throws Exception {
+			for (int i = 0; i < record.getFieldCount(); i++) {
+				sum += enricher.enrichValue(record, i);
+			}
+		}
+	}
+
+	/**
+	 * batch reused by the batch benchmarks
+	 */
+	@State(Scope.Thread)
+	public static class Batch {
+		public final IPFIXRecordBatch batch = new IPFIXRecordBatch();
+	}
+
+	@Benchmark
+	public void tinyFields(NodeMix mix, Blackhole blackhole) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		_enrich(mix, mix.parser.parse(mix.tinyBuffer(node), mix.nodeID(node)), blackhole);
+	}
+
+	@Benchmark
+	public void ipfixFields(NodeMix mix, Blackhole blackhole) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		_enrich(mix, mix.parser.parse(mix.ipfixBuffer(node), mix.nodeID(node)), blackhole);
+	}
+
+	@Benchmark
+	public double tinyRecord(NodeMix mix, Enrich enrich) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		enrich.enricher = mix.enricher;
+		mix.parser.parse(mix.tinyBuffer(node), mix.nodeID(node), enrich);
+		return enrich.sum;
+	}
+
+	@Benchmark
+	public double ipfixRecord(NodeMix mix, Enrich enrich) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		enrich.enricher = mix.enricher;
+		mix.parser.parse(mix.ipfixBuffer(node), mix.nodeID(node), enrich);
+		return enrich.sum;
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public double tinyBatch(NodeMix mix, Batch batch) throws IPFIXParser.ParseException {
+		batch.batch.clear();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			int node = mix.next();
+			mix.parser.parse(mix.tinyBuffer(node), mix.nodeID(node), batch.batch);
+		}
+		mix.enricher.enrichAll(batch.batch);
+		return batch.batch.getValue(0, 0);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public double ipfixBatch(NodeMix mix, Batch batch) throws IPFIXParser.ParseException {
+		batch.batch.clear();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			int node = mix.next();
+			mix.parser.parse(mix.ipfixBuffer(node), mix.nodeID(node), batch.batch);
+		}
+		mix.enricher.enrichAll(batch.batch);
+		return batch.batch.getValue(0, 0);
+	}
+
+
+
+	/* private helper methods */
+	private void _enrich(NodeMix mix, Map<String, List<IPFIXField>> fields, Blackhole blackhole)
+			throws IPFIXParser.ParseException {
+		for (List<IPFIXField> list : fields.values()) {
+			for (IPFIXField field : list) {
+				blackhole.consume(mix.enricher.enrich(field));
+			}
+		}
+	}
+}
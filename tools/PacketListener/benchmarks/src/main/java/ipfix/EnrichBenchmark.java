@@ -0,0 +1,44 @@
+package ipfix;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Stage 3: enriching the six fields of a parsed message with tinyIPFIX-conf.xml.
+ *
+ * @author Michael Meister
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnrichBenchmark {
+
+	@Benchmark
+	public void fields(NodeMix mix, Blackhole blackhole) throws IPFIXParser.ParseException {
+		List<IPFIXField> fields = mix.fields[mix.next()];
+		for (int i = 0; i < fields.size(); i++) {
+			blackhole.consume(mix.enricher.enrich(fields.get(i)));
+		}
+	}
+
+	@Benchmark
+	public double values(NodeMix mix) throws IPFIXParser.ParseException {
+		IPFIXRecord record = mix.records[mix.next()];
+		double sum = 0;
+		for (int i = 0; i < record.getFieldCount(); i++) {
+			sum += mix.enricher.enrichValue(record, i);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,120 @@
+package ipfix;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Traffic of `nodes` nodes that all registered their template, one TinyIPFIX
+ * and one IPFIX data message per node. The messages are handed out round robin,
+ * each with the next sequence number of its node, so they pass the parser's
+ * replay check like live traffic.
+ *
+ * @author Michael Meister
+ */
+@State(Scope.Thread)
+public class NodeMix {
+
+	/** first nodeID, node 1 is the border router */
+	public static final int FIRST_NODE = 2;
+	/** IPFIX nodes use their own observation domains, their templates would replace the TinyIPFIX ones otherwise */
+	public static final int IPFIX_NODE_OFFSET = 0x10000;
+
+	@Param({ "1", "100", "10000" })
+	public int nodes;
+
+	public TinyIPFIXParser parser;
+	public IPFIXEnricher enricher;
+
+	/** data messages and buffers wrapping them, per node */
+	public byte[][] tiny;
+	public ByteBuffer[] tinyBuffers;
+	public byte[][] ipfix;
+	public ByteBuffer[] ipfixBuffers;
+	/** IPFIX template messages, per node */
+	public byte[][] ipfixTemplates;
+	/** parsed fields of the TinyIPFIX message, per node */
+	public List<IPFIXField>[] fields;
+	/** record views of the TinyIPFIX message, per node */
+	public IPFIXRecord[] records;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+		parser = new TinyIPFIXParser();
+		enricher = new IPFIXEnricher(BenchmarkMessages.metadata());
+		parser.getTemplateHeap().addListener(enricher);
+
+		tiny = new byte[nodes][];
+		tinyBuffers = new ByteBuffer[nodes];
+		ipfix = new byte[nodes][];
+		ipfixBuffers = new ByteBuffer[nodes];
+		ipfixTemplates = new byte[nodes][];
+		fields = new List[nodes];
+		records = new IPFIXRecord[nodes];
+		for (int i = 0; i < nodes; i++) {
+			long nodeID = FIRST_NODE + i;
+			parser.parse(ByteBuffer.wrap(BenchmarkMessages.tinyTemplate()), nodeID);
+			ipfixTemplates[i] = BenchmarkMessages.ipfixTemplate(0, IPFIX_NODE_OFFSET + nodeID);
+			parser.parse(ByteBuffer.wrap(ipfixTemplates[i]), nodeID);
+
+			tiny[i] = BenchmarkMessages.tinyData(1, nodeID);
+			tinyBuffers[i] = ByteBuffer.wrap(tiny[i]);
+			ipfix[i] = BenchmarkMessages.ipfixData(1, IPFIX_NODE_OFFSET + nodeID);
+			ipfixBuffers[i] = ByteBuffer.wrap(ipfix[i]);
+
+			// parsed once for the fields the enricher benchmarks use
+			Map<String, List<IPFIXField>> parsed = parser.parse(tinyBuffer(i), nodeID);
+			fields[i] = parsed.values().iterator().next();
+			IPFIXTemplate template = parser.getTemplateHeap().get(nodeID, BenchmarkMessages.TEMPLATE_ID);
+			records[i] = new IPFIXRecord()._moveTo(ByteBuffer.wrap(tiny[i]), BenchmarkMessages.ENCODER.getHeaderLength(), template.getDecoder(), nodeID, 1);
+		}
+	}
+
+	/**
+	 * gets the node of the next message, round robin
+	 */
+	public int next() {
+		int node = _next;
+		_next = node + 1 == nodes ? 0 : node + 1;
+		return node;
+	}
+
+	/**
+	 * gets the nodeID of a node
+	 */
+	public long nodeID(int node) {
+		return FIRST_NODE + node;
+	}
+
+	/**
+	 * gets the TinyIPFIX data message of a node with its next sequence number
+	 */
+	public ByteBuffer tinyBuffer(int node) {
+		tiny[node][BenchmarkMessages.TINY_SEQUENCE_OFFSET]++; // wraps like the node's counter
+		ByteBuffer buffer = tinyBuffers[node];
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * gets the IPFIX data message of a node with its next sequence number
+	 */
+	public ByteBuffer ipfixBuffer(int node) {
+		ByteBuffer buffer = ipfixBuffers[node];
+		buffer.clear();
+		buffer.putInt(BenchmarkMessages.IPFIX_SEQUENCE_OFFSET, buffer.getInt(BenchmarkMessages.IPFIX_SEQUENCE_OFFSET) + 1);
+		return buffer;
+	}
+
+
+
+	/* private member */
+	private int _next = 0;
+}
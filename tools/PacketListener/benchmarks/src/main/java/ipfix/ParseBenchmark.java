@@ -0,0 +1,75 @@
+package ipfix;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stage 2: parsing messages into fields (Map API) and into record views (handler API).
+ *
+ * @author Michael Meister
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	/**
+	 * sums the raw values of all records, keeps the decoding from being eliminated
+	 */
+	@State(Scope.Thread)
+	public static class Sum implements IPFIXRecord.Handler {
+		public double sum;
+
+		@Override
+		public void record(IPFIXRecord record) {
+			for (int i = 0; i < record.getFieldCount(); i++) {
+				sum += record.getDouble(i);
+			}
+		}
+	}
+
+	@Benchmark
+	public NodeMix ipfixTemplate(NodeMix mix) throws IPFIXParser.ParseException {
+		mix.parser._parseTemplate(mix.ipfixTemplates[mix.next()]);
+		return mix;
+	}
+
+	@Benchmark
+	public Map<String, List<IPFIXField>> ipfixData(NodeMix mix) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		return mix.parser.parse(mix.ipfixBuffer(node), mix.nodeID(node));
+	}
+
+	@Benchmark
+	public Map<String, List<IPFIXField>> tinyData(NodeMix mix) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		return mix.parser.parse(mix.tinyBuffer(node), mix.nodeID(node));
+	}
+
+	@Benchmark
+	public double ipfixRecord(NodeMix mix, Sum sum) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		mix.parser.parse(mix.ipfixBuffer(node), mix.nodeID(node), sum);
+		return sum.sum;
+	}
+
+	@Benchmark
+	public double tinyRecord(NodeMix mix, Sum sum) throws IPFIXParser.ParseException {
+		int node = mix.next();
+		mix.parser.parse(mix.tinyBuffer(node), mix.nodeID(node), sum);
+		return sum.sum;
+	}
+}
@@ -0,0 +1,237 @@
+package ipfix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.ScriptEngineManager;
+
+import org.junit.Test;
+
+/**
+ * The native evaluator must give the results an ECMAScript engine gives for
+ * the same expression. The expected values are those of JavaScript (checked
+ * with node and Nashorn), written out because the JDK has no engine to
+ * compare against.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXExpressionTest {
+
+	@Test
+	public void precedence() throws Exception {
+		assertJS(7, "1 + 2 * 3");
+		assertJS(9, "(1 + 2) * 3");
+		assertJS(-6, "-2 * 3");
+		assertJS(1, "10 - 4 - 5");
+		assertJS(2.5, "10 / 2 / 2");
+		assertJS(1, "7 % 3 * 1");
+		assertJS(6, "1 + 2 << 1");
+		assertJS(7, "1 + 2 << 1 - 1 + 1 >> 0 | 1");
+		assertJS(1, "1 < 2 == 1");
+		assertJS(1, "1 < 2 < 3");
+		assertJS(0, "3 > 2 > 1");
+		assertJS(3, "1 | 2 ^ 3 & 1");
+		assertJS(1, "!0 + 0");
+		assertJS(-3, "~2");
+		assertJS(4, "- -4");
+		assertJS(12, "x * 2 + 2", 5);
+		assertJS(1, "1 || 0 && 0");
+		assertJS(2, "1 && 2");
+		assertJS(0, "0 && 2");
+		assertJS(3, "0 || 3");
+		assertJS(7, "1 + 2 * 3;");
+	}
+
+	@Test
+	public void bitwiseOnDoubles() throws Exception {
+		assertJS(3, "3.9 | 0");
+		assertJS(-3, "-3.9 | 0");
+		assertJS(5, "4294967301 | 0"); // 2^32 + 5
+		assertJS(1661992960, "1e20 | 0");
+		assertJS(0, "NaN | 0");
+		assertJS(0, "Infinity | 0");
+		assertJS(-2147483648, "2147483648 | 0");
+		assertJS(4294967295.0, "-1 >>> 0");
+		assertJS(2147483647, "-1 >>> 1");
+		assertJS(-1, "-1 >> 1");
+		assertJS(2, "1 << 33"); // shift count modulo 32
+		assertJS(-2147483648, "1 << 31");
+		assertJS(14, "0xFF & 0x0E");
+		assertJS(0x1234, "x >> 8", 0x123456);
+		assertJS(0x56, "x & 0xFF", 0x123456);
+		assertJS(1, "5.5 ^ 4");
+	}
+
+	@Test
+	public void conditional() throws Exception {
+		assertJS(1, "x > 0 ? 1 : -1", 5);
+		assertJS(-1, "x > 0 ? 1 : -1", -5);
+		assertJS(0, "x > 0 ? 1 : x < 0 ? -1 : 0", 0); // right associative
+		assertJS(-1, "x > 0 ? 1 : x < 0 ? -1 : 0", -2);
+		assertJS(20, "(x ? 10 : 20) * 1", Double.NaN); // NaN is falsy
+		assertJS(4, "x ? x ? 4 : 5 : 6", 1);
+	}
+
+	@Test
+	public void math() throws Exception {
+		assertJS(3, "Math.round(2.5)");
+		assertJS(-2, "Math.round(-2.5)");
+		assertJS(-3, "Math.round(-2.6)");
+		assertJS(0, "Math.round(0.49999999999999994)");
+		assertJS(-0.0, "Math.round(-0.4)");
+		assertJS(2, "Math.floor(2.7)");
+		assertJS(-3, "Math.floor(-2.1)");
+		assertJS(3, "Math.ceil(2.1)");
+		assertJS(-2, "Math.trunc(-2.7)");
+		assertJS(-1, "Math.sign(-3)");
+		assertJS(3, "Math.log2(8)");
+		assertJS(3, "Math.log10(1000)");
+		assertJS(2, "Math.cbrt(8)");
+		assertJS(5, "Math.hypot(3, 4)");
+		assertJS(1024, "Math.pow(2, 10)");
+		assertJS(Double.NaN, "Math.pow(1, Infinity)");
+		assertJS(Math.PI / 4, "Math.atan2(1, 1)");
+		assertJS(1, "Math.min(3, 1, 2)");
+		assertJS(3, "Math.max(3, 1, 2)");
+		assertJS(Double.POSITIVE_INFINITY, "Math.min()");
+		assertJS(Double.NEGATIVE_INFINITY, "Math.max()");
+		assertJS(Double.NaN, "Math.max(1, NaN, 3)");
+		assertJS(Math.PI, "Math.PI");
+		assertJS(0.5000000000000001, "Math.SQRT1_2 * Math.SQRT1_2");
+		assertJS(21.5, "Math.round(x) / 100", 2150.4);
+	}
+
+	@Test
+	public void divisionAndNaN() throws Exception {
+		assertJS(Double.POSITIVE_INFINITY, "1 / 0");
+		assertJS(Double.NEGATIVE_INFINITY, "-1 / 0");
+		assertJS(Double.NEGATIVE_INFINITY, "1 / -0");
+		assertJS(Double.NaN, "0 / 0");
+		assertJS(Double.NaN, "5 % 0");
+		assertJS(-1, "-7 % 2");
+		assertJS(1.5, "5.5 % 2");
+		assertJS(0, "NaN == NaN");
+		assertJS(1, "NaN != NaN");
+		assertJS(0, "NaN < 1 || NaN >= 1");
+		assertJS(1, "!NaN");
+		assertJS(Double.NaN, "Math.sqrt(-1)");
+		assertJS(Double.NaN, "x + 1", Double.NaN);
+		assertJS(1e3, "1e3");
+		assertJS(0.25, ".25");
+	}
+
+	@Test
+	public void columnsMatchSingleValues() throws Exception {
+		String[] expressions = { "x / 100", "x * 2 + 1", "x > 100 ? x - 100 : -x", "(x & 0xFF) << 2",
+				"Math.max(x, 50)", "x && 7", "x || 7", "Math.round(x / 3)", "x % 7 - 3" };
+		double[] x = { 0, 1, -1, 99, 100, 101, 255.5, 1e6, -300, Double.NaN };
+		double[] out = new double[x.length];
+		for (String expression : expressions) {
+			IPFIXExpression compiled = IPFIXExpression.compile(expression, new ArrayList<String>());
+			compiled.evalAll(x, out, x.length, new double[0]);
+			for (int i = 0; i < x.length; i++) {
+				assertEquals(expression + " for " + x[i], compiled.eval(x[i], new double[0]), out[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void references() throws Exception {
+		List<String> references = Arrays.asList("t", "h");
+		IPFIXExpression compiled = IPFIXExpression.compile("x * t + h", references);
+		assertEquals(23, compiled.eval(10, new double[] { 2, 3 }), 0);
+		assertTrue(compiled.isNative());
+	}
+
+	@Test
+	public void booleanResults() throws Exception {
+		assertTrue(IPFIXExpression.compile("x > 1", new ArrayList<String>()).isBoolean());
+		assertTrue(IPFIXExpression.compile("!x", new ArrayList<String>()).isBoolean());
+		assertFalse(IPFIXExpression.compile("x + 1", new ArrayList<String>()).isBoolean());
+		assertFalse(IPFIXExpression.compile("x && 2", new ArrayList<String>()).isBoolean());
+	}
+
+	@Test
+	public void unsupportedExpressionWithoutEngine() {
+		assumeTrue(new ScriptEngineManager().getEngineByName("ECMAScript") == null);
+		for (String expression : new String[] { "x ** 2", "Math.random()", "y + 1", "'a' + x", "x = 1" }) {
+			try {
+				IPFIXExpression.compile(expression, new ArrayList<String>());
+				fail("'" + expression + "' compiled without an ECMAScript engine");
+			} catch (Exception e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void unsupportedExpressionOnlyDisablesItsField() throws Exception {
+		assumeTrue(new ScriptEngineManager().getEngineByName("ECMAScript") == null);
+		File metadata = File.createTempFile("tinyIPFIX-conf", ".xml");
+		metadata.deleteOnExit();
+		Writer out = new FileWriter(metadata);
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<configuration><match>\n"
+					+ _field("Temperature", 0x80B0, "x/100") + _field("Humidity", 0x80B1, "x ** 2")
+					+ _field("Light", 0x80B2, "x/100") + "</match></configuration>\n");
+		} finally {
+			out.close();
+		}
+
+		final IPFIXEnricher enricher = new IPFIXEnricher(metadata.getPath());
+		TinyIPFIXParser parser = new TinyIPFIXParser();
+		parser.getTemplateHeap().addListener(enricher);
+		final List<Double> values = new ArrayList<Double>();
+		IPFIXRecord.Handler handler = new IPFIXRecord.Handler() {
+			@Override
+			public void record(IPFIXRecord record) {
+				try {
+					for (int i = 0; i < 3; i++) {
+						values.add(enricher.enrichValue(record, i));
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.tinyTemplate()), 7, handler);
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.tinyData(1, 7)), 7, handler);
+
+		// temperature and light are enriched, humidity keeps its raw value
+		assertEquals(Arrays.asList(21.57, 4530.0, 123.0), values);
+	}
+
+
+
+	/* private helper methods */
+	private static void assertJS(double expected, String expression) throws Exception {
+		assertJS(expected, expression, 0);
+	}
+
+	private static void assertJS(double expected, String expression, double x) throws Exception {
+		IPFIXExpression compiled = IPFIXExpression.compile(expression, new ArrayList<String>());
+		assertTrue(expression + " isn't evaluated natively", compiled.isNative());
+		assertEquals(expression, expected, compiled.eval(x, new double[0]), 0);
+
+		double[] out = new double[1];
+		compiled.evalAll(new double[] { x }, out, 1, new double[0]);
+		assertEquals(expression + " (column)", expected, out[0], 0);
+	}
+
+	private static String _field(String type, int fieldID, String expression) {
+		return "<field><name>" + type + "</name><fieldID>0x" + Integer.toHexString(fieldID)
+				+ "</fieldID><enterpriseNumber>0x12345678</enterpriseNumber><type>" + type
+				+ "</type><unit>-</unit><expression><![CDATA[" + expression + "]]></expression></field>\n";
+	}
+}
@@ -0,0 +1,134 @@
+package ipfix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Parked sets are bounded per node and in total, expire and are released in
+ * sequence order.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXPendingBufferTest {
+
+	@Test
+	public void releaseInSequenceOrderAcrossWrap() {
+		IPFIXPendingBuffer pending = new IPFIXPendingBuffer();
+		// 8 bit counter wrapping while the template is missing, arriving out of order
+		for (int sequenceNumber : new int[] { 254, 1, 255, 0, 253 }) {
+			assertTrue(_park(pending, 7, 256, sequenceNumber, 8, 6));
+		}
+		_park(pending, 7, 257, 2, 8, 6);
+		_park(pending, 9, 256, 3, 8, 6);
+
+		assertEquals(Arrays.asList(253L, 254L, 255L, 0L, 1L), _sequenceNumbers(pending.release(7, 256)));
+		assertTrue(pending.release(7, 256).isEmpty());
+		assertEquals(2, pending.size());
+		assertEquals(12, pending.getBytes());
+	}
+
+	@Test
+	public void releaseInSequenceOrderAcross16BitWrap() {
+		IPFIXPendingBuffer pending = new IPFIXPendingBuffer();
+		for (int sequenceNumber : new int[] { 1, 0xFFFF, 0 }) {
+			_park(pending, 7, 256, sequenceNumber, 16, 6);
+		}
+		assertEquals(Arrays.asList(0xFFFFL, 0L, 1L), _sequenceNumbers(pending.release(7, 256)));
+	}
+
+	@Test
+	public void nodeCapDropsTheNodesOldestSets() {
+		IPFIXMetrics metrics = new IPFIXMetrics();
+		IPFIXPendingBuffer pending = new IPFIXPendingBuffer(1000, 20, 60000);
+		pending.setMetrics(metrics);
+		_park(pending, 9, 256, 1, 8, 10);
+		for (int sequenceNumber = 10; sequenceNumber < 13; sequenceNumber++) {
+			_park(pending, 7, 256, sequenceNumber, 8, 10);
+		}
+
+		// node 7 keeps its two latest sets, node 9 isn't affected
+		assertEquals(Arrays.asList(11L, 12L), _sequenceNumbers(pending.release(7, 256)));
+		assertEquals(Arrays.asList(1L), _sequenceNumbers(pending.release(9, 256)));
+		assertEquals(1, metrics.getPendingDropped());
+
+		// a set larger than a node may park isn't parked at all
+		assertFalse(_park(pending, 7, 256, 13, 8, 21));
+		assertTrue(pending.isEmpty());
+		assertEquals(2, metrics.getPendingDropped());
+	}
+
+	@Test
+	public void globalCapDropsTheOldestSets() {
+		IPFIXPendingBuffer pending = new IPFIXPendingBuffer(30, 20, 60000);
+		_park(pending, 7, 256, 1, 8, 10);
+		_park(pending, 8, 256, 1, 8, 10);
+		_park(pending, 9, 256, 1, 8, 10);
+		_park(pending, 7, 256, 2, 8, 10);
+
+		// node 7's first set arrived first
+		assertEquals(30, pending.getBytes());
+		assertEquals(Arrays.asList(2L), _sequenceNumbers(pending.release(7, 256)));
+		assertEquals(1, pending.release(8, 256).size());
+		assertEquals(1, pending.release(9, 256).size());
+	}
+
+	@Test
+	public void expiresAfterTTL() {
+		IPFIXPendingBuffer pending = new IPFIXPendingBuffer(1000, 100, 1000);
+		_park(pending, 7, 256, 1, 8, 6);
+		long parked = System.currentTimeMillis();
+		pending.expire(parked - 1); // not yet
+		assertEquals(1, pending.size());
+
+		pending.expire(parked + 2000);
+		assertTrue(pending.isEmpty());
+		assertEquals(0, pending.getBytes());
+		assertTrue(pending.release(7, 256).isEmpty());
+	}
+
+	@Test
+	public void removeNode() {
+		IPFIXPendingBuffer pending = new IPFIXPendingBuffer();
+		_park(pending, 7, 256, 1, 8, 6);
+		_park(pending, 7, 257, 2, 8, 6);
+		_park(pending, 9, 256, 1, 8, 6);
+		assertEquals(2, pending.removeNode(7));
+		assertEquals(0, pending.removeNode(7));
+		assertEquals(1, pending.size());
+		assertEquals(6, pending.getBytes());
+		assertEquals(1, pending.release(9, 256).size());
+	}
+
+	@Test
+	public void copiesTheSet() {
+		IPFIXPendingBuffer pending = new IPFIXPendingBuffer();
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 9, 9, 1, 2, 3, 9 });
+		pending.park(7, 256, 1, 8, buffer, 2, 3);
+		buffer.put(2, (byte) 0); // the packet buffer is reused
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, pending.release(7, 256).get(0).data));
+	}
+
+
+
+	/* private helper methods */
+	private static boolean _park(IPFIXPendingBuffer pending, long nodeID, int setID, long sequenceNumber, int bits,
+			int length) {
+		return pending.park(nodeID, setID, sequenceNumber, bits, ByteBuffer.allocate(length), 0, length);
+	}
+
+	private static List<Long> _sequenceNumbers(List<IPFIXPendingBuffer.ParkedSet> sets) {
+		List<Long> sequenceNumbers = new ArrayList<Long>();
+		for (IPFIXPendingBuffer.ParkedSet set : sets) {
+			sequenceNumbers.add(set.sequenceNumber);
+		}
+		return sequenceNumbers;
+	}
+}
@@ -0,0 +1,150 @@
+package ipfix;
+
+import static ipfix.IPFIXSequenceWindow.Result.DUPLICATE;
+import static ipfix.IPFIXSequenceWindow.Result.IN_ORDER;
+import static ipfix.IPFIXSequenceWindow.Result.REORDERED;
+import static ipfix.IPFIXSequenceWindow.Result.RESYNC;
+import static ipfix.IPFIXSequenceWindow.Result.STALE;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * The window accepts every sequence number once, in any order within the
+ * window, across the wrap of 8, 16 and 32 bit counters.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXSequenceWindowTest {
+
+	@Test
+	public void inOrderAndLost() {
+		IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+		assertCheck(window, RESYNC, 10, 8);
+		assertCheck(window, IN_ORDER, 11, 8);
+		assertCheck(window, IN_ORDER, 14, 8);
+		assertEquals(14, window.getHighest());
+		assertEquals(3, window.getReceived());
+		assertEquals(2, window.getLost());
+	}
+
+	@Test
+	public void wrapsAtTheirWidth() {
+		for (int bits : new int[] { 8, 16, 32 }) {
+			long max = (1L << bits) - 1;
+			IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+			assertCheck(window, RESYNC, max - 1, bits);
+			assertCheck(window, IN_ORDER, max, bits);
+			assertCheck(window, IN_ORDER, 0, bits);
+			assertCheck(window, IN_ORDER, 2, bits);
+			// a late message from before the wrap
+			assertCheck(window, REORDERED, 1, bits);
+			assertCheck(window, DUPLICATE, max, bits);
+			assertEquals(bits + " bits", 2, window.getHighest());
+			assertEquals(bits + " bits", 0, window.getLost());
+
+			// only the lowest bits count, like the parser's mapped TinyIPFIX numbers
+			assertCheck(window, IN_ORDER, ~max | 3, bits);
+		}
+	}
+
+	@Test
+	public void reorderedWithinTheWindow() {
+		IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+		assertCheck(window, RESYNC, 100, 16);
+		assertCheck(window, IN_ORDER, 105, 16);
+		assertEquals(4, window.getLost());
+		assertCheck(window, REORDERED, 103, 16);
+		assertCheck(window, REORDERED, 101, 16);
+		assertEquals(2, window.getLost());
+		assertEquals(2, window.getReordered());
+
+		// the oldest number the window remembers
+		assertCheck(window, IN_ORDER, 100 + IPFIXSequenceWindow.WINDOW - 1, 16);
+		assertCheck(window, DUPLICATE, 100, 16);
+		assertCheck(window, REORDERED, 102, 16);
+	}
+
+	@Test
+	public void duplicates() {
+		IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+		assertCheck(window, RESYNC, 1, 8);
+		assertCheck(window, DUPLICATE, 1, 8);
+		assertCheck(window, IN_ORDER, 3, 8);
+		assertCheck(window, REORDERED, 2, 8);
+		assertCheck(window, DUPLICATE, 2, 8);
+		assertCheck(window, DUPLICATE, 3, 8);
+		assertEquals(3, window.getDuplicates());
+		assertEquals(3, window.getReceived());
+	}
+
+	@Test
+	public void staleAndResync() {
+		IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+		assertCheck(window, RESYNC, 1000, 16);
+		// the node restarted its counter: everything it sends is older than the window
+		for (int i = 0; i < IPFIXSequenceWindow.RESYNC - 1; i++) {
+			assertCheck(window, STALE, 10 + i, 16);
+		}
+		assertCheck(window, RESYNC, 10 + IPFIXSequenceWindow.RESYNC - 1, 16);
+		assertCheck(window, IN_ORDER, 10 + IPFIXSequenceWindow.RESYNC, 16);
+		assertEquals(IPFIXSequenceWindow.RESYNC, window.getStale()); // the last one resynced
+		assertEquals(1, window.getResyncs());
+	}
+
+	@Test
+	public void acceptedMessageEndsStaleRun() {
+		IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+		assertCheck(window, RESYNC, 1000, 16);
+		for (int i = 0; i < IPFIXSequenceWindow.RESYNC - 1; i++) {
+			assertCheck(window, STALE, 10, 16);
+		}
+		assertCheck(window, IN_ORDER, 1001, 16);
+		assertCheck(window, STALE, 10, 16);
+		assertEquals(0, window.getResyncs());
+	}
+
+	@Test
+	public void headerWidthChangeRestarts() {
+		IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+		assertCheck(window, RESYNC, 5, 8);
+		assertCheck(window, RESYNC, 5, 16);
+		assertCheck(window, DUPLICATE, 5, 16);
+	}
+
+	@Test
+	public void restore() {
+		IPFIXSequenceWindow previous = new IPFIXSequenceWindow(7);
+		previous.check(250, 8);
+		previous.check(252, 8);
+		previous.check(255, 8);
+
+		IPFIXSequenceWindow window = new IPFIXSequenceWindow(7);
+		assertEquals(-1, window.getHighest());
+		window.restore(previous.getBits(), previous.getHighest(), previous.getBitmap());
+		assertEquals(8, window.getBits());
+		assertEquals(255, window.getHighest());
+		assertEquals(previous.getBitmap(), window.getBitmap());
+		assertEquals(0, window.getReceived());
+
+		assertCheck(window, DUPLICATE, 252, 8);
+		assertCheck(window, REORDERED, 251, 8);
+		assertCheck(window, IN_ORDER, 0, 8);
+		// messages missing before the restart aren't counted as lost
+		assertEquals(0, window.getLost());
+	}
+
+
+
+	/* private helper methods */
+	/** test() predicts the result without recording, check() records it */
+	private static void assertCheck(IPFIXSequenceWindow window, IPFIXSequenceWindow.Result expected,
+			long sequenceNumber, int bits) {
+		String message = sequenceNumber + " (" + bits + " bits)";
+		long received = window.getReceived();
+		assertEquals(message, expected, window.test(sequenceNumber, bits));
+		assertEquals(message, expected, window.test(sequenceNumber, bits));
+		assertEquals(message, received, window.getReceived());
+		assertEquals(message, expected, window.check(sequenceNumber, bits));
+	}
+}
@@ -0,0 +1,195 @@
+package ipfix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A snapshot restores the templates and nodes it was written with, reads
+ * version 1 files and rejects corrupt ones.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXTemplateSnapshotTest {
+
+	private File _file;
+
+
+	@Before
+	public void createFile() throws IOException {
+		_file = File.createTempFile("templates", ".snapshot");
+		_file.delete();
+	}
+
+	@After
+	public void deleteFile() {
+		_file.delete();
+		new File(_file.getPath() + ".tmp").delete();
+	}
+
+	@Test
+	public void missingSnapshotHasNoTemplates() throws IOException {
+		List<IPFIXNode> nodes = new ArrayList<IPFIXNode>();
+		assertTrue(new IPFIXTemplateSnapshot(_file).read(nodes).isEmpty());
+		assertTrue(nodes.isEmpty());
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		IPFIXTemplate plain = _template(1, 256, new int[] { 1, 4, 2, 8 }, null);
+		IPFIXTemplate enterprise = _template(0x10007, 999, new int[] { 0x80B0, 2, 0x80B1, 2, 0x80B2, 2 }, 0x12345678L);
+		IPFIXNode node = new IPFIXNode(0xAAAA000000000000L, 0x0212740700070707L, 0x10007, 1234567890123L);
+		node.sequenceWindow.check(200, 8);
+		node.sequenceWindow.check(202, 8);
+		IPFIXNode silent = new IPFIXNode(0xAAAA000000000000L, 1, 1, 42);
+
+		IPFIXTemplateSnapshot snapshot = new IPFIXTemplateSnapshot(_file);
+		snapshot.write(Arrays.asList(plain, enterprise), Arrays.asList(node, silent));
+		assertFalse("temporary file left behind", new File(_file.getPath() + ".tmp").exists());
+
+		List<IPFIXNode> nodes = new ArrayList<IPFIXNode>();
+		List<IPFIXTemplate> templates = snapshot.read(nodes);
+		assertEquals(2, templates.size());
+		_assertTemplate(plain, templates.get(0));
+		_assertTemplate(enterprise, templates.get(1));
+		assertEquals(6, templates.get(1).getDecoder().recordLength);
+
+		assertEquals(2, nodes.size());
+		IPFIXNode restored = nodes.get(0);
+		assertEquals(node.nodeID, restored.nodeID);
+		assertEquals(node.addressHigh, restored.addressHigh);
+		assertEquals(node.interfaceID, restored.interfaceID);
+		assertEquals(node.getLastSeen(), restored.getLastSeen());
+		assertEquals(8, restored.sequenceWindow.getBits());
+		assertEquals(202, restored.sequenceWindow.getHighest());
+		assertEquals(IPFIXSequenceWindow.Result.DUPLICATE, restored.sequenceWindow.check(200, 8));
+		assertEquals(IPFIXSequenceWindow.Result.REORDERED, restored.sequenceWindow.check(201, 8));
+
+		// a node without data messages has no window to restore
+		assertEquals(0, nodes.get(1).sequenceWindow.getBits());
+		assertEquals(-1, nodes.get(1).sequenceWindow.getHighest());
+		assertEquals(42, nodes.get(1).getLastSeen());
+	}
+
+	@Test
+	public void checkpointReplacesSnapshot() throws IOException {
+		IPFIXTemplateSnapshot snapshot = new IPFIXTemplateSnapshot(_file);
+		snapshot.write(Arrays.asList(_template(1, 256, new int[] { 1, 4 }, null)), Collections.<IPFIXNode> emptyList());
+		snapshot.write(Collections.<IPFIXTemplate> emptyList(), Collections.<IPFIXNode> emptyList());
+		assertTrue(snapshot.read(null).isEmpty());
+	}
+
+	@Test
+	public void readsVersion1() throws IOException {
+		// template of node 7 with one enterprise field, written by version 1 (no nodes)
+		ByteBuffer records = ByteBuffer.allocate(8 + 2 + 4 + 2 + 9);
+		records.putLong(7).putShort((short) 999).putInt(12).putShort((short) 1);
+		records.putShort((short) 0x80B0).putShort((short) 2).put((byte) 1).putInt(0x12345678);
+		_writeFile(1, 1, records.array());
+
+		List<IPFIXNode> nodes = new ArrayList<IPFIXNode>();
+		List<IPFIXTemplate> templates = new IPFIXTemplateSnapshot(_file).read(nodes);
+		assertTrue(nodes.isEmpty());
+		assertEquals(1, templates.size());
+		_assertTemplate(_template(7, 999, new int[] { 0x80B0, 2 }, 0x12345678L), templates.get(0));
+	}
+
+	@Test
+	public void rejectsChecksumMismatch() throws IOException {
+		new IPFIXTemplateSnapshot(_file).write(Arrays.asList(_template(1, 256, new int[] { 1, 4 }, null)),
+				Collections.<IPFIXNode> emptyList());
+		RandomAccessFile file = new RandomAccessFile(_file, "rw");
+		try {
+			file.seek(IPFIXTemplateSnapshot.HEADER_SIZE + 9); // templateID
+			file.write(0x7F);
+		} finally {
+			file.close();
+		}
+		_assertRejected("checksum");
+	}
+
+	@Test
+	public void rejectsTruncatedFile() throws IOException {
+		new IPFIXTemplateSnapshot(_file).write(Arrays.asList(_template(1, 256, new int[] { 1, 4 }, null)),
+				Collections.<IPFIXNode> emptyList());
+		byte[] bytes = Files.readAllBytes(_file.toPath());
+
+		// cut off: the checksum doesn't match anymore
+		Files.write(_file.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+		_assertRejected("checksum");
+
+		// cut off with a matching checksum: the records end early
+		_writeFile(2, 1, Arrays.copyOfRange(bytes, IPFIXTemplateSnapshot.HEADER_SIZE, bytes.length - 3));
+		_assertRejected("truncated");
+
+		// shorter than the header
+		Files.write(_file.toPath(), Arrays.copyOf(bytes, IPFIXTemplateSnapshot.HEADER_SIZE - 1));
+		_assertRejected("size");
+	}
+
+	@Test
+	public void rejectsUnknownVersion() throws IOException {
+		_writeFile(IPFIXTemplateSnapshot.VERSION + 1, 0, new byte[0]);
+		_assertRejected("no template snapshot");
+	}
+
+
+
+	/* private helper methods */
+	/** template with the given (fieldID, length) pairs */
+	private static IPFIXTemplate _template(long nodeID, int templateID, int[] fields, Long enterpriseNumber) {
+		IPFIXTemplate template = new IPFIXTemplate(nodeID, templateID, 0);
+		for (int i = 0; i < fields.length; i += 2) {
+			template.addField(template, fields[i], fields[i + 1], enterpriseNumber);
+		}
+		return template;
+	}
+
+	private static void _assertTemplate(IPFIXTemplate expected, IPFIXTemplate actual) {
+		assertEquals(expected.nodeID, actual.nodeID);
+		assertEquals(expected.templateID, actual.templateID);
+		assertEquals(expected.fields.size(), actual.fields.size());
+		for (int i = 0; i < expected.fields.size(); i++) {
+			IPFIXTemplate.Field field = actual.fields.get(i);
+			assertEquals(expected.fields.get(i).fieldID, field.fieldID);
+			assertEquals(expected.fields.get(i).length, field.length);
+			assertEquals(expected.fields.get(i).enterpriseNumber, field.enterpriseNumber);
+			assertTrue(field.template == actual);
+		}
+	}
+
+	/** writes a snapshot file with a valid header for the given records */
+	private void _writeFile(int version, int count, byte[] records) throws IOException {
+		CRC32 checksum = new CRC32();
+		checksum.update(records);
+		ByteBuffer file = ByteBuffer.allocate(IPFIXTemplateSnapshot.HEADER_SIZE + records.length);
+		file.putInt(IPFIXTemplateSnapshot.MAGIC).putShort((short) version).putShort((short) 0);
+		file.putInt(count).putInt((int) checksum.getValue()).put(records);
+		Files.write(_file.toPath(), file.array());
+	}
+
+	private void _assertRejected(String reason) {
+		try {
+			new IPFIXTemplateSnapshot(_file).read(null);
+			fail("corrupt snapshot was read");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(reason));
+		}
+	}
+}
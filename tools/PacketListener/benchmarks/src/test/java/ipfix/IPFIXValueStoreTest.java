@@ -0,0 +1,49 @@
+package ipfix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Removed nodes lose their values, the other nodes keep theirs.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXValueStoreTest {
+
+	@Test
+	public void removedNodeStartsOver() {
+		IPFIXValueStore store = new IPFIXValueStore();
+		int slot = store.register("Temperature");
+		store.put(7, slot, 21.5);
+		assertTrue(store.remove(7));
+		assertFalse(store.remove(7));
+		assertEquals(0, store.size());
+		assertTrue(Double.isNaN(store.get(7, slot)));
+	}
+
+	@Test
+	public void removingKeepsOtherNodes() {
+		IPFIXValueStore store = new IPFIXValueStore();
+		int slot = store.register("Temperature");
+		// enough nodes to grow the table and to share probe sequences
+		int nodes = 1000;
+		for (int nodeID = 0; nodeID < nodes; nodeID++) {
+			store.put(nodeID, slot, nodeID);
+		}
+		for (int nodeID = 0; nodeID < nodes; nodeID += 3) {
+			assertTrue(store.remove(nodeID));
+		}
+		assertEquals(nodes - (nodes + 2) / 3, store.size());
+
+		for (int nodeID = 0; nodeID < nodes; nodeID++) {
+			if (nodeID % 3 == 0) {
+				assertTrue(Double.isNaN(store.get(nodeID, slot)));
+			} else {
+				assertEquals(nodeID, store.get(nodeID, slot), 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package ipfix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Malformed (Tiny)IPFIX messages must be rejected with a ParseException,
+ * without reading past the message and without hanging the parsing thread.
+ *
+ * @author Michael Meister
+ */
+public class MalformedMessageTest {
+
+	/** records handed to the handler */
+	private int _records = 0;
+	private final IPFIXRecord.Handler _handler = new IPFIXRecord.Handler() {
+		@Override
+		public void record(IPFIXRecord record) {
+			_records++;
+		}
+	};
+
+
+	@Test(timeout = 2000)
+	public void templateSetOfLengthZero() {
+		ByteBuffer set = ByteBuffer.allocate(8);
+		set.putShort((short) 2).putShort((short) 0).putShort((short) 256).putShort((short) 0);
+		assertRejected(ipfixMessage(set.array()));
+	}
+
+	@Test(timeout = 2000)
+	public void templateSetLongerThanMessage() {
+		ByteBuffer set = ByteBuffer.allocate(12);
+		set.putShort((short) 2).putShort((short) 200).putShort((short) 256).putShort((short) 1);
+		set.putShort((short) 1).putShort((short) 2);
+		assertRejected(ipfixMessage(set.array()));
+	}
+
+	@Test(timeout = 2000)
+	public void fieldSpecifiersBeyondTemplateSet() {
+		// the set holds one field specifier, the template claims three; the buffer continues behind the message
+		ByteBuffer set = ByteBuffer.allocate(12);
+		set.putShort((short) 2).putShort((short) 12).putShort((short) 256).putShort((short) 3);
+		set.putShort((short) 1).putShort((short) 2);
+		byte[] message = ipfixMessage(set.array());
+		ByteBuffer buffer = ByteBuffer.allocate(message.length + 16);
+		buffer.put(message).put(new byte[] { 0, 2, 0, 4, 0, 3, 0, 4 });
+		buffer.position(0).limit(message.length);
+
+		IPFIXParser parser = new IPFIXParser();
+		try {
+			parser.parse(buffer, _handler);
+			fail("template exceeding its set was accepted");
+		} catch (IPFIXParser.ParseException e) {
+			// expected
+		}
+		assertNull(parser.getTemplateHeap().get(1, 256));
+	}
+
+	@Test(timeout = 2000)
+	public void enterpriseNumberBeyondTemplateSet() {
+		ByteBuffer set = ByteBuffer.allocate(12);
+		set.putShort((short) 2).putShort((short) 12).putShort((short) 256).putShort((short) 1);
+		set.putShort((short) 0x80B0).putShort((short) 2);
+		assertRejected(ipfixMessage(set.array()));
+	}
+
+	@Test(timeout = 2000)
+	public void enterpriseBitWithElementZero() throws Exception {
+		// 0x8000 is element 0 of an enterprise, its enterprise number must not be read as the next field specifier
+		ByteBuffer set = ByteBuffer.allocate(20);
+		set.putShort((short) 2).putShort((short) 20).putShort((short) 256).putShort((short) 2);
+		set.putShort((short) 0x8000).putShort((short) 2).putInt(0x12345678);
+		set.putShort((short) 1).putShort((short) 2);
+
+		IPFIXParser parser = new IPFIXParser();
+		parser.parse(ByteBuffer.wrap(ipfixMessage(set.array())), _handler);
+		IPFIXTemplate template = parser.getTemplateHeap().get(1, 256);
+		assertEquals(2, template.fields.size());
+		assertEquals(Long.valueOf(0x12345678L), template.fields.get(0).enterpriseNumber);
+		assertEquals(1, template.fields.get(1).fieldID);
+		assertNull(template.fields.get(1).enterpriseNumber);
+	}
+
+	@Test(timeout = 2000)
+	public void tinyHeaderWithExtendedFieldsTruncated() {
+		// flags: extended sequence number and extended set ID, length 3
+		assertTinyRejected(new byte[] { (byte) 0xC0 | (2 << 2), 3, 0 });
+		// flags: extended sequence number, length 3
+		assertTinyRejected(new byte[] { (byte) 0x40 | (2 << 2), 3, 0 });
+		// flags: extended set ID, length 3
+		assertTinyRejected(new byte[] { (byte) 0x80 | (2 << 2), 3, 0 });
+	}
+
+	@Test(timeout = 2000)
+	public void tinyMessageTooShort() {
+		assertTinyRejected(new byte[] { 2 << 2, 2 });
+	}
+
+	@Test(timeout = 2000)
+	public void tinyLengthLargerThanPacket() {
+		assertTinyRejected(new byte[] { (2 << 2) | 0x03, (byte) 0xFF, 1, 0, 0 });
+	}
+
+	@Test(timeout = 2000)
+	public void tinyTemplateFieldsBeyondMessage() {
+		// template message: templateID 256 with 6 fields, but only one field specifier follows
+		byte[] message = new byte[] { 1 << 2, 11, (byte) 0xFF, 1, 0, 0, 6, 0, 1, 0, 2 };
+		assertTinyRejected(message);
+	}
+
+	@Test(timeout = 2000)
+	public void malformedDataDoesntSlideTheWindow() throws Exception {
+		TinyIPFIXParser parser = new TinyIPFIXParser();
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.tinyTemplate()), 7, _handler);
+		byte[] data = BenchmarkMessages.tinyData(5, 7);
+		assertTinyRejected(parser, truncateTiny(data));
+		parser.parse(ByteBuffer.wrap(data), 7, _handler);
+		assertEquals(1, _records);
+
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.ipfixTemplate(0, 9)), 0, _handler);
+		data = BenchmarkMessages.ipfixData(5, 9);
+		try {
+			parser.parse(ByteBuffer.wrap(truncateIPFIX(data)), 0, _handler);
+			fail("malformed IPFIX message was accepted");
+		} catch (IPFIXParser.ParseException e) {
+			// expected
+		}
+		parser.parse(ByteBuffer.wrap(data), 0, _handler);
+		assertEquals(2, _records);
+	}
+
+	@Test(timeout = 2000)
+	public void validMessagesStillParse() throws Exception {
+		TinyIPFIXParser parser = new TinyIPFIXParser();
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.tinyTemplate()), 7, _handler);
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.tinyData(1, 7)), 7, _handler);
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.ipfixTemplate(0, 9)), 0, _handler);
+		parser.parse(ByteBuffer.wrap(BenchmarkMessages.ipfixData(1, 9)), 0, _handler);
+		assertEquals(2, _records);
+	}
+
+
+
+	/* private helper methods */
+	/** IPFIX message (header of node 1, sequence number 0) around the sets */
+	private static byte[] ipfixMessage(byte[] sets) {
+		ByteBuffer message = ByteBuffer.allocate(16 + sets.length);
+		message.putShort((short) 0x0A).putShort((short) (16 + sets.length)).putInt(0).putInt(0).putInt(1);
+		message.put(sets);
+		return message.array();
+	}
+
+	private void assertRejected(byte[] message) {
+		try {
+			new IPFIXParser().parse(ByteBuffer.wrap(message), _handler);
+			fail("malformed IPFIX message was accepted");
+		} catch (IPFIXParser.ParseException e) {
+			// expected
+		}
+	}
+
+	/** TinyIPFIX message without its last byte, the length in the header adjusted */
+	private static byte[] truncateTiny(byte[] message) {
+		byte[] truncated = Arrays.copyOf(message, message.length - 1);
+		truncated[0] = (byte) ((truncated[0] & 0xFC) | (truncated.length >> 8));
+		truncated[1] = (byte) truncated.length;
+		return truncated;
+	}
+
+	/** IPFIX message with a single set without its last byte, the message and set lengths adjusted */
+	private static byte[] truncateIPFIX(byte[] message) {
+		ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(message, message.length - 1));
+		truncated.putShort(2, (short) (message.length - 1));
+		truncated.putShort(18, (short) (message.length - 17));
+		return truncated.array();
+	}
+
+	private void assertTinyRejected(byte[] message) {
+		assertTinyRejected(new TinyIPFIXParser(), message);
+		assertEquals(0, _records);
+	}
+
+	private void assertTinyRejected(TinyIPFIXParser parser, byte[] message) {
+		int records = _records;
+		try {
+			parser.parse(ByteBuffer.wrap(message), 7, _handler);
+			fail("malformed TinyIPFIX message was accepted");
+		} catch (IPFIXParser.ParseException e) {
+			// expected
+		}
+		assertEquals(records, _records);
+	}
+}
@@ -0,0 +1,171 @@
+package ipfix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Segments roll when they are full, queries skip the blocks their index rules
+ * out and a torn last row is dropped when the store is opened again.
+ *
+ * @author Michael Meister
+ */
+public class MeasurementStoreTest {
+
+	private static final long TEMPERATURE = MeasurementStore.getFieldKey(0x12345678L, 0x80B0);
+	private static final long HUMIDITY = MeasurementStore.getFieldKey(0x12345678L, 0x80B1);
+
+	private File _directory;
+
+
+	@Before
+	public void createDirectory() throws IOException {
+		_directory = Files.createTempDirectory("measurements").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (File file : _directory.listFiles()) {
+			file.delete();
+		}
+		_directory.delete();
+	}
+
+	@Test
+	public void segmentsRoll() throws IOException {
+		int rows = 2 * MeasurementStore.BLOCK_ROWS + 100;
+		MeasurementStore store = new MeasurementStore(_directory, MeasurementStore.BLOCK_ROWS, 0);
+		for (int i = 0; i < rows; i++) {
+			store.append(i, 7, TEMPERATURE, i / 100.0);
+		}
+		assertEquals(rows, store.size());
+		assertTrue(new File(_directory, "00000003.rows").exists());
+		assertEquals(rows, _query(store, 7, TEMPERATURE, 0, Long.MAX_VALUE).size());
+		store.close();
+		assertEquals(MeasurementStore.BLOCK_ROWS * MeasurementStore.ROW_SIZE, new File(_directory, "00000001.rows").length());
+
+		// appends continue in the last segment
+		store = new MeasurementStore(_directory, MeasurementStore.BLOCK_ROWS, 0);
+		store.append(rows, 7, TEMPERATURE, 0);
+		assertEquals(rows + 1, store.size());
+		List<long[]> found = _query(store, 7, TEMPERATURE, 0, Long.MAX_VALUE);
+		assertEquals(rows + 1, found.size());
+		for (int i = 0; i < found.size(); i++) {
+			assertEquals("in append order", i, found.get(i)[0]);
+		}
+		assertEquals(100, _query(store, MeasurementStore.ANY, MeasurementStore.ANY, 1024, 1123).size());
+		store.close();
+		assertTrue(!new File(_directory, "00000004.rows").exists());
+	}
+
+	@Test
+	public void indexSkipsBlocks() throws IOException {
+		MeasurementStore store = new MeasurementStore(_directory, 4 * MeasurementStore.BLOCK_ROWS, 0);
+		for (int i = 0; i < 2 * MeasurementStore.BLOCK_ROWS; i++) {
+			store.append(i, 7, TEMPERATURE, 1);
+		}
+		store.flush();
+
+		// plant rows in the first block behind the index's back: only a query scanning that block finds them
+		RandomAccessFile file = new RandomAccessFile(new File(_directory, "00000001.rows"), "rw");
+		try {
+			_write(file, 5, MeasurementStore.BLOCK_ROWS + 500, 7, TEMPERATURE);
+			_write(file, 6, 6, 9, HUMIDITY);
+		} finally {
+			file.close();
+		}
+
+		// the first block ends before the range
+		assertEquals(MeasurementStore.BLOCK_ROWS,
+				_query(store, 7, TEMPERATURE, MeasurementStore.BLOCK_ROWS, Long.MAX_VALUE).size());
+		// a range overlapping the first block scans it
+		assertEquals(MeasurementStore.BLOCK_ROWS + 2,
+				_query(store, 7, TEMPERATURE, MeasurementStore.BLOCK_ROWS - 1, Long.MAX_VALUE).size());
+
+		// the first block holds neither node 9 nor the humidity
+		assertEquals(0, _query(store, 9, HUMIDITY, 0, Long.MAX_VALUE).size());
+		assertEquals(1, _query(store, MeasurementStore.ANY, MeasurementStore.ANY, 6, 6).size());
+		store.close();
+	}
+
+	@Test
+	public void tornRowIsDropped() throws IOException {
+		MeasurementStore store = new MeasurementStore(_directory, MeasurementStore.BLOCK_ROWS, 0);
+		for (int i = 0; i < 10; i++) {
+			store.append(1000 + i, 7, TEMPERATURE, i);
+		}
+		store.close();
+
+		// crash while a row was written
+		File rows = new File(_directory, "00000001.rows");
+		FileOutputStream out = new FileOutputStream(rows, true);
+		try {
+			out.write(new byte[MeasurementStore.ROW_SIZE / 2 + 1]);
+		} finally {
+			out.close();
+		}
+
+		store = new MeasurementStore(_directory, MeasurementStore.BLOCK_ROWS, 0);
+		assertEquals(10, store.size());
+		assertEquals(10 * MeasurementStore.ROW_SIZE, rows.length());
+		store.append(2000, 7, TEMPERATURE, 10);
+		List<long[]> found = _query(store, 7, TEMPERATURE, 0, Long.MAX_VALUE);
+		assertEquals(11, found.size());
+		assertEquals(2000, found.get(10)[0]);
+		store.close();
+		assertEquals(11 * MeasurementStore.ROW_SIZE, rows.length());
+	}
+
+	@Test
+	public void recoveredIndexSkipsBlocks() throws IOException {
+		// the last segment's index is rebuilt on open, a full block of it is indexed again
+		MeasurementStore store = new MeasurementStore(_directory, 4 * MeasurementStore.BLOCK_ROWS, 0);
+		for (int i = 0; i < MeasurementStore.BLOCK_ROWS + 10; i++) {
+			store.append(i, 7, TEMPERATURE, 1);
+		}
+		store.close();
+		new RandomAccessFile(new File(_directory, "00000001.idx"), "rw").setLength(0);
+
+		store = new MeasurementStore(_directory, 4 * MeasurementStore.BLOCK_ROWS, 0);
+		assertEquals(10, _query(store, 7, TEMPERATURE, MeasurementStore.BLOCK_ROWS, Long.MAX_VALUE).size());
+		assertEquals(MeasurementStore.BLOCK_ROWS + 10, _query(store, 7, TEMPERATURE, 0, Long.MAX_VALUE).size());
+		store.close();
+	}
+
+
+
+	/* private helper methods */
+	/** timestamps and nodeIDs of the found measurements */
+	private static List<long[]> _query(MeasurementStore store, long nodeID, long fieldKey, long from, long to)
+			throws IOException {
+		final List<long[]> found = new ArrayList<long[]>();
+		long count = store.query(nodeID, fieldKey, from, to, new MeasurementStore.Visitor() {
+			@Override
+			public void measurement(long timestamp, long nodeID, long fieldKey, double value) {
+				found.add(new long[] { timestamp, nodeID });
+			}
+		});
+		assertEquals(found.size(), count);
+		return found;
+	}
+
+	private static void _write(RandomAccessFile file, int row, long timestamp, long nodeID, long fieldKey)
+			throws IOException {
+		file.seek((long) row * MeasurementStore.ROW_SIZE);
+		file.writeLong(timestamp);
+		file.writeLong(nodeID);
+		file.writeLong(fieldKey);
+		file.writeDouble(0);
+	}
+}
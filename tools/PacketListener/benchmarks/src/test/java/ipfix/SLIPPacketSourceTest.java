@@ -0,0 +1,139 @@
+package ipfix;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Decodes a recorded SLIP byte stream of a border router: IPv6/UDP packets
+ * with escaped bytes, prefix requests, debug output and other frames.
+ *
+ * @author Michael Meister
+ */
+public class SLIPPacketSourceTest {
+
+	/** payload holding both SLIP special characters */
+	private static final byte[] ESCAPED_PAYLOAD = { 1, (byte) SLIPPacketSource.END, 2, (byte) SLIPPacketSource.ESC,
+			(byte) SLIPPacketSource.ESC, (byte) SLIPPacketSource.END, 3 };
+	/** aaaa:c0db:: */
+	private static final byte[] PREFIX = { (byte) 0xaa, (byte) 0xaa, (byte) 0xc0, (byte) 0xdb, 0, 0, 0, 0 };
+
+
+	@Test
+	public void decodesRecordedStream() throws Exception {
+		ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+		recorded.write(SLIPPacketSource.END);
+		_frame(recorded, BenchmarkMessages.udp6(BenchmarkMessages.tinyTemplate(), 7));
+		_frame(recorded, "booting contiki\n".getBytes(StandardCharsets.US_ASCII));
+		_frame(recorded, new byte[] { '?', 'P' });
+		_frame(recorded, _icmp6());
+		recorded.write(SLIPPacketSource.END); // empty frames
+		recorded.write(SLIPPacketSource.END);
+		_frame(recorded, new byte[PacketSource.Packet.MAX_SIZE + 1]); // doesn't fit a packet
+		// the node's address ends in both special characters too
+		_frame(recorded, BenchmarkMessages.udp6(ESCAPED_PAYLOAD, 0xC0DB));
+
+		ByteArrayOutputStream answers = new ByteArrayOutputStream();
+		ByteArrayOutputStream debug = new ByteArrayOutputStream();
+		SLIPPacketSource source = new SLIPPacketSource(new ByteArrayInputStream(recorded.toByteArray()), answers,
+				PREFIX, "recorded");
+		source.setDebugStream(new PrintStream(debug, true, "US-ASCII"));
+		PacketSource.Packet packet = new PacketSource.Packet();
+
+		assertTrue(source.read(packet));
+		assertArrayEquals(BenchmarkMessages.tinyTemplate(), _payload(packet));
+		assertArrayEquals(BenchmarkMessages.address(7), packet.sourceAddress);
+		assertEquals(7, TinyIPFIXParser.getNodeID(packet.sourceAddress));
+
+		assertTrue(source.read(packet));
+		assertArrayEquals(ESCAPED_PAYLOAD, _payload(packet));
+		assertArrayEquals(BenchmarkMessages.address(0xC0DB), packet.sourceAddress);
+		assertTrue(packet.receiveTime > 0);
+
+		assertFalse(source.read(packet));
+		source.close();
+
+		// the prefix request was answered once, escaped like tunslip6 does
+		byte[] answer = { (byte) SLIPPacketSource.END, '!', 'P', (byte) 0xaa, (byte) 0xaa, (byte) SLIPPacketSource.ESC,
+				(byte) SLIPPacketSource.ESC_END, (byte) SLIPPacketSource.ESC, (byte) SLIPPacketSource.ESC_ESC, 0, 0, 0, 0,
+				(byte) SLIPPacketSource.END };
+		assertArrayEquals(answer, answers.toByteArray());
+		// only the mote's text is printed, not the ICMPv6 frame
+		assertEquals("booting contiki\n", debug.toString("US-ASCII"));
+	}
+
+	@Test
+	public void prefixRequestsIgnoredWithoutOutput() throws Exception {
+		ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+		_frame(recorded, new byte[] { '?', 'P' });
+		_frame(recorded, BenchmarkMessages.udp6(BenchmarkMessages.tinyData(1, 7), 7));
+		SLIPPacketSource source = new SLIPPacketSource(new ByteArrayInputStream(recorded.toByteArray()), null, null,
+				"recorded");
+		PacketSource.Packet packet = new PacketSource.Packet();
+		assertTrue(source.read(packet));
+		assertArrayEquals(BenchmarkMessages.tinyData(1, 7), _payload(packet));
+		assertFalse(source.read(packet));
+	}
+
+	@Test
+	public void sameSourceAsTunslip() throws Exception {
+		byte[] payload = BenchmarkMessages.tinyData(1, 0x1234);
+		ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+		_frame(recorded, BenchmarkMessages.udp6(payload, 0x1234));
+		PacketSource.Packet slip = new PacketSource.Packet();
+		assertTrue(new SLIPPacketSource(new ByteArrayInputStream(recorded.toByteArray()), null, null, "recorded")
+				.read(slip));
+
+		String dump = BenchmarkMessages.tunslipDump(payload, 0x1234);
+		PacketSource.Packet tunslip = new PacketSource.Packet();
+		assertTrue(new TunslipPacketSource(new ByteArrayInputStream(dump.getBytes(StandardCharsets.US_ASCII)),
+				"recorded").read(tunslip));
+
+		assertArrayEquals(_payload(tunslip), _payload(slip));
+		assertArrayEquals(tunslip.sourceAddress, slip.sourceAddress);
+		assertEquals(0x1234, TinyIPFIXParser.getNodeID(slip.sourceAddress));
+	}
+
+
+
+	/* private helper methods */
+	/** writes a SLIP frame, escaping END and ESC */
+	private static void _frame(ByteArrayOutputStream out, byte[] frame) {
+		for (byte b : frame) {
+			int c = b & 0xFF;
+			if (c == SLIPPacketSource.END) {
+				out.write(SLIPPacketSource.ESC);
+				out.write(SLIPPacketSource.ESC_END);
+			} else if (c == SLIPPacketSource.ESC) {
+				out.write(SLIPPacketSource.ESC);
+				out.write(SLIPPacketSource.ESC_ESC);
+			} else {
+				out.write(c);
+			}
+		}
+		out.write(SLIPPacketSource.END);
+	}
+
+	/** ICMPv6 echo request of aaaa::7 */
+	private static byte[] _icmp6() {
+		byte[] packet = BenchmarkMessages.udp6(new byte[8], 7);
+		packet[6] = 58;
+		return packet;
+	}
+
+	private static byte[] _payload(PacketSource.Packet packet) {
+		ByteBuffer buffer = packet.buffer;
+		return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(),
+				buffer.arrayOffset() + buffer.limit());
+	}
+}
@@ -0,0 +1,160 @@
+package ipfix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The pipeline keeps reading until its source ends, decodes data with the
+ * templates restored before it runs, forgets the templates of expired nodes
+ * and evicts idle templates while no packets arrive.
+ *
+ * @author Michael Meister
+ */
+public class TinyIPFIXPipelineTest {
+
+	@Test(timeout = 10000)
+	public void emptyPacketsDontStopTheReader() throws Exception {
+		ListSource source = new ListSource(Arrays.asList(BenchmarkMessages.tinyTemplate(), new byte[0],
+				BenchmarkMessages.tinyData(1, 7), new byte[0], new byte[0], BenchmarkMessages.tinyData(2, 7)));
+		TinyIPFIXPipeline pipeline = new TinyIPFIXPipeline(BenchmarkMessages.metadata(), null, null, 1, 2);
+		pipeline.run(source);
+
+		assertEquals(7, source.reads); // every packet and the end of the stream
+		assertEquals(3, pipeline.getMetrics().getPackets());
+		assertEquals(1, pipeline.getMetrics().getTemplates());
+		assertEquals(0, pipeline.getMetrics().getParseFailures());
+	}
+
+	@Test(timeout = 10000)
+	public void restoredTemplatesDecodeTheFirstPacket() throws Exception {
+		File file = File.createTempFile("templates", ".snapshot");
+		file.deleteOnExit();
+		IPFIXTemplateSnapshot snapshot = new IPFIXTemplateSnapshot(file);
+		TinyIPFIXPipeline previous = new TinyIPFIXPipeline(BenchmarkMessages.metadata(), null, null, 2, 2);
+		previous.run(new ListSource(Arrays.asList(BenchmarkMessages.tinyTemplate(), BenchmarkMessages.tinyData(1, 7))));
+		assertEquals(1, previous.checkpoint(snapshot));
+
+		// the restart receives data only
+		TinyIPFIXPipeline pipeline = new TinyIPFIXPipeline(BenchmarkMessages.metadata(), null, null, 2, 2);
+		assertEquals(1, pipeline.restoreTemplates(snapshot));
+		pipeline.run(new ListSource(Arrays.asList(BenchmarkMessages.tinyData(2, 7))));
+		assertEquals(0, pipeline.getMetrics().getTemplateMisses());
+		assertEquals(0, pipeline.getMetrics().getPendingParked());
+		assertEquals(1, pipeline.getSequenceWindow(pipeline.getNodeRegistry().getNodes().get(0).nodeID).getReceived());
+
+		// once started the workers own the templates
+		try {
+			pipeline.restoreTemplates(snapshot);
+			fail("templates restored into a started pipeline");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+
+
+	@Test(timeout = 10000)
+	public void expiredNodesLoseTheirTemplates() throws Exception {
+		long start = 1000000;
+		ListSource source = new ListSource().add(BenchmarkMessages.tinyTemplate(), 7, start)
+				.add(BenchmarkMessages.tinyData(1, 7), 7, start + 1000)
+				// node 9 sweeps the registry after node 7 has been idle for too long
+				.add(BenchmarkMessages.tinyData(1, 9), 9, start + 20000)
+				.add(BenchmarkMessages.tinyData(2, 7), 7, start + 20001);
+		TinyIPFIXPipeline pipeline = new TinyIPFIXPipeline(BenchmarkMessages.metadata(), null, null, 1, 2);
+		pipeline.setTemplateLimits(0, 10000);
+		pipeline.run(source);
+
+		// node 7 came back as a new node, the template of its previous life is gone
+		assertEquals(1, pipeline.getNodeRegistry().getExpired());
+		assertEquals(0, pipeline.getParser(0).getTemplateHeap().size());
+		assertEquals(2, pipeline.getMetrics().getTemplateMisses());
+		assertEquals(2, pipeline.getMetrics().getPendingParked());
+	}
+
+
+	@Test(timeout = 10000)
+	public void idleTemplatesAreEvictedWithoutTraffic() throws Exception {
+		ListSource source = new ListSource(Arrays.asList(BenchmarkMessages.tinyTemplate())) {
+			@Override
+			public boolean read(Packet packet) throws IOException {
+				if (reads == payloads.size()) {
+					try {
+						Thread.sleep(500); // quiet network, no template is added that would evict
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				return super.read(packet);
+			}
+		};
+		TinyIPFIXPipeline pipeline = new TinyIPFIXPipeline(BenchmarkMessages.metadata(), null, null, 1, 2);
+		pipeline.setTemplateLimits(0, 100);
+		pipeline.run(source);
+
+		assertEquals(1, pipeline.getMetrics().getTemplates());
+		assertEquals(0, pipeline.getParser(0).getTemplateHeap().size());
+		assertEquals(1, pipeline.getParser(0).getTemplateHeap().getEvictions());
+	}
+
+
+
+	/* helper classes */
+	/**
+	 * Source of a list of payloads, sent by aaaa::7 now unless added with another node and time.
+	 */
+	private static class ListSource implements PacketSource {
+		final List<byte[]> payloads = new ArrayList<byte[]>();
+		final List<Integer> nodeIDs = new ArrayList<Integer>();
+		final List<Long> times = new ArrayList<Long>();
+		int reads = 0;
+
+		ListSource(List<byte[]> payloads) {
+			for (byte[] payload : payloads) {
+				add(payload, 7, 0);
+			}
+		}
+
+		ListSource() {
+		}
+
+		/** adds a payload of aaaa::nodeID received at time, 0 for now */
+		ListSource add(byte[] payload, int nodeID, long time) {
+			payloads.add(payload);
+			nodeIDs.add(nodeID);
+			times.add(time);
+			return this;
+		}
+
+		@Override
+		public boolean read(Packet packet) throws IOException {
+			if (reads++ == payloads.size()) {
+				return false;
+			}
+			packet.buffer.clear();
+			packet.buffer.put(payloads.get(reads - 1)).flip();
+			byte[] address = BenchmarkMessages.address(nodeIDs.get(reads - 1));
+			packet.setSourceAddress(address, 0, address.length);
+			long time = times.get(reads - 1);
+			packet.receiveTime = time != 0 ? time : System.currentTimeMillis();
+			return true;
+		}
+
+		@Override
+		public String getName() {
+			return "list";
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package ipfix;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Receives datagrams sent over the loopback interface to several ports.
+ *
+ * @author Michael Meister
+ */
+public class UDPPacketSourceTest {
+
+	@Test(timeout = 10000)
+	public void receivesOnAllPorts() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		UDPPacketSource source = new UDPPacketSource(loopback, 0, 0, 0, 0);
+		DatagramSocket sender = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		try {
+			Set<String> sent = new HashSet<String>();
+			for (int channel = 0; channel < 3; channel++) {
+				byte[] payload = BenchmarkMessages.tinyData(channel, 7);
+				sender.send(new DatagramPacket(payload, payload.length, loopback, source.getLocalPort(channel)));
+				sent.add(Arrays.toString(payload));
+			}
+
+			Set<String> received = new HashSet<String>();
+			PacketSource.Packet packet = new PacketSource.Packet();
+			for (int i = 0; i < 3; i++) {
+				assertTrue(source.read(packet));
+				received.add(Arrays.toString(_payload(packet)));
+				// IPv4 senders are stored as IPv4-mapped IPv6 addresses
+				assertArrayEquals(_mapped(loopback), packet.sourceAddress);
+				assertTrue(packet.receiveTime > 0);
+			}
+			assertEquals(sent, received);
+		} finally {
+			sender.close();
+			source.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void zeroLengthDatagram() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		UDPPacketSource source = new UDPPacketSource(loopback, 0, 0);
+		DatagramSocket sender = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		try {
+			int port = source.getLocalPort(0);
+			sender.send(new DatagramPacket(new byte[0], 0, loopback, port));
+			byte[] payload = BenchmarkMessages.tinyTemplate();
+			sender.send(new DatagramPacket(payload, payload.length, loopback, port));
+
+			// the empty datagram is a packet without payload, the next one follows
+			PacketSource.Packet packet = new PacketSource.Packet();
+			assertTrue(source.read(packet));
+			assertEquals(0, packet.buffer.remaining());
+			assertTrue(source.read(packet));
+			assertArrayEquals(payload, _payload(packet));
+		} finally {
+			sender.close();
+			source.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void closedSourceEnds() throws Exception {
+		UDPPacketSource source = new UDPPacketSource(InetAddress.getByName("127.0.0.1"), 0, 0);
+		source.close();
+		assertFalse(source.read(new PacketSource.Packet()));
+	}
+
+
+
+	/* private helper methods */
+	private static byte[] _payload(PacketSource.Packet packet) {
+		ByteBuffer buffer = packet.buffer;
+		return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(),
+				buffer.arrayOffset() + buffer.limit());
+	}
+
+	/** ::ffff:a.b.c.d */
+	private static byte[] _mapped(InetAddress address) {
+		byte[] mapped = new byte[16];
+		mapped[10] = (byte) 0xff;
+		mapped[11] = (byte) 0xff;
+		System.arraycopy(address.getAddress(), 0, mapped, 12, 4);
+		return mapped;
+	}
+}
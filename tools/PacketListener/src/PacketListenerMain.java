@@ -1,10 +1,23 @@
+import ipfix.IPFIXLog;
+import ipfix.IPFIXTemplateSnapshot;
+import ipfix.MeasurementStore;
+import ipfix.PcapPacketSource;
+import ipfix.SLIPPacketSource;
 import ipfix.TinyIPFIXListener;
+import ipfix.TinyIPFIXPipeline;
+import ipfix.UDPPacketSource;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+
+import utils.AsyncFileWriter;
 
 /**
  * Listener handling data received from an (tiny)IPFIX based WSN operating under
@@ -16,6 +29,9 @@ import java.util.Date;
  */
 public class PacketListenerMain {
 
+	/** milliseconds the shutdown hook waits for the received packets to be written */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
 	/**
 	 * Main method of the packet listener for a Contiki WSN.
 	 * 
@@ -23,29 +39,212 @@ public class PacketListenerMain {
 	 *            args[0] specifies the path to the USB device to listen to
 	 *            args[1] specifies the output path where the file containing
 	 *            the packet data is written to
+	 *            -slip reads SLIP frames from the device directly instead of
+	 *            running tunslip6 (the device has to be configured, e.g.
+	 *            `stty -F /dev/ttyUSB0 115200 raw -echo`), - reads them from
+	 *            stdin (e.g. piped from TrafficGeneratorMain)
+	 *            -prefix specifies the IPv6 prefix handed to the border router
+	 *            in -slip mode (default aaaa::)
+	 *            -udp receives the messages as UDP datagrams on the given
+	 *            comma separated ports (default 40001) instead of using a
+	 *            USB device, e.g. when tunslip6 runs as a service
+	 *            -rcvbuf specifies the receive buffer size of the UDP sockets
+	 *            -pcap replays the IPv6/UDP packets of a pcap or pcapng
+	 *            capture (e.g. of tun0) instead of using a USB device
+	 *            -speed specifies the replay speed of -pcap, 1 is real time
+	 *            (default), 0 as fast as possible
+	 *            -workers specifies the number of parse/enrich threads
+	 *            (default one per core)
+	 *            -queue specifies the number of packets that may be queued per
+	 *            worker (default 256)
+	 *            -flush specifies the maximum time in milliseconds packet data
+	 *            and measurements are buffered before they are written to
+	 *            the output file and the store (default 1000)
+	 *            -sync forces every write of the output file to disk
+	 *            -store specifies a directory the enriched measurements are
+	 *            stored in (binary, queryable with MeasurementStore)
+	 *            -log specifies the minimum level of events printed to the
+	 *            console: debug, info (default), warning, error or off
+	 *            -quiet prints nothing to the console (same as -log off)
+	 *            -metrics serves the collector's metrics as text on
+	 *            http://localhost:port/metrics (they are always available via
+	 *            JMX)
+	 *            -snapshot specifies a file the templates and sequence
+	 *            numbers are saved to and restored from on start, so data
+	 *            is decoded right after a restart
+	 *            -checkpoint specifies the interval in seconds the snapshot
+	 *            is written in (default 10), it is written on exit too
+	 *            -templatemem specifies the memory budget of the templates in
+	 *            MB (default 64, 0 unlimited), the templates of the least
+	 *            recently used nodes are evicted beyond it
+	 *            -templateidle specifies the time in seconds a template is
+	 *            kept without receiving data (default 0, forever), nodes
+	 *            that don't send packets for as long are forgotten too
 	 */
 	public static void main(final String[] args) {
-		if (args.length < 1) {
-			System.err.println("Usage: java PacketListenerMain usbdevice [outputpath]");
+		boolean slip = false;
+		String prefix = "aaaa::";
+		String udpPorts = null;
+		int receiveBufferSize = 0;
+		String pcap = null;
+		double speed = 1;
+		int workers = 0;
+		int queueSize = TinyIPFIXPipeline.DEFAULT_QUEUE_SIZE;
+		long flushInterval = AsyncFileWriter.DEFAULT_FLUSH_INTERVAL;
+		boolean sync = false;
+		String storeDir = null;
+		IPFIXLog.Level consoleLevel = IPFIXLog.Level.INFO;
+		int metricsPort = 0;
+		String snapshotFile = null;
+		long checkpointInterval = 10;
+		long templateMemory = 64;
+		long templateIdle = 0;
+		List<String> arguments = new ArrayList<String>();
+		boolean invalid = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-slip")) {
+				slip = true;
+			} else if (args[i].equals("-prefix") && i + 1 < args.length) {
+				prefix = args[++i];
+			} else if (args[i].equals("-udp")) {
+				udpPorts = (i + 1 < args.length && args[i + 1].matches("[0-9,]+")) ? args[++i]
+						: Integer.toString(UDPPacketSource.DEFAULT_PORT);
+			} else if (args[i].equals("-rcvbuf") && i + 1 < args.length) {
+				receiveBufferSize = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-pcap") && i + 1 < args.length) {
+				pcap = args[++i];
+			} else if (args[i].equals("-speed") && i + 1 < args.length) {
+				speed = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-workers") && i + 1 < args.length) {
+				workers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-queue") && i + 1 < args.length) {
+				queueSize = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-flush") && i + 1 < args.length) {
+				flushInterval = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-sync")) {
+				sync = true;
+			} else if (args[i].equals("-store") && i + 1 < args.length) {
+				storeDir = args[++i];
+			} else if (args[i].equals("-log") && i + 1 < args.length) {
+				try {
+					consoleLevel = IPFIXLog.Level.valueOf(args[++i].toUpperCase());
+				} catch (IllegalArgumentException e) {
+					System.err.println("Unknown log level '" + args[i] + "'");
+					invalid = true;
+				}
+			} else if (args[i].equals("-quiet")) {
+				consoleLevel = IPFIXLog.Level.OFF;
+			} else if (args[i].equals("-metrics") && i + 1 < args.length) {
+				metricsPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-snapshot") && i + 1 < args.length) {
+				snapshotFile = args[++i];
+			} else if (args[i].equals("-checkpoint") && i + 1 < args.length) {
+				checkpointInterval = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-templatemem") && i + 1 < args.length) {
+				templateMemory = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-templateidle") && i + 1 < args.length) {
+				templateIdle = Long.parseLong(args[++i]);
+			} else {
+				arguments.add(args[i]);
+			}
+		}
+
+		if (invalid || (arguments.size() < 1 && udpPorts == null && pcap == null)) {
+			System.err.println("Usage: java PacketListenerMain [-slip [-prefix aaaa::]] [-workers n] [-queue n] [-flush ms] [-sync] [-store dir] [-log level|-quiet] [-metrics port] [-snapshot file [-checkpoint s]] [-templatemem MB] [-templateidle s] usbdevice [outputpath]");
+			System.err.println("       java PacketListenerMain -udp [port,...] [-rcvbuf bytes] [-workers n] [-queue n] [-flush ms] [-sync] [-store dir] [-log level|-quiet] [-metrics port] [-snapshot file [-checkpoint s]] [-templatemem MB] [-templateidle s] [outputpath]");
+			System.err.println("       java PacketListenerMain -pcap file [-speed x] [-workers n] [-queue n] [-flush ms] [-sync] [-store dir] [-log level|-quiet] [-metrics port] [-snapshot file [-checkpoint s]] [-templatemem MB] [-templateidle s] [outputpath]");
 			return;
 		}
 
-		final String usbDevice = args[0];
-		final String outputDir = args[1];
-		
-		File outputFile = null;
-		
-		// create output file
-		if(outputDir != null) {
-			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
-			Date date = new Date();
-			
-			String filename = "packet_dump_" + dateFormat.format(date) + ".txt";
-			outputFile = new File(outputDir + File.separator + filename);
+		// in -udp and -pcap mode there is no device argument
+		if (udpPorts != null || pcap != null) {
+			arguments.add(0, null);
 		}
+		final String usbDevice = arguments.get(0);
+		final String outputDir = arguments.size() > 1 ? arguments.get(1) : null;
+		
+		Writer output = null;
+		MeasurementStore store = null;
+		TinyIPFIXListener listener;
 
 		try {
-			new TinyIPFIXListener("tinyIPFIX-conf.xml", usbDevice, outputFile);
+			// create output file
+			if(outputDir != null) {
+				SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+				Date date = new Date();
+				
+				String filename = "packet_dump_" + dateFormat.format(date) + ".txt";
+				File outputFile = new File(outputDir + File.separator + filename);
+				output = new AsyncFileWriter(outputFile, AsyncFileWriter.DEFAULT_BUFFER_SIZE, flushInterval, sync);
+			}
+
+			// open measurement store
+			if (storeDir != null) {
+				store = new MeasurementStore(new File(storeDir), MeasurementStore.DEFAULT_SEGMENT_ROWS, flushInterval);
+			}
+
+			if (pcap != null) {
+				listener = new TinyIPFIXListener("tinyIPFIX-conf.xml", new PcapPacketSource(new File(pcap), speed), output, store,
+						consoleLevel, workers, queueSize);
+			} else if (udpPorts != null) {
+				String[] portList = udpPorts.split(",");
+				int[] ports = new int[portList.length];
+				for (int i = 0; i < ports.length; i++) {
+					ports[i] = Integer.parseInt(portList[i]);
+				}
+				listener = new TinyIPFIXListener("tinyIPFIX-conf.xml", new UDPPacketSource(null, receiveBufferSize, ports), output, store,
+						consoleLevel, workers, queueSize);
+			} else if (slip) {
+				byte[] prefixBytes = new byte[8];
+				System.arraycopy(InetAddress.getByName(prefix).getAddress(), 0, prefixBytes, 0, 8);
+				listener = new TinyIPFIXListener("tinyIPFIX-conf.xml", SLIPPacketSource.open(usbDevice, prefixBytes), output, store,
+						consoleLevel, workers, queueSize);
+			} else {
+				listener = new TinyIPFIXListener("tinyIPFIX-conf.xml", usbDevice, output, store, consoleLevel, workers,
+						queueSize);
+			}
+
+			listener.getPipeline().setTemplateLimits(templateMemory * 1024 * 1024, templateIdle * 1000);
+
+			// restore templates of the last run, then keep the snapshot up to date
+			IPFIXTemplateSnapshot snapshot = null;
+			if (snapshotFile != null) {
+				snapshot = new IPFIXTemplateSnapshot(new File(snapshotFile));
+				try {
+					int restored = listener.getPipeline().restoreTemplates(snapshot);
+					System.out.println("Restored " + restored + " templates from " + snapshotFile);
+				} catch (IOException e) {
+					System.err.println("Couldn't restore templates: " + e.getMessage());
+				}
+				listener.getPipeline().setSnapshot(snapshot, checkpointInterval * 1000);
+			}
+
+			// the listener runs until the process is stopped: drain and close the
+			// output and the store (the writer threads are daemons), then save the templates
+			final TinyIPFIXListener stoppedListener = listener;
+			final IPFIXTemplateSnapshot finalSnapshot = snapshot;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					stoppedListener.stop(SHUTDOWN_TIMEOUT);
+					if (finalSnapshot != null) {
+						try {
+							stoppedListener.getPipeline().checkpoint(finalSnapshot);
+						} catch (IOException e) {
+							System.err.println("Couldn't write template snapshot: " + e.getMessage());
+						}
+					}
+				}
+			});
+
+			// serve metrics on localhost
+			if (metricsPort > 0) {
+				listener.getPipeline().getMetrics()
+						.startHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), metricsPort));
+			}
+
+			// templates and limits are in place, the first packet is decoded with them
+			listener.start();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (Exception e) {
@@ -0,0 +1,160 @@
+import ipfix.TinyIPFIXEncoder;
+import ipfix.TinyIPFIXGenerator;
+import ipfix.UDPPacketSource;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Generates TinyIPFIX traffic of virtual OpenMote nodes for load and soak
+ * tests of the packet listener.
+ *
+ * Examples:
+ * java TrafficGeneratorMain -nodes 10000 -rate 1 -slip - | java PacketListenerMain -slip - -quiet
+ * java TrafficGeneratorMain -nodes 1000 -rate 10 -udp localhost:40001
+ *
+ * @author Michael Meister
+ */
+public class TrafficGeneratorMain {
+
+	/**
+	 * Main method of the traffic generator.
+	 *
+	 * @param args
+	 *            -slip writes SLIP frames to the given file, pty or - for
+	 *            stdout (read them with PacketListenerMain -slip)
+	 *            -prefix specifies the IPv6 prefix of the node addresses in
+	 *            -slip mode (default aaaa::)
+	 *            -udp sends UDP datagrams to host:port (receive them with
+	 *            PacketListenerMain -udp), every node from its own address
+	 *            127.0.x.y
+	 *            -nodes specifies the number of virtual nodes (default 100)
+	 *            -first specifies the nodeID of the first node (default 2)
+	 *            -rate specifies the data messages per second and node, 0
+	 *            sends as fast as possible (default 1)
+	 *            -template specifies the interval in seconds templates are
+	 *            resent in, 0 sends them only on start (default 60)
+	 *            -loss specifies the probability a message is lost
+	 *            -reorder specifies the probability a data message is sent
+	 *            after the node's next one
+	 *            -count specifies the number of data messages per node
+	 *            -duration specifies the run time in seconds
+	 *            -extseq uses 2 byte sequence numbers
+	 *            -extset adds the extended set ID field
+	 *            -setid specifies the set ID of the data messages (default 256)
+	 *            -seed specifies the seed of loss, reordering and values
+	 */
+	public static void main(String[] args) {
+		String slip = null;
+		String prefix = "aaaa::";
+		String udp = null;
+		int nodes = 100;
+		int first = TinyIPFIXGenerator.DEFAULT_FIRST_NODE;
+		double rate = 1;
+		long templateInterval = 60;
+		double loss = 0;
+		double reorder = 0;
+		long count = 0;
+		long duration = 0;
+		boolean extendedSequenceNumber = false;
+		boolean extendedSetID = false;
+		int setID = TinyIPFIXEncoder.DATA_SET_ID;
+		Long seed = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-slip") && i + 1 < args.length) {
+				slip = args[++i];
+			} else if (args[i].equals("-prefix") && i + 1 < args.length) {
+				prefix = args[++i];
+			} else if (args[i].equals("-udp") && i + 1 < args.length) {
+				udp = args[++i];
+			} else if (args[i].equals("-nodes") && i + 1 < args.length) {
+				nodes = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-first") && i + 1 < args.length) {
+				first = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-rate") && i + 1 < args.length) {
+				rate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-template") && i + 1 < args.length) {
+				templateInterval = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-loss") && i + 1 < args.length) {
+				loss = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-reorder") && i + 1 < args.length) {
+				reorder = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-count") && i + 1 < args.length) {
+				count = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-duration") && i + 1 < args.length) {
+				duration = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-extseq")) {
+				extendedSequenceNumber = true;
+			} else if (args[i].equals("-extset")) {
+				extendedSetID = true;
+			} else if (args[i].equals("-setid") && i + 1 < args.length) {
+				setID = Integer.decode(args[++i]);
+			} else if (args[i].equals("-seed") && i + 1 < args.length) {
+				seed = Long.parseLong(args[++i]);
+			} else {
+				System.err.println("Unknown argument " + args[i]);
+				slip = udp = null;
+				break;
+			}
+		}
+
+		if ((slip == null) == (udp == null)) {
+			System.err.println("Usage: java TrafficGeneratorMain -slip file|- [-prefix aaaa::] [options]");
+			System.err.println("       java TrafficGeneratorMain -udp host:port [options]");
+			System.err.println("options: [-nodes n] [-first nodeID] [-rate msg/s] [-template s] [-loss p] [-reorder p] [-count n] [-duration s] [-extseq] [-extset] [-setid id] [-seed n]");
+			return;
+		}
+
+		TinyIPFIXGenerator.Output output = null;
+		try {
+			if (slip != null) {
+				OutputStream out = slip.equals("-") ? System.out : new FileOutputStream(slip);
+				byte[] prefixBytes = new byte[8];
+				System.arraycopy(InetAddress.getByName(prefix).getAddress(), 0, prefixBytes, 0, 8);
+				output = new TinyIPFIXGenerator.SLIPOutput(new BufferedOutputStream(out), prefixBytes);
+			} else {
+				int colon = udp.lastIndexOf(':');
+				String host = colon > 0 ? udp.substring(0, colon) : udp;
+				int port = colon > 0 ? Integer.parseInt(udp.substring(colon + 1)) : UDPPacketSource.DEFAULT_PORT;
+				output = new TinyIPFIXGenerator.UDPOutput(new InetSocketAddress(host, port));
+			}
+
+			TinyIPFIXGenerator generator = new TinyIPFIXGenerator(
+					TinyIPFIXEncoder.openMote(extendedSequenceNumber, extendedSetID), output, nodes);
+			generator.setFirstNode(first);
+			generator.setRate(rate);
+			generator.setTemplateInterval(templateInterval * 1000);
+			generator.setLoss(loss);
+			generator.setReorder(reorder);
+			generator.setDataSetID(setID);
+			if (seed != null) {
+				generator.setSeed(seed);
+			}
+
+			long start = System.currentTimeMillis();
+			generator.run(count, duration * 1000);
+			long time = Math.max(1, System.currentTimeMillis() - start);
+
+			System.err.println(generator.getDataMessages() + " data and " + generator.getTemplateMessages()
+					+ " template messages of " + nodes + " nodes in " + time + " ms ("
+					+ generator.getSentMessages() * 1000 / time + " msg/s), " + generator.getLostMessages()
+					+ " lost, " + generator.getReorderedMessages() + " reordered");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
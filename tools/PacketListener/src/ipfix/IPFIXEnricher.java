@@ -1,163 +1,335 @@
-package ipfix;
-
-import java.io.File;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import ipfix.IPFIXParser.ParseException;
-
-public class IPFIXEnricher {
-	/** @var only keep the last MAX_LOG_SIZE characters of the log */
-	public static int MAX_LOG_SIZE=4096;
-
-
-	/* constructors */
-	/**
-	 * constructor.
-	 * 
-	 * @param pathToMetdata path to XML-file containing metadata to parse fields.
-	 * @throws Exception
-	 */
-	public IPFIXEnricher(String pathToMetadata) throws Exception {
-		// parse metadata file
-		_parseMetadataFile(pathToMetadata);
-	}
-
-
-
-	/* public methods */
-	public IPFIXEnrichedField enrich(IPFIXField field) throws ParseException {
-		// reset log
-		_log = new StringBuffer();
-
-		// enrich field
-		IPFIXFieldEnricher enricher = _enricherHeap.get(field.templateField.fieldID, field.templateField.enterpriseNumber);
-		IPFIXEnrichedField enrichedField;
-		if (enricher != null) { // enrich field if an enricher is available ..
-			try {
-				enrichedField = enricher.enrich(field);
-			} catch (Exception e) {
-				throw new IPFIXParser.ParseException("IPFIXEnricher: couldn't enrich field.", e);
-			}
-		} else { // otherwise just convert it..
-			enrichedField = new IPFIXEnrichedField(field);
-		}
-
-		_log("|----- %s[%d] (%d - %d): %s %s", enrichedField.name!=null?enrichedField.name:enrichedField.type, field.templateField.length, enrichedField.templateField.enterpriseNumber, enrichedField.templateField.fieldID, enrichedField.value.toString(), enrichedField.unit!=null?enrichedField.unit:"");
-
-		return enrichedField;
-	}
-	/**
-	 * returns log of the last enrich() call
-	 */
-	public String getLog() {
-		return _log.toString();
-	}
-
-
-
-	/* protected methods */
-	/**
-	 * parses metadata xml file
-	 * @param pathToMetadata
-	 * @throws Exception
-	 */
-	protected void _parseMetadataFile(String pathToMetadata) throws Exception {
-
-		try {
-			// set up xml parse helper..
-			DocumentBuilderFactory factory  = DocumentBuilderFactory.newInstance();
-			DocumentBuilder        builder  = factory.newDocumentBuilder();
-			Document               document = builder.parse(new File(pathToMetadata) );
-
-			// iterate through <field>s
-			NodeList fields = document.getElementsByTagName("field");
-			for (int i=0; i<fields.getLength(); i++) {
-
-				/* parse <field> entry and create enricher */
-				Node n = fields.item(i);
-				NodeList children = n.getChildNodes();
-
-				IPFIXFieldEnricher enricher = new IPFIXFieldEnricher(); // create enricher
-
-				for (int j=0; j<children.getLength(); j++) { // parse entry
-
-					Node child = children.item(j);
-					String key = child.getNodeName().toLowerCase();
-					String val = child.getTextContent();
-
-					// add enricher data
-					if (key.equals("name")) {
-						enricher.name = val;
-					} else if (key.equals("type")) {
-						enricher.type = val;
-					} else if (key.equals("unit")) {
-						enricher.unit = val;
-					} else if (key.equals("fieldid")) {
-						try {
-							if (val.startsWith("0x")) { // treat as hex string
-								enricher.fieldID = Integer.parseInt(val.substring(2), 16);
-							} else { // treat as integer
-								enricher.fieldID = Integer.parseInt(val);
-							}
-						} catch (Exception e) {
-
-						}
-					} else if (key.equals("enterprisenumber")) {
-						try {
-							if (val.startsWith("0x")) { // treat as hex string
-								enricher.enterpriseNumber = Long.parseLong(val.substring(2), 16);
-							} else { // treat as integer
-								enricher.enterpriseNumber = Long.parseLong(val, 10);
-							}
-						} catch (Exception e) {
-
-						}
-					} else if (key.equals("expression")) {
-						if (!val.trim().equals("")) { // only add non zero expressions
-							enricher.expression = val;
-						}
-					} else if (key.equals("reference")) {
-
-						Node type = child.getAttributes().getNamedItem("type");
-						if (type != null) {
-							enricher.addReference(val, type.getTextContent());
-						}
-					}
-				}
-
-				/* add enricher to heap */
-				_enricherHeap.add(enricher);
-			}
-		} catch (Exception e) {
-			throw new Exception("IPFIXParser: couldn't parse metadata file.", e);
-		}
-	}
-	/**
-	 * logs sprintf style.
-	 * @param format
-	 * @param args
-	 * @return
-	 */
-	protected IPFIXEnricher _log(String format, Object... args) {
-		_log.append(String.format(format, args));
-		_log.append(System.getProperty( "line.separator" ));
-
-		if (_log.length() > MAX_LOG_SIZE) {
-			_log.delete(0, _log.length()-MAX_LOG_SIZE);
-		}
-
-		return this;
-	}
-
-
-
-	/* protected member */
-	protected IPFIXFieldEnricherHeap _enricherHeap=new IPFIXFieldEnricherHeap();
-	protected static StringBuffer _log=new StringBuffer();
-}
+package ipfix;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import ipfix.IPFIXParser.ParseException;
+
+public class IPFIXEnricher implements IPFIXTemplateHeap.Listener {
+
+
+	/* constructors */
+	/**
+	 * constructor.
+	 * 
+	 * @param pathToMetdata path to XML-file containing metadata to parse fields.
+	 * @throws Exception
+	 */
+	public IPFIXEnricher(String pathToMetadata) throws Exception {
+		// parse metadata file
+		_parseMetadataFile(pathToMetadata);
+	}
+
+
+
+	/* public methods */
+	public IPFIXEnrichedField enrich(IPFIXField field) throws ParseException {
+		// enrich field with the enricher bound to its template field
+		IPFIXTemplate.Field templateField = field.templateField;
+		if (templateField.enricherGeneration != _generation) {
+			bind(templateField);
+		}
+		IPFIXFieldEnricher enricher = templateField.enricher;
+		IPFIXEnrichedField enrichedField;
+		if (enricher != null) { // enrich field if an enricher is available ..
+			try {
+				enrichedField = enricher.enrich(field);
+			} catch (Exception e) {
+				throw new IPFIXParser.ParseException("IPFIXEnricher: couldn't enrich field.", e);
+			}
+		} else { // otherwise just convert it..
+			enrichedField = new IPFIXEnrichedField(field);
+		}
+
+		_log.enriched(enrichedField);
+
+		return enrichedField;
+	}
+
+	/**
+	 * calculates the enriched value of a field of a flyweight record without allocating anything.
+	 * Use the bound IPFIXTemplate.Field.enricher for name, type and unit.
+	 * 
+	 * @param record
+	 * @param field index of the field
+	 * @return enriched value, the raw unsigned value if no enricher is bound to the field
+	 * @throws ParseException
+	 */
+	public double enrichValue(IPFIXRecord record, int field) throws ParseException {
+		IPFIXTemplate.Field templateField = record.getTemplateField(field);
+		if (templateField.enricherGeneration != _generation) {
+			bind(templateField);
+		}
+		IPFIXFieldEnricher enricher = templateField.enricher;
+		double x = record.getDouble(field);
+		if (enricher == null) {
+			return x;
+		}
+		try {
+			return enricher.evaluate(record.getNodeID(), x);
+		} catch (Exception e) {
+			throw new IPFIXParser.ParseException("IPFIXEnricher: couldn't enrich field.", e);
+		}
+	}
+
+	/**
+	 * enriches the values of all records of a batch, of any number of nodes, in one call.
+	 * The values are grouped by field enricher into columns, so an expression is
+	 * evaluated over a primitive array once per column instead of once per field.
+	 * Records of the same node are enriched in their order (the batch's rounds) and
+	 * the fields of a record in field order, like enrichValue() would for each field.
+	 * 
+	 * @param batch records, their values are replaced by the enriched values
+	 * @throws ParseException
+	 */
+	public void enrichAll(IPFIXRecordBatch batch) throws ParseException {
+		double[] values = batch._getValues();
+		int[] rows = batch._getRowsByRound();
+		int generation = _generation;
+
+		for (int round = 0; round < batch._getRoundCount(); round++) {
+			int from = batch._getRoundStart(round);
+			int to = batch._getRoundStart(round + 1);
+			int fieldCount = 0;
+			for (int k = from; k < to; k++) {
+				fieldCount = Math.max(fieldCount, batch.getFieldCount(rows[k]));
+			}
+
+			for (int field = 0; field < fieldCount; field++) {
+				// gather the values of the round's records per enricher
+				int columns = 0;
+				for (int k = from; k < to; k++) {
+					int row = rows[k];
+					if (field >= batch.getFieldCount(row)) {
+						continue;
+					}
+					IPFIXTemplate.Field templateField = batch.getTemplateField(row, field);
+					if (templateField.enricherGeneration != generation) {
+						bind(templateField);
+					}
+					IPFIXFieldEnricher enricher = templateField.enricher;
+					if (enricher == null) { // keeps the raw value
+						continue;
+					}
+					IPFIXRecordBatch.Column column = null;
+					for (int c = 0; c < columns; c++) {
+						if (batch._getColumn(c).enricher == enricher) {
+							column = batch._getColumn(c);
+							break;
+						}
+					}
+					if (column == null) {
+						column = batch._newColumn(columns++, enricher);
+					}
+					int index = batch._getIndex(row, field);
+					IPFIXValueStore store = enricher._valueStore;
+					column.add(batch.getNodeID(row), store != null ? batch._getSlots(row, store) : null, index, values[index]);
+				}
+
+				// evaluate every column at once and write the results back
+				for (int c = 0; c < columns; c++) {
+					IPFIXRecordBatch.Column column = batch._getColumn(c);
+					try {
+						column.enricher.evaluateAll(column.nodeIDs, column.slots, column.x, column.out, column.count);
+					} catch (Exception e) {
+						throw new IPFIXParser.ParseException("IPFIXEnricher: couldn't enrich field.", e);
+					}
+					for (int i = 0; i < column.count; i++) {
+						values[column.indexes[i]] = column.out[i];
+					}
+				}
+			}
+		}
+		batch._setEnriched();
+
+		// log enriched fields, only if the batch kept them
+		if (_log.isEnabled(IPFIXLog.Level.INFO)) {
+			for (int row = 0; row < batch.size(); row++) {
+				for (int field = 0; field < batch.getFieldCount(row); field++) {
+					IPFIXField parsedField = batch.getField(row, field);
+					if (parsedField == null) {
+						return;
+					}
+					IPFIXFieldEnricher enricher = parsedField.templateField.enricher;
+					_log.enriched(enricher != null ? enricher.enriched(parsedField, batch.getValue(row, field))
+							: new IPFIXEnrichedField(parsedField));
+				}
+			}
+		}
+	}
+
+	/**
+	 * binds the enrichers of the current metadata to the fields of a new template.
+	 * Registered with the parser's IPFIXTemplateHeap, so data fields don't need any lookup.
+	 * 
+	 * @param template
+	 */
+	@Override
+	public void templateAdded(IPFIXTemplate template) {
+		for (IPFIXTemplate.Field field : template.fields) {
+			bind(field);
+		}
+	}
+
+	/**
+	 * binds the enricher of the current metadata to a template field
+	 * 
+	 * @param field
+	 */
+	public void bind(IPFIXTemplate.Field field) {
+		int generation = _generation;
+		long enterpriseNumber = field.enterpriseNumber != null ? field.enterpriseNumber : 0;
+		field.enricher = _enricherHeap.get(field.fieldID, enterpriseNumber);
+		field.enricherGeneration = generation; // volatile, publishes the enricher
+	}
+
+	/**
+	 * forgets the latest values of a node, e.g. when it has expired and its nodeID may be reused
+	 * 
+	 * @param nodeID
+	 */
+	public void removeNode(long nodeID) {
+		_valueStore.remove(nodeID);
+	}
+
+	/**
+	 * replaces the metadata. Template fields bound to the old metadata are bound again on their next use.
+	 * 
+	 * @param pathToMetadata path to XML-file containing metadata to parse fields.
+	 * @throws Exception
+	 */
+	public void reloadMetadata(String pathToMetadata) throws Exception {
+		_parseMetadataFile(pathToMetadata);
+	}
+
+	/**
+	 * gets the log enrich events are logged to
+	 */
+	public IPFIXLog getLogger() {
+		return _log;
+	}
+
+	/**
+	 * sets the log enrich events are logged to, e.g. to share it with a parser
+	 * 
+	 * @param log
+	 */
+	public void setLogger(IPFIXLog log) {
+		_log = log;
+	}
+
+
+
+	/* protected methods */
+	/**
+	 * parses metadata xml file
+	 * @param pathToMetadata
+	 * @throws Exception
+	 */
+	protected void _parseMetadataFile(String pathToMetadata) throws Exception {
+
+		try {
+			IPFIXFieldEnricherHeap enricherHeap = new IPFIXFieldEnricherHeap();
+			IPFIXValueStore valueStore = new IPFIXValueStore();
+
+			// set up xml parse helper..
+			DocumentBuilderFactory factory  = DocumentBuilderFactory.newInstance();
+			DocumentBuilder        builder  = factory.newDocumentBuilder();
+			Document               document = builder.parse(new File(pathToMetadata) );
+
+			// iterate through <field>s
+			NodeList fields = document.getElementsByTagName("field");
+			for (int i=0; i<fields.getLength(); i++) {
+
+				/* parse <field> entry and create enricher */
+				Node n = fields.item(i);
+				NodeList children = n.getChildNodes();
+
+				IPFIXFieldEnricher enricher = new IPFIXFieldEnricher(); // create enricher
+
+				for (int j=0; j<children.getLength(); j++) { // parse entry
+
+					Node child = children.item(j);
+					String key = child.getNodeName().toLowerCase();
+					String val = child.getTextContent();
+
+					// add enricher data
+					if (key.equals("name")) {
+						enricher.name = val;
+					} else if (key.equals("type")) {
+						enricher.type = val;
+					} else if (key.equals("unit")) {
+						enricher.unit = val;
+					} else if (key.equals("fieldid")) {
+						try {
+							if (val.startsWith("0x")) { // treat as hex string
+								enricher.fieldID = Integer.parseInt(val.substring(2), 16);
+							} else { // treat as integer
+								enricher.fieldID = Integer.parseInt(val);
+							}
+						} catch (Exception e) {
+
+						}
+					} else if (key.equals("enterprisenumber")) {
+						try {
+							if (val.startsWith("0x")) { // treat as hex string
+								enricher.enterpriseNumber = Long.parseLong(val.substring(2), 16);
+							} else { // treat as integer
+								enricher.enterpriseNumber = Long.parseLong(val, 10);
+							}
+						} catch (Exception e) {
+
+						}
+					} else if (key.equals("expression")) {
+						if (!val.trim().equals("")) { // only add non zero expressions
+							enricher.expression = val;
+						}
+					} else if (key.equals("reference")) {
+
+						Node type = child.getAttributes().getNamedItem("type");
+						if (type != null) {
+							enricher.addReference(val, type.getTextContent());
+						}
+					}
+				}
+
+				/* compile expression once and add enricher to heap, a field that can't be compiled keeps its raw values */
+				enricher.setValueStore(valueStore);
+				try {
+					enricher.compile();
+				} catch (Exception e) {
+					String message = "IPFIXEnricher: field '" + enricher.name + "' isn't enriched: " + e.getMessage();
+					System.err.println(message); // the log has no sinks while the enricher is created
+					_log.error(message, e);
+					continue;
+				}
+				enricherHeap.add(enricher);
+			}
+
+			/* switch to the new metadata, invalidates all bindings */
+			_enricherHeap = enricherHeap;
+			_valueStore = valueStore;
+			_generation = _generations.incrementAndGet();
+		} catch (Exception e) {
+			throw new Exception("IPFIXParser: couldn't parse metadata file.", e);
+		}
+	}
+
+
+
+	/* protected member */
+	protected volatile IPFIXFieldEnricherHeap _enricherHeap=new IPFIXFieldEnricherHeap();
+	/** latest enriched value per node and field type, read by expression references */
+	protected volatile IPFIXValueStore _valueStore=new IPFIXValueStore();
+	/** generation of the loaded metadata, unique across all enrichers */
+	protected volatile int _generation=_generations.incrementAndGet();
+	private static final AtomicInteger _generations=new AtomicInteger();
+	protected volatile IPFIXLog _log=new IPFIXLog();
+}
@@ -0,0 +1,673 @@
+package ipfix;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+/**
+ * IPFIXExpression. Compiled form of a metadata &lt;expression&gt;.
+ *
+ * The expression language is the ECMAScript subset used in the metadata file:
+ * numeric literals, the field value <code>x</code>, reference aliases,
+ * arithmetic, bitwise and logical operators, comparisons, ternaries and the
+ * <code>Math.*</code> functions/constants. Expressions are parsed once into a
+ * tree of primitive evaluators. Anything outside this subset falls back to a
+ * script compiled once by the ECMAScript engine (if the JVM provides one).
+ *
+ * @author Michael Meister
+ */
+public abstract class IPFIXExpression {
+
+	/**
+	 * compiles expression
+	 *
+	 * @param expression source of the expression
+	 * @param references aliases of the references used in the expression, in the order their values are passed to eval()
+	 * @return compiled expression
+	 * @throws Exception if the expression neither fits the built-in language nor can be compiled by a script engine
+	 */
+	public static IPFIXExpression compile(String expression, List<String> references) throws Exception {
+		try {
+			return new Parser(expression, references).parse();
+		} catch (UnsupportedExpressionException e) {
+			return new ScriptExpression(expression, references, e);
+		}
+	}
+
+	/**
+	 * evaluates expression
+	 *
+	 * @param x value of the field
+	 * @param refs values of the references, indexed like the references passed to compile()
+	 * @return result
+	 * @throws Exception
+	 */
+	public abstract double eval(double x, double[] refs) throws Exception;
+
+	/**
+	 * evaluates expression for a column of field values that share the reference values
+	 *
+	 * @param x values of the field
+	 * @param out receives the results, must not be x
+	 * @param count number of values
+	 * @param refs values of the references, indexed like the references passed to compile()
+	 * @throws Exception
+	 */
+	public void evalAll(double[] x, double[] out, int count, double[] refs) throws Exception {
+		for (int i = 0; i < count; i++) {
+			out[i] = eval(x[i], refs);
+		}
+	}
+
+	/**
+	 * whether the result of the expression is a boolean (comparison, negation)
+	 */
+	public boolean isBoolean() {
+		return false;
+	}
+
+	/**
+	 * whether the expression is evaluated by the built-in evaluator
+	 */
+	public boolean isNative() {
+		return true;
+	}
+
+
+
+	/* native evaluator */
+	/**
+	 * Node of the native expression tree. Columns are evaluated node by node,
+	 * each node runs one loop over the primitive arrays. Nodes keep their
+	 * temporary columns between calls, so a compiled expression must not
+	 * evaluate columns in several threads at once (every worker has its own
+	 * enricher).
+	 */
+	protected static abstract class Node extends IPFIXExpression {
+		@Override
+		public abstract double eval(double x, double[] refs);
+
+		@Override
+		public void evalAll(double[] x, double[] out, int count, double[] refs) {
+			column(x, out, count, refs);
+		}
+
+		/** evaluates the node for a column of values into out */
+		abstract void column(double[] x, double[] out, int count, double[] refs);
+
+		/** whether the node doesn't depend on x or any reference */
+		boolean isConstant() {
+			return false;
+		}
+
+		/** gets a temporary column of at least count values, reuses the previous one if it is large enough */
+		static double[] scratch(double[] column, int count) {
+			return column != null && column.length >= count ? column : new double[count];
+		}
+	}
+
+	private static final class Constant extends Node {
+		final double value;
+		Constant(double value) { this.value = value; }
+		@Override public double eval(double x, double[] refs) { return value; }
+		@Override void column(double[] x, double[] out, int count, double[] refs) { Arrays.fill(out, 0, count, value); }
+		@Override boolean isConstant() { return true; }
+	}
+
+	private static final class Value extends Node {
+		@Override public double eval(double x, double[] refs) { return x; }
+		@Override void column(double[] x, double[] out, int count, double[] refs) { System.arraycopy(x, 0, out, 0, count); }
+	}
+
+	private static final class Reference extends Node {
+		final int index;
+		Reference(int index) { this.index = index; }
+		@Override public double eval(double x, double[] refs) { return refs[index]; }
+		@Override void column(double[] x, double[] out, int count, double[] refs) { Arrays.fill(out, 0, count, refs[index]); }
+	}
+
+	private static final class Unary extends Node {
+		final int op;
+		final Node a;
+		Unary(int op, Node a) { this.op = op; this.a = a; }
+		@Override public double eval(double x, double[] refs) {
+			return unary(op, a.eval(x, refs));
+		}
+		@Override void column(double[] x, double[] out, int count, double[] refs) {
+			a.column(x, out, count, refs);
+			for (int i = 0; i < count; i++) {
+				out[i] = unary(op, out[i]);
+			}
+		}
+		@Override public boolean isBoolean() { return op == '!'; }
+		@Override boolean isConstant() { return a.isConstant(); }
+	}
+
+	private static final class Binary extends Node {
+		final int op;
+		final Node a, b;
+		/** temporary column of b */
+		private double[] _r;
+		Binary(int op, Node a, Node b) { this.op = op; this.a = a; this.b = b; }
+		@Override public double eval(double x, double[] refs) {
+			double l = a.eval(x, refs);
+			switch (op) {
+			case AND: return truth(l) ? b.eval(x, refs) : l;
+			case OR: return truth(l) ? l : b.eval(x, refs);
+			default: return binary(op, l, b.eval(x, refs));
+			}
+		}
+		@Override void column(double[] x, double[] out, int count, double[] refs) {
+			a.column(x, out, count, refs);
+			if (b.isConstant()) {
+				double r = b.eval(0, refs);
+				switch (op) { // the operators of scaling expressions get their own loop
+				case '*': for (int i = 0; i < count; i++) out[i] *= r; return;
+				case '/': for (int i = 0; i < count; i++) out[i] /= r; return;
+				case '+': for (int i = 0; i < count; i++) out[i] += r; return;
+				case '-': for (int i = 0; i < count; i++) out[i] -= r; return;
+				}
+				for (int i = 0; i < count; i++) {
+					out[i] = combine(out[i], r);
+				}
+			} else {
+				double[] r = _r = scratch(_r, count);
+				b.column(x, r, count, refs);
+				for (int i = 0; i < count; i++) {
+					out[i] = combine(out[i], r[i]);
+				}
+			}
+		}
+		/** both sides are evaluated for columns, they have no side effects */
+		private double combine(double l, double r) {
+			switch (op) {
+			case AND: return truth(l) ? r : l;
+			case OR: return truth(l) ? l : r;
+			default: return binary(op, l, r);
+			}
+		}
+		@Override public boolean isBoolean() {
+			switch (op) {
+			case '<': case '>': case LE: case GE: case EQ: case NE: return true;
+			case AND: case OR: return a.isBoolean() && b.isBoolean();
+			default: return false;
+			}
+		}
+		@Override boolean isConstant() { return a.isConstant() && b.isConstant(); }
+	}
+
+	private static final class Conditional extends Node {
+		final Node c, a, b;
+		/** temporary columns of a and b */
+		private double[] _ta, _tb;
+		Conditional(Node c, Node a, Node b) { this.c = c; this.a = a; this.b = b; }
+		@Override public double eval(double x, double[] refs) {
+			return truth(c.eval(x, refs)) ? a.eval(x, refs) : b.eval(x, refs);
+		}
+		@Override void column(double[] x, double[] out, int count, double[] refs) {
+			double[] ta = _ta = scratch(_ta, count);
+			double[] tb = _tb = scratch(_tb, count);
+			c.column(x, out, count, refs);
+			a.column(x, ta, count, refs);
+			b.column(x, tb, count, refs);
+			for (int i = 0; i < count; i++) {
+				out[i] = truth(out[i]) ? ta[i] : tb[i];
+			}
+		}
+		@Override public boolean isBoolean() { return a.isBoolean() && b.isBoolean(); }
+		@Override boolean isConstant() { return c.isConstant() && a.isConstant() && b.isConstant(); }
+	}
+
+	private static final class Call extends Node {
+		final int function;
+		final Node[] args;
+		Call(int function, Node[] args) { this.function = function; this.args = args; }
+		@Override public double eval(double x, double[] refs) {
+			double a = args.length > 0 ? args[0].eval(x, refs) : Double.NaN;
+			switch (function) {
+			case F_ATAN2: case F_POW: case F_HYPOT:
+				return call(function, a, args[1].eval(x, refs));
+			case F_MIN: {
+				double m = Double.POSITIVE_INFINITY;
+				for (int i = 0; i < args.length; i++) {
+					double v = i == 0 ? a : args[i].eval(x, refs);
+					if (v != v) return Double.NaN;
+					m = Math.min(m, v);
+				}
+				return m;
+			}
+			case F_MAX: {
+				double m = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < args.length; i++) {
+					double v = i == 0 ? a : args[i].eval(x, refs);
+					if (v != v) return Double.NaN;
+					m = Math.max(m, v);
+				}
+				return m;
+			}
+			default: return call(function, a, Double.NaN);
+			}
+		}
+		@Override void column(double[] x, double[] out, int count, double[] refs) {
+			if (args.length == 1 && function != F_MIN && function != F_MAX) {
+				args[0].column(x, out, count, refs);
+				for (int i = 0; i < count; i++) {
+					out[i] = call(function, out[i], Double.NaN);
+				}
+			} else { // several arguments, min and max
+				for (int i = 0; i < count; i++) {
+					out[i] = eval(x[i], refs);
+				}
+			}
+		}
+		@Override boolean isConstant() {
+			for (Node arg : args) {
+				if (!arg.isConstant()) return false;
+			}
+			return true;
+		}
+	}
+
+	/** unary operator */
+	static double unary(int op, double v) {
+		switch (op) {
+		case '-': return -v;
+		case '!': return truth(v) ? 0 : 1;
+		case '~': return ~toInt32(v);
+		default: return v;
+		}
+	}
+
+	/** binary operator except the short-circuiting ones */
+	static double binary(int op, double l, double r) {
+		switch (op) {
+		case '+': return l + r;
+		case '-': return l - r;
+		case '*': return l * r;
+		case '/': return l / r;
+		case '%': return l % r;
+		case '<': return l < r ? 1 : 0;
+		case '>': return l > r ? 1 : 0;
+		case LE: return l <= r ? 1 : 0;
+		case GE: return l >= r ? 1 : 0;
+		case EQ: return l == r ? 1 : 0;
+		case NE: return l != r ? 1 : 0;
+		case '&': return toInt32(l) & toInt32(r);
+		case '|': return toInt32(l) | toInt32(r);
+		case '^': return toInt32(l) ^ toInt32(r);
+		case SHL: return toInt32(l) << (toInt32(r) & 0x1F);
+		case SHR: return toInt32(l) >> (toInt32(r) & 0x1F);
+		case USHR: return (toInt32(l) & 0xFFFFFFFFL) >>> (toInt32(r) & 0x1F);
+		default: throw new IllegalStateException();
+		}
+	}
+
+	/** function of one or two arguments */
+	static double call(int function, double a, double b) {
+		switch (function) {
+		case F_ABS: return Math.abs(a);
+		case F_ROUND: { // not floor(a + 0.5), the sum rounds up 0.49999999999999994
+			double floor = Math.floor(a);
+			return a - floor >= 0.5 ? floor + 1 : floor;
+		}
+		case F_FLOOR: return Math.floor(a);
+		case F_CEIL: return Math.ceil(a);
+		case F_TRUNC: return a < 0 ? Math.ceil(a) : Math.floor(a);
+		case F_SIGN: return Math.signum(a);
+		case F_SQRT: return Math.sqrt(a);
+		case F_CBRT: return Math.cbrt(a);
+		case F_EXP: return Math.exp(a);
+		case F_LOG: return Math.log(a);
+		case F_LOG10: return Math.log10(a);
+		case F_LOG2: return Math.log(a) / Math.log(2);
+		case F_SIN: return Math.sin(a);
+		case F_COS: return Math.cos(a);
+		case F_TAN: return Math.tan(a);
+		case F_ASIN: return Math.asin(a);
+		case F_ACOS: return Math.acos(a);
+		case F_ATAN: return Math.atan(a);
+		case F_ATAN2: return Math.atan2(a, b);
+		case F_POW: return Math.pow(a, b);
+		case F_HYPOT: return Math.hypot(a, b);
+		default: throw new IllegalStateException();
+		}
+	}
+
+	/** ECMAScript ToBoolean for numbers */
+	static boolean truth(double v) {
+		return v != 0 && v == v;
+	}
+
+	/** ECMAScript ToInt32 */
+	static int toInt32(double v) {
+		if (v != v || Double.isInfinite(v)) {
+			return 0;
+		}
+		return (int) (long) (v % 4294967296.0); // exact, and beyond 2^63 the cast would saturate
+	}
+
+
+
+	/* script fallback */
+	/**
+	 * Expression evaluated by the ECMAScript engine. Compiled once, evaluated with fresh bindings.
+	 */
+	protected static class ScriptExpression extends IPFIXExpression {
+
+		public ScriptExpression(String expression, List<String> references, Exception reason) throws Exception {
+			ScriptEngine engine = new ScriptEngineManager().getEngineByName("ECMAScript");
+			if (!(engine instanceof Compilable)) {
+				throw new Exception("IPFIXExpression: unsupported expression '" + expression
+						+ "' and no ECMAScript engine available.", reason);
+			}
+			this.script = ((Compilable) engine).compile(expression);
+			this.references = references.toArray(new String[references.size()]);
+		}
+
+		@Override
+		public double eval(double x, double[] refs) throws Exception {
+			Bindings bindings = new SimpleBindings();
+			for (int i = 0; i < references.length; i++) {
+				bindings.put(references[i], refs[i]);
+			}
+			bindings.put("x", x);
+
+			Object result = script.eval(bindings);
+			if (result instanceof Boolean) {
+				_lastBoolean = true;
+				return ((Boolean) result) ? 1 : 0;
+			}
+			_lastBoolean = false;
+			if (result instanceof Number) {
+				return ((Number) result).doubleValue();
+			}
+			return result != null ? Double.parseDouble(result.toString()) : Double.NaN;
+		}
+
+		@Override
+		public boolean isBoolean() {
+			return _lastBoolean;
+		}
+
+		@Override
+		public boolean isNative() {
+			return false;
+		}
+
+		private final CompiledScript script;
+		private final String[] references;
+		private volatile boolean _lastBoolean;
+	}
+
+
+
+	/* parser */
+	private static final int LE = 256, GE = 257, EQ = 258, NE = 259, AND = 260, OR = 261, SHL = 262, SHR = 263, USHR = 264;
+
+	private static final int F_ABS = 0, F_ROUND = 1, F_FLOOR = 2, F_CEIL = 3, F_TRUNC = 4, F_SIGN = 5, F_SQRT = 6,
+			F_CBRT = 7, F_EXP = 8, F_LOG = 9, F_LOG10 = 10, F_LOG2 = 11, F_SIN = 12, F_COS = 13, F_TAN = 14,
+			F_ASIN = 15, F_ACOS = 16, F_ATAN = 17, F_ATAN2 = 18, F_POW = 19, F_HYPOT = 20, F_MIN = 21, F_MAX = 22;
+	private static final String[] FUNCTIONS = { "abs", "round", "floor", "ceil", "trunc", "sign", "sqrt", "cbrt",
+			"exp", "log", "log10", "log2", "sin", "cos", "tan", "asin", "acos", "atan", "atan2", "pow", "hypot",
+			"min", "max" };
+
+	/**
+	 * Thrown by the parser if an expression doesn't fit the built-in language.
+	 */
+	private static class UnsupportedExpressionException extends Exception {
+		UnsupportedExpressionException(String msg) {
+			super(msg);
+		}
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Recursive descent parser following ECMAScript operator precedence.
+	 */
+	private static class Parser {
+		private final String src;
+		private final List<String> references;
+		private int pos;
+
+		Parser(String src, List<String> references) {
+			this.src = src;
+			this.references = references;
+		}
+
+		Node parse() throws UnsupportedExpressionException {
+			Node n = conditional();
+			skipSpace();
+			while (pos < src.length() && src.charAt(pos) == ';') { // tolerate trailing semicolons
+				pos++;
+				skipSpace();
+			}
+			if (pos != src.length()) {
+				throw error("unexpected input");
+			}
+			return n;
+		}
+
+		private Node conditional() throws UnsupportedExpressionException {
+			Node c = binary(0);
+			if (accept("?")) {
+				Node a = conditional();
+				expect(":");
+				Node b = conditional();
+				return fold(new Conditional(c, a, b));
+			}
+			return c;
+		}
+
+		/* binary operators by precedence, lowest first */
+		private static final String[][] LEVELS = {
+			{ "||" }, { "&&" }, { "|" }, { "^" }, { "&" },
+			{ "===", "!==", "==", "!=" }, { "<=", ">=", "<", ">" },
+			{ ">>>", "<<", ">>" }, { "+", "-" }, { "*", "/", "%" } };
+
+		private Node binary(int level) throws UnsupportedExpressionException {
+			if (level == LEVELS.length) {
+				return unary();
+			}
+			Node n = binary(level + 1);
+			outer:
+			while (true) {
+				for (String op : LEVELS[level]) {
+					if (acceptOperator(op)) {
+						n = fold(new Binary(opcode(op), n, binary(level + 1)));
+						continue outer;
+					}
+				}
+				return n;
+			}
+		}
+
+		private Node unary() throws UnsupportedExpressionException {
+			skipSpace();
+			if (pos < src.length()) {
+				char c = src.charAt(pos);
+				if ((c == '-' || c == '+') && !src.startsWith("--", pos) && !src.startsWith("++", pos)) {
+					pos++;
+					return fold(new Unary(c, unary()));
+				} else if ((c == '!' && !src.startsWith("!=", pos)) || c == '~') {
+					pos++;
+					return fold(new Unary(c, unary()));
+				}
+			}
+			return primary();
+		}
+
+		private Node primary() throws UnsupportedExpressionException {
+			skipSpace();
+			if (pos >= src.length()) {
+				throw error("unexpected end");
+			}
+			char c = src.charAt(pos);
+			if (c == '(') {
+				pos++;
+				Node n = conditional();
+				expect(")");
+				return n;
+			}
+			if (Character.isDigit(c) || c == '.') {
+				return new Constant(number());
+			}
+			if (Character.isJavaIdentifierStart(c)) {
+				String id = identifier();
+				if (id.equals("Math")) {
+					expect(".");
+					return math(identifier());
+				} else if (id.equals("x")) {
+					return new Value();
+				} else if (id.equals("true")) {
+					return new Constant(1);
+				} else if (id.equals("false")) {
+					return new Constant(0);
+				} else if (id.equals("NaN")) {
+					return new Constant(Double.NaN);
+				} else if (id.equals("Infinity")) {
+					return new Constant(Double.POSITIVE_INFINITY);
+				}
+				int ref = references.indexOf(id);
+				if (ref >= 0) {
+					return new Reference(ref);
+				}
+				throw error("unknown identifier '" + id + "'");
+			}
+			throw error("unexpected character '" + c + "'");
+		}
+
+		private Node math(String name) throws UnsupportedExpressionException {
+			if (name.equals("PI")) return new Constant(Math.PI);
+			if (name.equals("E")) return new Constant(Math.E);
+			if (name.equals("LN2")) return new Constant(Math.log(2));
+			if (name.equals("LN10")) return new Constant(Math.log(10));
+			if (name.equals("LOG2E")) return new Constant(1 / Math.log(2));
+			if (name.equals("LOG10E")) return new Constant(1 / Math.log(10));
+			if (name.equals("SQRT2")) return new Constant(Math.sqrt(2));
+			if (name.equals("SQRT1_2")) return new Constant(Math.sqrt(0.5));
+
+			int function = -1;
+			for (int i = 0; i < FUNCTIONS.length; i++) {
+				if (FUNCTIONS[i].equals(name)) {
+					function = i;
+				}
+			}
+			if (function < 0) {
+				throw error("unsupported function Math." + name);
+			}
+
+			expect("(");
+			List<Node> args = new java.util.ArrayList<Node>();
+			if (!accept(")")) {
+				do {
+					args.add(conditional());
+				} while (accept(","));
+				expect(")");
+			}
+			int required = (function == F_ATAN2 || function == F_POW || function == F_HYPOT) ? 2
+					: (function == F_MIN || function == F_MAX) ? 0 : 1;
+			if (args.size() < required || (function == F_HYPOT && args.size() != 2)) {
+				throw error("wrong number of arguments for Math." + name);
+			}
+			return fold(new Call(function, args.toArray(new Node[args.size()])));
+		}
+
+		private double number() throws UnsupportedExpressionException {
+			int start = pos;
+			if (src.startsWith("0x", pos) || src.startsWith("0X", pos)) {
+				pos += 2;
+				while (pos < src.length() && Character.digit(src.charAt(pos), 16) >= 0) pos++;
+				try {
+					return Long.parseLong(src.substring(start + 2, pos), 16);
+				} catch (NumberFormatException e) {
+					throw error("invalid number");
+				}
+			}
+			while (pos < src.length() && (Character.isDigit(src.charAt(pos)) || src.charAt(pos) == '.')) pos++;
+			if (pos < src.length() && (src.charAt(pos) == 'e' || src.charAt(pos) == 'E')) {
+				pos++;
+				if (pos < src.length() && (src.charAt(pos) == '+' || src.charAt(pos) == '-')) pos++;
+				while (pos < src.length() && Character.isDigit(src.charAt(pos))) pos++;
+			}
+			try {
+				return Double.parseDouble(src.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw error("invalid number");
+			}
+		}
+
+		private String identifier() throws UnsupportedExpressionException {
+			skipSpace();
+			int start = pos;
+			if (pos >= src.length() || !Character.isJavaIdentifierStart(src.charAt(pos))) {
+				throw error("identifier expected");
+			}
+			while (pos < src.length() && Character.isJavaIdentifierPart(src.charAt(pos))) pos++;
+			return src.substring(start, pos);
+		}
+
+		private static int opcode(String op) {
+			if (op.length() == 1) return op.charAt(0);
+			if (op.equals("<=")) return LE;
+			if (op.equals(">=")) return GE;
+			if (op.equals("==") || op.equals("===")) return EQ;
+			if (op.equals("!=") || op.equals("!==")) return NE;
+			if (op.equals("&&")) return AND;
+			if (op.equals("||")) return OR;
+			if (op.equals("<<")) return SHL;
+			if (op.equals(">>")) return SHR;
+			return USHR;
+		}
+
+		/** replaces constant subtrees by their value */
+		private static Node fold(Node n) {
+			if (n.isConstant()) {
+				return new Constant(n.eval(0, null));
+			}
+			return n;
+		}
+
+		/** accepts operator unless it is the prefix of a logical operator ("|" of "||", "&" of "&&") */
+		private boolean acceptOperator(String op) {
+			skipSpace();
+			if (!src.startsWith(op, pos)) {
+				return false;
+			}
+			int end = pos + op.length();
+			if ((op.equals("|") || op.equals("&")) && end < src.length() && src.charAt(end) == op.charAt(0)) {
+				return false;
+			}
+			pos = end;
+			return true;
+		}
+
+		private boolean accept(String token) {
+			skipSpace();
+			if (src.startsWith(token, pos)) {
+				pos += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) throws UnsupportedExpressionException {
+			if (!accept(token)) {
+				throw error("'" + token + "' expected");
+			}
+		}
+
+		private void skipSpace() {
+			while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+		}
+
+		private UnsupportedExpressionException error(String msg) {
+			return new UnsupportedExpressionException(msg + " at position " + pos + " of '" + src + "'");
+		}
+	}
+}
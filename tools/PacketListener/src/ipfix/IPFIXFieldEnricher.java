@@ -1,142 +1,277 @@
-package ipfix;
-
-import java.io.ByteArrayInputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineFactory;
-import javax.script.ScriptEngineManager;
-
-/**
- * IPFIXFieldEnricher. Enriches a IPFIXField with metadata.
- * @author André Freitag
- *
- */
-public class IPFIXFieldEnricher {
-
-	/** fieldID this enricher is for*/
-	public int fieldID;
-	/** enterpriseNumber this enricher is for */
-	public long enterpriseNumber;
-
-	/** field name */
-	public String name;
-	/** field type */
-	public String type;
-	/** unit for field's value */
-	public String unit;
-
-	/** expression to convert field's value */
-	public String expression = null;
-	/** references that are used in the expression */
-	public HashMap<String,String> expressionReferences = new HashMap<String,String>();
-
-
-
-	/**
-	 * constructor
-	 */
-	public IPFIXFieldEnricher() {
-	}
-
-	/**
-	 * add expression reference
-	 * 
-	 * @param alias
-	 * @param type
-	 */
-	public void addReference(String alias, String type) {
-		this.expressionReferences.put(alias, type);
-	}
-
-
-	/**
-	 * enriches IPFIXField with metadata
-	 * 
-	 * @param field
-	 * @return enriched IPFIXEnrichedField
-	 * @throws Exception
-	 */
-	public IPFIXEnrichedField enrich(IPFIXField field) throws Exception {
-		IPFIXEnrichedField enrichedField = new IPFIXEnrichedField(field);
-
-		// add metadata
-		enrichedField.name = this.name;
-		enrichedField.type = this.type;
-		enrichedField.unit = this.unit;
-
-		// calculate value
-		if (this.expression != null) {
-			// do expression
-			UnsignedDataInputStream stream = new UnsignedDataInputStream(new ByteArrayInputStream(field.value));
-
-			try {
-				// convert value to unsigned int
-				Long value=null;
-				if (stream.available() == 4) {
-					value = stream.readUnsignedInt();
-				} else if (stream.available() == 2) {
-					value = (long) stream.readUnsignedShort();
-				} else if (stream.available() == 1) {
-					value = (long) stream.readUnsignedByte();
-				}
-
-
-				// prepare ECMAScript engine
-				ScriptEngineManager sem = new ScriptEngineManager();
-				ScriptEngine e = sem.getEngineByName("ECMAScript");
-				ScriptEngineFactory f = e.getFactory();
-
-				// construct statements
-				ArrayList<String> statements = new ArrayList<String>();
-
-				for (Map.Entry<String,String> ref : this.expressionReferences.entrySet()) {
-					statements.add("var "+ref.getKey()+" = 1;"); // TODO: replace 1 with last occurence of ref.getValue()
-				}
-				statements.add("var x="+value+";");
-				statements.add(this.expression);
-
-				// execute script
-				String[] temp = new String[statements.size()];
-				statements.toArray(temp);
-				String program = f.getProgram(temp);
-				enrichedField.value = e.eval(program);//Double.parseDouble(e.eval(program).toString());
-				if (enrichedField.value!=null && enrichedField.value instanceof Double) {
-					Double v = (Double)enrichedField.value;
-					if ((new Integer(v.intValue())).doubleValue() == v.doubleValue()) {
-						enrichedField.value = v.intValue();
-					}
-				}
-			} catch (Exception e) {
-				throw new Exception("IPFIXFieldEnricher: couldn't evaluate expression.", e);
-			} finally {
-				stream.close();
-			}
-		}
-
-		return enrichedField;
-	}
-
-
-	/**
-	 * get qualifier
-	 * 
-	 * @return distinct enricher qualifier
-	 */
-	public String getQualifier() {
-		return IPFIXFieldEnricher.getQualifier(this.fieldID, this.enterpriseNumber);
-	}
-
-	/**
-	 * get enricher qualifier for specific fieldID/enterpriseNumber
-	 * 
-	 * @param fieldID
-	 * @param enterpriseNumber
-	 * @return distinct enricher qualifier
-	 */
-	public static String getQualifier(int fieldID, long enterpriseNumber) {
-		return IPFIXTemplate.Field.getQualifier(fieldID, enterpriseNumber);
-	}
-}
+package ipfix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * IPFIXFieldEnricher. Enriches a IPFIXField with metadata.
+ * @author André Freitag
+ *
+ */
+public class IPFIXFieldEnricher {
+
+	/** fieldID this enricher is for*/
+	public int fieldID;
+	/** enterpriseNumber this enricher is for */
+	public long enterpriseNumber;
+
+	/** field name */
+	public String name;
+	/** field type */
+	public String type;
+	/** unit for field's value */
+	public String unit;
+
+	/** expression to convert field's value */
+	public String expression = null;
+	/** references that are used in the expression */
+	public HashMap<String,String> expressionReferences = new HashMap<String,String>();
+
+
+
+	/**
+	 * constructor
+	 */
+	public IPFIXFieldEnricher() {
+	}
+
+	/**
+	 * add expression reference
+	 * 
+	 * @param alias
+	 * @param type
+	 */
+	public void addReference(String alias, String type) {
+		this.expressionReferences.put(alias, type);
+	}
+
+
+	/**
+	 * sets the store the latest values of referenced types are read from and the
+	 * values of this enricher's type are written to
+	 * 
+	 * @param valueStore
+	 */
+	public void setValueStore(IPFIXValueStore valueStore) {
+		_valueStore = valueStore;
+		_compiled = false; // slots need to be resolved again
+	}
+
+	/**
+	 * compiles the expression and resolves the slots of its references. Called
+	 * once the enricher has been set up, enrich() compiles lazily otherwise.
+	 * 
+	 * @throws Exception if the expression can't be compiled
+	 */
+	public void compile() throws Exception {
+		List<String> aliases = new ArrayList<String>(this.expressionReferences.keySet());
+
+		_typeSlot = -1;
+		_referenceSlots = new int[aliases.size()];
+		Arrays.fill(_referenceSlots, -1);
+		if (_valueStore != null) {
+			if (this.type != null) {
+				_typeSlot = _valueStore.register(this.type);
+			}
+			for (int i = 0; i < aliases.size(); i++) {
+				_referenceSlots[i] = _valueStore.register(this.expressionReferences.get(aliases.get(i)));
+			}
+		}
+		_referenceValues = new double[aliases.size()];
+		Arrays.fill(_referenceValues, Double.NaN);
+
+		_slotCount = _typeSlot + 1;
+		for (int slot : _referenceSlots) {
+			_slotCount = Math.max(_slotCount, slot + 1);
+		}
+
+		_compiledExpression = this.expression != null ? IPFIXExpression.compile(this.expression, aliases) : null;
+		_compiledSource = this.expression;
+		_compiled = true;
+	}
+
+	/**
+	 * enriches IPFIXField with metadata
+	 * 
+	 * @param field
+	 * @return enriched IPFIXEnrichedField
+	 * @throws Exception
+	 */
+	public IPFIXEnrichedField enrich(IPFIXField field) throws Exception {
+		// calculate value
+		double result;
+		try {
+			result = evaluate(field.nodeID, toUnsigned(field.value));
+		} catch (Exception e) {
+			throw new Exception("IPFIXFieldEnricher: couldn't evaluate expression.", e);
+		}
+		return enriched(field, result);
+	}
+
+	/**
+	 * creates the IPFIXEnrichedField of a field whose value has been evaluated already, e.g. by evaluateAll()
+	 * 
+	 * @param field
+	 * @param result enriched value
+	 * @return enriched IPFIXEnrichedField
+	 */
+	public IPFIXEnrichedField enriched(IPFIXField field, double result) {
+		IPFIXEnrichedField enrichedField = new IPFIXEnrichedField(field);
+
+		// add metadata
+		enrichedField.name = this.name;
+		enrichedField.type = this.type;
+		enrichedField.unit = this.unit;
+
+		if (_compiledExpression != null) {
+			if (_compiledExpression.isBoolean()) {
+				enrichedField.value = Boolean.valueOf(result != 0);
+			} else if ((int) result == result) {
+				enrichedField.value = Integer.valueOf((int) result);
+			} else {
+				enrichedField.value = Double.valueOf(result);
+			}
+		}
+
+		return enrichedField;
+	}
+
+	/**
+	 * calculates the enriched value of a raw field value without allocating anything.
+	 * Reads the node's latest values of referenced types and stores the result as the latest value of this enricher's type.
+	 * 
+	 * @param nodeID origin of the value
+	 * @param x raw unsigned value
+	 * @return enriched value, x if there is no expression
+	 * @throws Exception if the expression can't be compiled or evaluated
+	 */
+	public double evaluate(long nodeID, double x) throws Exception {
+		if (!_compiled || _compiledSource != this.expression) {
+			compile();
+		}
+
+		double result = x;
+		double[] latest = _valueStore != null ? _valueStore.values(nodeID) : null;
+		if (_compiledExpression != null) {
+			// latest values of the referenced types of the same node
+			for (int i = 0; i < _referenceSlots.length; i++) {
+				_referenceValues[i] = latest != null ? latest[_referenceSlots[i]] : Double.NaN;
+			}
+			result = _compiledExpression.eval(x, _referenceValues);
+		}
+
+		// remember value for expressions referencing this type
+		if (latest != null && _typeSlot >= 0) {
+			latest[_typeSlot] = result;
+		}
+
+		return result;
+	}
+
+	/**
+	 * calculates the enriched values of a column of raw values, like evaluate() for each of them in order.
+	 * Expressions without references are evaluated over the whole column at once.
+	 * 
+	 * @param nodeIDs origin of each value
+	 * @param slots slot arrays of the values' nodes in the value store, looked up if null
+	 * @param x raw unsigned values
+	 * @param out receives the enriched values, must not be x
+	 * @param count number of values
+	 * @throws Exception if the expression can't be compiled or evaluated
+	 */
+	public void evaluateAll(long[] nodeIDs, double[][] slots, double[] x, double[] out, int count) throws Exception {
+		if (!_compiled || _compiledSource != this.expression) {
+			compile();
+		}
+
+		if (_compiledExpression == null) {
+			System.arraycopy(x, 0, out, 0, count);
+		} else if (_referenceSlots.length == 0 || _valueStore == null) {
+			Arrays.fill(_referenceValues, Double.NaN);
+			_compiledExpression.evalAll(x, out, count, _referenceValues);
+		} else {
+			// every value has its own node's references
+			for (int i = 0; i < count; i++) {
+				double[] latest = _latest(nodeIDs, slots, i);
+				for (int r = 0; r < _referenceSlots.length; r++) {
+					_referenceValues[r] = latest[_referenceSlots[r]];
+				}
+				out[i] = _compiledExpression.eval(x[i], _referenceValues);
+			}
+		}
+
+		// remember values for expressions referencing this type
+		if (_valueStore != null && _typeSlot >= 0) {
+			for (int i = 0; i < count; i++) {
+				_latest(nodeIDs, slots, i)[_typeSlot] = out[i];
+			}
+		}
+	}
+
+	/**
+	 * converts a big-endian field value into an unsigned number
+	 * 
+	 * @param value
+	 * @return value, NaN if it is longer than 8 bytes
+	 */
+	public static double toUnsigned(byte[] value) {
+		if (value.length > 8) {
+			return Double.NaN;
+		}
+		long v = 0;
+		for (int i = 0; i < value.length; i++) {
+			v = (v << 8) | (value[i] & 0xFF);
+		}
+		return v;
+	}
+
+
+	/**
+	 * get qualifier
+	 * 
+	 * @return distinct enricher qualifier
+	 */
+	public String getQualifier() {
+		return IPFIXFieldEnricher.getQualifier(this.fieldID, this.enterpriseNumber);
+	}
+
+	/**
+	 * get enricher qualifier for specific fieldID/enterpriseNumber
+	 * 
+	 * @param fieldID
+	 * @param enterpriseNumber
+	 * @return distinct enricher qualifier
+	 */
+	public static String getQualifier(int fieldID, long enterpriseNumber) {
+		return IPFIXTemplate.Field.getQualifier(fieldID, enterpriseNumber);
+	}
+
+
+
+	/* private helper methods */
+	/** slot array of the i-th node of a column, looked up if it isn't given or types were registered since */
+	private double[] _latest(long[] nodeIDs, double[][] slots, int i) {
+		double[] latest = slots != null ? slots[i] : null;
+		if (latest == null || latest.length < _slotCount) {
+			latest = _valueStore.values(nodeIDs[i]);
+		}
+		return latest;
+	}
+
+
+
+	/* protected member */
+	protected boolean _compiled = false;
+	protected IPFIXExpression _compiledExpression = null;
+	protected String _compiledSource = null;
+	protected IPFIXValueStore _valueStore = null;
+	/** slot of this enricher's type, -1 if it isn't stored */
+	protected int _typeSlot = -1;
+	/** slots of the referenced types, indexed like the expression's references */
+	protected int[] _referenceSlots = null;
+	/** length a node's slot array needs for this enricher's slots */
+	protected int _slotCount = 0;
+	protected double[] _referenceValues = null;
+}
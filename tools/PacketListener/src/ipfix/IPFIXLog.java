@@ -0,0 +1,462 @@
+package ipfix;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-instance, thread-safe log of parse and enrich events.
+ *
+ * Events are structured (node, set, sequence number, template, field, ...) and
+ * only formatted by the sinks that print or write them. Without sinks, or for
+ * levels below the configured one, logging costs a single volatile read: no
+ * event is created and nothing is formatted.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXLog {
+
+	/**
+	 * log levels, ordered
+	 */
+	public enum Level {
+		DEBUG, INFO, WARNING, ERROR, OFF
+	}
+
+	/**
+	 * event types
+	 */
+	public enum Type {
+		/** template received, see Event.template */
+		TEMPLATE,
+		/** data record received */
+		DATA,
+		/** data without template, see Event.data */
+		NO_TEMPLATE,
+		/** duplicate or stale data message, see Event.message */
+		DISCARDED,
+		/** field enriched, see Event.field */
+		ENRICHED,
+		/** exception, see Event.error */
+		ERROR
+	}
+
+
+	/**
+	 * constructor, logs INFO and above once a sink is added
+	 */
+	public IPFIXLog() {
+		this(Level.INFO);
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param level minimum level of logged events
+	 */
+	public IPFIXLog(Level level) {
+		_level = level;
+		_update();
+	}
+
+	/**
+	 * sets minimum level of logged events
+	 *
+	 * @param level
+	 */
+	public synchronized void setLevel(Level level) {
+		_level = level;
+		_update();
+	}
+
+	/**
+	 * gets minimum level of logged events
+	 */
+	public Level getLevel() {
+		return _level;
+	}
+
+	/**
+	 * adds a sink, called for every logged event by the logging thread
+	 *
+	 * @param sink
+	 */
+	public synchronized void addSink(Sink sink) {
+		Sink[] sinks = Arrays.copyOf(_sinks, _sinks.length + 1);
+		sinks[_sinks.length] = sink;
+		_sinks = sinks;
+		_update();
+	}
+
+	/**
+	 * removes a sink
+	 *
+	 * @param sink
+	 */
+	public synchronized void removeSink(Sink sink) {
+		List<Sink> sinks = new ArrayList<Sink>(Arrays.asList(_sinks));
+		sinks.remove(sink);
+		_sinks = sinks.toArray(new Sink[sinks.size()]);
+		_update();
+	}
+
+	/**
+	 * checks whether events of a level are logged. Guard the creation of expensive log arguments with it.
+	 *
+	 * @param level
+	 * @return true if there is a sink and the level is enabled
+	 */
+	public boolean isEnabled(Level level) {
+		return level.ordinal() >= _threshold;
+	}
+
+	/**
+	 * hands an event to the sinks
+	 *
+	 * @param event
+	 */
+	public void log(Event event) {
+		if (!isEnabled(event.level)) {
+			return;
+		}
+		for (Sink sink : _sinks) {
+			sink.event(event);
+		}
+	}
+
+	/**
+	 * logs a received template
+	 *
+	 * @param template
+	 */
+	public void template(IPFIXTemplate template) {
+		if (isEnabled(Level.INFO)) {
+			log(new Event(Type.TEMPLATE, Level.INFO, template.nodeID, template.templateID,
+					template.lastSequenceNumber, template, null, null, null, null));
+		}
+	}
+
+	/**
+	 * logs a received data record
+	 *
+	 * @param nodeID
+	 * @param setID
+	 * @param sequenceNumber
+	 */
+	public void data(long nodeID, int setID, long sequenceNumber) {
+		if (isEnabled(Level.INFO)) {
+			log(new Event(Type.DATA, Level.INFO, nodeID, setID, sequenceNumber, null, null, null, null, null));
+		}
+	}
+
+	/**
+	 * logs data received without template, copies the data only if the event is logged
+	 *
+	 * @param nodeID
+	 * @param setID
+	 * @param sequenceNumber
+	 * @param buffer
+	 * @param from offset of the first byte of the data
+	 * @param to offset behind the data
+	 */
+	public void noTemplate(long nodeID, int setID, long sequenceNumber, ByteBuffer buffer, int from, int to) {
+		if (isEnabled(Level.WARNING)) {
+			byte[] data = new byte[to - from];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = buffer.get(from + i);
+			}
+			log(new Event(Type.NO_TEMPLATE, Level.WARNING, nodeID, setID, sequenceNumber, null, null, data, null, null));
+		}
+	}
+
+	/**
+	 * logs a discarded data message
+	 *
+	 * @param nodeID
+	 * @param sequenceNumber
+	 * @param result why the message was discarded
+	 */
+	public void discarded(long nodeID, long sequenceNumber, IPFIXSequenceWindow.Result result) {
+		if (isEnabled(Level.WARNING)) {
+			log(new Event(Type.DISCARDED, Level.WARNING, nodeID, 0, sequenceNumber, null, null, null,
+					result.name().toLowerCase(), null));
+		}
+	}
+
+	/**
+	 * logs an enriched field
+	 *
+	 * @param field
+	 */
+	public void enriched(IPFIXEnrichedField field) {
+		if (isEnabled(Level.INFO)) {
+			log(new Event(Type.ENRICHED, Level.INFO, field.nodeID, 0, 0, null, field, null, null, null));
+		}
+	}
+
+	/**
+	 * logs an exception
+	 *
+	 * @param message
+	 * @param error
+	 */
+	public void error(String message, Throwable error) {
+		if (isEnabled(Level.ERROR)) {
+			log(new Event(Type.ERROR, Level.ERROR, -1, 0, 0, null, null, null, message, error));
+		}
+	}
+
+
+
+	/* private helper methods */
+	/** only the threshold is read when logging */
+	private void _update() {
+		_threshold = _sinks.length == 0 ? Level.OFF.ordinal() + 1 : _level.ordinal();
+	}
+
+
+
+	/* private member */
+	private volatile Level _level;
+	private volatile Sink[] _sinks = new Sink[0];
+	/** ordinal of the lowest level logged, above OFF if there are no sinks */
+	private volatile int _threshold;
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+
+
+	/* helper classes */
+	/**
+	 * Receives logged events. Called by the logging thread, implementations have to be thread-safe
+	 * if the log is used by several threads.
+	 */
+	public interface Sink {
+		void event(Event event);
+	}
+
+	/**
+	 * Logged event. Only the members of its type are set.
+	 */
+	public static class Event {
+		public final Type type;
+		public final Level level;
+		/** time the event was logged, milliseconds since the epoch */
+		public final long time;
+		/** node the event belongs to, -1 if none */
+		public final long nodeID;
+		/** set ID (template ID for templates) */
+		public final int setID;
+		public final long sequenceNumber;
+		/** TEMPLATE: received template */
+		public final IPFIXTemplate template;
+		/** ENRICHED: enriched field */
+		public final IPFIXEnrichedField field;
+		/** NO_TEMPLATE: raw data */
+		public final byte[] data;
+		/** DISCARDED: reason, ERROR: message and exception */
+		public final String message;
+		public final Throwable error;
+
+		/**
+		 * constructor
+		 */
+		public Event(Type type, Level level, long nodeID, int setID, long sequenceNumber, IPFIXTemplate template,
+				IPFIXEnrichedField field, byte[] data, String message, Throwable error) {
+			this.type = type;
+			this.level = level;
+			this.time = System.currentTimeMillis();
+			this.nodeID = nodeID;
+			this.setID = setID;
+			this.sequenceNumber = sequenceNumber;
+			this.template = template;
+			this.field = field;
+			this.data = data;
+			this.message = message;
+			this.error = error;
+		}
+
+		/**
+		 * formats the event like the packet dump always looked
+		 *
+		 * @param out
+		 */
+		public void format(StringBuilder out) {
+			switch (type) {
+			case TEMPLATE:
+				out.append("\n+--[").append(nodeID).append("] Template: ").append(setID)
+						.append(", received ").append(new Date(time)).append(" \n|").append(LINE_SEPARATOR);
+				for (IPFIXTemplate.Field field : template.fields) {
+					out.append("|----- Field ").append(field.fieldID).append(", enterpriseNumber: ")
+							.append(field.enterpriseNumber).append(", length: ").append(field.length)
+							.append(LINE_SEPARATOR);
+				}
+				break;
+			case DATA:
+				out.append("\n|+--[").append(nodeID).append("] Data received ").append(new Date(time))
+						.append(" \n|").append(LINE_SEPARATOR);
+				break;
+			case NO_TEMPLATE:
+				out.append("\n|+--[").append(nodeID).append("] No template, raw data:\n|---- ");
+				for (byte b : data) {
+					out.append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]).append(' ');
+				}
+				out.append(LINE_SEPARATOR);
+				break;
+			case DISCARDED:
+				out.append("\n|+--[").append(nodeID).append("] Discarded ").append(message)
+						.append(" data, sequence number ").append(sequenceNumber).append(LINE_SEPARATOR);
+				break;
+			case ENRICHED:
+				IPFIXTemplate.Field templateField = field.templateField;
+				out.append("|----- ").append(field.name != null ? field.name : field.type)
+						.append('[').append(templateField.length).append("] (")
+						.append(templateField.enterpriseNumber).append(" - ").append(templateField.fieldID)
+						.append("): ").append(field.value).append(' ').append(field.unit != null ? field.unit : "")
+						.append(LINE_SEPARATOR);
+				break;
+			case ERROR:
+				StringWriter stackTrace = new StringWriter();
+				if (error != null) {
+					error.printStackTrace(new PrintWriter(stackTrace));
+				}
+				out.append("EXCEPTION: ").append(message).append('\n').append(stackTrace).append('\n')
+						.append(LINE_SEPARATOR);
+				break;
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			format(out);
+			return out.toString();
+		}
+	}
+
+	/**
+	 * Collects the events of one thread, e.g. those of a packet.
+	 */
+	public static class Collector implements Sink {
+		@Override
+		public synchronized void event(Event event) {
+			_events.add(event);
+		}
+
+		/**
+		 * gets the events collected since the last call
+		 *
+		 * @return events, empty if there are none
+		 */
+		public synchronized List<Event> drain() {
+			if (_events.isEmpty()) {
+				return EMPTY;
+			}
+			List<Event> events = _events;
+			_events = new ArrayList<Event>();
+			return events;
+		}
+
+		private List<Event> _events = new ArrayList<Event>();
+		private static final List<Event> EMPTY = new ArrayList<Event>(0);
+	}
+
+	/**
+	 * Prints events from its own thread. Logging threads only queue the events,
+	 * if the console can't keep up events are dropped instead of slowing them down.
+	 */
+	public static class ConsoleView implements Sink, Closeable {
+
+		/**
+		 * constructor
+		 *
+		 * @param out stream to print to, e.g. System.out
+		 * @param level minimum level of printed events
+		 * @param capacity maximum number of queued events
+		 */
+		public ConsoleView(PrintStream out, Level level, int capacity) {
+			this.out = out;
+			this.level = level;
+			this.queue = new ArrayBlockingQueue<Event>(capacity);
+			this.thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					_run();
+				}
+			}, "IPFIXLog console");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		@Override
+		public void event(Event event) {
+			if (event.level.ordinal() >= level.ordinal() && !closed && !queue.offer(event)) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		/**
+		 * gets number of events dropped because the queue was full
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * prints queued events and stops the console thread
+		 */
+		@Override
+		public void close() {
+			closed = true;
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void _run() {
+			StringBuilder text = new StringBuilder();
+			List<Event> events = new ArrayList<Event>();
+			try {
+				while (!closed || !queue.isEmpty()) {
+					Event event = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (event == null) {
+						continue;
+					}
+
+					// print everything queued at once
+					events.add(event);
+					queue.drainTo(events);
+					for (Event e : events) {
+						e.format(text);
+					}
+					out.print(text);
+					out.flush();
+					text.setLength(0);
+					events.clear();
+				}
+			} catch (InterruptedException e) {
+				// stop printing
+			}
+		}
+
+		private final PrintStream out;
+		private final Level level;
+		private final BlockingQueue<Event> queue;
+		private final Thread thread;
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile boolean closed = false;
+	}
+}
@@ -0,0 +1,493 @@
+package ipfix;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and latency histograms of the collector.
+ *
+ * Recording is lock-free: counters are LongAdders, packets per node are
+ * counted in an array indexed by the (16 bit) nodeID and histograms are arrays
+ * of atomic buckets. Values are only aggregated when a snapshot is taken, for
+ * JMX (registerMBean()) or the HTTP text endpoint (startHttpServer()).
+ *
+ * @author Michael Meister
+ */
+public class IPFIXMetrics {
+
+	/**
+	 * measured processing stages
+	 */
+	public enum Stage {
+		/** reading a packet from the source (includes waiting for it) */
+		READ,
+		/** waiting in the queue of a worker */
+		QUEUE,
+		/** parsing, including the TinyIPFIX header */
+		PARSE,
+		/** enriching the fields of a packet */
+		ENRICH,
+		/** writing a packet to the output and the store */
+		WRITE
+	}
+
+
+	/**
+	 * counts a received packet
+	 *
+	 * @param nodeID
+	 */
+	public void packet(long nodeID) {
+		_packets.increment();
+		if (nodeID >= 0 && nodeID < _nodePackets.length()) {
+			_nodePackets.incrementAndGet((int) nodeID);
+		} else {
+			AtomicLong counter = _otherNodePackets.get(nodeID);
+			if (counter == null) {
+				AtomicLong created = new AtomicLong();
+				counter = _otherNodePackets.putIfAbsent(nodeID, created);
+				if (counter == null) {
+					counter = created;
+				}
+			}
+			counter.incrementAndGet();
+		}
+	}
+
+	/** counts a received template */
+	public void templateReceived() {
+		_templates.increment();
+	}
+
+	/** counts data received without template */
+	public void templateMiss() {
+		_templateMisses.increment();
+	}
+
+	/** counts data discarded because of an obsolete sequence number */
+	public void obsoleteDiscard() {
+		_obsoleteDiscards.increment();
+	}
+
+	/** counts missing data messages, negative if messages counted as missing arrived late */
+	public void sequenceLost(long count) {
+		_sequenceLost.add(count);
+	}
+
+	/** counts a data message that arrived after newer ones */
+	public void sequenceReordered() {
+		_sequenceReordered.increment();
+	}
+
+	/** counts a data message received twice */
+	public void sequenceDuplicate() {
+		_sequenceDuplicates.increment();
+	}
+
+	/** counts a data set parked until its template is known */
+	public void pendingParked() {
+		_pendingParked.increment();
+	}
+
+	/** counts parked data sets decoded once their template was known */
+	public void pendingReleased(long count) {
+		_pendingReleased.add(count);
+	}
+
+	/** counts parked data sets dropped because of the pending buffer's limits */
+	public void pendingDropped(long count) {
+		_pendingDropped.add(count);
+	}
+
+	/** counts a packet that couldn't be parsed */
+	public void parseFailure() {
+		_parseFailures.increment();
+	}
+
+	/** counts a packet that couldn't be enriched */
+	public void enrichFailure() {
+		_enrichFailures.increment();
+	}
+
+	/**
+	 * records the latency of a stage
+	 *
+	 * @param stage
+	 * @param nanos
+	 */
+	public void latency(Stage stage, long nanos) {
+		_latencies[stage.ordinal()].record(nanos);
+	}
+
+	/**
+	 * adds a value read when a snapshot is taken, e.g. a queue depth
+	 *
+	 * @param name
+	 * @param gauge
+	 */
+	public void addGauge(String name, Gauge gauge) {
+		_gauges.put(name, gauge);
+	}
+
+	public long getPackets() {
+		return _packets.sum();
+	}
+
+	public long getPackets(long nodeID) {
+		if (nodeID >= 0 && nodeID < _nodePackets.length()) {
+			return _nodePackets.get((int) nodeID);
+		}
+		AtomicLong counter = _otherNodePackets.get(nodeID);
+		return counter != null ? counter.get() : 0;
+	}
+
+	public long getTemplates() {
+		return _templates.sum();
+	}
+
+	public long getTemplateMisses() {
+		return _templateMisses.sum();
+	}
+
+	public long getObsoleteDiscards() {
+		return _obsoleteDiscards.sum();
+	}
+
+	public long getSequenceLost() {
+		return _sequenceLost.sum();
+	}
+
+	public long getSequenceReordered() {
+		return _sequenceReordered.sum();
+	}
+
+	public long getSequenceDuplicates() {
+		return _sequenceDuplicates.sum();
+	}
+
+	public long getPendingParked() {
+		return _pendingParked.sum();
+	}
+
+	public long getPendingReleased() {
+		return _pendingReleased.sum();
+	}
+
+	public long getPendingDropped() {
+		return _pendingDropped.sum();
+	}
+
+	public long getParseFailures() {
+		return _parseFailures.sum();
+	}
+
+	public long getEnrichFailures() {
+		return _enrichFailures.sum();
+	}
+
+	public Histogram getLatency(Stage stage) {
+		return _latencies[stage.ordinal()];
+	}
+
+	/**
+	 * gets all values by name, latencies in microseconds
+	 *
+	 * @return sorted map of name -> value
+	 */
+	public SortedMap<String, Number> snapshot() {
+		SortedMap<String, Number> values = new TreeMap<String, Number>();
+		values.put("packets", getPackets());
+		values.put("templates", getTemplates());
+		values.put("template_misses", getTemplateMisses());
+		values.put("obsolete_discards", getObsoleteDiscards());
+		values.put("sequence_lost", getSequenceLost());
+		values.put("sequence_reordered", getSequenceReordered());
+		values.put("sequence_duplicates", getSequenceDuplicates());
+		values.put("pending_parked", getPendingParked());
+		values.put("pending_released", getPendingReleased());
+		values.put("pending_dropped", getPendingDropped());
+		values.put("parse_failures", getParseFailures());
+		values.put("enrich_failures", getEnrichFailures());
+
+		for (int node = 0; node < _nodePackets.length(); node++) {
+			long packets = _nodePackets.get(node);
+			if (packets > 0) {
+				values.put("node." + node + ".packets", packets);
+			}
+		}
+		for (Map.Entry<Long, AtomicLong> entry : _otherNodePackets.entrySet()) {
+			values.put("node." + entry.getKey() + ".packets", entry.getValue().get());
+		}
+
+		for (Map.Entry<String, Gauge> entry : _gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+
+		for (Stage stage : Stage.values()) {
+			Histogram histogram = getLatency(stage);
+			String name = "latency." + stage.name().toLowerCase() + ".";
+			values.put(name + "count", histogram.getCount());
+			values.put(name + "mean_us", histogram.getMean() / 1000);
+			values.put(name + "p50_us", histogram.getPercentile(0.5) / 1000.0);
+			values.put(name + "p99_us", histogram.getPercentile(0.99) / 1000.0);
+			values.put(name + "max_us", histogram.getMax() / 1000.0);
+		}
+		return values;
+	}
+
+	/**
+	 * formats a snapshot as text, one "name value" line per value
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+			text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * registers the metrics with the platform MBean server, every value is a read-only attribute
+	 *
+	 * @param name e.g. "ipfix:type=TinyIPFIXListener"
+	 * @throws Exception
+	 */
+	public void registerMBean(String name) throws Exception {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(name));
+	}
+
+	/**
+	 * serves the text of snapshots on http://<address>/metrics
+	 *
+	 * @param address e.g. new InetSocketAddress(InetAddress.getLoopbackAddress(), 9100)
+	 * @return the started server, stop() it when done
+	 * @throws IOException
+	 */
+	public HttpServer startHttpServer(InetSocketAddress address) throws IOException {
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = IPFIXMetrics.this.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+		return server;
+	}
+
+
+
+	/* private member */
+	private final LongAdder _packets = new LongAdder();
+	/** packets per nodeID below 2^16, each node is counted by one worker only */
+	private final AtomicLongArray _nodePackets = new AtomicLongArray(1 << 16);
+	/** packets of nodes with larger IDs (IPFIX observation domains) */
+	private final ConcurrentHashMap<Long, AtomicLong> _otherNodePackets = new ConcurrentHashMap<Long, AtomicLong>();
+	private final LongAdder _templates = new LongAdder();
+	private final LongAdder _templateMisses = new LongAdder();
+	private final LongAdder _obsoleteDiscards = new LongAdder();
+	private final LongAdder _sequenceLost = new LongAdder();
+	private final LongAdder _sequenceReordered = new LongAdder();
+	private final LongAdder _sequenceDuplicates = new LongAdder();
+	private final LongAdder _pendingParked = new LongAdder();
+	private final LongAdder _pendingReleased = new LongAdder();
+	private final LongAdder _pendingDropped = new LongAdder();
+	private final LongAdder _parseFailures = new LongAdder();
+	private final LongAdder _enrichFailures = new LongAdder();
+	private final Histogram[] _latencies = new Histogram[Stage.values().length];
+	private final Map<String, Gauge> _gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	{
+		for (int i = 0; i < _latencies.length; i++) {
+			_latencies[i] = new Histogram();
+		}
+	}
+
+
+
+	/* helper classes */
+	/**
+	 * Value read when a snapshot is taken.
+	 */
+	public interface Gauge {
+		long get();
+	}
+
+	/**
+	 * Lock-free log-linear histogram of non-negative values: every power of two
+	 * is split into 8 buckets, so percentiles are accurate to 12.5%.
+	 */
+	public static class Histogram {
+
+		/**
+		 * records a value, negative values are recorded as 0
+		 *
+		 * @param value
+		 */
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			_buckets.incrementAndGet(_index(value));
+			_count.increment();
+			_sum.add(value);
+			long max;
+			while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) {
+				// retry
+			}
+		}
+
+		public long getCount() {
+			return _count.sum();
+		}
+
+		public long getMax() {
+			return _max.get();
+		}
+
+		public double getMean() {
+			long count = _count.sum();
+			return count == 0 ? 0 : (double) _sum.sum() / count;
+		}
+
+		/**
+		 * gets the value below which a fraction of the recorded values lie
+		 *
+		 * @param fraction 0..1, e.g. 0.99
+		 * @return upper bound of the bucket holding the percentile, at most the maximum
+		 */
+		public long getPercentile(double fraction) {
+			long[] counts = new long[_buckets.length()];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = _buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil(fraction * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target) {
+					return Math.min(_lowerBound(i + 1) - 1, getMax());
+				}
+			}
+			return getMax();
+		}
+
+		private static int _index(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return ((exponent - SUB_BITS + 1) << SUB_BITS) | mantissa;
+		}
+
+		private static long _lowerBound(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int exponent = (index >> SUB_BITS) + SUB_BITS - 1;
+			long mantissa = index & (SUB_BUCKETS - 1);
+			return (SUB_BUCKETS | mantissa) << (exponent - SUB_BITS);
+		}
+
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private final AtomicLongArray _buckets = new AtomicLongArray(64 << SUB_BITS);
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _sum = new LongAdder();
+		private final AtomicLong _max = new AtomicLong();
+	}
+
+	/**
+	 * Exposes the values of snapshots as read-only attributes.
+	 */
+	private class MBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number value = snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap<String, Number> values = snapshot();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				if (values.containsKey(attribute)) {
+					list.add(new Attribute(attribute, values.get(attribute)));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("IPFIXMetrics: attributes are read-only.");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName), "IPFIXMetrics: no operations.");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+				attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+						entry.getKey(), true, false, false));
+			}
+			return new MBeanInfo(IPFIXMetrics.class.getName(), "TinyIPFIX collector metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+					new MBeanOperationInfo[0], null);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package ipfix;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * State of a node, interned by its IPv6 source address in the IPFIXNodeRegistry
+ * and kept until it is idle for longer than the templates are.
+ *
+ * The nodeID keys the node's templates, sequence numbers, stored measurements
+ * and metrics. The statistics are written by the thread reading the packets,
+ * the sequence window by the worker parsing them; other threads may read
+ * slightly outdated values.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXNode {
+
+	/** first 8 bytes of the address (the prefix), big-endian */
+	public final long addressHigh;
+	/** last 8 bytes of the address (the interface identifier), big-endian */
+	public final long interfaceID;
+	/** nodeID assigned by the registry */
+	public final long nodeID;
+	/** window over the sequence numbers of the node's data messages */
+	public final IPFIXSequenceWindow sequenceWindow;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param addressHigh first 8 bytes of the address
+	 * @param interfaceID last 8 bytes of the address
+	 * @param nodeID
+	 */
+	public IPFIXNode(long addressHigh, long interfaceID, long nodeID) {
+		this.addressHigh = addressHigh;
+		this.interfaceID = interfaceID;
+		this.nodeID = nodeID;
+		this.sequenceWindow = new IPFIXSequenceWindow(nodeID);
+	}
+
+	/**
+	 * constructor, node of a previous run (its sequence window may be restored too)
+	 *
+	 * @param addressHigh first 8 bytes of the address
+	 * @param interfaceID last 8 bytes of the address
+	 * @param nodeID
+	 * @param lastSeen time the node's latest packet was received, milliseconds since the epoch
+	 */
+	public IPFIXNode(long addressHigh, long interfaceID, long nodeID, long lastSeen) {
+		this(addressHigh, interfaceID, nodeID);
+		_lastSeen = lastSeen;
+	}
+
+	/**
+	 * counts a received packet
+	 *
+	 * @param length of the packet's payload in bytes
+	 * @param time the packet was received, milliseconds since the epoch
+	 */
+	public void received(int length, long time) {
+		if (_packets == 0) {
+			_firstSeen = time;
+		}
+		_packets++;
+		_bytes += length;
+		_lastSeen = time;
+	}
+
+	/**
+	 * gets number of received packets
+	 */
+	public long getPackets() {
+		return _packets;
+	}
+
+	/**
+	 * gets number of received payload bytes
+	 */
+	public long getBytes() {
+		return _bytes;
+	}
+
+	/**
+	 * gets time the first packet was received, milliseconds since the epoch
+	 */
+	public long getFirstSeen() {
+		return _firstSeen;
+	}
+
+	/**
+	 * gets time the latest packet was received, milliseconds since the epoch
+	 */
+	public long getLastSeen() {
+		return _lastSeen;
+	}
+
+	/**
+	 * gets the address as InetAddress (allocates, for console output)
+	 *
+	 * @return address
+	 */
+	public InetAddress getAddress() {
+		byte[] address = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			address[i] = (byte) (addressHigh >>> (56 - 8 * i));
+			address[8 + i] = (byte) (interfaceID >>> (56 - 8 * i));
+		}
+		try {
+			return InetAddress.getByAddress(address);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "node#" + nodeID + " (" + getAddress().getHostAddress() + ")";
+	}
+
+
+
+	/* private member */
+	private long _packets = 0;
+	private long _bytes = 0;
+	private long _firstSeen = 0;
+	private long _lastSeen = 0;
+}
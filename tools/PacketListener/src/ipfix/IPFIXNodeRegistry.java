@@ -0,0 +1,282 @@
+package ipfix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.Hashing;
+
+/**
+ * Interns the nodes by their raw 16 byte IPv6 source address.
+ *
+ * A node is found with one probe into an open addressing table keyed by the
+ * two halves of the address, consecutive packets of the same node don't probe
+ * at all. Known nodes are looked up without allocating anything.
+ *
+ * A new node gets the last 16 bits of its address as nodeID (like
+ * TinyIPFIXParser.getNodeID(), so IDs match earlier runs and the metadata).
+ * Addresses sharing their last 16 bits used to be merged into one node: if
+ * the ID is taken by another address, the node gets the lower 48 bits of its
+ * interface identifier instead, or the next free ID above 16 bits. Which
+ * address gets which ID depends on the order they appeared in, so the nodes
+ * are saved in the template snapshot and restored before their templates.
+ *
+ * Nodes that haven't sent a packet for maxIdle milliseconds are removed by
+ * expire(), like idle templates from the IPFIXTemplateHeap. A node that comes
+ * back is registered again, its nodeID may have been given to another address
+ * meanwhile.
+ *
+ * node() and expire() must only be called by one thread (the pipeline's
+ * reader), the other methods may be called by any thread.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXNodeRegistry {
+
+	/**
+	 * gets the node of an address, registers it if it is unknown
+	 *
+	 * @param address IPv6 address, 16 bytes
+	 * @return node
+	 */
+	public IPFIXNode node(byte[] address) {
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < 8; i++) {
+			high = (high << 8) | (address[i] & 0xFF);
+			low = (low << 8) | (address[8 + i] & 0xFF);
+		}
+
+		IPFIXNode last = _last;
+		if (last != null && last.interfaceID == low && last.addressHigh == high) {
+			return last;
+		}
+
+		IPFIXNode[] nodes = _byAddress;
+		IPFIXNode node = nodes[_findAddress(nodes, high, low)];
+		if (node == null) {
+			synchronized (this) { // restore() may have registered the address meanwhile
+				nodes = _byAddress;
+				int i = _findAddress(nodes, high, low);
+				node = nodes[i];
+				if (node == null) {
+					node = new IPFIXNode(high, low, _assignID(low));
+					_put(nodes, i, node);
+				}
+			}
+		}
+		_last = node;
+		return node;
+	}
+
+	/**
+	 * registers a node of a previous run (e.g. read from a snapshot), so its address keeps its nodeID.
+	 * Ignored if the address or the nodeID is registered already.
+	 *
+	 * @param node
+	 * @return whether the node was registered
+	 */
+	public synchronized boolean restore(IPFIXNode node) {
+		IPFIXNode[] nodes = _byAddress;
+		int i = _findAddress(nodes, node.addressHigh, node.interfaceID);
+		if (nodes[i] != null || get(node.nodeID) != null) {
+			return false;
+		}
+		_put(nodes, i, node);
+		return true;
+	}
+
+	/**
+	 * sets the time nodes are kept without sending packets
+	 *
+	 * @param maxIdle time in milliseconds, 0 for unlimited
+	 */
+	public void setMaxIdle(long maxIdle) {
+		_maxIdle = maxIdle;
+	}
+
+	/**
+	 * removes nodes that haven't sent a packet for maxIdle milliseconds. Only sweeps
+	 * the nodes every maxIdle / 4 milliseconds, cheap enough to be called per packet.
+	 *
+	 * @param now current time in milliseconds, in the clock of the packets' receive times
+	 * @return number of removed nodes
+	 */
+	public int expire(long now) {
+		return expire(now, null);
+	}
+
+	/**
+	 * removes nodes that haven't sent a packet for maxIdle milliseconds, like expire(long).
+	 * Their nodeIDs may be assigned again, so the state kept for them elsewhere (templates,
+	 * parked data, values) has to be dropped before the next packet of their IDs is processed.
+	 *
+	 * @param now current time in milliseconds, in the clock of the packets' receive times
+	 * @param expired receives the removed nodes, may be null
+	 * @return number of removed nodes
+	 */
+	public int expire(long now, List<IPFIXNode> expired) {
+		long maxIdle = _maxIdle;
+		if (maxIdle <= 0 || now - _lastSweep < maxIdle / 4) {
+			return 0;
+		}
+		_lastSweep = now;
+
+		int removed = 0;
+		synchronized (this) {
+			IPFIXNode[] byAddress = new IPFIXNode[_byAddress.length];
+			IPFIXNode[] byID = new IPFIXNode[_byID.length];
+			for (IPFIXNode node : _byAddress) {
+				if (node == null) {
+					continue;
+				}
+				if (now - node.getLastSeen() > maxIdle) {
+					if (expired != null) {
+						expired.add(node);
+					}
+					removed++;
+					continue;
+				}
+				byAddress[_findAddress(byAddress, node.addressHigh, node.interfaceID)] = node;
+				byID[_findID(byID, node.nodeID)] = node;
+			}
+			if (removed > 0) {
+				// readers of the old tables may still find removed nodes
+				_byAddress = byAddress;
+				_byID = byID;
+				_size -= removed;
+				_expired += removed;
+				_last = null;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * gets the node of a nodeID
+	 *
+	 * @param nodeID
+	 * @return node, null if no node has the ID
+	 */
+	public IPFIXNode get(long nodeID) {
+		IPFIXNode[] nodes = _byID;
+		return nodes[_findID(nodes, nodeID)];
+	}
+
+	/**
+	 * gets all nodes. Doesn't lock, nodes registered meanwhile may be missing.
+	 *
+	 * @return nodes
+	 */
+	public List<IPFIXNode> getNodes() {
+		List<IPFIXNode> nodes = new ArrayList<IPFIXNode>();
+		for (IPFIXNode node : _byAddress) {
+			if (node != null) {
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * gets number of nodes
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * gets number of nodes that didn't get the last 16 bits of their address as nodeID
+	 */
+	public int getCollisions() {
+		return _collisions;
+	}
+
+	/**
+	 * gets number of nodes removed by expire()
+	 */
+	public long getExpired() {
+		return _expired;
+	}
+
+
+
+	/* private helper methods */
+	private long _assignID(long interfaceID) {
+		long nodeID = interfaceID & 0xFFFF;
+		if (get(nodeID) == null) {
+			return nodeID;
+		}
+
+		_collisions++;
+		nodeID = interfaceID & 0xFFFFFFFFFFFFL; // fits IPFIXTemplateHeap.getKey()
+		if (nodeID > 0xFFFF && get(nodeID) == null) {
+			return nodeID;
+		}
+		while (get(_nextID) != null) {
+			_nextID++;
+		}
+		return _nextID++;
+	}
+
+	/** linear probing, returns index of the address or of the free bucket it belongs into */
+	private static int _findAddress(IPFIXNode[] nodes, long high, long low) {
+		int mask = nodes.length - 1;
+		int i = Hashing.hash(low ^ (high * 0x9E3779B97F4A7C15L)) & mask;
+		IPFIXNode node;
+		while ((node = nodes[i]) != null && (node.interfaceID != low || node.addressHigh != high)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/** linear probing, returns index of the nodeID or of the free bucket it belongs into */
+	private static int _findID(IPFIXNode[] nodes, long nodeID) {
+		int mask = nodes.length - 1;
+		int i = Hashing.hash(nodeID) & mask;
+		while (nodes[i] != null && nodes[i].nodeID != nodeID) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/** adds a node to the tables, i is its bucket in nodes (the address table) */
+	private void _put(IPFIXNode[] nodes, int i, IPFIXNode node) {
+		nodes[i] = node;
+		IPFIXNode[] byID = _byID;
+		byID[_findID(byID, node.nodeID)] = node;
+		if (++_size > nodes.length / 2) {
+			_grow();
+		}
+	}
+
+	private void _grow() {
+		IPFIXNode[] byAddress = new IPFIXNode[_byAddress.length * 2];
+		IPFIXNode[] byID = new IPFIXNode[_byID.length * 2];
+		for (IPFIXNode node : _byAddress) {
+			if (node != null) {
+				byAddress[_findAddress(byAddress, node.addressHigh, node.interfaceID)] = node;
+				byID[_findID(byID, node.nodeID)] = node;
+			}
+		}
+		// readers of the old tables still find every node in them
+		_byAddress = byAddress;
+		_byID = byID;
+	}
+
+
+
+	/* private member */
+	/** nodes by address and by nodeID, at most half full */
+	private volatile IPFIXNode[] _byAddress = new IPFIXNode[64];
+	private volatile IPFIXNode[] _byID = new IPFIXNode[64];
+	private volatile int _size = 0;
+	private volatile int _collisions = 0;
+	private volatile long _expired = 0;
+	private volatile long _maxIdle = 0;
+	/** time of the last sweep of expire() */
+	private long _lastSweep = 0;
+	/** next ID tried for nodes whose other IDs are taken */
+	private long _nextID = 0x10000;
+	/** most recently used node, consecutive packets often come from the same node */
+	private IPFIXNode _last = null;
+}
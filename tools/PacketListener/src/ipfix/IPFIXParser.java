@@ -1,355 +1,621 @@
-package ipfix;
-
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-
-/**
- * IPFIX packet parser.
- * 
- * @see <a href="http://tools.ietf.org/html/rfc5101">IETF - RFC5101</a>
- * 
- * @author André Freitag, adapted by Michael Meister
- */
-public class IPFIXParser {
-
-	/** @var only keep the last MAX_LOG_SIZE characters of the log */
-	public static int MAX_LOG_SIZE=4096;
-
-	/**
-	 * parses packet.
-	 * stores parsed templates. returns parsed data fields.
-	 * 
-	 * @param packet
-	 * @return Map<nodeID, List<Fields>>
-	 */
-	public Map<String,List<IPFIXField>> parse(byte[] packet) throws ParseException {
-
-		try {
-
-			// reset log
-			_log = new StringBuffer();
-
-			// wrap DataInputStream around packet
-			DataInputStream stream = new DataInputStream(new ByteArrayInputStream(packet));
-
-
-			/* parse packet */
-			int version = stream.readUnsignedShort();
-			int length = stream.readUnsignedShort();
-			stream.skip(12);
-			int setID = stream.readUnsignedShort();
-
-
-			// check for matching version
-			if (version != getSupportedVersion()) {
-				throw new ParseException("IPFIXParser: packet has unsupported version, expected "+getSupportedVersion()+", got: "+version+".");
-			}
-
-			// check for right packet length
-			if (packet.length < length) {
-				throw new ParseException("IPFIXParser: packet too short.");
-			}
-
-			// extract real packet
-			byte[] buff = new byte[length];
-			System.arraycopy(packet, 0, buff, 0, length);
-
-			// parse template / data
-			if (setID == _getTemplateSetID()) {
-				_parseTemplate(buff);
-				return null;
-			} else {
-				return _parseData(buff);
-			}
-
-		} catch (Exception e) {
-			Writer stackTrace = new StringWriter();
-			e.printStackTrace(new PrintWriter(stackTrace));
-			_log("EXCEPTION: %s\n%s\n", e.getMessage(), stackTrace.toString());
-
-			throw new ParseException ("IPFIXParser: couldn't parse packet.", e);
-		}
-	}
-
-	/**
-	 * gets logged messages (for last parse() call)
-	 * 
-	 * @return log
-	 */
-	public String getLog() {
-		return _log.toString();
-	}
-
-	/* IPFIX constants */
-	/** get supported IPFIX version	 */
-	protected int getSupportedVersion() {
-		return 0xA;
-	}
-	/** get setID for templates  */
-	protected int _getTemplateSetID() {
-		return 2;
-	}
-
-	/* protected helper methods */
-	/**
-	 * parse template packet
-	 * 
-	 * @author Thomas Kothmayr, adapted by André Freitag
-	 * @param packet
-	 * @throws Exception
-	 */
-	protected void _parseTemplate(byte[] packet) throws ParseException {
-
-		// wrap UnsignedDataInputStream around packet
-		UnsignedDataInputStream stream = new UnsignedDataInputStream(new ByteArrayInputStream(packet));
-		try {
-
-			// abort if packet is too short
-			if ((stream.available() < 24)) {
-				throw new ParseException("IPFIXParser: template packet too short.");
-			}
-
-
-			// parse header
-			stream.readUnsignedShort(); // version
-			stream.readUnsignedShort(); // length
-			stream.readUnsignedInt(); // export time
-			long sequenceNumber = stream.readUnsignedInt(); // sequence number
-			long nodeID = stream.readUnsignedInt(); // observation domain ID => nodeID
-
-
-			// parse payload
-			while (stream.available() > 0) {
-
-				int setID = stream.readUnsignedShort(); // set ID
-				if (setID != 2) {
-					throw new ParseException(
-							"IPFIXParser: template has wrong setID, expected 2, got " + setID + ".");
-				}
-
-				int length = stream.readUnsignedShort();
-
-				int bytesread = 4;
-				while (bytesread < length) {
-					// parse template
-					int templateID = stream.readUnsignedShort();
-					bytesread += 2;
-					int fieldcount = stream.readUnsignedShort();
-					bytesread += 2;
-
-					IPFIXTemplate template = new IPFIXTemplate(nodeID, templateID, sequenceNumber);
-
-					_log("\n+--[%d] Template: %d, received %s \n|",
-							nodeID, templateID, Calendar.getInstance().getTime().toString());
-
-					// parse template fields
-					for (int i = 0; i < fieldcount; i++) {
-						int fieldID = stream.readUnsignedShort();
-						bytesread += 2;
-						int fieldLength = stream.readUnsignedShort();
-						bytesread += 2;
-						Long enterpriseNumber = null;
-						if (fieldID > 0x8000) { // enterpriseNumber is only available if enterprise bit is set
-							enterpriseNumber = stream.readUnsignedInt();
-							bytesread += 4;
-						}
-
-						_log("|----- Field " + fieldID + ", enterpriseNumber: " + enterpriseNumber + ", length: " + fieldLength);
-						template.addField(template, fieldID, fieldLength, enterpriseNumber);
-					}
-
-					_templateHeap.add(template);
-				}
-			}
-
-			stream.close();
-		} catch (Exception e) {
-			throw new ParseException("IPFIXParser: couldn't parse template.", e);
-		} finally {
-			try {
-				stream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-	/**
-	 * parse data packet
-	 * 
-	 * @author Thomas Kothmayr, adapted by André Freitag
-	 * @param packet
-	 * @return parsed fields, null if none could be parsed
-	 * @throws Exception
-	 */
-	protected Map<String,List<IPFIXField>> _parseData(byte[] packet) throws ParseException {
-
-		// wrap UnsignedDataInputStream around packet
-		UnsignedDataInputStream stream = new UnsignedDataInputStream(new ByteArrayInputStream(packet));
-
-		try {
-			Map<String,List<IPFIXField>> ret = new HashMap<String,List<IPFIXField>>();
-
-
-			// abort if packet is too short
-			if ((stream.available() < 17)) {
-				throw new ParseException("IPFIXParser: data packet too short.");
-			}
-
-
-			// parse header
-			stream.readUnsignedShort(); // version, already checked by parse()
-			stream.readUnsignedShort(); // length, already checked by parse()
-			stream.readUnsignedInt(); // export time
-			long sequenceNumber = stream.readUnsignedInt(); // sequence number
-			long nodeID = stream.readUnsignedInt(); // observation domain ID => nodeID
-
-			// parse payload
-			while (stream.available() > 0) {
-				int setID = stream.readUnsignedShort();
-				int setLength = stream.readUnsignedShort();
-				int fieldsLength = setLength - 4; // fieldsLength= setLength - number of bytes already read
-
-
-				// data sets must have setID>255 -> abort if not the case
-				if (setID < 256) {
-					throw new Exception("IPFIXParser: data packet from node#"+nodeID+" has wrong setID, expected setID > 255, got: " + setID + ".");
-				}
-
-				// get corresponding template
-				IPFIXTemplate template = _templateHeap.get(IPFIXTemplate.getQualifier(nodeID, setID));
-
-				// no template available for this packet -> abort
-				if (template == null) {
-					String rawData="";
-					stream.mark(stream.available());
-					while (stream.available() > 0) {
-						rawData += String.format("%02X ", stream.readUnsignedByte());
-					}
-					stream.reset();
-
-
-					_log("\n|+--[%d] No template, raw data:\n|---- %s", nodeID, rawData);
-					break;
-				}
-
-				// packet must have right size
-				if (fieldsLength != template.getDataPacketLength()) {
-					throw new Exception("IPFIXParser: data packet from node#"+nodeID+" does not fit its template, setLength doesn't match expected length.");
-				} else if (fieldsLength > stream.available()) {
-					throw new Exception("IPFIXParser: data packet from node#"+nodeID+" too short.");
-				}
-
-				// packet must have a sequence number greater than the one of the last processed packet
-				// ATTENTION: possible replay attack: if lastSequenceNumber==0xffffffff any packet regardless of its sequence number is accepted (and since template.lastSequenceNumber is being set the attacker could lock out the actual node and make the system only accept its packets)
-				if (sequenceNumber <= template.lastSequenceNumber && template.lastSequenceNumber<0xffffffff) {
-					throw new Exception("IPFIXParser: received obsolete packet from node#"+nodeID+" => discarded it ("+sequenceNumber+"<="+template.lastSequenceNumber+".");
-				}
-
-				_log("\n|+--[%d] Data received %s \n|", nodeID, Calendar.getInstance().getTime().toString());
-
-				// parse fields
-				for (IPFIXTemplate.Field currentTemplateField: template.fields) {
-
-					// read data
-					int fieldlen = currentTemplateField.length;
-					byte[] data = new byte[fieldlen];
-					stream.read(data, 0, fieldlen);
-
-					IPFIXField field = new IPFIXField(data, nodeID, currentTemplateField);
-
-					if (!ret.containsKey(Long.toString(field.nodeID))) {
-						ret.put(Long.toString(field.nodeID), new ArrayList<IPFIXField>());
-					}
-					ret.get(Long.toString(field.nodeID)).add(field);
-				}
-				//_log(System.getProperty("line.separator"));
-
-				// if everything went ok -> update lastSequenceNumber of the template
-				template.lastSequenceNumber = sequenceNumber;
-			}
-
-			return ret;
-		} catch (Exception e) {
-			throw new ParseException("IPFIXParser: couldn't parse template.", e);
-		} finally {
-			try {
-				stream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-	/**
-	 * logs sprintf style.
-	 * @param format
-	 * @param args
-	 * @return
-	 */
-	protected IPFIXParser _log(String format, Object... args) {
-		_log.append(String.format(format, args));
-		_log.append(System.getProperty( "line.separator" ));
-
-		if (_log.length() > MAX_LOG_SIZE) {
-			_log.delete(0, _log.length()-MAX_LOG_SIZE);
-		}
-
-		return this;
-	}
-
-
-	/* protected member */
-	protected IPFIXTemplateHeap _templateHeap=new IPFIXTemplateHeap();
-	protected static StringBuffer _log=new StringBuffer();
-
-
-	/* helper classes */
-	/**
-	 * Exception that gets thrown if parsing of a packet went wrong.
-	 * 
-	 * @author André Freitag
-	 */
-	public static class ParseException extends Exception {
-		/**
-		 * constructor
-		 * 
-		 * @see Exception#Exception(String)
-		 * @param msg
-		 */
-		public ParseException(String msg) {
-			super(msg);
-		}
-		/**
-		 * constructor
-		 * 
-		 * @see Exception#Exception(Throwable)
-		 * @param cause
-		 */
-		public ParseException(Throwable cause) {
-			super(cause);
-		}
-		/**
-		 * constructor
-		 * 
-		 * @see Exception#Exception(String, Throwable)
-		 * @param msg
-		 * @param cause
-		 */
-		public ParseException(String msg, Throwable cause) {
-			super(msg,cause);
-		}
-
-
-		/* private member */
-		private static final long serialVersionUID = 1L;
-	}
-}
+package ipfix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * IPFIX packet parser.
+ * 
+ * @see <a href="http://tools.ietf.org/html/rfc5101">IETF - RFC5101</a>
+ * 
+ * @author André Freitag, adapted by Michael Meister
+ */
+public class IPFIXParser {
+
+	/**
+	 * parses packet.
+	 * stores parsed templates. returns parsed data fields.
+	 * 
+	 * @param packet
+	 * @return Map<nodeID, List<Fields>>
+	 */
+	public Map<String,List<IPFIXField>> parse(byte[] packet) throws ParseException {
+		return parse(ByteBuffer.wrap(packet));
+	}
+
+	/**
+	 * parses the packet between the buffer's position and limit without copying it.
+	 * stores parsed templates. returns parsed data fields.
+	 * All reads are absolute and big-endian, heap as well as direct buffers are supported.
+	 * On success the buffer's position is advanced to the end of the message.
+	 * 
+	 * @param packet
+	 * @return Map<nodeID, List<Fields>>
+	 */
+	public Map<String,List<IPFIXField>> parse(ByteBuffer packet) throws ParseException {
+		FieldCollector collector = new FieldCollector();
+		boolean data = parse(packet, collector);
+		return data || !collector.fields.isEmpty() ? collector.fields : null; // templates may release parked data
+	}
+
+	/**
+	 * parses the packet between the buffer's position and limit without copying it or its fields.
+	 * stores parsed templates. hands every data record to `handler` as a flyweight view into the buffer.
+	 * Template messages hand the records of data parked for their templates to `handler` (see setPendingBuffer()).
+	 * On success the buffer's position is advanced to the end of the message.
+	 * 
+	 * @param packet
+	 * @param handler
+	 * @return true for data messages, false for template messages
+	 */
+	public boolean parse(ByteBuffer packet, IPFIXRecord.Handler handler) throws ParseException {
+
+		try {
+
+			ByteBuffer buffer = _bigEndian(packet);
+			int offset = buffer.position();
+
+			// abort if header is incomplete
+			if (buffer.remaining() < 18) {
+				throw new ParseException("IPFIXParser: packet too short.");
+			}
+
+			/* parse packet */
+			int version = _u16(buffer, offset);
+			int length = _u16(buffer, offset + 2);
+			int setID = _u16(buffer, offset + 16);
+
+
+			// check for matching version
+			if (version != getSupportedVersion()) {
+				throw new ParseException("IPFIXParser: packet has unsupported version, expected "+getSupportedVersion()+", got: "+version+".");
+			}
+
+			// check for right packet length
+			if (buffer.remaining() < length) {
+				throw new ParseException("IPFIXParser: packet too short.");
+			}
+
+			// parse template / data (message ends at offset+length)
+			boolean data = setID != _getTemplateSetID();
+			_sequenceNumberBits = 32;
+			if (data) {
+				_parseData(buffer, offset, length, handler);
+			} else {
+				_parseTemplate(buffer, offset, length, handler);
+			}
+
+			packet.position(offset + length);
+			return data;
+
+		} catch (Exception e) {
+			_log.error(e.getMessage(), e);
+
+			throw new ParseException ("IPFIXParser: couldn't parse packet.", e);
+		}
+	}
+
+	/**
+	 * gets the log parse events are logged to
+	 * 
+	 * @return log
+	 */
+	public IPFIXLog getLogger() {
+		return _log;
+	}
+
+	/**
+	 * sets the log parse events are logged to, e.g. to share it with an enricher
+	 * 
+	 * @param log
+	 */
+	public void setLogger(IPFIXLog log) {
+		_log = log;
+	}
+
+	/**
+	 * sets the metrics templates, template misses and lost, reordered and obsolete packets are counted in
+	 * 
+	 * @param metrics null to not count them
+	 */
+	public void setMetrics(IPFIXMetrics metrics) {
+		_metrics = metrics;
+	}
+
+	/**
+	 * sets the buffer data sets without template are parked in until their template is received
+	 * 
+	 * @param pending null to drop them (default)
+	 */
+	public void setPendingBuffer(IPFIXPendingBuffer pending) {
+		_pending = pending;
+	}
+
+	/**
+	 * gets the buffer data sets without template are parked in
+	 * 
+	 * @return pending buffer, null if there is none
+	 */
+	public IPFIXPendingBuffer getPendingBuffer() {
+		return _pending;
+	}
+
+	/**
+	 * gets the sequence windows of the nodes data was received from, except of those parsed with their IPFIXNode
+	 * 
+	 * @return sequence tracker
+	 */
+	public IPFIXSequenceTracker getSequenceTracker() {
+		return _sequences;
+	}
+
+	/**
+	 * gets the heap parsed templates are stored in
+	 * 
+	 * @return template heap
+	 */
+	public IPFIXTemplateHeap getTemplateHeap() {
+		return _templateHeap;
+	}
+
+	/* IPFIX constants */
+	/** get supported IPFIX version	 */
+	protected int getSupportedVersion() {
+		return 0xA;
+	}
+	/** get setID for templates  */
+	protected int _getTemplateSetID() {
+		return 2;
+	}
+
+	/* protected helper methods */
+	/**
+	 * parse template packet
+	 * 
+	 * @author Thomas Kothmayr, adapted by André Freitag
+	 * @param packet
+	 * @throws Exception
+	 */
+	protected void _parseTemplate(byte[] packet) throws ParseException {
+		_parseTemplate(ByteBuffer.wrap(packet), 0, packet.length, null);
+	}
+
+	/**
+	 * parse template message of `length` bytes starting at `offset`
+	 * 
+	 * @param buffer big-endian buffer holding the message
+	 * @param offset
+	 * @param length
+	 * @param handler receives the records of data parked for the templates, null to keep them parked
+	 * @throws ParseException
+	 */
+	protected void _parseTemplate(ByteBuffer buffer, int offset, int length, IPFIXRecord.Handler handler) throws ParseException {
+
+		try {
+
+			// abort if packet is too short
+			if (length < 24) {
+				throw new ParseException("IPFIXParser: template packet too short.");
+			}
+
+
+			// parse header (version, length, export time)
+			long sequenceNumber = _u32(buffer, offset + 8); // sequence number
+			long nodeID = _u32(buffer, offset + 12); // observation domain ID => nodeID
+
+			int pos = offset + 16;
+			int end = offset + length;
+
+			// parse payload
+			while (pos < end) {
+
+				int setID = _u16(buffer, pos); // set ID
+				if (setID != 2) {
+					throw new ParseException(
+							"IPFIXParser: template has wrong setID, expected 2, got " + setID + ".");
+				}
+
+				int setLength = _u16(buffer, pos + 2);
+				int setEnd = pos + setLength;
+				if (setLength < 4 || setEnd > end) {
+					throw new ParseException("IPFIXParser: template set has invalid length " + setLength + ".");
+				}
+				pos += 4;
+
+				_parseTemplateSet(buffer, pos, setEnd, nodeID, sequenceNumber, handler);
+				pos = setEnd;
+			}
+		} catch (Exception e) {
+			throw new ParseException("IPFIXParser: couldn't parse template.", e);
+		}
+	}
+	/**
+	 * parse data packet
+	 * 
+	 * @author Thomas Kothmayr, adapted by André Freitag
+	 * @param packet
+	 * @return parsed fields, null if none could be parsed
+	 * @throws Exception
+	 */
+	protected Map<String,List<IPFIXField>> _parseData(byte[] packet) throws ParseException {
+		return _parseData(ByteBuffer.wrap(packet), 0, packet.length);
+	}
+
+	/**
+	 * parse data message of `length` bytes starting at `offset`
+	 * 
+	 * @param buffer big-endian buffer holding the message
+	 * @param offset
+	 * @param length
+	 * @return parsed fields, null if none could be parsed
+	 * @throws ParseException
+	 */
+	protected Map<String,List<IPFIXField>> _parseData(ByteBuffer buffer, int offset, int length) throws ParseException {
+		FieldCollector collector = new FieldCollector();
+		_parseData(buffer, offset, length, collector);
+		return collector.fields;
+	}
+
+	/**
+	 * parse data message of `length` bytes starting at `offset`
+	 * 
+	 * @param buffer big-endian buffer holding the message
+	 * @param offset
+	 * @param length
+	 * @param handler receives the parsed records
+	 * @throws ParseException
+	 */
+	protected void _parseData(ByteBuffer buffer, int offset, int length, IPFIXRecord.Handler handler) throws ParseException {
+
+		try {
+			// abort if packet is too short
+			if (length < 17) {
+				throw new ParseException("IPFIXParser: data packet too short.");
+			}
+
+
+			// parse header (version and length already checked by parse(), export time)
+			long sequenceNumber = _u32(buffer, offset + 8); // sequence number
+			long nodeID = _u32(buffer, offset + 12); // observation domain ID => nodeID
+
+			int pos = offset + 16;
+			int end = offset + length;
+
+			// duplicate or stale message -> discard it
+			if (!_checkSequenceNumber(nodeID, sequenceNumber)) {
+				return;
+			}
+
+			// parse payload
+			while (pos < end) {
+				int setID = _u16(buffer, pos);
+				int setLength = _u16(buffer, pos + 2);
+				int fieldsLength = setLength - 4; // fieldsLength= setLength - number of bytes already read
+				pos += 4;
+
+				// parse set, stop at the first set without template unless it was parked
+				if (!_parseDataSet(buffer, pos, setID, fieldsLength, end, nodeID, sequenceNumber, handler)
+						&& (_pending == null || fieldsLength < 0 || fieldsLength > end - pos)) {
+					break;
+				}
+				pos += fieldsLength;
+			}
+
+			// a malformed message doesn't slide the window
+			_commitSequenceNumber(nodeID, sequenceNumber);
+		} catch (Exception e) {
+			throw new ParseException("IPFIXParser: couldn't parse template.", e);
+		}
+	}
+
+	/**
+	 * parse the template records of one template set
+	 * 
+	 * @param buffer big-endian buffer holding the message
+	 * @param pos offset of the first template record
+	 * @param setEnd offset behind the last template record
+	 * @param nodeID
+	 * @param sequenceNumber of the message
+	 * @param handler receives the records of data parked for the templates, null to keep them parked
+	 * @throws Exception
+	 */
+	protected void _parseTemplateSet(ByteBuffer buffer, int pos, int setEnd, long nodeID, long sequenceNumber,
+			IPFIXRecord.Handler handler) throws Exception {
+		while (pos < setEnd) {
+			// parse template
+			if (pos + 4 > setEnd) {
+				throw new Exception("IPFIXParser: template record of node#"+nodeID+" exceeds its set.");
+			}
+			int templateID = _u16(buffer, pos);
+			int fieldcount = _u16(buffer, pos + 2);
+			pos += 4;
+
+			// withdrawal: a template without fields, the template set's ID withdraws all of the node's templates
+			if (fieldcount == 0) {
+				if (templateID == _getTemplateSetID()) {
+					_templateHeap.removeNode(nodeID);
+				} else {
+					_templateHeap.remove(nodeID, templateID);
+				}
+				continue;
+			}
+
+			IPFIXTemplate template = new IPFIXTemplate(nodeID, templateID, sequenceNumber);
+
+			// parse template fields
+			for (int i = 0; i < fieldcount; i++) {
+				if (pos + 4 > setEnd) {
+					throw new Exception("IPFIXParser: field specifier of template "+templateID+" of node#"+nodeID+" exceeds its set.");
+				}
+				int fieldID = _u16(buffer, pos);
+				int fieldLength = _u16(buffer, pos + 2);
+				pos += 4;
+				Long enterpriseNumber = null;
+				if ((fieldID & 0x8000) != 0) { // enterpriseNumber is only available if enterprise bit is set
+					if (pos + 4 > setEnd) {
+						throw new Exception("IPFIXParser: enterprise number of template "+templateID+" of node#"+nodeID+" exceeds its set.");
+					}
+					enterpriseNumber = _u32(buffer, pos);
+					pos += 4;
+				}
+
+				template.addField(template, fieldID, fieldLength, enterpriseNumber);
+			}
+
+			_log.template(template);
+
+			// generate record decoder before the template is used
+			template.getDecoder();
+			_templateHeap.add(template);
+			if (_metrics != null) {
+				_metrics.templateReceived();
+			}
+
+			// decode data that arrived before the template
+			if (handler != null) {
+				_releasePending(template, handler);
+			}
+		}
+	}
+
+	/**
+	 * decodes the data sets parked for a template in sequence order, once per template. Sets
+	 * that can't be decoded (e.g. not fitting the template) are logged and dropped.
+	 * 
+	 * @param template
+	 * @param handler receives the records
+	 */
+	protected void _releasePending(IPFIXTemplate template, IPFIXRecord.Handler handler) {
+		template.pendingReleased = true;
+		if (_pending == null || _pending.isEmpty()) {
+			return;
+		}
+		for (IPFIXPendingBuffer.ParkedSet set : _pending.release(template.nodeID, template.templateID)) {
+			try {
+				_parseDataSet(ByteBuffer.wrap(set.data), 0, set.setID, set.data.length, set.data.length, set.nodeID,
+						set.sequenceNumber, handler);
+			} catch (Exception e) {
+				_log.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * checks the sequence number of a data message against the node's window
+	 * (the message's sequence number is only checked once, not per data set).
+	 * Rejected messages are recorded, accepted ones only by _commitSequenceNumber()
+	 * once they have been parsed.
+	 * 
+	 * @param nodeID
+	 * @param sequenceNumber of the message
+	 * @return whether the message should be parsed, false for duplicates and stale messages (counted and logged)
+	 */
+	protected boolean _checkSequenceNumber(long nodeID, long sequenceNumber) {
+		IPFIXSequenceWindow window = _sequenceWindow(nodeID);
+		if (window.test(sequenceNumber, _sequenceNumberBits).accepted) {
+			return true;
+		}
+		IPFIXSequenceWindow.Result result = window.check(sequenceNumber, _sequenceNumberBits);
+
+		IPFIXMetrics metrics = _metrics;
+		if (metrics != null) {
+			if (result == IPFIXSequenceWindow.Result.DUPLICATE) {
+				metrics.sequenceDuplicate();
+			}
+			metrics.obsoleteDiscard();
+		}
+		_log.discarded(nodeID, sequenceNumber, result);
+		return false;
+	}
+
+	/**
+	 * records the sequence number of a data message accepted by _checkSequenceNumber()
+	 * in the node's window, after the message has been parsed
+	 * 
+	 * @param nodeID
+	 * @param sequenceNumber of the message
+	 */
+	protected void _commitSequenceNumber(long nodeID, long sequenceNumber) {
+		IPFIXSequenceWindow window = _sequenceWindow(nodeID);
+		long lost = window.getLost();
+		IPFIXSequenceWindow.Result result = window.check(sequenceNumber, _sequenceNumberBits);
+
+		IPFIXMetrics metrics = _metrics;
+		if (metrics != null) {
+			if (window.getLost() != lost) {
+				metrics.sequenceLost(window.getLost() - lost);
+			}
+			if (result == IPFIXSequenceWindow.Result.REORDERED) {
+				metrics.sequenceReordered();
+			}
+		}
+	}
+
+	/** window of the node being parsed, or of the tracker for other nodeIDs */
+	protected IPFIXSequenceWindow _sequenceWindow(long nodeID) {
+		IPFIXNode node = _node;
+		return node != null && node.nodeID == nodeID ? node.sequenceWindow : _sequences.window(nodeID);
+	}
+
+	/**
+	 * parse the records of one data set
+	 * 
+	 * @param buffer big-endian buffer holding the message
+	 * @param pos offset of the first record
+	 * @param setID
+	 * @param fieldsLength length of the set without set header
+	 * @param end offset behind the message
+	 * @param nodeID
+	 * @param sequenceNumber of the message
+	 * @param handler receives the parsed records
+	 * @return false if no template is known for the set (remaining data is logged, the set is parked if there is a pending buffer)
+	 * @throws Exception
+	 */
+	protected boolean _parseDataSet(ByteBuffer buffer, int pos, int setID, int fieldsLength, int end, long nodeID, long sequenceNumber,
+			IPFIXRecord.Handler handler) throws Exception {
+
+		// data sets must have setID>255 -> abort if not the case
+		if (setID < 256) {
+			throw new Exception("IPFIXParser: data packet from node#"+nodeID+" has wrong setID, expected setID > 255, got: " + setID + ".");
+		}
+
+		// get corresponding template
+		IPFIXTemplate template = _templateHeap.get(nodeID, setID);
+
+		// no template available for this packet -> park it until the template is received, abort
+		if (template == null) {
+			_log.noTemplate(nodeID, setID, sequenceNumber, buffer, pos, end);
+			if (_metrics != null) {
+				_metrics.templateMiss();
+			}
+			if (_pending != null && fieldsLength >= 0 && fieldsLength <= end - pos) {
+				_pending.park(nodeID, setID, sequenceNumber, _sequenceNumberBits, buffer, pos, fieldsLength);
+			}
+			return false;
+		}
+
+		// data parked before the template was added by another thread (restored from a snapshot) comes first
+		if (!template.pendingReleased) {
+			_releasePending(template, handler);
+		}
+
+		// packet must have right size
+		IPFIXRecordDecoder decoder = template.getDecoder();
+		if (fieldsLength != decoder.recordLength) {
+			throw new Exception("IPFIXParser: data packet from node#"+nodeID+" does not fit its template, setLength doesn't match expected length.");
+		} else if (fieldsLength > end - pos) {
+			throw new Exception("IPFIXParser: data packet from node#"+nodeID+" too short.");
+		}
+
+		_log.data(nodeID, setID, sequenceNumber);
+
+		// hand record to handler
+		handler.record(_record._moveTo(buffer, pos, decoder, nodeID, sequenceNumber));
+
+		// if everything went ok -> the template is in use (see IPFIXTemplateHeap.evict())
+		template.lastUsed = System.currentTimeMillis();
+
+		return true;
+	}
+
+	/* absolute big-endian reads */
+	/** buffer in network byte order, the buffer itself unless the caller changed its order */
+	protected static ByteBuffer _bigEndian(ByteBuffer buffer) {
+		if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+			return buffer;
+		}
+		return buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+	}
+	protected static int _u8(ByteBuffer buffer, int index) {
+		return buffer.get(index) & 0xFF;
+	}
+	protected static int _u16(ByteBuffer buffer, int index) {
+		return buffer.getShort(index) & 0xFFFF;
+	}
+	protected static long _u32(ByteBuffer buffer, int index) {
+		return buffer.getInt(index) & 0xFFFFFFFFL;
+	}
+
+
+	/* protected member */
+	protected IPFIXTemplateHeap _templateHeap=new IPFIXTemplateHeap();
+	/** flyweight moved over the records of the packet being parsed */
+	protected IPFIXRecord _record=new IPFIXRecord();
+	protected volatile IPFIXLog _log=new IPFIXLog();
+	protected volatile IPFIXMetrics _metrics=null;
+	protected volatile IPFIXPendingBuffer _pending=null;
+	/** node the packet being parsed was received from, its window is used for its messages, null if unknown */
+	protected IPFIXNode _node=null;
+	/** sequence windows of the nodes without IPFIXNode (e.g. IPFIX observation domains), duplicate and stale data messages are discarded */
+	protected final IPFIXSequenceTracker _sequences=new IPFIXSequenceTracker();
+	/** width of the sequence number of the message being parsed, TinyIPFIX uses 8 or 16 bits */
+	protected int _sequenceNumberBits=32;
+
+
+	/* helper classes */
+	/**
+	 * Materialises the fields of all records, grouped by nodeID. Backs the Map returning parse methods.
+	 */
+	protected static class FieldCollector implements IPFIXRecord.Handler {
+		/** Map<nodeID, List<Fields>> */
+		public final Map<String,List<IPFIXField>> fields = new HashMap<String,List<IPFIXField>>();
+
+		@Override
+		public void record(IPFIXRecord record) {
+			String key = Long.toString(record.getNodeID());
+			List<IPFIXField> list = fields.get(key);
+			if (list == null) {
+				list = new ArrayList<IPFIXField>(record.getFieldCount());
+				fields.put(key, list);
+			}
+			for (int i = 0; i < record.getFieldCount(); i++) {
+				list.add(record.getField(i));
+			}
+		}
+	}
+
+	/**
+	 * Exception that gets thrown if parsing of a packet went wrong.
+	 * 
+	 * @author André Freitag
+	 */
+	public static class ParseException extends Exception {
+		/**
+		 * constructor
+		 * 
+		 * @see Exception#Exception(String)
+		 * @param msg
+		 */
+		public ParseException(String msg) {
+			super(msg);
+		}
+		/**
+		 * constructor
+		 * 
+		 * @see Exception#Exception(Throwable)
+		 * @param cause
+		 */
+		public ParseException(Throwable cause) {
+			super(cause);
+		}
+		/**
+		 * constructor
+		 * 
+		 * @see Exception#Exception(String, Throwable)
+		 * @param msg
+		 * @param cause
+		 */
+		public ParseException(String msg, Throwable cause) {
+			super(msg,cause);
+		}
+
+
+		/* private member */
+		private static final long serialVersionUID = 1L;
+	}
+}
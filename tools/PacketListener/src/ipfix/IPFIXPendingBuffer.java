@@ -0,0 +1,335 @@
+package ipfix;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parks data sets that arrived before their template, so they are decoded
+ * late instead of being lost (e.g. after a restart or a lost template message).
+ *
+ * Sets are kept per node in sequence number order (serial number arithmetic,
+ * so wrapped 8/16/32 bit sequence numbers are ordered correctly). The buffer
+ * is bounded: a node may park up to maxNodeBytes, all nodes together up to
+ * maxBytes (the oldest sets are dropped first) and sets are dropped after ttl
+ * milliseconds. Not thread-safe, every parser owns its buffer.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXPendingBuffer {
+
+	/** default limit of all parked sets in bytes */
+	public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	/** default limit of the parked sets of a node in bytes */
+	public static final int DEFAULT_MAX_NODE_BYTES = 16 * 1024;
+	/** default time sets are parked for in milliseconds */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param maxBytes limit of all parked sets in bytes
+	 * @param maxNodeBytes limit of the parked sets of a node in bytes
+	 * @param ttl time sets are parked for in milliseconds
+	 */
+	public IPFIXPendingBuffer(long maxBytes, int maxNodeBytes, long ttl) {
+		this.maxBytes = maxBytes;
+		this.maxNodeBytes = maxNodeBytes;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * constructor, default limits
+	 */
+	public IPFIXPendingBuffer() {
+		this(DEFAULT_MAX_BYTES, DEFAULT_MAX_NODE_BYTES, DEFAULT_TTL);
+	}
+
+	/**
+	 * sets the metrics parked, released and dropped sets are counted in
+	 *
+	 * @param metrics null to not count them
+	 */
+	public void setMetrics(IPFIXMetrics metrics) {
+		_metrics = metrics;
+	}
+
+	/**
+	 * parks a copy of a data set
+	 *
+	 * @param nodeID
+	 * @param setID template the set belongs to
+	 * @param sequenceNumber of the message
+	 * @param sequenceBits width of the sequence number (8, 16 or 32)
+	 * @param buffer
+	 * @param pos offset of the set's records
+	 * @param length length of the set's records
+	 * @return whether the set was parked, false if it is larger than a node may park
+	 */
+	public boolean park(long nodeID, int setID, long sequenceNumber, int sequenceBits, ByteBuffer buffer, int pos, int length) {
+		long now = System.currentTimeMillis();
+		expire(now);
+		if (length > maxNodeBytes || length > maxBytes) {
+			_dropped(1);
+			return false;
+		}
+
+		// make room, the node's own oldest sets first
+		Node node = _nodes.get(nodeID);
+		while (node != null && node.bytes + length > maxNodeBytes) {
+			_drop(node.oldest());
+			node = _nodes.get(nodeID);
+		}
+		while (_bytes + length > maxBytes) {
+			_drop(_oldest);
+		}
+		node = _nodes.get(nodeID);
+		if (node == null) {
+			node = new Node();
+			_nodes.put(nodeID, node);
+		}
+
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = buffer.get(pos + i);
+		}
+		ParkedSet set = new ParkedSet(nodeID, setID, sequenceNumber, sequenceBits, data, now, _parked++);
+
+		// insert in sequence order, usually at the end
+		int i = node.sets.size();
+		while (i > 0 && _serialCompare(node.sets.get(i - 1), set) > 0) {
+			i--;
+		}
+		node.sets.add(i, set);
+		node.bytes += length;
+		_bytes += length;
+		_count++;
+		// append to arrival order
+		set.older = _newest;
+		if (_newest != null) {
+			_newest.newer = set;
+		} else {
+			_oldest = set;
+		}
+		_newest = set;
+		if (_metrics != null) {
+			_metrics.pendingParked();
+		}
+		return true;
+	}
+
+	/**
+	 * removes the parked sets of a template
+	 *
+	 * @param nodeID
+	 * @param setID
+	 * @return sets in sequence order, empty if none are parked
+	 */
+	public List<ParkedSet> release(long nodeID, int setID) {
+		expire(System.currentTimeMillis());
+		Node node = _nodes.get(nodeID);
+		if (node == null) {
+			return NONE;
+		}
+
+		List<ParkedSet> released = NONE;
+		for (int i = 0; i < node.sets.size(); i++) {
+			ParkedSet set = node.sets.get(i);
+			if (set.setID == setID) {
+				if (released == NONE) {
+					released = new ArrayList<ParkedSet>();
+				}
+				released.add(set);
+				_remove(node, set);
+				i--;
+			}
+		}
+		if (_metrics != null && !released.isEmpty()) {
+			_metrics.pendingReleased(released.size());
+		}
+		return released;
+	}
+
+	/**
+	 * drops the parked sets of a node, e.g. when it has been forgotten (counted as dropped)
+	 *
+	 * @param nodeID
+	 * @return number of dropped sets
+	 */
+	public int removeNode(long nodeID) {
+		Node node = _nodes.get(nodeID);
+		if (node == null) {
+			return 0;
+		}
+		int dropped = node.sets.size();
+		while (!node.sets.isEmpty()) {
+			_remove(node, node.sets.get(node.sets.size() - 1));
+		}
+		_dropped(dropped);
+		return dropped;
+	}
+
+	/**
+	 * drops sets parked for longer than ttl
+	 *
+	 * @param now current time in milliseconds
+	 */
+	public void expire(long now) {
+		while (_oldest != null && now - _oldest.time > ttl) {
+			_drop(_oldest);
+		}
+	}
+
+	/**
+	 * whether no sets are parked
+	 */
+	public boolean isEmpty() {
+		return _count == 0;
+	}
+
+	/**
+	 * gets number of parked sets
+	 */
+	public int size() {
+		return _count;
+	}
+
+	/**
+	 * gets number of bytes of the parked sets
+	 */
+	public long getBytes() {
+		return _bytes;
+	}
+
+	/**
+	 * compares sequence numbers using serial number arithmetic (RFC 1982)
+	 *
+	 * @param a
+	 * @param b
+	 * @param bits width of the sequence numbers
+	 * @return < 0 if a is before b, 0 if they are equal, > 0 if a is after b
+	 */
+	public static int compareSequenceNumbers(long a, long b, int bits) {
+		long mask = bits >= 64 ? -1L : (1L << bits) - 1;
+		long difference = (a - b) & mask;
+		if (difference == 0) {
+			return 0;
+		}
+		return difference < (1L << (bits - 1)) ? 1 : -1;
+	}
+
+
+
+	/* private helper methods */
+	private static int _serialCompare(ParkedSet a, ParkedSet b) {
+		return compareSequenceNumbers(a.sequenceNumber, b.sequenceNumber, Math.min(a.sequenceBits, b.sequenceBits));
+	}
+
+	private void _drop(ParkedSet set) {
+		_remove(_nodes.get(set.nodeID), set);
+		_dropped(1);
+	}
+
+	private void _remove(Node node, ParkedSet set) {
+		node.sets.remove(set);
+		node.bytes -= set.data.length;
+		_bytes -= set.data.length;
+		_count--;
+		if (node.sets.isEmpty()) {
+			_nodes.remove(set.nodeID);
+		}
+
+		// unlink from arrival order
+		if (set.older != null) {
+			set.older.newer = set.newer;
+		} else {
+			_oldest = set.newer;
+		}
+		if (set.newer != null) {
+			set.newer.older = set.older;
+		} else {
+			_newest = set.older;
+		}
+		set.older = set.newer = null;
+	}
+
+	private void _dropped(long count) {
+		if (_metrics != null) {
+			_metrics.pendingDropped(count);
+		}
+	}
+
+
+
+	/* private member */
+	private final long maxBytes;
+	private final int maxNodeBytes;
+	private final long ttl;
+	private IPFIXMetrics _metrics = null;
+	private final Map<Long, Node> _nodes = new HashMap<Long, Node>();
+	/** ends of the list of all parked sets in arrival order */
+	private ParkedSet _oldest = null;
+	private ParkedSet _newest = null;
+	private long _bytes = 0;
+	/** number of parked sets, sets may be empty */
+	private int _count = 0;
+	private long _parked = 0;
+
+	private static final List<ParkedSet> NONE = Collections.emptyList();
+
+
+
+	/* helper classes */
+	/**
+	 * A parked data set.
+	 */
+	public static final class ParkedSet {
+		public final long nodeID;
+		public final int setID;
+		public final long sequenceNumber;
+		public final int sequenceBits;
+		/** records of the set */
+		public final byte[] data;
+		/** time the set was parked */
+		public final long time;
+		/** number of sets parked before */
+		final long arrival;
+		/** neighbours in arrival order */
+		ParkedSet older = null;
+		ParkedSet newer = null;
+
+		ParkedSet(long nodeID, int setID, long sequenceNumber, int sequenceBits, byte[] data, long time, long arrival) {
+			this.nodeID = nodeID;
+			this.setID = setID;
+			this.sequenceNumber = sequenceNumber;
+			this.sequenceBits = sequenceBits;
+			this.data = data;
+			this.time = time;
+			this.arrival = arrival;
+		}
+	}
+
+	/**
+	 * Parked sets of a node.
+	 */
+	private static final class Node {
+		/** in sequence order */
+		final List<ParkedSet> sets = new ArrayList<ParkedSet>();
+		int bytes = 0;
+
+		/** set parked first */
+		ParkedSet oldest() {
+			ParkedSet oldest = sets.get(0);
+			for (ParkedSet set : sets) {
+				if (set.arrival < oldest.arrival) {
+					oldest = set;
+				}
+			}
+			return oldest;
+		}
+	}
+}
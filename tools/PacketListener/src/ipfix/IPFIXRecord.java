@@ -0,0 +1,209 @@
+package ipfix;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IPFIXRecord. Flyweight view of one data record in the received buffer.
+ *
+ * The parser reuses a single instance and moves it from record to record,
+ * handing it to an IPFIXRecord.Handler. Field values are read on demand from
+ * the buffer, nothing is copied. The view is only valid during the handler
+ * call, use getField()/getFields() to keep fields beyond that.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXRecord {
+
+	/**
+	 * gets nodeID of the origin of this record
+	 */
+	public long getNodeID() {
+		return _nodeID;
+	}
+
+	/**
+	 * gets sequence number of the message this record was received in
+	 */
+	public long getSequenceNumber() {
+		return _sequenceNumber;
+	}
+
+	/**
+	 * gets template of this record
+	 */
+	public IPFIXTemplate getTemplate() {
+		return _decoder.template;
+	}
+
+	/**
+	 * gets the decoder of the record's template
+	 */
+	public IPFIXRecordDecoder getDecoder() {
+		return _decoder;
+	}
+
+	/**
+	 * gets number of fields
+	 */
+	public int getFieldCount() {
+		return _decoder.fields.length;
+	}
+
+	/**
+	 * gets template field of a field
+	 *
+	 * @param field index of the field
+	 */
+	public IPFIXTemplate.Field getTemplateField(int field) {
+		return _decoder.fields[field];
+	}
+
+	/**
+	 * gets buffer the record is read from
+	 */
+	public ByteBuffer getBuffer() {
+		return _buffer;
+	}
+
+	/**
+	 * gets absolute offset of a field's value in the buffer
+	 *
+	 * @param field index of the field
+	 */
+	public int getOffset(int field) {
+		return _pos + _decoder.offsets[field];
+	}
+
+	/**
+	 * gets length of a field's value
+	 *
+	 * @param field index of the field
+	 */
+	public int getLength(int field) {
+		return _decoder.widths[field];
+	}
+
+	/**
+	 * gets unsigned value of a field of up to 8 bytes
+	 *
+	 * @param field index of the field
+	 * @return value
+	 * @throws IllegalStateException if the field is longer than 8 bytes
+	 */
+	public long getUnsigned(int field) {
+		if (_decoder.types[field] == IPFIXRecordDecoder.TYPE_OCTETS) {
+			throw new IllegalStateException("IPFIXRecord: field " + field + " is longer than 8 bytes.");
+		}
+		return _decoder.decodeField(_buffer, _pos, field);
+	}
+
+	/**
+	 * gets unsigned value of a field as double
+	 *
+	 * @param field index of the field
+	 * @return value, NaN if the field is longer than 8 bytes
+	 */
+	public double getDouble(int field) {
+		if (_decoder.types[field] == IPFIXRecordDecoder.TYPE_OCTETS) {
+			return Double.NaN;
+		}
+		return _decoder.decodeField(_buffer, _pos, field);
+	}
+
+	/**
+	 * decodes all fields into a row
+	 *
+	 * @see IPFIXRecordDecoder#decode(ByteBuffer, int, long[])
+	 * @param row
+	 */
+	public void decode(long[] row) {
+		_decoder.decode(_buffer, _pos, row);
+	}
+
+	/**
+	 * copies a field's value
+	 *
+	 * @param field index of the field
+	 * @return value
+	 */
+	public byte[] getBytes(int field) {
+		byte[] value = new byte[_decoder.widths[field]];
+		int offset = getOffset(field);
+		for (int i = 0; i < value.length; i++) {
+			value[i] = _buffer.get(offset + i);
+		}
+		return value;
+	}
+
+	/**
+	 * materialises a field, the result stays valid after the handler call
+	 *
+	 * @param field index of the field
+	 * @return field
+	 */
+	public IPFIXField getField(int field) {
+		return new IPFIXField(getBytes(field), _nodeID, _decoder.fields[field]);
+	}
+
+	/**
+	 * materialises all fields
+	 *
+	 * @return fields in record order
+	 */
+	public List<IPFIXField> getFields() {
+		List<IPFIXField> fields = new ArrayList<IPFIXField>(getFieldCount());
+		for (int i = 0; i < getFieldCount(); i++) {
+			fields.add(getField(i));
+		}
+		return fields;
+	}
+
+
+
+	/* protected methods */
+	/**
+	 * moves the view to a record
+	 *
+	 * @param buffer big-endian buffer
+	 * @param pos absolute offset of the record
+	 * @param decoder decoder of the record's template
+	 * @param nodeID
+	 * @param sequenceNumber
+	 * @return this
+	 */
+	protected IPFIXRecord _moveTo(ByteBuffer buffer, int pos, IPFIXRecordDecoder decoder, long nodeID, long sequenceNumber) {
+		_buffer = buffer;
+		_pos = pos;
+		_decoder = decoder;
+		_nodeID = nodeID;
+		_sequenceNumber = sequenceNumber;
+		return this;
+	}
+
+
+
+	/* private member */
+	private ByteBuffer _buffer;
+	private int _pos;
+	private IPFIXRecordDecoder _decoder;
+	private long _nodeID;
+	private long _sequenceNumber;
+
+
+
+	/* helper classes */
+	/**
+	 * Receives the records of parsed data sets.
+	 */
+	public interface Handler {
+		/**
+		 * called for every decoded record
+		 *
+		 * @param record view of the record, only valid during this call
+		 * @throws Exception
+		 */
+		void record(IPFIXRecord record) throws Exception;
+	}
+}
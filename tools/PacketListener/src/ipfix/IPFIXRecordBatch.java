@@ -0,0 +1,353 @@
+package ipfix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import utils.Hashing;
+
+/**
+ * Decoded records of any number of nodes and templates, e.g. of a packet.
+ * Receives the records from the parser (IPFIXRecord.Handler) and holds their
+ * raw values in one primitive array, IPFIXEnricher.enrichAll() replaces them
+ * with the enriched values.
+ *
+ * A batch is reused: clear() keeps its arrays.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXRecordBatch implements IPFIXRecord.Handler {
+
+	/**
+	 * sets whether the records' IPFIXFields are kept (needed to log the enriched fields).
+	 * Off by default, records are then only decoded into primitive values.
+	 *
+	 * @param keepFields
+	 */
+	public void setKeepFields(boolean keepFields) {
+		_keepFields = keepFields;
+	}
+
+	/**
+	 * adds a record
+	 *
+	 * @param record
+	 */
+	@Override
+	public void record(IPFIXRecord record) {
+		int fieldCount = record.getFieldCount();
+		if (_size == _nodeIDs.length) {
+			_growRows();
+		}
+		if (_valueCount + fieldCount > _values.length) {
+			_values = Arrays.copyOf(_values, Math.max(_values.length * 2, _valueCount + fieldCount));
+		}
+
+		int row = _size++;
+		long nodeID = record.getNodeID();
+		_decoders[row] = record.getDecoder();
+		_nodeIDs[row] = nodeID;
+		_sequenceNumbers[row] = record.getSequenceNumber();
+		_offsets[row] = _valueCount;
+		for (int i = 0; i < fieldCount; i++) {
+			_values[_valueCount + i] = record.getDouble(i);
+			if (_keepFields) {
+				_fields.add(record.getField(i));
+			}
+		}
+		_valueCount += fieldCount;
+
+		// round: number of earlier records of the same node
+		int previous = _putLastRow(nodeID, row);
+		int round = previous >= 0 ? _rounds[previous] + 1 : 0;
+		_rounds[row] = round;
+		_roundCount = Math.max(_roundCount, round + 1);
+		_enriched = false;
+	}
+
+	/**
+	 * removes all records
+	 */
+	public void clear() {
+		Arrays.fill(_decoders, 0, _size, null);
+		Arrays.fill(_slots, 0, _size, null);
+		_slotStore = null;
+		if (_size > 0) {
+			Arrays.fill(_lastRows, 0);
+		}
+		_size = 0;
+		_valueCount = 0;
+		_roundCount = 0;
+		_fields.clear();
+		_enriched = false;
+	}
+
+	/**
+	 * gets the number of records
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * gets the node of a record
+	 */
+	public long getNodeID(int row) {
+		return _nodeIDs[row];
+	}
+
+	/**
+	 * gets the sequence number of the message of a record
+	 */
+	public long getSequenceNumber(int row) {
+		return _sequenceNumbers[row];
+	}
+
+	/**
+	 * gets the template of a record
+	 */
+	public IPFIXTemplate getTemplate(int row) {
+		return _decoders[row].template;
+	}
+
+	/**
+	 * gets the number of fields of a record
+	 */
+	public int getFieldCount(int row) {
+		return _decoders[row].fields.length;
+	}
+
+	/**
+	 * gets the template field of a field of a record
+	 */
+	public IPFIXTemplate.Field getTemplateField(int row, int field) {
+		return _decoders[row].fields[field];
+	}
+
+	/**
+	 * gets the value of a field of a record
+	 *
+	 * @param row
+	 * @param field
+	 * @return enriched value once the batch has been enriched, the raw unsigned value before
+	 */
+	public double getValue(int row, int field) {
+		return _values[_offsets[row] + field];
+	}
+
+	/**
+	 * gets the parsed field of a record
+	 *
+	 * @param row
+	 * @param field
+	 * @return field, null if fields aren't kept
+	 */
+	public IPFIXField getField(int row, int field) {
+		return _keepFields ? _fields.get(_offsets[row] + field) : null;
+	}
+
+	/**
+	 * whether the values have been enriched
+	 */
+	public boolean isEnriched() {
+		return _enriched;
+	}
+
+
+
+	/* package methods used by IPFIXEnricher */
+	/** number of rounds: records of a round belong to distinct nodes, round n holds every node's n-th record */
+	int _getRoundCount() {
+		return _roundCount;
+	}
+
+	int _getRound(int row) {
+		return _rounds[row];
+	}
+
+	/** index of a value in the value array */
+	int _getIndex(int row, int field) {
+		return _offsets[row] + field;
+	}
+
+	double[] _getValues() {
+		return _values;
+	}
+
+	void _setEnriched() {
+		_enriched = true;
+	}
+
+	/**
+	 * sorts the rows by round, keeping their order within a round
+	 *
+	 * @return rows, those of round r from _getRoundStart(r) to _getRoundStart(r + 1)
+	 */
+	int[] _getRowsByRound() {
+		if (_roundStarts.length < _roundCount + 1) {
+			_roundStarts = new int[Math.max(_roundStarts.length * 2, _roundCount + 1)];
+		}
+		if (_rowsByRound.length < _size) {
+			_rowsByRound = new int[_nodeIDs.length];
+		}
+		Arrays.fill(_roundStarts, 0, _roundCount + 1, 0);
+		for (int row = 0; row < _size; row++) {
+			_roundStarts[_rounds[row] + 1]++;
+		}
+		for (int r = 0; r < _roundCount; r++) {
+			_roundStarts[r + 1] += _roundStarts[r];
+		}
+		for (int row = 0; row < _size; row++) {
+			_rowsByRound[_roundStarts[_rounds[row]]++] = row;
+		}
+		// the starts have been moved to the ends, shift them back
+		System.arraycopy(_roundStarts, 0, _roundStarts, 1, _roundCount);
+		_roundStarts[0] = 0;
+		return _rowsByRound;
+	}
+
+	int _getRoundStart(int round) {
+		return _roundStarts[round];
+	}
+
+	/**
+	 * gets the slot array of a row's node, looked up once per row
+	 *
+	 * @param row
+	 * @param store value store of the enricher, the arrays of another store are looked up again
+	 * @return slot array
+	 */
+	double[] _getSlots(int row, IPFIXValueStore store) {
+		if (store != _slotStore) {
+			Arrays.fill(_slots, 0, _size, null);
+			_slotStore = store;
+		}
+		double[] slots = _slots[row];
+		if (slots == null) {
+			slots = store.values(_nodeIDs[row]);
+			_slots[row] = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * starts a column, columns are reused with their arrays
+	 *
+	 * @param i index of the column
+	 * @param enricher enricher the column is gathered for
+	 * @return empty column
+	 */
+	Column _newColumn(int i, IPFIXFieldEnricher enricher) {
+		if (i == _columns.size()) {
+			_columns.add(new Column());
+		}
+		Column column = _columns.get(i);
+		column.enricher = enricher;
+		column.count = 0;
+		return column;
+	}
+
+	Column _getColumn(int i) {
+		return _columns.get(i);
+	}
+
+
+
+	/* private helper methods */
+	private void _growRows() {
+		int capacity = _nodeIDs.length * 2;
+		_decoders = Arrays.copyOf(_decoders, capacity);
+		_nodeIDs = Arrays.copyOf(_nodeIDs, capacity);
+		_sequenceNumbers = Arrays.copyOf(_sequenceNumbers, capacity);
+		_offsets = Arrays.copyOf(_offsets, capacity);
+		_rounds = Arrays.copyOf(_rounds, capacity);
+		_slots = Arrays.copyOf(_slots, capacity);
+
+		// rehash, later rows replace earlier ones of the same node
+		_nodeKeys = new long[capacity * 2];
+		_lastRows = new int[capacity * 2];
+		for (int row = 0; row < _size; row++) {
+			_putLastRow(_nodeIDs[row], row);
+		}
+	}
+
+	/**
+	 * stores the last row of a node
+	 *
+	 * @return the node's previous last row, -1 if it has none
+	 */
+	private int _putLastRow(long nodeID, int row) {
+		int mask = _nodeKeys.length - 1;
+		int i = Hashing.hash(nodeID) & mask;
+		while (_lastRows[i] != 0 && _nodeKeys[i] != nodeID) {
+			i = (i + 1) & mask;
+		}
+		int previous = _lastRows[i] - 1;
+		_nodeKeys[i] = nodeID;
+		_lastRows[i] = row + 1;
+		return previous;
+	}
+
+
+
+	/* private member */
+	private boolean _keepFields = false;
+	private int _size = 0;
+	private IPFIXRecordDecoder[] _decoders = new IPFIXRecordDecoder[8];
+	private long[] _nodeIDs = new long[8];
+	private long[] _sequenceNumbers = new long[8];
+	/** index of a record's first value in _values */
+	private int[] _offsets = new int[8];
+	private int[] _rounds = new int[8];
+	/** open addressing table nodeID -> last row + 1 (0 = empty), twice the row capacity */
+	private long[] _nodeKeys = new long[16];
+	private int[] _lastRows = new int[16];
+	private int _roundCount = 0;
+	/** values of all records, row by row */
+	private double[] _values = new double[64];
+	private int _valueCount = 0;
+	/** fields of all records, indexed like _values, only if _keepFields */
+	private final List<IPFIXField> _fields = new ArrayList<IPFIXField>();
+	private boolean _enriched = false;
+	/** scratch space of IPFIXEnricher.enrichAll() */
+	private int[] _rowsByRound = new int[8];
+	private int[] _roundStarts = new int[2];
+	private final List<Column> _columns = new ArrayList<Column>();
+	/** slot arrays of the rows' nodes in _slotStore */
+	private double[][] _slots = new double[8][];
+	private IPFIXValueStore _slotStore = null;
+
+
+
+	/* helper classes */
+	/**
+	 * values of one field enricher gathered from the records of a round
+	 */
+	static class Column {
+		IPFIXFieldEnricher enricher;
+		int count = 0;
+		long[] nodeIDs = new long[8];
+		/** slot arrays of the nodes in the enricher's value store */
+		double[][] slots = new double[8][];
+		/** index of each value in the batch's value array */
+		int[] indexes = new int[8];
+		double[] x = new double[8];
+		double[] out = new double[8];
+
+		void add(long nodeID, double[] nodeSlots, int index, double value) {
+			if (count == x.length) {
+				int capacity = count * 2;
+				nodeIDs = Arrays.copyOf(nodeIDs, capacity);
+				slots = Arrays.copyOf(slots, capacity);
+				indexes = Arrays.copyOf(indexes, capacity);
+				x = Arrays.copyOf(x, capacity);
+				out = new double[capacity];
+			}
+			nodeIDs[count] = nodeID;
+			slots[count] = nodeSlots;
+			indexes[count] = index;
+			x[count] = value;
+			count++;
+		}
+	}
+}
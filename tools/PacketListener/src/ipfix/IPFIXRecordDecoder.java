@@ -0,0 +1,130 @@
+package ipfix;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IPFIXRecordDecoder. Decoder specialised for the records of one IPFIXTemplate.
+ *
+ * Offsets, widths and value types of all fields are computed once when the
+ * template arrives. A record is then decoded in one pass into a reusable
+ * primitive row: one long per field, holding the unsigned value of fields of up
+ * to 8 bytes and the absolute buffer offset of longer (octet array) fields.
+ *
+ * @author Michael Meister
+ */
+public final class IPFIXRecordDecoder {
+
+	/** value types */
+	public static final byte TYPE_UNSIGNED8 = 1, TYPE_UNSIGNED16 = 2, TYPE_UNSIGNED32 = 4, TYPE_UNSIGNED64 = 8,
+			TYPE_UNSIGNED = 0, TYPE_OCTETS = -1;
+
+	/** template the decoder was generated for */
+	public final IPFIXTemplate template;
+	/** template fields in record order */
+	public final IPFIXTemplate.Field[] fields;
+	/** offset of every field relative to the start of the record */
+	public final int[] offsets;
+	/** width of every field in bytes */
+	public final int[] widths;
+	/** value type of every field */
+	public final byte[] types;
+	/** length of a record */
+	public final int recordLength;
+
+
+
+	/**
+	 * constructor
+	 *
+	 * @param template
+	 */
+	public IPFIXRecordDecoder(IPFIXTemplate template) {
+		int count = template.fields.size();
+
+		this.template = template;
+		this.fields = template.fields.toArray(new IPFIXTemplate.Field[count]);
+		this.offsets = new int[count];
+		this.widths = new int[count];
+		this.types = new byte[count];
+
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			int width = fields[i].length;
+			offsets[i] = offset;
+			widths[i] = width;
+			types[i] = getType(width);
+			offset += width;
+		}
+		this.recordLength = offset;
+	}
+
+	/**
+	 * creates a row decode() can write into
+	 *
+	 * @return row
+	 */
+	public long[] newRow() {
+		return new long[fields.length];
+	}
+
+	/**
+	 * decodes the record starting at `pos` into a row
+	 *
+	 * @param buffer big-endian buffer
+	 * @param pos absolute offset of the record
+	 * @param row row of at least fields.length entries
+	 */
+	public void decode(ByteBuffer buffer, int pos, long[] row) {
+		for (int i = 0; i < types.length; i++) {
+			row[i] = decode(buffer, pos + offsets[i], i);
+		}
+	}
+
+	/**
+	 * decodes a single field of the record starting at `pos`
+	 *
+	 * @param buffer big-endian buffer
+	 * @param pos absolute offset of the record
+	 * @param field index of the field
+	 * @return unsigned value, absolute offset of the value for octet array fields
+	 */
+	public long decodeField(ByteBuffer buffer, int pos, int field) {
+		return decode(buffer, pos + offsets[field], field);
+	}
+
+	/**
+	 * gets value type of a field with the given width
+	 *
+	 * @param width
+	 * @return type
+	 */
+	public static byte getType(int width) {
+		switch (width) {
+		case 1: return TYPE_UNSIGNED8;
+		case 2: return TYPE_UNSIGNED16;
+		case 4: return TYPE_UNSIGNED32;
+		case 8: return TYPE_UNSIGNED64;
+		default: return width < 8 ? TYPE_UNSIGNED : TYPE_OCTETS;
+		}
+	}
+
+
+
+	/* private helper methods */
+	private long decode(ByteBuffer buffer, int index, int field) {
+		switch (types[field]) {
+		case TYPE_UNSIGNED8: return buffer.get(index) & 0xFFL;
+		case TYPE_UNSIGNED16: return buffer.getShort(index) & 0xFFFFL;
+		case TYPE_UNSIGNED32: return buffer.getInt(index) & 0xFFFFFFFFL;
+		case TYPE_UNSIGNED64: return buffer.getLong(index);
+		case TYPE_UNSIGNED: {
+			long v = 0;
+			for (int end = index + widths[field]; index < end; index++) {
+				v = (v << 8) | (buffer.get(index) & 0xFF);
+			}
+			return v;
+		}
+		default: return index;
+		}
+	}
+}
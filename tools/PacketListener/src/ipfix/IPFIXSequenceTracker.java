@@ -0,0 +1,109 @@
+package ipfix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.Hashing;
+
+/**
+ * Sequence windows of all nodes a parser has received data from.
+ *
+ * The window of a node is found with one probe into an open addressing table
+ * keyed by the primitive nodeID, consecutive messages of the same node don't
+ * probe at all. Not thread-safe, every parser owns its tracker; the windows'
+ * counters may be read by other threads.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXSequenceTracker {
+
+	/**
+	 * gets the window of a node, creates it if the node is unknown
+	 *
+	 * @param nodeID
+	 * @return window
+	 */
+	public IPFIXSequenceWindow window(long nodeID) {
+		IPFIXSequenceWindow last = _last;
+		if (last != null && last.nodeID == nodeID) {
+			return last;
+		}
+
+		IPFIXSequenceWindow[] windows = _windows;
+		int i = _find(windows, nodeID);
+		IPFIXSequenceWindow window = windows[i];
+		if (window == null) {
+			window = new IPFIXSequenceWindow(nodeID);
+			windows[i] = window;
+			if (++_size > windows.length / 2) {
+				_grow();
+			}
+		}
+		_last = window;
+		return window;
+	}
+
+	/**
+	 * gets the window of a node
+	 *
+	 * @param nodeID
+	 * @return window, null if no data of the node was checked yet
+	 */
+	public IPFIXSequenceWindow get(long nodeID) {
+		IPFIXSequenceWindow[] windows = _windows;
+		return windows[_find(windows, nodeID)];
+	}
+
+	/**
+	 * gets the windows of all nodes. Doesn't lock, windows created meanwhile may be missing.
+	 *
+	 * @return windows
+	 */
+	public List<IPFIXSequenceWindow> getWindows() {
+		List<IPFIXSequenceWindow> windows = new ArrayList<IPFIXSequenceWindow>();
+		for (IPFIXSequenceWindow window : _windows) {
+			if (window != null) {
+				windows.add(window);
+			}
+		}
+		return windows;
+	}
+
+	/**
+	 * gets number of nodes
+	 */
+	public int size() {
+		return _size;
+	}
+
+
+
+	/* private helper methods */
+	/** linear probing, returns index of the node or of the free bucket it belongs into */
+	private static int _find(IPFIXSequenceWindow[] windows, long nodeID) {
+		int mask = windows.length - 1;
+		int i = Hashing.hash(nodeID) & mask;
+		while (windows[i] != null && windows[i].nodeID != nodeID) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void _grow() {
+		IPFIXSequenceWindow[] windows = new IPFIXSequenceWindow[_windows.length * 2];
+		for (IPFIXSequenceWindow window : _windows) {
+			if (window != null) {
+				windows[_find(windows, window.nodeID)] = window;
+			}
+		}
+		_windows = windows; // readers of the old table still find every window in it
+	}
+
+
+
+	/* private member */
+	private volatile IPFIXSequenceWindow[] _windows = new IPFIXSequenceWindow[64];
+	private int _size = 0;
+	/** most recently used window, consecutive messages usually belong to the same node */
+	private IPFIXSequenceWindow _last = null;
+}
@@ -0,0 +1,270 @@
+package ipfix;
+
+/**
+ * Sliding window over the sequence numbers of a node's data messages, like
+ * the anti-replay window of IPsec (RFC 4303).
+ *
+ * A 64 bit bitmap remembers which of the last WINDOW sequence numbers up to
+ * the highest one have been received. Newer messages slide the window and
+ * count the skipped sequence numbers as lost, messages inside the window are
+ * accepted once (reordered, a lost message turns out to be late) and rejected
+ * as duplicates afterwards, older ones are rejected as stale. Sequence numbers
+ * are compared with serial number arithmetic in their width, so wrapped 8 and
+ * 16 bit TinyIPFIX counters are handled. A node that restarts its counter
+ * would only send stale messages: after RESYNC stale messages in a row the
+ * window restarts at the node's current sequence number.
+ *
+ * Checking a message is O(1) and allocates nothing. Not thread-safe, the
+ * counters may be read by other threads (they may be slightly behind).
+ *
+ * @author Michael Meister
+ */
+public class IPFIXSequenceWindow {
+
+	/** number of sequence numbers up to the highest one that are remembered */
+	public static final int WINDOW = 64;
+	/** number of stale messages in a row that restart the window */
+	public static final int RESYNC = 8;
+
+	/** node the window belongs to */
+	public final long nodeID;
+
+
+	/**
+	 * outcome of check()
+	 */
+	public enum Result {
+		/** newer than any message before (possibly after lost ones), accepted */
+		IN_ORDER(true),
+		/** older than the newest message but not received yet, accepted */
+		REORDERED(true),
+		/** received before, rejected */
+		DUPLICATE(false),
+		/** older than the window, rejected */
+		STALE(false),
+		/** first message or the window was restarted at it, accepted */
+		RESYNC(true);
+
+		/** whether the message should be processed */
+		public final boolean accepted;
+
+		Result(boolean accepted) {
+			this.accepted = accepted;
+		}
+	}
+
+
+	/**
+	 * constructor
+	 *
+	 * @param nodeID node the window belongs to
+	 */
+	public IPFIXSequenceWindow(long nodeID) {
+		this.nodeID = nodeID;
+	}
+
+	/**
+	 * checks the sequence number of a data message and records it if it is accepted
+	 *
+	 * @param sequenceNumber of the message, only its lowest `bits` bits are used
+	 * @param bits width of the sequence number (8, 16 or 32)
+	 * @return result, process the message only if result.accepted
+	 */
+	public Result check(long sequenceNumber, int bits) {
+		long mask = bits >= 64 ? -1L : (1L << bits) - 1;
+		long s = sequenceNumber & mask;
+
+		// first message, or the node's header changed
+		if (_span == 0 || bits != _bits) {
+			_restart(s, bits);
+			return Result.RESYNC;
+		}
+
+		long ahead = (s - _highest) & mask;
+		if (ahead == 0) {
+			return _duplicate();
+		}
+		if (ahead < (1L << (bits - 1))) {
+			// slide the window, sequence numbers in between are missing
+			_bitmap = ahead >= WINDOW ? 1 : (_bitmap << ahead) | 1;
+			_highest = s;
+			_span = (int) Math.min(WINDOW, _span + ahead);
+			_lost += ahead - 1;
+			_received++;
+			_staleRun = 0;
+			return Result.IN_ORDER;
+		}
+
+		long behind = (_highest - s) & mask;
+		if (behind >= WINDOW) {
+			_stale++;
+			if (++_staleRun >= RESYNC) {
+				_restart(s, bits);
+				_resyncs++;
+				return Result.RESYNC;
+			}
+			return Result.STALE;
+		}
+
+		long bit = 1L << behind;
+		if ((_bitmap & bit) != 0) {
+			return _duplicate();
+		}
+		_bitmap |= bit;
+		if (behind < _span) { // counted as lost when the window slid over it
+			_lost--;
+		}
+		_reordered++;
+		_received++;
+		_staleRun = 0;
+		return Result.REORDERED;
+	}
+
+	/**
+	 * gets the result check() would return for a sequence number, without recording
+	 * anything. Lets a parser record a message with check() only once it has been parsed.
+	 *
+	 * @param sequenceNumber of the message, only its lowest `bits` bits are used
+	 * @param bits width of the sequence number (8, 16 or 32)
+	 * @return result of check()
+	 */
+	public Result test(long sequenceNumber, int bits) {
+		long mask = bits >= 64 ? -1L : (1L << bits) - 1;
+		long s = sequenceNumber & mask;
+		if (_span == 0 || bits != _bits) {
+			return Result.RESYNC;
+		}
+
+		long ahead = (s - _highest) & mask;
+		if (ahead == 0) {
+			return Result.DUPLICATE;
+		}
+		if (ahead < (1L << (bits - 1))) {
+			return Result.IN_ORDER;
+		}
+		long behind = (_highest - s) & mask;
+		if (behind >= WINDOW) {
+			return _staleRun + 1 >= RESYNC ? Result.RESYNC : Result.STALE;
+		}
+		return (_bitmap & (1L << behind)) != 0 ? Result.DUPLICATE : Result.REORDERED;
+	}
+
+	/**
+	 * continues a window saved by a previous run (see getBits(), getHighest() and getBitmap()),
+	 * so the node's first messages after a restart are checked against it. Counters start at 0.
+	 *
+	 * @param bits width of the sequence numbers
+	 * @param highest highest accepted sequence number
+	 * @param bitmap accepted sequence numbers up to highest
+	 */
+	public void restore(int bits, long highest, long bitmap) {
+		_bits = bits;
+		_highest = highest;
+		_bitmap = bitmap | 1;
+		_span = 1; // messages missing before the restart aren't counted as lost
+		_staleRun = 0;
+	}
+
+	/**
+	 * gets the width of the sequence numbers
+	 *
+	 * @return bits, 0 before the first message
+	 */
+	public int getBits() {
+		return _bits;
+	}
+
+	/**
+	 * gets the accepted sequence numbers up to the highest one
+	 *
+	 * @return bitmap, bit i is set if highest - i was accepted
+	 */
+	public long getBitmap() {
+		return _bitmap;
+	}
+
+	/**
+	 * gets the highest accepted sequence number
+	 *
+	 * @return sequence number, -1 before the first message
+	 */
+	public long getHighest() {
+		return _span == 0 ? -1 : _highest;
+	}
+
+	/**
+	 * gets number of accepted messages
+	 */
+	public long getReceived() {
+		return _received;
+	}
+
+	/**
+	 * gets number of missing messages. Decreases when a message counted as lost arrives late.
+	 */
+	public long getLost() {
+		return _lost;
+	}
+
+	/**
+	 * gets number of rejected duplicates
+	 */
+	public long getDuplicates() {
+		return _duplicates;
+	}
+
+	/**
+	 * gets number of accepted messages that arrived after newer ones
+	 */
+	public long getReordered() {
+		return _reordered;
+	}
+
+	/**
+	 * gets number of rejected messages older than the window
+	 */
+	public long getStale() {
+		return _stale;
+	}
+
+	/**
+	 * gets number of times the window was restarted because of stale messages
+	 */
+	public long getResyncs() {
+		return _resyncs;
+	}
+
+
+
+	/* private helper methods */
+	private void _restart(long s, int bits) {
+		_bits = bits;
+		_highest = s;
+		_bitmap = 1;
+		_span = 1;
+		_staleRun = 0;
+		_received++;
+	}
+
+	private Result _duplicate() {
+		_duplicates++;
+		return Result.DUPLICATE;
+	}
+
+
+
+	/* private member */
+	private int _bits = 0;
+	private long _highest = 0;
+	/** bit i: _highest - i has been received */
+	private long _bitmap = 0;
+	/** number of sequence numbers the window covers since it was (re)started, 0 before the first message */
+	private int _span = 0;
+	private int _staleRun = 0;
+	private long _received = 0;
+	private long _lost = 0;
+	private long _duplicates = 0;
+	private long _reordered = 0;
+	private long _stale = 0;
+	private long _resyncs = 0;
+}
@@ -1,41 +1,417 @@
-package ipfix;
-
-import java.util.HashMap;
-
-/**
- * IPFIXTemplateHeap. Maintains a set of IPFIXTemplates.
- * @author André Freitag
- *
- */
-public class IPFIXTemplateHeap {
-
-	
-	/**
-	 * adds template
-	 * 
-	 * @param template
-	 */
-	public void add(IPFIXTemplate template) {
-		String qualifier = template.getQualifier();
-		_templates.put(qualifier, template);
-	}
-	
-	/**
-	 * gets template for specific nodeID/templateID combination
-	 * 
-	 * @param templateID
-	 * @return
-	 */
-	public IPFIXTemplate get(String qualifier) {
-		if (_templates.containsKey(qualifier)) {
-			return _templates.get(qualifier);
-		} else {
-			return null;
-		}
-	}
-	
-	
-	
-	/* private member */
-	private HashMap<String,IPFIXTemplate> _templates=new HashMap<String,IPFIXTemplate>();
-}
+package ipfix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import utils.Hashing;
+
+/**
+ * IPFIXTemplateHeap. Maintains a set of IPFIXTemplates.
+ *
+ * Templates are kept in an open addressing table keyed by the packed
+ * (nodeID, templateID) pair. Lookups don't lock: they read the current table
+ * and probe it. Adding a template is serialized between writers and replaces a
+ * previous definition with a single atomic store, so a reader that is decoding
+ * a record with the old definition keeps a consistent template. Templates must
+ * not be modified once they have been added (except for lastUsed and
+ * pendingReleased).
+ *
+ * The heap can be bounded: setLimits() sets a memory budget (estimated by
+ * IPFIXTemplate.getMemorySize()) and a maximum idle time. Idle templates are
+ * removed, and while the budget is exceeded the least recently used nodes lose
+ * all their templates, until the heap is down to 90% of its budget. Removed
+ * templates leave a tombstone in their slot, so probing readers aren't cut off.
+ *
+ * @author André Freitag
+ *
+ */
+public class IPFIXTemplateHeap {
+
+
+	/**
+	 * adds template, replaces an earlier template with the same nodeID/templateID
+	 *
+	 * @param template
+	 */
+	public synchronized void add(IPFIXTemplate template) {
+		_put(template, true);
+		_evictIfNeeded();
+	}
+
+	/**
+	 * adds template unless a template with the same nodeID/templateID is known,
+	 * e.g. when restoring templates that may have been received again meanwhile
+	 *
+	 * @param template
+	 * @return whether the template was added
+	 */
+	public synchronized boolean addIfAbsent(IPFIXTemplate template) {
+		boolean added = _put(template, false);
+		_evictIfNeeded();
+		return added;
+	}
+
+	/**
+	 * removes a template, e.g. when it has been withdrawn (counted as withdrawal)
+	 *
+	 * @param nodeID
+	 * @param templateID
+	 * @return whether the template was known
+	 */
+	public synchronized boolean remove(long nodeID, int templateID) {
+		Table table = _table;
+		int i = table.find(getKey(nodeID, templateID));
+		if (!_remove(table, i)) {
+			return false;
+		}
+		_withdrawals++;
+		return true;
+	}
+
+	/**
+	 * removes all templates of a node, e.g. when they have been withdrawn (counted as withdrawals)
+	 *
+	 * @param nodeID
+	 * @return number of removed templates
+	 */
+	public synchronized int removeNode(long nodeID) {
+		Table table = _table;
+		int removed = 0;
+		for (int i = 0; i < table.keys.length; i++) {
+			IPFIXTemplate template = table.templates.get(i);
+			if (template != null && template != TOMBSTONE && template.nodeID == nodeID && _remove(table, i)) {
+				removed++;
+			}
+		}
+		_withdrawals += removed;
+		return removed;
+	}
+
+	/**
+	 * sets the limits templates are evicted at
+	 *
+	 * @param maxBytes memory budget of all templates in bytes, 0 for none
+	 * @param maxIdle time in milliseconds a template is kept without being used, 0 for unlimited
+	 */
+	public synchronized void setLimits(long maxBytes, long maxIdle) {
+		_maxBytes = maxBytes;
+		_maxIdle = maxIdle;
+		evict(System.currentTimeMillis());
+	}
+
+	/**
+	 * evicts idle templates and, if the memory budget is exceeded, the templates
+	 * of the least recently used nodes. Called by add(), call it periodically if
+	 * templates should expire while none are added.
+	 *
+	 * @param now current time in milliseconds
+	 * @return number of evicted templates
+	 */
+	public synchronized int evict(long now) {
+		Table table = _table;
+		int evicted = 0;
+		_lastSweep = now;
+
+		// idle templates
+		if (_maxIdle > 0) {
+			for (int i = 0; i < table.keys.length; i++) {
+				IPFIXTemplate template = table.templates.get(i);
+				if (template != null && template != TOMBSTONE && now - template.lastUsed > _maxIdle
+						&& _remove(table, i)) {
+					evicted++;
+				}
+			}
+		}
+
+		// least recently used nodes, a node is used as recently as its latest template
+		if (_maxBytes > 0 && _bytes > _maxBytes) {
+			final Map<Long, Long> lastUsed = new HashMap<Long, Long>();
+			List<IPFIXTemplate> templates = getTemplates();
+			for (IPFIXTemplate template : templates) {
+				Long used = lastUsed.get(template.nodeID);
+				if (used == null || used < template.lastUsed) {
+					lastUsed.put(template.nodeID, template.lastUsed);
+				}
+			}
+			Collections.sort(templates, new Comparator<IPFIXTemplate>() {
+				@Override
+				public int compare(IPFIXTemplate a, IPFIXTemplate b) {
+					int c = Long.compare(lastUsed.get(a.nodeID), lastUsed.get(b.nodeID));
+					return c != 0 ? c : Long.compare(a.nodeID, b.nodeID);
+				}
+			});
+
+			// evict whole nodes until the heap is down to 90% of its budget
+			long target = _maxBytes - _maxBytes / 10;
+			for (int k = 0; k < templates.size(); k++) {
+				IPFIXTemplate template = templates.get(k);
+				if (_bytes <= target && template.nodeID != templates.get(k - 1).nodeID) {
+					break;
+				}
+				if (_remove(table, table.find(getKey(template.nodeID, template.templateID)))) {
+					evicted++;
+				}
+			}
+		}
+
+		_evictions += evicted;
+		return evicted;
+	}
+
+	/**
+	 * adds listener that is notified about every added template
+	 *
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		_listeners.add(listener);
+	}
+
+	/**
+	 * removes listener
+	 *
+	 * @param listener
+	 */
+	public void removeListener(Listener listener) {
+		_listeners.remove(listener);
+	}
+
+	/**
+	 * gets template for specific nodeID/templateID combination
+	 *
+	 * @param nodeID
+	 * @param templateID
+	 * @return template, null if none is known
+	 */
+	public IPFIXTemplate get(long nodeID, int templateID) {
+		return _table.get(getKey(nodeID, templateID));
+	}
+
+	/**
+	 * gets template for specific nodeID/templateID qualifier
+	 *
+	 * @see IPFIXTemplate#getQualifier(long, int)
+	 * @param qualifier
+	 * @return template, null if none is known
+	 */
+	public IPFIXTemplate get(String qualifier) {
+		int separator = qualifier.indexOf('|');
+		try {
+			return get(Long.parseLong(qualifier.substring(0, separator)),
+					Integer.parseInt(qualifier.substring(separator + 1)));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * gets all templates. Doesn't lock, templates added meanwhile may be missing.
+	 *
+	 * @return templates
+	 */
+	public List<IPFIXTemplate> getTemplates() {
+		Table table = _table;
+		List<IPFIXTemplate> templates = new ArrayList<IPFIXTemplate>();
+		for (int i = 0; i < table.keys.length; i++) {
+			IPFIXTemplate template = table.templates.get(i);
+			if (template != null && template != TOMBSTONE) {
+				templates.add(template);
+			}
+		}
+		return templates;
+	}
+
+	/**
+	 * gets number of templates
+	 */
+	public synchronized int size() {
+		return _size;
+	}
+
+	/**
+	 * gets the estimated memory of all templates in bytes
+	 */
+	public synchronized long getBytes() {
+		return _bytes;
+	}
+
+	/**
+	 * gets number of templates evicted because they were idle or the memory budget was exceeded
+	 */
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+
+	/**
+	 * gets number of withdrawn templates
+	 */
+	public synchronized long getWithdrawals() {
+		return _withdrawals;
+	}
+
+	/**
+	 * packs nodeID (32 bit observation domain) and templateID (16 bit) into one key
+	 *
+	 * @param nodeID
+	 * @param templateID
+	 * @return key
+	 */
+	public static long getKey(long nodeID, int templateID) {
+		return (nodeID << 16) | (templateID & 0xFFFF);
+	}
+
+
+
+	/* private helper methods */
+	private boolean _put(IPFIXTemplate template, boolean replace) {
+		long key = getKey(template.nodeID, template.templateID);
+		if (!replace && _table.get(key) != null) {
+			return false;
+		}
+		template.lastUsed = System.currentTimeMillis();
+
+		// let listeners prepare the template before any reader can see it
+		for (Listener listener : _listeners) {
+			listener.templateAdded(template);
+		}
+
+		Table table = _table;
+		if ((_size + _tombstones + 1) * 2 > table.keys.length) {
+			// grow unless mostly tombstones fill the table
+			table = _rebuild(table, (_size + 1) * 4 > table.keys.length ? table.keys.length * 2 : table.keys.length);
+		}
+
+		int i = table.find(key);
+		IPFIXTemplate previous = table.templates.get(i);
+		if (previous == null || previous == TOMBSTONE) {
+			if (previous == TOMBSTONE) {
+				_tombstones--;
+			}
+			_size++;
+			table.keys[i] = key; // published by the volatile store below
+		} else {
+			_bytes -= previous.getMemorySize();
+		}
+		table.templates.set(i, template);
+		_bytes += template.getMemorySize();
+		return true;
+	}
+
+	/** replaces the template in slot i by a tombstone */
+	private boolean _remove(Table table, int i) {
+		IPFIXTemplate template = table.templates.get(i);
+		if (template == null || template == TOMBSTONE) {
+			return false;
+		}
+		table.templates.set(i, TOMBSTONE);
+		_size--;
+		_tombstones++;
+		_bytes -= template.getMemorySize();
+		return true;
+	}
+
+	private void _evictIfNeeded() {
+		long now = System.currentTimeMillis();
+		if ((_maxBytes > 0 && _bytes > _maxBytes) || (_maxIdle > 0 && now - _lastSweep > _maxIdle / 4)) {
+			evict(now);
+		}
+	}
+
+	private Table _rebuild(Table table, int capacity) {
+		Table rebuilt = new Table(capacity);
+		for (int i = 0; i < table.keys.length; i++) {
+			IPFIXTemplate template = table.templates.get(i);
+			if (template != null && template != TOMBSTONE) {
+				int j = rebuilt.find(table.keys[i]);
+				rebuilt.keys[j] = table.keys[i];
+				rebuilt.templates.set(j, template);
+			}
+		}
+		_tombstones = 0;
+		_table = rebuilt; // readers switch to the new table, the old one stays valid for readers still probing it
+		return rebuilt;
+	}
+
+
+
+	/* helper classes */
+	/**
+	 * Gets notified when a template is added. Called by the adding thread
+	 * before the template becomes visible to get().
+	 */
+	public interface Listener {
+		void templateAdded(IPFIXTemplate template);
+	}
+
+	/**
+	 * Open addressing table with linear probing. A slot's key is written
+	 * before its template is stored. Removed templates are replaced by
+	 * TOMBSTONE, whose slot may be reused for another key, so readers compare
+	 * the key of the template they read instead of the slot's key.
+	 */
+	private static final class Table {
+		final long[] keys;
+		final AtomicReferenceArray<IPFIXTemplate> templates;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new long[capacity];
+			templates = new AtomicReferenceArray<IPFIXTemplate>(capacity);
+			mask = capacity - 1;
+		}
+
+		IPFIXTemplate get(long key) {
+			int i = Hashing.hash(key) & mask;
+			IPFIXTemplate template;
+			while ((template = templates.get(i)) != null) {
+				if (template != TOMBSTONE && getKey(template.nodeID, template.templateID) == key) {
+					return template;
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		/** index of the key or of the free slot it belongs into, the first tombstone on its way if any (writers only) */
+		int find(long key) {
+			int i = Hashing.hash(key) & mask;
+			int tombstone = -1;
+			IPFIXTemplate template;
+			while ((template = templates.get(i)) != null) {
+				if (template == TOMBSTONE) {
+					if (tombstone < 0) {
+						tombstone = i;
+					}
+				} else if (keys[i] == key) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return tombstone >= 0 ? tombstone : i;
+		}
+	}
+
+
+
+	/* private member */
+	/** marks the slot of a removed template */
+	private static final IPFIXTemplate TOMBSTONE = new IPFIXTemplate(-1, -1, 0);
+
+	private volatile Table _table = new Table(64);
+	private int _size = 0;
+	private int _tombstones = 0;
+	/** estimated memory of all templates in bytes */
+	private long _bytes = 0;
+	private long _maxBytes = 0;
+	private long _maxIdle = 0;
+	private long _lastSweep = 0;
+	private long _evictions = 0;
+	private long _withdrawals = 0;
+	private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+}
@@ -0,0 +1,221 @@
+package ipfix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot file of the known templates and nodes, so a restarted collector
+ * decodes data messages right away instead of waiting for every node to
+ * resend its templates, keeps the nodeIDs of the nodes' addresses and keeps
+ * rejecting duplicates and stale messages sent before the restart.
+ *
+ * The file is big-endian binary: a header (magic, version, template count,
+ * CRC32 of the records) followed by one record per template: nodeID (8),
+ * templateID (2), an unused sequence number (4, written as 0 and ignored, the
+ * nodes' sequence windows replaced it), field count (2) and per field its
+ * fieldID (2), length (2), a flag (1) and the enterpriseNumber (4) if the flag
+ * is set. Since version 2 the number of nodes (4) follows, and per node its
+ * nodeID (8), address (16), time of the latest packet (8) and sequence window:
+ * bits (1, 0 before the first data message), highest sequence number (4) and
+ * bitmap (8).
+ * A checkpoint is written into a memory-mapped temporary file, forced
+ * to disk and renamed over the snapshot, so a crash leaves the previous
+ * snapshot intact.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXTemplateSnapshot {
+
+	/** "TIPS" */
+	public static final int MAGIC = 0x54495053;
+	public static final int VERSION = 2;
+	/** size of the header in bytes: magic, version, reserved, count, CRC32 */
+	public static final int HEADER_SIZE = 16;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param file snapshot file, created by the first write()
+	 */
+	public IPFIXTemplateSnapshot(File file) {
+		this.file = file;
+		this.tmpFile = new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * gets the snapshot file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * reads the templates of the snapshot. Their record decoders are generated already.
+	 *
+	 * @param nodes receives the restored nodes with their sequence windows (none for version 1 snapshots),
+	 *            may be null
+	 * @return templates, empty if there is no snapshot yet
+	 * @throws IOException if the snapshot can't be read or is corrupt
+	 */
+	public List<IPFIXTemplate> read(List<IPFIXNode> nodes) throws IOException {
+		List<IPFIXTemplate> templates = new ArrayList<IPFIXTemplate>();
+		if (!file.exists()) {
+			return templates;
+		}
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long size = in.length();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+				throw new IOException("IPFIXTemplateSnapshot: invalid size of '" + file + "'.");
+			}
+			ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int version = buffer.getShort(4) & 0xFFFF;
+			if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+				throw new IOException("IPFIXTemplateSnapshot: '" + file + "' is no template snapshot.");
+			}
+			int count = buffer.getInt(8);
+			int crc = buffer.getInt(12);
+
+			// check records before using any of them
+			buffer.position(HEADER_SIZE);
+			CRC32 checksum = new CRC32();
+			checksum.update(buffer.duplicate());
+			if ((int) checksum.getValue() != crc) {
+				throw new IOException("IPFIXTemplateSnapshot: checksum of '" + file + "' doesn't match.");
+			}
+
+			try {
+				for (int i = 0; i < count; i++) {
+					long nodeID = buffer.getLong();
+					int templateID = buffer.getShort() & 0xFFFF;
+					buffer.getInt(); // unused sequence number
+					int fieldCount = buffer.getShort() & 0xFFFF;
+
+					IPFIXTemplate template = new IPFIXTemplate(nodeID, templateID, 0);
+					for (int f = 0; f < fieldCount; f++) {
+						int fieldID = buffer.getShort() & 0xFFFF;
+						int length = buffer.getShort() & 0xFFFF;
+						Long enterpriseNumber = buffer.get() != 0 ? Long.valueOf(buffer.getInt() & 0xFFFFFFFFL) : null;
+						template.addField(template, fieldID, length, enterpriseNumber);
+					}
+					template.getDecoder();
+					templates.add(template);
+				}
+
+				if (version >= 2) {
+					int nodeCount = buffer.getInt();
+					for (int i = 0; i < nodeCount; i++) {
+						long nodeID = buffer.getLong();
+						long addressHigh = buffer.getLong();
+						long interfaceID = buffer.getLong();
+						IPFIXNode node = new IPFIXNode(addressHigh, interfaceID, nodeID, buffer.getLong());
+						int bits = buffer.get() & 0xFF;
+						long highest = buffer.getInt() & 0xFFFFFFFFL;
+						long bitmap = buffer.getLong();
+						if (bits != 0) {
+							node.sequenceWindow.restore(bits, highest, bitmap);
+						}
+						if (nodes != null) {
+							nodes.add(node);
+						}
+					}
+				}
+			} catch (RuntimeException e) { // buffer underflow
+				throw new IOException("IPFIXTemplateSnapshot: '" + file + "' is truncated.", e);
+			}
+		} finally {
+			in.close();
+		}
+		return templates;
+	}
+
+	/**
+	 * writes a checkpoint of templates and nodes, replaces the previous snapshot.
+	 * The nodes' sequence windows may be updated while they are written.
+	 *
+	 * @param templates
+	 * @param nodes
+	 * @throws IOException
+	 */
+	public synchronized void write(List<IPFIXTemplate> templates, List<IPFIXNode> nodes) throws IOException {
+		// size of the snapshot, fields are fixed once a template is known
+		long size = HEADER_SIZE;
+		for (IPFIXTemplate template : templates) {
+			size += 16;
+			for (IPFIXTemplate.Field field : template.fields) {
+				size += field.enterpriseNumber != null ? 9 : 5;
+			}
+		}
+		size += 4 + 45L * nodes.size();
+
+		RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+		try {
+			out.setLength(size);
+			MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.position(HEADER_SIZE);
+			for (IPFIXTemplate template : templates) {
+				buffer.putLong(template.nodeID);
+				buffer.putShort((short) template.templateID);
+				buffer.putInt(0); // unused sequence number
+				buffer.putShort((short) template.fields.size());
+				for (IPFIXTemplate.Field field : template.fields) {
+					buffer.putShort((short) field.fieldID);
+					buffer.putShort((short) field.length);
+					if (field.enterpriseNumber != null) {
+						buffer.put((byte) 1);
+						buffer.putInt((int) (long) field.enterpriseNumber);
+					} else {
+						buffer.put((byte) 0);
+					}
+				}
+			}
+			buffer.putInt(nodes.size());
+			for (IPFIXNode node : nodes) {
+				buffer.putLong(node.nodeID);
+				buffer.putLong(node.addressHigh);
+				buffer.putLong(node.interfaceID);
+				buffer.putLong(node.getLastSeen());
+				// read once, the window may slide meanwhile
+				IPFIXSequenceWindow window = node.sequenceWindow;
+				int bits = window.getBits();
+				long highest = window.getHighest();
+				long bitmap = window.getBitmap();
+				buffer.put((byte) bits);
+				buffer.putInt((int) highest);
+				buffer.putLong(bitmap);
+			}
+
+			CRC32 checksum = new CRC32();
+			buffer.position(HEADER_SIZE);
+			checksum.update(buffer.duplicate());
+			buffer.putInt(0, MAGIC);
+			buffer.putShort(4, (short) VERSION);
+			buffer.putShort(6, (short) 0);
+			buffer.putInt(8, templates.size());
+			buffer.putInt(12, (int) checksum.getValue());
+			buffer.force();
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+
+	/* private member */
+	private final File file;
+	private final File tmpFile;
+}
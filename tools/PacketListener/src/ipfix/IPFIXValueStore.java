@@ -0,0 +1,195 @@
+package ipfix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import utils.Hashing;
+
+/**
+ * IPFIXValueStore. Keeps the latest enriched value of every field type per node.
+ *
+ * Field types are mapped to slot indices once (when the metadata is loaded), so
+ * reading and writing a value is an array access on the node's slot array. The
+ * node's slot array is found with one probe into an open addressing table keyed
+ * by the primitive nodeID. Slots that were never written hold NaN.
+ *
+ * @author Michael Meister
+ */
+public class IPFIXValueStore {
+
+	/**
+	 * gets slot of a field type, registers the type if it is unknown
+	 *
+	 * @param type field type as used in the metadata file
+	 * @return slot index
+	 */
+	public synchronized int register(String type) {
+		int slot = _types.indexOf(type);
+		if (slot < 0) {
+			_types.add(type);
+			slot = _types.size() - 1;
+			_typeCount = _types.size();
+		}
+		return slot;
+	}
+
+	/**
+	 * gets slot of a field type
+	 *
+	 * @param type
+	 * @return slot index, -1 if the type isn't registered
+	 */
+	public synchronized int slot(String type) {
+		return _types.indexOf(type);
+	}
+
+	/**
+	 * gets the slot array of a node, creates it if the node is unknown
+	 *
+	 * @param nodeID
+	 * @return slot array, indexed by slot()
+	 */
+	public double[] values(long nodeID) {
+		Node last = _last;
+		if (last != null && last.nodeID == nodeID) {
+			double[] values = last.values;
+			if (values.length >= _typeCount) {
+				return values;
+			}
+		}
+
+		synchronized (this) {
+			int i = _find(nodeID);
+			Node node = _nodes[i];
+			if (node == null) {
+				node = new Node(nodeID, _newSlots(0));
+				_nodes[i] = node;
+				if (++_size > _nodes.length / 2) {
+					_grow();
+				}
+			} else if (node.values.length < _typeCount) { // types were registered after the node was created
+				double[] grown = _newSlots(node.values.length);
+				System.arraycopy(node.values, 0, grown, 0, node.values.length);
+				node.values = grown;
+			}
+
+			_last = node;
+			return node.values;
+		}
+	}
+
+	/**
+	 * gets latest value of a slot
+	 *
+	 * @param nodeID
+	 * @param slot
+	 * @return value, NaN if none was stored yet
+	 */
+	public double get(long nodeID, int slot) {
+		return values(nodeID)[slot];
+	}
+
+	/**
+	 * stores value of a slot
+	 *
+	 * @param nodeID
+	 * @param slot
+	 * @param value
+	 */
+	public void put(long nodeID, int slot, double value) {
+		values(nodeID)[slot] = value;
+	}
+
+	/**
+	 * removes the values of a node, e.g. when it has expired and its nodeID may be reused
+	 *
+	 * @param nodeID
+	 * @return whether values of the node were stored
+	 */
+	public synchronized boolean remove(long nodeID) {
+		int i = _find(nodeID);
+		if (_nodes[i] == null) {
+			return false;
+		}
+
+		// no tombstones: move following nodes of the probe sequence into the gap
+		int mask = _nodes.length - 1;
+		for (int j = (i + 1) & mask; _nodes[j] != null; j = (j + 1) & mask) {
+			int home = Hashing.hash(_nodes[j].nodeID) & mask;
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				_nodes[i] = _nodes[j];
+				i = j;
+			}
+		}
+		_nodes[i] = null;
+		_size--;
+		Node last = _last;
+		if (last != null && last.nodeID == nodeID) {
+			_last = null;
+		}
+		return true;
+	}
+
+	/**
+	 * gets number of nodes with stored values
+	 */
+	public synchronized int size() {
+		return _size;
+	}
+
+
+
+	/* private helper methods */
+	private double[] _newSlots(int from) {
+		double[] slots = new double[Math.max(_typeCount, 1)];
+		Arrays.fill(slots, from, slots.length, Double.NaN);
+		return slots;
+	}
+
+	/** linear probing, returns index of the node or of the free bucket it belongs into */
+	private int _find(long nodeID) {
+		int mask = _nodes.length - 1;
+		int i = Hashing.hash(nodeID) & mask;
+		while (_nodes[i] != null && _nodes[i].nodeID != nodeID) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void _grow() {
+		Node[] nodes = _nodes;
+		_nodes = new Node[nodes.length * 2];
+		for (Node node : nodes) {
+			if (node != null) {
+				_nodes[_find(node.nodeID)] = node;
+			}
+		}
+	}
+
+
+
+	/* private member */
+	private final List<String> _types = new ArrayList<String>();
+	private volatile int _typeCount = 0;
+	private Node[] _nodes = new Node[64];
+	private int _size = 0;
+
+	/** most recently used node, consecutive fields usually belong to the same node */
+	private volatile Node _last;
+
+
+	/* helper classes */
+	/**
+	 * Slot array of a node.
+	 */
+	private static final class Node {
+		final long nodeID;
+		volatile double[] values;
+
+		Node(long nodeID, double[] values) {
+			this.nodeID = nodeID;
+			this.values = values;
+		}
+	}
+}
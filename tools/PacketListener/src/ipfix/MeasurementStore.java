@@ -0,0 +1,474 @@
+package ipfix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import utils.Hashing;
+
+/**
+ * Append-only store of enriched measurements.
+ *
+ * Measurements are stored as fixed-width rows (timestamp, nodeID, field key,
+ * value) of 32 bytes in segment files (<id>.rows) of up to segmentRows rows.
+ * Every segment has a sparse index (<id>.idx) which is memory-mapped: one
+ * entry per block of BLOCK_ROWS rows, holding the minimum and maximum
+ * timestamp and a 64 bit hash mask of the nodes and of the field keys in the
+ * block. Range queries only scan the mapped rows of blocks that may match.
+ *
+ * Rows are appended through a write buffer, queries see all rows appended
+ * before. A daemon thread writes buffered rows once they are flushInterval
+ * milliseconds old, so a crash loses at most the last interval. On open, a partially written row at the end of the last segment is
+ * dropped and the segment's index is rebuilt.
+ *
+ * @author Michael Meister
+ */
+public class MeasurementStore implements Closeable {
+
+	/** size of a row in bytes: timestamp, nodeID, field key, value */
+	public static final int ROW_SIZE = 32;
+	/** number of rows covered by an index entry */
+	public static final int BLOCK_ROWS = 1024;
+	/** size of an index entry in bytes: min timestamp, max timestamp, node mask, field mask */
+	public static final int INDEX_ENTRY_SIZE = 32;
+	/** default number of rows per segment (32 MB) */
+	public static final int DEFAULT_SEGMENT_ROWS = 1024 * 1024;
+	/** maximum number of rows per segment, a segment is mapped as a whole (< 2 GB) */
+	public static final int MAX_SEGMENT_ROWS = Integer.MAX_VALUE / ROW_SIZE / BLOCK_ROWS * BLOCK_ROWS;
+	/** default maximum age of buffered rows in milliseconds */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+	/** matches any node or field in queries */
+	public static final long ANY = -1;
+
+
+	/**
+	 * opens (or creates) the store in a directory
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public MeasurementStore(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_ROWS, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * opens (or creates) the store in a directory
+	 *
+	 * @param directory
+	 * @param segmentRows maximum number of rows per segment, rounded up to a multiple of BLOCK_ROWS
+	 * @throws IOException
+	 */
+	public MeasurementStore(File directory, int segmentRows) throws IOException {
+		this(directory, segmentRows, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * opens (or creates) the store in a directory
+	 *
+	 * @param directory
+	 * @param segmentRows maximum number of rows per segment, rounded up to a multiple of BLOCK_ROWS,
+	 *            at most MAX_SEGMENT_ROWS
+	 * @param flushInterval maximum age of buffered rows in milliseconds, 0 writes them only if the
+	 *            buffer is full or on flush() and close()
+	 * @throws IOException
+	 */
+	public MeasurementStore(File directory, int segmentRows, long flushInterval) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("MeasurementStore: couldn't create directory '" + directory + "'.");
+		}
+		this.directory = directory;
+		this.segmentRows = Math.min(MAX_SEGMENT_ROWS,
+				Math.max(1, (int) ((segmentRows + (long) BLOCK_ROWS - 1) / BLOCK_ROWS)) * BLOCK_ROWS);
+		this.flushInterval = flushInterval;
+
+		// open existing segments
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().matches("[0-9]{8}\\.rows");
+			}
+		});
+		Arrays.sort(files);
+		for (File file : files) {
+			int id = Integer.parseInt(file.getName().substring(0, 8));
+			_segments.add(new Segment(id));
+		}
+
+		if (_segments.isEmpty() || _segments.get(_segments.size() - 1).rows >= this.segmentRows) {
+			_openSegment(_segments.isEmpty() ? 1 : _segments.get(_segments.size() - 1).id + 1);
+		} else {
+			_active = _segments.get(_segments.size() - 1);
+			_active.recover();
+		}
+
+		if (flushInterval > 0) {
+			Thread flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					_runFlusher();
+				}
+			}, "MeasurementStore " + directory.getName());
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * gets the key a template field is stored under
+	 *
+	 * @param enterpriseNumber
+	 * @param fieldID
+	 * @return key
+	 */
+	public static long getFieldKey(long enterpriseNumber, int fieldID) {
+		return (enterpriseNumber << 16) | (fieldID & 0xFFFF);
+	}
+
+	/**
+	 * gets the key a template field is stored under
+	 *
+	 * @param field
+	 * @return key
+	 */
+	public static long getFieldKey(IPFIXTemplate.Field field) {
+		return getFieldKey(field.enterpriseNumber != null ? field.enterpriseNumber : 0, field.fieldID);
+	}
+
+	/**
+	 * appends a measurement
+	 *
+	 * @param timestamp milliseconds since the epoch
+	 * @param nodeID
+	 * @param fieldKey see getFieldKey()
+	 * @param value
+	 * @throws IOException
+	 */
+	public synchronized void append(long timestamp, long nodeID, long fieldKey, double value) throws IOException {
+		if (_active == null) {
+			throw new IOException("MeasurementStore: store closed.");
+		}
+		if (_active.rows == segmentRows) {
+			_roll();
+		}
+
+		_writeBuffer.putLong(timestamp).putLong(nodeID).putLong(fieldKey).putDouble(value);
+		_active.add(timestamp, nodeID, fieldKey);
+		if (!_writeBuffer.hasRemaining()) {
+			_writeRows();
+		}
+	}
+
+	/**
+	 * writes buffered rows to the segment file
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (_active != null) {
+			_writeRows();
+		}
+	}
+
+	/**
+	 * calls the visitor for every measurement of a node and field in a time range, in the order they were appended
+	 *
+	 * @param nodeID node, ANY for all nodes
+	 * @param fieldKey field, see getFieldKey(), ANY for all fields
+	 * @param from first timestamp (inclusive)
+	 * @param to last timestamp (inclusive)
+	 * @param visitor
+	 * @return number of measurements found
+	 * @throws IOException
+	 */
+	public long query(long nodeID, long fieldKey, long from, long to, Visitor visitor) throws IOException {
+		List<Segment> segments;
+		long activeRows;
+		synchronized (this) {
+			if (_active == null) {
+				throw new IOException("MeasurementStore: store closed.");
+			}
+			_writeRows();
+			segments = new ArrayList<Segment>(_segments);
+			activeRows = _active.rows;
+		}
+
+		long nodeMask = nodeID == ANY ? -1L : _mask(nodeID);
+		long fieldMask = fieldKey == ANY ? -1L : _mask(fieldKey);
+		long count = 0;
+		for (Segment segment : segments) {
+			boolean active = segment == segments.get(segments.size() - 1);
+			long rows = active ? activeRows : segment.rows;
+			if (rows == 0 || segment.maxTime < from || segment.minTime > to) {
+				continue;
+			}
+
+			ByteBuffer data = segment.map(rows, active);
+			ByteBuffer index = segment.index.duplicate();
+			long blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+			for (long block = 0; block < blocks; block++) {
+				int row = (int) (block * BLOCK_ROWS);
+				int end = (int) Math.min(rows, row + BLOCK_ROWS);
+
+				// skip blocks the index rules out (the last block of the active segment isn't indexed yet)
+				if (end - row == BLOCK_ROWS) {
+					int entry = (int) (block * INDEX_ENTRY_SIZE);
+					if (index.getLong(entry + 8) < from || index.getLong(entry) > to
+							|| (index.getLong(entry + 16) & nodeMask) == 0
+							|| (index.getLong(entry + 24) & fieldMask) == 0) {
+						continue;
+					}
+				}
+
+				for (; row < end; row++) {
+					int offset = row * ROW_SIZE; // < 2 GB, see MAX_SEGMENT_ROWS
+					long timestamp = data.getLong(offset);
+					if (timestamp < from || timestamp > to) {
+						continue;
+					}
+					long node = data.getLong(offset + 8);
+					long field = data.getLong(offset + 16);
+					if ((nodeID == ANY || node == nodeID) && (fieldKey == ANY || field == fieldKey)) {
+						visitor.measurement(timestamp, node, field, data.getDouble(offset + 24));
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * gets the number of stored measurements
+	 */
+	public synchronized long size() {
+		long size = 0;
+		for (Segment segment : _segments) {
+			size += segment.rows;
+		}
+		return size;
+	}
+
+	/**
+	 * writes buffered rows and closes the store
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (_active == null) {
+			return;
+		}
+		try {
+			_writeRows();
+			_channel.force(true);
+			_active.index.force();
+		} finally {
+			_channel.close();
+			_active = null;
+			notifyAll(); // stops the flusher
+		}
+	}
+
+
+
+	/* private helper methods */
+	private static long _mask(long key) {
+		return 1L << (Hashing.hash(key) & 63);
+	}
+
+	/** flusher thread: writes the buffered rows every flushInterval until the store is closed */
+	private synchronized void _runFlusher() {
+		try {
+			while (_active != null) {
+				if (_writeBuffer.position() > 0) {
+					try {
+						_writeRows();
+					} catch (IOException e) {
+						e.printStackTrace(); // thrown to the next append() too
+					}
+				}
+				wait(flushInterval);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void _writeRows() throws IOException {
+		_writeBuffer.flip();
+		while (_writeBuffer.hasRemaining()) {
+			_channel.write(_writeBuffer);
+		}
+		_writeBuffer.clear();
+	}
+
+	/** closes the full active segment and starts the next one */
+	private void _roll() throws IOException {
+		_writeRows();
+		_channel.force(true);
+		_active.index.force();
+		_channel.close();
+		_openSegment(_active.id + 1);
+	}
+
+	private void _openSegment(int id) throws IOException {
+		Segment segment = new Segment(id);
+		_segments.add(segment);
+		_active = segment;
+		_active.recover();
+	}
+
+
+
+	/* private member */
+	private final File directory;
+	private final int segmentRows;
+	private final long flushInterval;
+	private final List<Segment> _segments = new ArrayList<Segment>();
+
+	/** segment rows are appended to */
+	private Segment _active;
+	private FileChannel _channel;
+	private final ByteBuffer _writeBuffer = ByteBuffer.allocateDirect(2048 * ROW_SIZE);
+
+
+
+	/* helper classes */
+	/**
+	 * Receives the measurements found by a query.
+	 */
+	public interface Visitor {
+		void measurement(long timestamp, long nodeID, long fieldKey, double value);
+	}
+
+	/**
+	 * Segment file and its index.
+	 */
+	private class Segment {
+		final int id;
+		final File dataFile;
+		/** mapped index, sized for a full segment */
+		final MappedByteBuffer index;
+		/** rows in the segment (including rows in the write buffer for the active segment) */
+		volatile long rows;
+		volatile long minTime = Long.MAX_VALUE;
+		volatile long maxTime = Long.MIN_VALUE;
+
+		/** summary of the block rows are appended to */
+		private long _blockMin, _blockMax, _blockNodes, _blockFields;
+		/** mapping of a full segment */
+		private MappedByteBuffer _data;
+
+		/** opens the segment and its index */
+		Segment(int id) throws IOException {
+			this.id = id;
+			String name = String.format("%08d", id);
+			this.dataFile = new File(directory, name + ".rows");
+			this.rows = dataFile.length() / ROW_SIZE;
+			if (rows > MAX_SEGMENT_ROWS) {
+				throw new IOException("MeasurementStore: segment '" + dataFile + "' is too large to be mapped.");
+			}
+
+			RandomAccessFile indexFile = new RandomAccessFile(new File(directory, name + ".idx"), "rw");
+			try {
+				long indexSize = (Math.max(segmentRows, rows) + BLOCK_ROWS - 1) / BLOCK_ROWS * INDEX_ENTRY_SIZE;
+				if (indexFile.length() < indexSize) {
+					indexFile.setLength(indexSize);
+				}
+				this.index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+			} finally {
+				indexFile.close();
+			}
+
+			// time range of the complete blocks and the rows of a partial last block
+			for (long block = 0; block < rows / BLOCK_ROWS; block++) {
+				int entry = (int) (block * INDEX_ENTRY_SIZE);
+				minTime = Math.min(minTime, index.getLong(entry));
+				maxTime = Math.max(maxTime, index.getLong(entry + 8));
+			}
+			if (rows % BLOCK_ROWS != 0) {
+				ByteBuffer data = _map(rows);
+				for (long row = rows / BLOCK_ROWS * BLOCK_ROWS; row < rows; row++) {
+					long timestamp = data.getLong((int) (row * ROW_SIZE));
+					minTime = Math.min(minTime, timestamp);
+					maxTime = Math.max(maxTime, timestamp);
+				}
+			}
+		}
+
+		/** opens the segment for appending, drops a partial last row and rebuilds the index */
+		void recover() throws IOException {
+			_channel = new RandomAccessFile(dataFile, "rw").getChannel();
+			_channel.truncate(rows * ROW_SIZE);
+			_channel.position(rows * ROW_SIZE);
+
+			long stored = rows;
+			rows = 0;
+			minTime = Long.MAX_VALUE;
+			maxTime = Long.MIN_VALUE;
+			ByteBuffer data = _channel.map(FileChannel.MapMode.READ_ONLY, 0, stored * ROW_SIZE);
+			for (int row = 0; row < stored; row++) {
+				int offset = row * ROW_SIZE;
+				add(data.getLong(offset), data.getLong(offset + 8), data.getLong(offset + 16));
+			}
+		}
+
+		/** accounts for an appended row */
+		void add(long timestamp, long nodeID, long fieldKey) {
+			if (rows % BLOCK_ROWS == 0) {
+				_blockMin = Long.MAX_VALUE;
+				_blockMax = Long.MIN_VALUE;
+				_blockNodes = 0;
+				_blockFields = 0;
+			}
+			_blockMin = Math.min(_blockMin, timestamp);
+			_blockMax = Math.max(_blockMax, timestamp);
+			_blockNodes |= _mask(nodeID);
+			_blockFields |= _mask(fieldKey);
+			if (timestamp < minTime) {
+				minTime = timestamp;
+			}
+			if (timestamp > maxTime) {
+				maxTime = timestamp;
+			}
+
+			// write index entry of the completed block
+			if ((rows + 1) % BLOCK_ROWS == 0) {
+				int entry = (int) (rows / BLOCK_ROWS * INDEX_ENTRY_SIZE);
+				index.putLong(entry, _blockMin);
+				index.putLong(entry + 8, _blockMax);
+				index.putLong(entry + 16, _blockNodes);
+				index.putLong(entry + 24, _blockFields);
+			}
+			rows++;
+		}
+
+		/** maps the first `rows` rows, the mapping of a segment that doesn't grow anymore is kept */
+		ByteBuffer map(long rows, boolean active) throws IOException {
+			if (!active) {
+				synchronized (this) {
+					if (_data == null) {
+						_data = _map(rows);
+					}
+					return _data.duplicate();
+				}
+			}
+			return _map(rows); // active segment, still growing
+		}
+
+		private MappedByteBuffer _map(long rows) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+			try {
+				return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, rows * ROW_SIZE);
+			} finally {
+				file.close();
+			}
+		}
+	}
+}
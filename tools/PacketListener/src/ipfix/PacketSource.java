@@ -0,0 +1,103 @@
+package ipfix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Source of (Tiny)IPFIX packets received from the WSN.
+ *
+ * Sources decode whatever transport they read from into reusable Packets, so
+ * the listener loop doesn't allocate per packet.
+ *
+ * @author Michael Meister
+ */
+public interface PacketSource extends Closeable {
+
+	/**
+	 * reads the next packet
+	 *
+	 * @param packet receives the payload and source address
+	 * @return false at the end of the stream
+	 * @throws IOException
+	 */
+	boolean read(Packet packet) throws IOException;
+
+	/**
+	 * gets a description for console output
+	 */
+	String getName();
+
+
+
+	/**
+	 * Packet received by a PacketSource. Owns a buffer that is reused for every packet read into it.
+	 */
+	public static class Packet {
+
+		/** maximum size of a packet, IPv6 minimum MTU plus SLIP/tunslip overhead */
+		public static final int MAX_SIZE = 2048;
+
+		/** buffer the packet is read into, the (Tiny)IPFIX payload is between position and limit */
+		public final ByteBuffer buffer;
+		/** IPv6 address of the sender, IPv4 addresses are stored as IPv4-mapped IPv6 addresses */
+		public final byte[] sourceAddress = new byte[16];
+		/** node the packet was received from, interned by the pipeline's reader */
+		public IPFIXNode node;
+		/** time the packet was received, milliseconds since the epoch */
+		public long receiveTime;
+		/** System.nanoTime() the packet was queued at, for latency metrics */
+		public long queueTime;
+
+
+		/**
+		 * constructor
+		 */
+		public Packet() {
+			this(ByteBuffer.allocate(MAX_SIZE));
+		}
+
+		/**
+		 * constructor
+		 *
+		 * @param buffer
+		 */
+		public Packet(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * sets the source address
+		 *
+		 * @param address IPv6 (16 bytes) or IPv4 (4 bytes) address
+		 * @param offset of the address in `address`
+		 * @param length 16 or 4
+		 */
+		public void setSourceAddress(byte[] address, int offset, int length) {
+			if (length == 16) {
+				System.arraycopy(address, offset, sourceAddress, 0, 16);
+			} else {
+				Arrays.fill(sourceAddress, 0, 10, (byte) 0);
+				sourceAddress[10] = (byte) 0xff;
+				sourceAddress[11] = (byte) 0xff;
+				System.arraycopy(address, offset, sourceAddress, 12, 4);
+			}
+		}
+
+		/**
+		 * gets the source address as InetAddress (allocates, for console output)
+		 *
+		 * @return address
+		 */
+		public InetAddress getSourceAddress() {
+			try {
+				return InetAddress.getByAddress(sourceAddress);
+			} catch (UnknownHostException e) {
+				return null;
+			}
+		}
+	}
+}
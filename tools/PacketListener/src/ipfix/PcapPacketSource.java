@@ -0,0 +1,385 @@
+package ipfix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import utils.PacketUtils;
+
+/**
+ * Replays IPv6/UDP packets of a pcap or pcapng capture, e.g. of tun0
+ * (`tcpdump -i tun0 -w capture.pcap`). The file is memory-mapped, packets are
+ * copied from the mapping into the packet's buffer.
+ *
+ * Supported link types: raw IP, null/loopback, Ethernet (with VLAN tags) and
+ * Linux cooked captures. Other packets (IPv4, ICMPv6, truncated ones) are skipped.
+ *
+ * Packets are replayed with the pace they were captured at, divided by the speed
+ * (1 is real time, 0 as fast as possible). Their receive time is the capture time.
+ *
+ * @author Michael Meister
+ */
+public class PcapPacketSource implements PacketSource {
+
+	/* link types, see http://www.tcpdump.org/linktypes.html */
+	public static final int LINKTYPE_NULL = 0;
+	public static final int LINKTYPE_ETHERNET = 1;
+	public static final int LINKTYPE_RAW = 101;
+	public static final int LINKTYPE_LOOP = 108;
+	public static final int LINKTYPE_LINUX_SLL = 113;
+	public static final int LINKTYPE_IPV6 = 229;
+	public static final int LINKTYPE_LINUX_SLL2 = 276;
+	/** DLT_RAW of some BSDs */
+	public static final int DLT_RAW_12 = 12;
+	public static final int DLT_RAW_14 = 14;
+
+	/** size of the mapped window of the file */
+	public static final int MAP_SIZE = 1 << 30;
+
+
+	/**
+	 * opens a capture
+	 *
+	 * @param file pcap or pcapng file
+	 * @param speed replay speed, 1 is real time, 0 as fast as possible
+	 * @throws IOException if the file can't be read or isn't a capture
+	 */
+	public PcapPacketSource(File file, double speed) throws IOException {
+		this.name = "pcap " + file.getPath();
+		this.speed = speed;
+		this.file = new RandomAccessFile(file, "r");
+		try {
+			this.channel = this.file.getChannel();
+			this.size = channel.size();
+			_map(0);
+
+			if (!_ensure(0, 4)) {
+				throw new IOException("PcapPacketSource: " + file + " is empty.");
+			}
+			int magic = _map.getInt(0);
+			if (magic == 0x0A0D0D0A) {
+				pcapng = true;
+			} else {
+				_readFileHeader(magic);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean read(Packet packet) throws IOException {
+		while (pcapng ? _nextBlock() : _nextRecord()) {
+			if (_copyPacket(packet)) {
+				_pace();
+				packet.receiveTime = _timestamp / 1000000;
+				return true;
+			}
+			skipped++;
+		}
+		return false;
+	}
+
+	/**
+	 * gets the number of records that weren't IPv6/UDP packets
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_map = null;
+		_view = null;
+		file.close();
+	}
+
+
+
+	/* private helper methods */
+	/** reads the pcap file header, sets byte order, timestamp resolution and link type */
+	private void _readFileHeader(int magic) throws IOException {
+		ByteOrder order;
+		if (magic == 0xA1B2C3D4 || magic == 0xA1B23C4D) {
+			order = ByteOrder.BIG_ENDIAN;
+		} else if (Integer.reverseBytes(magic) == 0xA1B2C3D4 || Integer.reverseBytes(magic) == 0xA1B23C4D) {
+			order = ByteOrder.LITTLE_ENDIAN;
+			magic = Integer.reverseBytes(magic);
+		} else {
+			throw new IOException("PcapPacketSource: " + name + " is no pcap or pcapng file.");
+		}
+		if (!_ensure(0, 24)) {
+			throw new IOException("PcapPacketSource: truncated file header.");
+		}
+		_order = order;
+		_map.order(order);
+		_resolution = magic == 0xA1B23C4D ? 9 : 6;
+		_linkTypes[0] = _map.getInt(20) & 0xFFFF;
+		_position = 24;
+	}
+
+	/** moves to the next pcap record, false at the end of the file */
+	private boolean _nextRecord() throws IOException {
+		if (!_ensure(_position, 16)) {
+			return false;
+		}
+		int offset = (int) (_position - _mapStart);
+		long seconds = _map.getInt(offset) & 0xFFFFFFFFL;
+		long fraction = _map.getInt(offset + 4) & 0xFFFFFFFFL;
+		int captured = _map.getInt(offset + 8);
+		int original = _map.getInt(offset + 12);
+		if (captured < 0 || !_ensure(_position + 16, captured)) {
+			return false;
+		}
+		_timestamp = seconds * 1000000000L + (_resolution == 9 ? fraction : fraction * 1000);
+		_linkType = _linkTypes[0];
+		_data = _position + 16;
+		_length = captured < original ? -1 : captured;
+		_position += 16 + captured;
+		return true;
+	}
+
+	/** moves to the next pcapng packet block, false at the end of the file */
+	private boolean _nextBlock() throws IOException {
+		while (_ensure(_position, 12)) {
+			int offset = (int) (_position - _mapStart);
+			int type = _map.getInt(offset);
+
+			// section header block (its type reads the same in both byte orders),
+			// sets the byte order and starts a new list of interfaces
+			if (type == 0x0A0D0D0A) {
+				_map.order(ByteOrder.BIG_ENDIAN);
+				_order = _map.getInt(offset + 8) == 0x1A2B3C4D ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+				_map.order(_order);
+				_interfaces = 0;
+			}
+			int length = _map.getInt(offset + 4);
+			if (length < 12 || !_ensure(_position, length)) {
+				return false;
+			}
+			offset = (int) (_position - _mapStart);
+			long block = _position;
+			_position += length;
+
+			switch (type) {
+			case 1: // interface description block
+				_addInterface(_map.getShort(offset + 8) & 0xFFFF, _tsresol(offset + 16, offset + length - 4));
+				break;
+			case 6: // enhanced packet block
+				int id = _map.getInt(offset + 8);
+				long units = ((_map.getInt(offset + 12) & 0xFFFFFFFFL) << 32) | (_map.getInt(offset + 16) & 0xFFFFFFFFL);
+				int captured = _map.getInt(offset + 20);
+				int original = _map.getInt(offset + 24);
+				if (id < 0 || id >= _interfaces || captured < 0 || captured > length - 32) {
+					continue;
+				}
+				_timestamp = _toNanos(units, _resolutions[id]);
+				_linkType = _linkTypes[id];
+				_data = block + 28;
+				_length = captured < original ? -1 : captured;
+				return true;
+			case 3: // simple packet block, no timestamp
+				if (_interfaces == 0) {
+					continue;
+				}
+				int originalLength = _map.getInt(offset + 8);
+				_linkType = _linkTypes[0];
+				_data = block + 12;
+				_length = originalLength > length - 16 ? -1 : originalLength;
+				return true;
+			default: // name resolution, statistics, ...
+				break;
+			}
+		}
+		return false;
+	}
+
+	/** registers an interface of the current section */
+	private void _addInterface(int linkType, int resolution) {
+		if (_interfaces == _linkTypes.length) {
+			_linkTypes = Arrays.copyOf(_linkTypes, _interfaces * 2);
+			_resolutions = Arrays.copyOf(_resolutions, _interfaces * 2);
+		}
+		_linkTypes[_interfaces] = linkType;
+		_resolutions[_interfaces] = resolution;
+		_interfaces++;
+	}
+
+	/** if_tsresol option of an interface description block, 6 (microseconds) if there is none */
+	private int _tsresol(int offset, int end) {
+		while (offset + 4 <= end) {
+			int code = _map.getShort(offset) & 0xFFFF;
+			int length = _map.getShort(offset + 2) & 0xFFFF;
+			if (code == 0) {
+				break;
+			}
+			if (code == 9 && length == 1) {
+				return _map.get(offset + 4) & 0xFF;
+			}
+			offset += 4 + ((length + 3) & ~3);
+		}
+		return 6;
+	}
+
+	/** converts a timestamp of an if_tsresol to nanoseconds */
+	private static long _toNanos(long units, int resolution) {
+		int exponent = resolution & 0x7F;
+		if ((resolution & 0x80) != 0) { // power of 2
+			return (units >>> exponent) * 1000000000L
+					+ (long) ((units & ((1L << exponent) - 1)) * 1e9 / (1L << exponent));
+		}
+		long nanos = units;
+		for (int i = exponent; i < 9; i++) {
+			nanos *= 10;
+		}
+		for (int i = 9; i < exponent; i++) {
+			nanos /= 10;
+		}
+		return nanos;
+	}
+
+	/** copies the IPv6/UDP packet of the current record into the packet's buffer */
+	private boolean _copyPacket(Packet packet) {
+		if (_length < 0) {
+			return false;
+		}
+		int offset = (int) (_data - _mapStart);
+		int ip = _ipOffset(offset, _length);
+		if (ip < 0) {
+			return false;
+		}
+		int length = _length - (ip - offset);
+		ByteBuffer buffer = packet.buffer;
+		if (length > buffer.capacity() || !PacketUtils.isUDP6(_map, ip, length)) {
+			return false;
+		}
+
+		_view.limit(ip + length).position(ip);
+		buffer.clear();
+		buffer.put(_view);
+		buffer.flip();
+		buffer.position(PacketUtils.IP_UDP_HEADER_SIZE);
+		PacketUtils.extractSourceAddress(buffer, 0, packet.sourceAddress);
+		return true;
+	}
+
+	/** offset of the IP header behind the link layer header, -1 if it isn't IPv6 */
+	private int _ipOffset(int offset, int length) {
+		switch (_linkType) {
+		case LINKTYPE_RAW:
+		case LINKTYPE_IPV6:
+		case DLT_RAW_12:
+		case DLT_RAW_14:
+			return offset;
+		case LINKTYPE_NULL:
+		case LINKTYPE_LOOP:
+			return offset + 4;
+		case LINKTYPE_ETHERNET:
+			int etherType = length >= 14 ? _u16(offset + 12) : 0;
+			if (etherType == 0x8100 && length >= 18) { // VLAN tag
+				offset += 4;
+				etherType = _u16(offset + 12);
+			}
+			return etherType == 0x86DD ? offset + 14 : -1;
+		case LINKTYPE_LINUX_SLL:
+			return length >= 16 && _u16(offset + 14) == 0x86DD ? offset + 16 : -1;
+		case LINKTYPE_LINUX_SLL2:
+			return length >= 20 && _u16(offset) == 0x86DD ? offset + 20 : -1;
+		default:
+			return -1;
+		}
+	}
+
+	/** unsigned 16 bit value in network byte order, whatever the byte order of the file */
+	private int _u16(int offset) {
+		return ((_map.get(offset) & 0xFF) << 8) | (_map.get(offset + 1) & 0xFF);
+	}
+
+	/** waits until the packet is due */
+	private void _pace() {
+		if (speed <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (_firstTimestamp == Long.MIN_VALUE) {
+			_firstTimestamp = _timestamp;
+			_start = now;
+			return;
+		}
+		long due = _start + (long) ((_timestamp - _firstTimestamp) / speed);
+		while (due - now > 0) {
+			LockSupport.parkNanos(due - now);
+			now = System.nanoTime();
+		}
+	}
+
+	/** makes sure `length` bytes at `position` are mapped, false if the file ends before */
+	private boolean _ensure(long position, int length) throws IOException {
+		if (length < 0 || position + length > size) {
+			return false;
+		}
+		if (position < _mapStart || position + length > _mapStart + _map.capacity()) {
+			if (length > MAP_SIZE) {
+				return false;
+			}
+			_map(position);
+		}
+		return true;
+	}
+
+	private void _map(long position) throws IOException {
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+		map.order(_order);
+		_map = map;
+		_view = map.duplicate();
+		_mapStart = position;
+	}
+
+
+
+	/* private member */
+	private final String name;
+	private final double speed;
+	private final RandomAccessFile file;
+	private FileChannel channel;
+	private long size;
+	private boolean pcapng = false;
+	private long skipped = 0;
+
+	/** mapped window of the file, starting at file offset _mapStart */
+	private MappedByteBuffer _map;
+	/** view of the window packets are copied from */
+	private ByteBuffer _view;
+	private long _mapStart = 0;
+	private ByteOrder _order = ByteOrder.BIG_ENDIAN;
+	/** file offset of the next record or block */
+	private long _position = 0;
+
+	/** link type and timestamp resolution (if_tsresol) per interface */
+	private int[] _linkTypes = new int[4];
+	private int[] _resolutions = new int[4];
+	private int _interfaces = 0;
+	private int _resolution = 6;
+
+	/* current record */
+	private long _data;
+	private int _length;
+	private int _linkType;
+	private long _timestamp;
+
+	/* replay pace */
+	private long _firstTimestamp = Long.MIN_VALUE;
+	private long _start;
+}
@@ -0,0 +1,228 @@
+package ipfix;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+import utils.PacketUtils;
+
+/**
+ * Reads SLIP (RFC 1055) frames from the serial line of the border router
+ * directly, without tunslip6. Frames carrying IPv6/UDP packets are decoded
+ * into the packet's buffer, the payload is handed to the parser.
+ *
+ * Like tunslip6 the source answers the border router's prefix requests ("?P")
+ * if an output stream and a prefix are given. Other frames (debug output of the
+ * mote, ICMPv6, ...) are skipped. Works on any byte stream, e.g. a pty or a file
+ * of recorded SLIP bytes.
+ *
+ * @author Michael Meister
+ */
+public class SLIPPacketSource implements PacketSource {
+
+	/* SLIP special characters */
+	public static final int END = 0xC0;
+	public static final int ESC = 0xDB;
+	public static final int ESC_END = 0xDC;
+	public static final int ESC_ESC = 0xDD;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param in SLIP byte stream
+	 * @param out stream to answer prefix requests on, null to ignore them
+	 * @param prefix 64 bit IPv6 prefix sent on prefix requests, null to ignore them
+	 * @param name description for console output
+	 */
+	public SLIPPacketSource(InputStream in, OutputStream out, byte[] prefix, String name) {
+		this.in = in;
+		this.out = out;
+		this.prefix = prefix;
+		this.name = name;
+	}
+
+	/**
+	 * opens a serial device (or pty). The device has to be configured already,
+	 * e.g. `stty -F /dev/ttyUSB0 115200 raw -echo`.
+	 *
+	 * @param device path to the device, - reads stdin (prefix requests are ignored)
+	 * @param prefix 64 bit IPv6 prefix sent on prefix requests, null to ignore them
+	 * @return source
+	 * @throws IOException
+	 */
+	public static SLIPPacketSource open(String device, byte[] prefix) throws IOException {
+		if (device.equals("-")) {
+			return new SLIPPacketSource(System.in, null, null, "SLIP on stdin");
+		}
+		FileInputStream in = new FileInputStream(device);
+		FileOutputStream out = null;
+		if (prefix != null) {
+			try {
+				out = new FileOutputStream(device);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		return new SLIPPacketSource(in, out, prefix, "SLIP on " + device);
+	}
+
+	/**
+	 * sets stream debug output of the mote is printed to, null (default) discards it
+	 *
+	 * @param debug
+	 */
+	public void setDebugStream(PrintStream debug) {
+		this.debug = debug;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean read(Packet packet) throws IOException {
+		ByteBuffer frame = packet.buffer;
+		int capacity = frame.capacity();
+
+		while (true) {
+			frame.clear();
+			int length = 0;
+			boolean escaped = false;
+			boolean overflow = false;
+
+			// decode frame up to the next END
+			while (true) {
+				int c = _next();
+				if (c < 0) {
+					return false;
+				}
+
+				if (c == END) {
+					break;
+				} else if (c == ESC) {
+					escaped = true;
+					continue;
+				} else if (escaped) {
+					escaped = false;
+					if (c == ESC_END) {
+						c = END;
+					} else if (c == ESC_ESC) {
+						c = ESC;
+					}
+				}
+
+				if (length < capacity) {
+					frame.put(length, (byte) c);
+				} else {
+					overflow = true;
+				}
+				length++;
+			}
+
+			if (length == 0 || overflow) {
+				continue;
+			}
+
+			// IPv6/UDP packet
+			if (PacketUtils.isUDP6(frame, 0, length)) {
+				PacketUtils.extractSourceAddress(frame, 0, packet.sourceAddress);
+				frame.limit(length);
+				frame.position(PacketUtils.IP_UDP_HEADER_SIZE);
+				packet.receiveTime = System.currentTimeMillis();
+				return true;
+			}
+
+			// prefix request of the border router
+			if (length >= 2 && frame.get(0) == '?' && frame.get(1) == 'P') {
+				_sendPrefix();
+			} else if (debug != null && _isText(frame, length)) {
+				for (int i = 0; i < length; i++) {
+					debug.write(frame.get(i));
+				}
+				debug.flush();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+
+
+	/* private helper methods */
+	/** next byte of the stream, reads in blocks */
+	private int _next() throws IOException {
+		if (_pos == _count) {
+			_count = in.read(_buffer);
+			_pos = 0;
+			if (_count <= 0) {
+				_count = 0;
+				return -1;
+			}
+		}
+		return _buffer[_pos++] & 0xFF;
+	}
+
+	/** whether a frame is printable text (debug output), like tunslip6's is_sensible_string() */
+	private static boolean _isText(ByteBuffer frame, int length) {
+		for (int i = 0; i < length; i++) {
+			int c = frame.get(i) & 0xFF;
+			if ((c < 0x20 || c > 0x7E) && c != '\t' && c != '\r' && c != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** answers prefix request like tunslip6: "!P" followed by the 8 prefix bytes */
+	private void _sendPrefix() throws IOException {
+		if (out == null || prefix == null) {
+			return;
+		}
+		out.write(END);
+		out.write('!');
+		out.write('P');
+		for (int i = 0; i < 8; i++) {
+			int c = prefix[i] & 0xFF;
+			if (c == END) {
+				out.write(ESC);
+				out.write(ESC_END);
+			} else if (c == ESC) {
+				out.write(ESC);
+				out.write(ESC_ESC);
+			} else {
+				out.write(c);
+			}
+		}
+		out.write(END);
+		out.flush();
+	}
+
+
+
+	/* private member */
+	private final InputStream in;
+	private final OutputStream out;
+	private final byte[] prefix;
+	private final String name;
+	private PrintStream debug = null;
+
+	private final byte[] _buffer = new byte[4096];
+	private int _pos = 0;
+	private int _count = 0;
+}
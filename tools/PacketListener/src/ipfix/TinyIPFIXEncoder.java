@@ -0,0 +1,282 @@
+package ipfix;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes TinyIPFIX messages like the nodes do (see TinyIPFIX/tinyipfix.c),
+ * for load tests and benchmarks of the listener.
+ *
+ * The compressed header is 3 to 5 bytes: 2 flag bits (extended sequence
+ * number, extended set ID), 4 bits set lookup, 10 bits message length, the 1
+ * or 2 byte sequence number and the optional extended set ID byte. Templates
+ * and data are a single set without set header.
+ *
+ * Set IDs are encoded the way TinyIPFIXParser decodes them: 2 and 256 by their
+ * set lookup, other data set IDs need the extended set ID field.
+ *
+ * @author Michael Meister
+ */
+public class TinyIPFIXEncoder {
+
+	/** length field is 10 bits long */
+	public static final int MAX_MSG_SIZE = 1023;
+	public static final int MAX_SEQ_SMALL = 255;
+	public static final int MAX_SEQ_LARGE = 65535;
+	public static final int TEMPLATE_SET_ID = 2;
+	public static final int DATA_SET_ID = 256;
+	/** sequence number of template messages */
+	public static final int TEMPLATE_SEQ_NUM = 0xFFFF;
+
+	/** enterprise number of the OpenMote fields */
+	public static final long OPENMOTE_ENTERPRISE_NUMBER = 0x12345678L;
+
+
+	/**
+	 * constructor, encoder without fields
+	 *
+	 * @param extendedSequenceNumber use 2 byte sequence numbers (EXTENDED_HEADER_SEQ)
+	 * @param extendedSetID add the extended set ID field (EXTENDED_HEADER_SET_ID)
+	 */
+	public TinyIPFIXEncoder(boolean extendedSequenceNumber, boolean extendedSetID) {
+		_extendedSequenceNumber = extendedSequenceNumber;
+		_extendedSetID = extendedSetID;
+	}
+
+	/**
+	 * creates an encoder for the fields of the OpenMote (hw_module/openmote.h):
+	 * temperature, humidity, light, time, nodeID and pull flag
+	 *
+	 * @param extendedSequenceNumber
+	 * @param extendedSetID
+	 * @return encoder
+	 */
+	public static TinyIPFIXEncoder openMote(boolean extendedSequenceNumber, boolean extendedSetID) {
+		TinyIPFIXEncoder encoder = new TinyIPFIXEncoder(extendedSequenceNumber, extendedSetID);
+		encoder.addField(0x80B0, 2, OPENMOTE_ENTERPRISE_NUMBER); // SHT12 temperature
+		encoder.addField(0x80B1, 2, OPENMOTE_ENTERPRISE_NUMBER); // SHT12 humidity
+		encoder.addField(0x80B2, 2, OPENMOTE_ENTERPRISE_NUMBER); // MAX44009 light
+		encoder.addField(0x80B3, 4, OPENMOTE_ENTERPRISE_NUMBER); // internal clock
+		encoder.addField(0x80B4, 2, OPENMOTE_ENTERPRISE_NUMBER); // nodeID
+		encoder.addField(0x80B5, 1, OPENMOTE_ENTERPRISE_NUMBER); // pull flag
+		return encoder;
+	}
+
+	/**
+	 * adds a field to the template
+	 *
+	 * @param elementID field ID, the enterprise bit is its MSB
+	 * @param length 1, 2, 4 or 8 bytes
+	 * @param enterpriseNumber only encoded if the enterprise bit is set
+	 */
+	public void addField(int elementID, int length, long enterpriseNumber) {
+		if (length != 1 && length != 2 && length != 4 && length != 8) {
+			throw new IllegalArgumentException("TinyIPFIXEncoder: unsupported field length " + length + ".");
+		}
+		_fields.add(new int[] { elementID, length, (int) enterpriseNumber });
+	}
+
+	/**
+	 * gets the number of fields
+	 */
+	public int getFieldCount() {
+		return _fields.size();
+	}
+
+	/**
+	 * gets the field ID of a field, including the enterprise bit
+	 */
+	public int getFieldID(int field) {
+		return _fields.get(field)[0];
+	}
+
+	/**
+	 * gets the length of a field
+	 */
+	public int getFieldLength(int field) {
+		return _fields.get(field)[1];
+	}
+
+	/**
+	 * gets the enterprise number of a field
+	 */
+	public long getEnterpriseNumber(int field) {
+		return _fields.get(field)[2] & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * gets the length of the message header (MSG_HEADER_SIZE)
+	 */
+	public int getHeaderLength() {
+		return 3 + (_extendedSequenceNumber ? 1 : 0) + (_extendedSetID ? 1 : 0);
+	}
+
+	/**
+	 * gets the length of template messages
+	 */
+	public int getTemplateLength() {
+		int length = getHeaderLength() + 4;
+		for (int[] field : _fields) {
+			length += (field[0] & 0x8000) != 0 ? 8 : 4;
+		}
+		return length;
+	}
+
+	/**
+	 * gets the length of data messages
+	 */
+	public int getDataLength() {
+		int length = getHeaderLength();
+		for (int[] field : _fields) {
+			length += field[1];
+		}
+		return length;
+	}
+
+	/**
+	 * gets the sequence number following `sequenceNumber`, wraps like the nodes' counter
+	 *
+	 * @param sequenceNumber
+	 * @return next sequence number
+	 */
+	public int nextSequenceNumber(int sequenceNumber) {
+		return (sequenceNumber + 1) & (_extendedSequenceNumber ? MAX_SEQ_LARGE : MAX_SEQ_SMALL);
+	}
+
+	/**
+	 * writes a message header (build_msg_header)
+	 *
+	 * @param out buffer, written at its position
+	 * @param setID
+	 * @param length of the whole message
+	 * @param sequenceNumber
+	 * @return header length
+	 */
+	public int encodeHeader(ByteBuffer out, int setID, int length, int sequenceNumber) {
+		if (length > MAX_MSG_SIZE) {
+			throw new IllegalArgumentException("TinyIPFIXEncoder: message too long (" + length + " bytes).");
+		}
+
+		// set lookup and extended set ID byte
+		int setLookup;
+		int extended = 0;
+		if (setID == TEMPLATE_SET_ID) {
+			setLookup = 1;
+			extended = 1;
+		} else if (setID == DATA_SET_ID) {
+			setLookup = 2;
+			extended = 2;
+		} else if (!_extendedSetID) {
+			throw new IllegalArgumentException("TinyIPFIXEncoder: set ID " + setID + " needs the extended set ID field.");
+		} else if ((setID & 0xFF) == 0 && setID <= 0xFF00) {
+			setLookup = 0;
+			extended = setID >> 8;
+		} else if ((setID >> 8) > 2 && (setID >> 8) < 0x0F) {
+			setLookup = setID >> 8;
+			extended = setID & 0xFF;
+		} else {
+			throw new IllegalArgumentException("TinyIPFIXEncoder: set ID " + setID + " can't be encoded.");
+		}
+
+		int flags = (_extendedSequenceNumber ? 0x40 : 0) | (_extendedSetID ? 0x80 : 0);
+		out.put((byte) (flags | (setLookup << 2) | (length >> 8)));
+		out.put((byte) length);
+		if (_extendedSequenceNumber) {
+			out.putShort((short) sequenceNumber);
+		} else {
+			out.put((byte) sequenceNumber);
+		}
+		if (_extendedSetID) {
+			out.put((byte) extended);
+		}
+		return getHeaderLength();
+	}
+
+	/**
+	 * writes a template message (build_template)
+	 *
+	 * @param out buffer, written at its position
+	 * @param templateID set ID of the data messages the template describes
+	 * @return message length
+	 */
+	public int encodeTemplate(ByteBuffer out, int templateID) {
+		int length = getTemplateLength();
+		encodeHeader(out, TEMPLATE_SET_ID, length, TEMPLATE_SEQ_NUM);
+		out.putShort((short) templateID);
+		out.putShort((short) _fields.size());
+		for (int[] field : _fields) {
+			out.putShort((short) field[0]);
+			out.putShort((short) field[1]);
+			if ((field[0] & 0x8000) != 0) {
+				out.putInt(field[2]);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * writes a data message (build_data_payload)
+	 *
+	 * @param out buffer, written at its position
+	 * @param setID
+	 * @param sequenceNumber
+	 * @param values one per field, truncated to the field length
+	 * @return message length
+	 */
+	public int encodeData(ByteBuffer out, int setID, int sequenceNumber, long[] values) {
+		int length = getDataLength();
+		encodeHeader(out, setID, length, sequenceNumber);
+		for (int i = 0; i < _fields.size(); i++) {
+			switch (_fields.get(i)[1]) {
+			case 1:
+				out.put((byte) values[i]);
+				break;
+			case 2:
+				out.putShort((short) values[i]);
+				break;
+			case 4:
+				out.putInt((int) values[i]);
+				break;
+			case 8:
+				out.putLong(values[i]);
+				break;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * creates a template message
+	 *
+	 * @param templateID
+	 * @return message
+	 */
+	public byte[] template(int templateID) {
+		ByteBuffer out = ByteBuffer.allocate(getTemplateLength());
+		encodeTemplate(out, templateID);
+		return out.array();
+	}
+
+	/**
+	 * creates a data message
+	 *
+	 * @param setID
+	 * @param sequenceNumber
+	 * @param values
+	 * @return message
+	 */
+	public byte[] data(int setID, int sequenceNumber, long[] values) {
+		ByteBuffer out = ByteBuffer.allocate(getDataLength());
+		encodeData(out, setID, sequenceNumber, values);
+		return out.array();
+	}
+
+
+
+	/* private member */
+	private final boolean _extendedSequenceNumber;
+	private final boolean _extendedSetID;
+	/** element ID, length, enterprise number per field */
+	private final List<int[]> _fields = new ArrayList<int[]>();
+}
@@ -0,0 +1,455 @@
+package ipfix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import utils.PacketUtils;
+
+/**
+ * Simulates a WSN of virtual OpenMote nodes sending TinyIPFIX messages, for
+ * load and soak tests of the listener.
+ *
+ * Every node sends its template on start and again every template interval,
+ * and data messages at the configured rate. The nodes are staggered evenly
+ * over the send period. Messages can be lost (the node's sequence number
+ * advances anyway) or reordered (held back and sent after the node's next
+ * message). Sensor values follow a slow random walk per node.
+ *
+ * One thread drives all nodes, so 10k+ nodes run on one machine; the
+ * messages are handed to an Output: SLIP frames on a stream (pipe, pty, file)
+ * or UDP datagrams.
+ *
+ * @author Michael Meister
+ */
+public class TinyIPFIXGenerator {
+
+	/** nodeID of the first node, 1 is the border router */
+	public static final int DEFAULT_FIRST_NODE = 2;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param encoder encodes the messages, its fields are filled with OpenMote-like values
+	 * @param output receives the messages
+	 * @param nodes number of virtual nodes
+	 */
+	public TinyIPFIXGenerator(TinyIPFIXEncoder encoder, Output output, int nodes) {
+		if (nodes < 1 || nodes > 0xFFFF - DEFAULT_FIRST_NODE) {
+			throw new IllegalArgumentException("TinyIPFIXGenerator: invalid number of nodes " + nodes + ".");
+		}
+		_encoder = encoder;
+		_output = output;
+		_nodes = nodes;
+	}
+
+	/**
+	 * sets the data messages each node sends per second, 0 (default) sends as fast as possible
+	 */
+	public void setRate(double messagesPerSecond) {
+		_rate = messagesPerSecond;
+	}
+
+	/**
+	 * sets the interval templates are resent in, 0 sends them only on start (default)
+	 */
+	public void setTemplateInterval(long milliseconds) {
+		_templateInterval = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+	}
+
+	/**
+	 * sets the probability a message is lost
+	 */
+	public void setLoss(double probability) {
+		_loss = probability;
+	}
+
+	/**
+	 * sets the probability a data message is sent after the node's next message
+	 */
+	public void setReorder(double probability) {
+		_reorder = probability;
+	}
+
+	/**
+	 * sets the set ID of the data messages (default 256)
+	 */
+	public void setDataSetID(int setID) {
+		_setID = setID;
+	}
+
+	/**
+	 * sets the nodeID of the first node, nodes are numbered consecutively
+	 */
+	public void setFirstNode(int nodeID) {
+		_firstNode = nodeID;
+	}
+
+	/**
+	 * sets the seed of loss, reordering and sensor values
+	 */
+	public void setSeed(long seed) {
+		_random.setSeed(seed);
+	}
+
+	/**
+	 * gets the nodeID of a node
+	 *
+	 * @param node index of the node
+	 * @return nodeID
+	 */
+	public long getNodeID(int node) {
+		return _firstNode + node;
+	}
+
+	/**
+	 * runs the nodes until `messages` data messages per node have been generated,
+	 * the time is up or the thread is interrupted
+	 *
+	 * @param messages data messages per node, 0 for no limit
+	 * @param duration in milliseconds, 0 for no limit
+	 * @throws IOException of the output
+	 */
+	public void run(long messages, long duration) throws IOException {
+		int dataLength = _encoder.getDataLength();
+		byte[] message = new byte[Math.max(_encoder.getTemplateLength(), dataLength)];
+		ByteBuffer out = ByteBuffer.wrap(message);
+		byte[][] held = new byte[_nodes][];
+		long[] values = new long[_encoder.getFieldCount()];
+		int[] sequenceNumbers = new int[_nodes];
+		long[] templateSent = new long[_nodes];
+		short[] temperature = new short[_nodes];
+		short[] humidity = new short[_nodes];
+		for (int i = 0; i < _nodes; i++) {
+			temperature[i] = (short) (1800 + _random.nextInt(800));
+			humidity[i] = (short) (3000 + _random.nextInt(3000));
+		}
+
+		long start = System.nanoTime();
+		long end = duration > 0 ? start + TimeUnit.MILLISECONDS.toNanos(duration) : Long.MAX_VALUE;
+		// time between two messages of the network
+		double interval = _rate > 0 ? 1e9 / (_rate * _nodes) : 0;
+
+		for (long n = 0; messages <= 0 || n < messages * _nodes; n++) {
+			int node = (int) (n % _nodes);
+			if (node == 0 && Thread.currentThread().isInterrupted()) {
+				break;
+			}
+
+			// wait for the node's turn
+			long now = System.nanoTime();
+			if (interval > 0) {
+				long due = start + (long) (n * interval);
+				if (due - now > 1000000) {
+					_output.flush();
+					LockSupport.parkNanos(due - now);
+					now = System.nanoTime();
+				}
+			}
+			if (now - end > 0) {
+				break;
+			}
+			long nodeID = getNodeID(node);
+
+			// template on start and every template interval
+			if (n < _nodes || (_templateInterval > 0 && now - templateSent[node] >= _templateInterval)) {
+				templateSent[node] = now;
+				out.clear();
+				int length = _encoder.encodeTemplate(out, _setID);
+				_send(nodeID, message, length);
+				_templates++;
+			}
+
+			// sensor values
+			temperature[node] += _random.nextInt(5) - 2;
+			humidity[node] += _random.nextInt(5) - 2;
+			for (int i = 0; i < values.length; i++) {
+				values[i] = _value(i, nodeID, now - start, temperature[node], humidity[node]);
+			}
+			sequenceNumbers[node] = _encoder.nextSequenceNumber(sequenceNumbers[node]);
+			out.clear();
+			int length = _encoder.encodeData(out, _setID, sequenceNumbers[node], values);
+			_data++;
+
+			// hold back or send, with the message held back before
+			byte[] previous = held[node];
+			if (previous == null && _reorder > 0 && _random.nextDouble() < _reorder) {
+				held[node] = new byte[dataLength];
+				System.arraycopy(message, 0, held[node], 0, length);
+				_reordered++;
+				continue;
+			}
+			_send(nodeID, message, length);
+			if (previous != null) {
+				held[node] = null;
+				_send(nodeID, previous, previous.length);
+			}
+		}
+
+		// flush held back messages
+		for (int node = 0; node < _nodes; node++) {
+			if (held[node] != null) {
+				_send(getNodeID(node), held[node], held[node].length);
+			}
+		}
+		_output.flush();
+	}
+
+	/**
+	 * gets the number of generated data messages, including lost ones
+	 */
+	public long getDataMessages() {
+		return _data;
+	}
+
+	/**
+	 * gets the number of generated template messages, including lost ones
+	 */
+	public long getTemplateMessages() {
+		return _templates;
+	}
+
+	/**
+	 * gets the number of messages handed to the output
+	 */
+	public long getSentMessages() {
+		return _sent;
+	}
+
+	/**
+	 * gets the number of lost messages
+	 */
+	public long getLostMessages() {
+		return _lost;
+	}
+
+	/**
+	 * gets the number of reordered data messages
+	 */
+	public long getReorderedMessages() {
+		return _reordered;
+	}
+
+
+
+	/* private helper methods */
+	private void _send(long nodeID, byte[] message, int length) throws IOException {
+		if (_loss > 0 && _random.nextDouble() < _loss) {
+			_lost++;
+			return;
+		}
+		_output.send(nodeID, message, length);
+		_sent++;
+	}
+
+	/** value of a field like the OpenMote sends it (raw, enriched with tinyIPFIX-conf.xml) */
+	private long _value(int field, long nodeID, long elapsed, short temperature, short humidity) {
+		switch (_encoder.getFieldID(field)) {
+		case 0x80B0:
+			return temperature;
+		case 0x80B1:
+			return humidity;
+		case 0x80B2:
+			return 200 + (nodeID * 37 + (elapsed >> 30)) % 2000;
+		case 0x80B3:
+			return TimeUnit.NANOSECONDS.toSeconds(elapsed);
+		case 0x80B4:
+			return nodeID;
+		default:
+			return 0;
+		}
+	}
+
+
+
+	/* private member */
+	private final TinyIPFIXEncoder _encoder;
+	private final Output _output;
+	private final int _nodes;
+	private final Random _random = new Random();
+
+	private double _rate = 0;
+	private long _templateInterval = 0;
+	private double _loss = 0;
+	private double _reorder = 0;
+	private int _setID = TinyIPFIXEncoder.DATA_SET_ID;
+	private int _firstNode = DEFAULT_FIRST_NODE;
+
+	private long _data = 0;
+	private long _templates = 0;
+	private long _sent = 0;
+	private long _lost = 0;
+	private long _reordered = 0;
+
+
+
+	/* helper classes */
+	/**
+	 * Receives the generated messages. Called by the generator's thread only.
+	 */
+	public interface Output extends Closeable {
+		/**
+		 * sends a message of a node
+		 *
+		 * @param nodeID
+		 * @param message buffer holding the message, only valid during the call
+		 * @param length of the message
+		 * @throws IOException
+		 */
+		void send(long nodeID, byte[] message, int length) throws IOException;
+
+		/**
+		 * called before the generator waits
+		 */
+		void flush() throws IOException;
+	}
+
+	/**
+	 * Writes the messages as IPv6/UDP packets in SLIP frames, like the border
+	 * router does on its serial line. Read them with SLIPPacketSource, e.g. through
+	 * a pipe or a pty pair (`socat pty,raw,echo=0,link=/tmp/wsn0 pty,raw,echo=0,link=/tmp/wsn1`).
+	 */
+	public static class SLIPOutput implements Output {
+
+		/**
+		 * constructor
+		 *
+		 * @param out stream to write the frames to
+		 * @param prefix 64 bit prefix of the node addresses
+		 */
+		public SLIPOutput(OutputStream out, byte[] prefix) {
+			this.out = out;
+			System.arraycopy(prefix, 0, packet, PacketUtils.IP_SOURCE_ADDRESS_OFFSET, 8);
+			System.arraycopy(prefix, 0, packet, PacketUtils.IP_DESTINATION_ADDRESS_OFFSET, 8);
+			packet[0] = 0x60;
+			packet[PacketUtils.IP_NEXT_HEADER_OFFSET] = PacketUtils.IP_PROTOCOL_UDP;
+			packet[7] = 64; // hop limit
+			packet[PacketUtils.IP_DESTINATION_ADDRESS_OFFSET + 15] = 1; // border router
+			_putShort(40, UDPPacketSource.DEFAULT_PORT); // source port
+			_putShort(42, UDPPacketSource.DEFAULT_PORT); // destination port
+		}
+
+		@Override
+		public void send(long nodeID, byte[] message, int length) throws IOException {
+			// interface identifier of the node, the nodeID in its last 16 bits
+			packet[PacketUtils.IP_SOURCE_ADDRESS_OFFSET + 8] = 0x02;
+			packet[PacketUtils.IP_SOURCE_ADDRESS_OFFSET + 14] = (byte) (nodeID >> 8);
+			packet[PacketUtils.IP_SOURCE_ADDRESS_OFFSET + 15] = (byte) nodeID;
+			_putShort(4, 8 + length); // payload length
+			_putShort(44, 8 + length); // UDP length
+			System.arraycopy(message, 0, packet, PacketUtils.IP_UDP_HEADER_SIZE, length);
+
+			// SLIP frame
+			int total = PacketUtils.IP_UDP_HEADER_SIZE + length;
+			if (buffer.length - count < 2 * total + 2) {
+				flush();
+			}
+			buffer[count++] = (byte) SLIPPacketSource.END;
+			for (int i = 0; i < total; i++) {
+				int c = packet[i] & 0xFF;
+				if (c == SLIPPacketSource.END) {
+					buffer[count++] = (byte) SLIPPacketSource.ESC;
+					buffer[count++] = (byte) SLIPPacketSource.ESC_END;
+				} else if (c == SLIPPacketSource.ESC) {
+					buffer[count++] = (byte) SLIPPacketSource.ESC;
+					buffer[count++] = (byte) SLIPPacketSource.ESC_ESC;
+				} else {
+					buffer[count++] = (byte) c;
+				}
+			}
+			buffer[count++] = (byte) SLIPPacketSource.END;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.write(buffer, 0, count);
+			out.flush();
+			count = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				out.close();
+			}
+		}
+
+		private void _putShort(int offset, int value) {
+			packet[offset] = (byte) (value >> 8);
+			packet[offset + 1] = (byte) value;
+		}
+
+		private final OutputStream out;
+		private final byte[] packet = new byte[PacketUtils.IP_UDP_HEADER_SIZE + TinyIPFIXEncoder.MAX_MSG_SIZE];
+		private final byte[] buffer = new byte[64 * 1024];
+		private int count = 0;
+	}
+
+	/**
+	 * Sends the messages as UDP datagrams, every node from its own socket bound
+	 * to 127.0.x.y with x.y its nodeID, so the listener (UDPPacketSource) tells
+	 * the nodes apart. Needs a file descriptor per node (`ulimit -n`).
+	 */
+	public static class UDPOutput implements Output {
+
+		/**
+		 * constructor
+		 *
+		 * @param target address of the listener
+		 */
+		public UDPOutput(SocketAddress target) {
+			this.target = target;
+		}
+
+		@Override
+		public void send(long nodeID, byte[] message, int length) throws IOException {
+			int node = (int) (nodeID & 0xFFFF);
+			DatagramChannel channel = channels[node];
+			if (channel == null) {
+				channel = DatagramChannel.open();
+				channel.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[] { 127, 0, (byte) (node >> 8), (byte) node }), 0));
+				channel.connect(target);
+				channels[node] = channel;
+			}
+			buffer.clear();
+			buffer.put(message, 0, length).flip();
+			channel.write(buffer);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() throws IOException {
+			IOException error = null;
+			for (DatagramChannel channel : channels) {
+				try {
+					if (channel != null) {
+						channel.close();
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+		}
+
+		private final SocketAddress target;
+		private final DatagramChannel[] channels = new DatagramChannel[0x10000];
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(TinyIPFIXEncoder.MAX_MSG_SIZE);
+	}
+}
@@ -1,238 +1,339 @@
-package ipfix;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-
-import utils.Converter;
-import utils.PacketUtils;
-
-/**
- * Listens to the USB device using the tunslip program, parses the input and
- * enriches the data with the given metadata. It handles IPFIX messages as well
- * as tinyIPFIX ones.
- * 
- * @author Michael Meister
- */
-public class TinyIPFIXListener implements Runnable {
-
-	private TinyIPFIXParser parser;
-	private IPFIXEnricher enricher;
-
-	private BufferedReader stdInput;
-	private Process tunslip6Process;
-	private static final String TUNSLIP6 = "./tunslip6";
-
-	//please adjust path for tunslip application
-	String fullCommand = "sudo /home/livio/workspace/contiki/tools/tunslip6 -s /dev/ttyUSB0 aaaa:1/64 -v5";
-
-	private String tunslip6Args;
-	private String usbDevice;
-	private FileWriter fileWriter;
-
-	/**
-	 * Listens to the USB device using the tunslip program, parses the input and
-	 * enriches the data with the given metadata.
-	 * 
-	 * @param pathToMetadata
-	 *            specifies path to the metadata file used to enrich incoming
-	 *            packets
-	 * @param usbDevice
-	 *            specifies the path to the USB device to listen to
-	 * @param outputFile
-	 *            specifies the file where the parsed and enriched packet data
-	 *            is stored. If NULL no packets are stored.
-	 * @throws Exception
-	 */
-	public TinyIPFIXListener(String pathToMetadata, String usbDevice, File outputFile)
-			throws Exception {
-		this.usbDevice = usbDevice;
-		if (outputFile != null) {
-			this.fileWriter = new FileWriter(outputFile, true);
-		}
-		this.tunslip6Args = "-s" + " " + usbDevice + " " + "aaaa::1/64 -v5";
-
-		File usbDeviceFile = new File(usbDevice);
-		if (!usbDeviceFile.exists()) {
-			throw new IOException("Invalid packet USB port. Device file '" + usbDevice
-					+ "' does not exist.");
-		}
-
-		// create parser an enricher instance
-		parser = new TinyIPFIXParser();
-		enricher = new IPFIXEnricher(pathToMetadata);
-
-		new Thread(this).start();
-	}
-
-	/**
-	 * Listens to the default USB device using the tunslip program, parses the
-	 * input and enriches the data with the given metadata.
-	 * 
-	 * @param pathToMetadata
-	 *            specifies path to the metadata file used to enrich incoming
-	 *            packets
-	 * @param usbDevice
-	 *            specifies the path to the USB device to listen to
-	 * @throws Exception
-	 */
-	public TinyIPFIXListener(String pathToMetadata, String usbDevice) throws Exception {
-		this(pathToMetadata, usbDevice, null);
-	}
-
-	/**
-	 * Listens to the default USB device using the tunslip program, parses the
-	 * input and enriches the data with the given metadata.
-	 * 
-	 * @param pathToMetadata
-	 *            specifies path to the metadata file used to enrich incoming
-	 *            packets
-	 * @throws Exception
-	 */
-	public TinyIPFIXListener(String pathToMetadata) throws Exception {
-		this(pathToMetadata, "/dev/ttyUSB0");
-	}
-
-	/**
-	 * Get log messages of the parser.
-	 */
-	public String getLog() {
-		return parser.getLog();
-	}
-
-	/**
-	 * Worker thread
-	 */
-	@Override
-	public void run() {
-
-		System.out.println("Listening on USB device: " + usbDevice);
-
-		//String[] fullCommand = { "/bin/bash", "-c",
-			//	"echo \"contiki\" | sudo -S" + " " + TUNSLIP6 + " " + tunslip6Args };
-		
-
-		try {
-			tunslip6Process = Runtime.getRuntime().exec(fullCommand);
-			stdInput = new BufferedReader(new InputStreamReader(tunslip6Process.getInputStream()));
-		} catch (Exception e) {
-			System.err.println("Exception when executing '" + fullCommand + "'.");
-			System.err.println("Exiting packet listener...");
-			e.printStackTrace();
-			System.exit(1);
-		}
-
-		try {
-			while (!Thread.interrupted()) {
-
-				// read packet from input stream
-				DataPacket p;
-				try {
-					p = readPacket();
-				} catch (Exception e) {
-					return;
-				}
-
-				// parse and enrich incoming packets
-				if (p != null && p.data.length != 0) {
-					try {
-						// parse packet
-						Map<String, List<IPFIXField>> fields = parser.parse(p.data, p.address);
-
-						// print parsed packet to console and write it
-						// to output file
-						System.out.print(parser.getLog());
-						if (fileWriter != null) {
-							fileWriter.write(parser.getLog());
-							fileWriter.flush();
-						}
-
-						// enrich received fields
-						if (fields != null && fields.size() > 0) {
-							List<List<IPFIXField>> fieldList = new ArrayList<List<IPFIXField>>(
-									fields.values());
-							for (IPFIXField field : fieldList.get(0)) {
-								enricher.enrich(field);
-
-								// print enriched field to console and write it
-								// to output file
-								System.out.print(enricher.getLog());
-								if (fileWriter != null) {
-									fileWriter.write(enricher.getLog());
-									fileWriter.flush();
-								}
-							}
-						}
-					} catch (TinyIPFIXParser.ParseException e) {
-						System.err.println("COULDN'T PARSE IPFIX PACKET:");
-						e.printStackTrace();
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-
-				} else {
-					// no payload received
-					break;
-				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			// clean up
-			try {
-				stdInput.close();
-				tunslip6Process.destroy();
-				fileWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-
-	/**
-	 * Read packets from input stream of tunslip.
-	 * 
-	 * @return datapacket packet containing the payload and source address of
-	 *         the original packet.
-	 * @throws IOException
-	 */
-	private DataPacket readPacket() throws IOException {
-		String line;
-		byte[] packet;
-
-		while (true) {
-			line = stdInput.readLine();
-
-			if (line != null && line.endsWith("write TUN")) {
-				line = stdInput.readLine();
-				line = line.substring(5);
-				packet = Converter.hexStringToByteArray(line.replaceAll(" ", ""));
-				try {
-					return new DataPacket(PacketUtils.extractPayload(packet),
-							PacketUtils.extractSourceAddress(packet));
-				} catch (Exception e) {
-					throw new IOException(e);
-				}
-			}
-		}
-	}
-
-	/**
-	 * Class representing the result of readPacket() method.
-	 */
-	protected class DataPacket {
-		InetAddress address;
-		byte[] data;
-
-		public DataPacket(byte[] data, InetAddress address) {
-			this.data = data;
-			this.address = address;
-		}
-	}
-}
+package ipfix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import utils.AsyncFileWriter;
+
+/**
+ * Listens to the USB device using the tunslip program (or any other
+ * PacketSource), parses the input and enriches the data with the given
+ * metadata. It handles IPFIX messages as well as tinyIPFIX ones.
+ * 
+ * @author Michael Meister
+ */
+public class TinyIPFIXListener implements Runnable {
+
+	private TinyIPFIXPipeline pipeline;
+
+	private PacketSource source;
+	private static final String TUNSLIP6 = "./tunslip6";
+	/** maximum number of events queued for the console */
+	private static final int CONSOLE_QUEUE_SIZE = 16 * 1024;
+
+	//please adjust path for tunslip application
+	String fullCommand = "sudo /home/livio/workspace/contiki/tools/tunslip6 -s /dev/ttyUSB0 aaaa:1/64 -v5";
+
+	private String tunslip6Args;
+	private String usbDevice;
+	private Writer output;
+	private MeasurementStore store;
+	private IPFIXLog.ConsoleView console;
+	/** thread running the pipeline, null until start() */
+	private Thread thread;
+
+	/**
+	 * Listens to the USB device using the tunslip program, parses the input and
+	 * enriches the data with the given metadata. Reading starts with start(), so
+	 * the pipeline can be configured (e.g. templates restored) before.
+	 * 
+	 * @param pathToMetadata
+	 *            specifies path to the metadata file used to enrich incoming
+	 *            packets
+	 * @param usbDevice
+	 *            specifies the path to the USB device to listen to
+	 * @param outputFile
+	 *            specifies the file where the parsed and enriched packet data
+	 *            is stored. If NULL no packets are stored.
+	 * @throws Exception
+	 */
+	public TinyIPFIXListener(String pathToMetadata, String usbDevice, File outputFile)
+			throws Exception {
+		this(pathToMetadata, usbDevice, _open(outputFile), null, IPFIXLog.Level.INFO, 0,
+				TinyIPFIXPipeline.DEFAULT_QUEUE_SIZE);
+		start();
+	}
+
+	/**
+	 * Listens to the USB device using the tunslip program, parses the input and
+	 * enriches the data with the given metadata. Reading starts with start(), so
+	 * the pipeline can be configured (e.g. templates restored) before.
+	 * 
+	 * @param pathToMetadata
+	 *            specifies path to the metadata file used to enrich incoming
+	 *            packets
+	 * @param usbDevice
+	 *            specifies the path to the USB device to listen to
+	 * @param output
+	 *            receives the parsed and enriched packet data, e.g. an
+	 *            AsyncFileWriter. Closed when the listener stops. If NULL no
+	 *            packets are stored.
+	 * @param store
+	 *            store the enriched measurements are appended to. Closed
+	 *            when the listener stops. If NULL no measurements are stored.
+	 * @param consoleLevel
+	 *            minimum level of the events printed to the console, OFF to
+	 *            print nothing
+	 * @param workers
+	 *            number of parse/enrich threads, 0 for one per core
+	 * @param queueSize
+	 *            number of packets that may be queued per worker
+	 * @throws Exception
+	 */
+	public TinyIPFIXListener(String pathToMetadata, String usbDevice, Writer output,
+			MeasurementStore store, IPFIXLog.Level consoleLevel, int workers, int queueSize)
+			throws Exception {
+		this.usbDevice = usbDevice;
+		this.tunslip6Args = "-s" + " " + usbDevice + " " + "aaaa::1/64 -v5";
+
+		File usbDeviceFile = new File(usbDevice);
+		if (!usbDeviceFile.exists()) {
+			if (output != null) {
+				output.close();
+			}
+			if (store != null) {
+				store.close();
+			}
+			throw new IOException("Invalid packet USB port. Device file '" + usbDevice
+					+ "' does not exist.");
+		}
+
+		_init(pathToMetadata, output, store, consoleLevel, workers, queueSize);
+	}
+
+	/**
+	 * Listens to the given packet source, parses the input and enriches the
+	 * data with the given metadata. Reading starts with start(), so the
+	 * pipeline can be configured (e.g. templates restored) before.
+	 * 
+	 * @param pathToMetadata
+	 *            specifies path to the metadata file used to enrich incoming
+	 *            packets
+	 * @param source
+	 *            source the packets are read from, e.g. a SLIPPacketSource
+	 * @param outputFile
+	 *            specifies the file where the parsed and enriched packet data
+	 *            is stored. If NULL no packets are stored.
+	 * @throws Exception
+	 */
+	public TinyIPFIXListener(String pathToMetadata, PacketSource source, File outputFile)
+			throws Exception {
+		this(pathToMetadata, source, _open(outputFile), null, IPFIXLog.Level.INFO, 0,
+				TinyIPFIXPipeline.DEFAULT_QUEUE_SIZE);
+		start();
+	}
+
+	/**
+	 * Listens to the given packet source, parses the input and enriches the
+	 * data with the given metadata. Reading starts with start(), so the
+	 * pipeline can be configured (e.g. templates restored) before.
+	 * 
+	 * @param pathToMetadata
+	 *            specifies path to the metadata file used to enrich incoming
+	 *            packets
+	 * @param source
+	 *            source the packets are read from, e.g. a SLIPPacketSource
+	 * @param output
+	 *            receives the parsed and enriched packet data, e.g. an
+	 *            AsyncFileWriter. Closed when the listener stops. If NULL no
+	 *            packets are stored.
+	 * @param store
+	 *            store the enriched measurements are appended to. Closed
+	 *            when the listener stops. If NULL no measurements are stored.
+	 * @param consoleLevel
+	 *            minimum level of the events printed to the console, OFF to
+	 *            print nothing
+	 * @param workers
+	 *            number of parse/enrich threads, 0 for one per core
+	 * @param queueSize
+	 *            number of packets that may be queued per worker
+	 * @throws Exception
+	 */
+	public TinyIPFIXListener(String pathToMetadata, PacketSource source, Writer output,
+			MeasurementStore store, IPFIXLog.Level consoleLevel, int workers, int queueSize)
+			throws Exception {
+		this.source = source;
+		this.usbDevice = source.getName();
+
+		_init(pathToMetadata, output, store, consoleLevel, workers, queueSize);
+	}
+
+	/**
+	 * Listens to the default USB device using the tunslip program, parses the
+	 * input and enriches the data with the given metadata.
+	 * 
+	 * @param pathToMetadata
+	 *            specifies path to the metadata file used to enrich incoming
+	 *            packets
+	 * @param usbDevice
+	 *            specifies the path to the USB device to listen to
+	 * @throws Exception
+	 */
+	public TinyIPFIXListener(String pathToMetadata, String usbDevice) throws Exception {
+		this(pathToMetadata, usbDevice, null);
+	}
+
+	/**
+	 * Listens to the default USB device using the tunslip program, parses the
+	 * input and enriches the data with the given metadata.
+	 * 
+	 * @param pathToMetadata
+	 *            specifies path to the metadata file used to enrich incoming
+	 *            packets
+	 * @throws Exception
+	 */
+	public TinyIPFIXListener(String pathToMetadata) throws Exception {
+		this(pathToMetadata, "/dev/ttyUSB0");
+	}
+
+	/**
+	 * Get the pipeline the packets are processed by.
+	 */
+	public TinyIPFIXPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * Starts reading packets in a new thread. The pipeline's templates and
+	 * limits belong to its workers from now on.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, "TinyIPFIXListener");
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops listening and waits until the packets received so far have been
+	 * written, then closes the output file and the store. Called on exit (e.g.
+	 * from a shutdown hook), the output is closed even if the pipeline doesn't
+	 * finish within the timeout.
+	 * 
+	 * @param timeout maximum time in milliseconds to wait for the pipeline
+	 */
+	public void stop(long timeout) {
+		pipeline.stop();
+		Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+		}
+		if (thread != null) {
+			try {
+				thread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		_close();
+	}
+
+	/**
+	 * Worker thread
+	 */
+	@Override
+	public void run() {
+
+		System.out.println("Listening on USB device: " + usbDevice);
+
+		//String[] fullCommand = { "/bin/bash", "-c",
+			//	"echo \"contiki\" | sudo -S" + " " + TUNSLIP6 + " " + tunslip6Args };
+		
+
+		if (source == null) {
+			try {
+				source = new TunslipPacketSource(fullCommand);
+			} catch (Exception e) {
+				System.err.println("Exception when executing '" + fullCommand + "'.");
+				System.err.println("Exiting packet listener...");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		try {
+			// read, parse and enrich packets until the source is exhausted
+			pipeline.run(source);
+		} finally {
+			// clean up
+			_close();
+		}
+	}
+
+
+
+	/* private helper methods */
+	/** closes output, store and console, again if stop() closed them already */
+	private void _close() {
+		try {
+			if (output != null) {
+				output.close();
+			}
+			if (store != null) {
+				store.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (console != null) {
+			console.close();
+		}
+	}
+
+	private static Writer _open(File outputFile) throws IOException {
+		return outputFile != null ? new AsyncFileWriter(outputFile) : null;
+	}
+
+	private void _init(String pathToMetadata, final Writer output, MeasurementStore store,
+			IPFIXLog.Level consoleLevel, int workers, int queueSize) throws Exception {
+		this.output = output;
+		this.store = store;
+		if (consoleLevel != IPFIXLog.Level.OFF) {
+			this.console = new IPFIXLog.ConsoleView(System.out, consoleLevel, CONSOLE_QUEUE_SIZE);
+		}
+
+		// create parser and enricher instances, print parsed packets to
+		// console and write them to output file (nothing is logged if neither is used)
+		TinyIPFIXPipeline.Sink sink = null;
+		if (output != null || console != null) {
+			sink = new TinyIPFIXPipeline.Sink() {
+				private final StringBuilder text = new StringBuilder();
+
+				@Override
+				public void write(List<IPFIXLog.Event> events) throws IOException {
+					for (IPFIXLog.Event event : events) {
+						if (console != null) {
+							console.event(event);
+						}
+						if (output != null) {
+							event.format(text);
+						}
+					}
+					if (output != null) {
+						output.write(text.toString());
+						text.setLength(0);
+					}
+				}
+			};
+		}
+		pipeline = new TinyIPFIXPipeline(pathToMetadata, sink, store, workers, queueSize);
+
+		// the file gets the whole packet dump, the console only what it asked for
+		IPFIXLog.Level level = output != null ? IPFIXLog.Level.INFO : IPFIXLog.Level.OFF;
+		if (consoleLevel.ordinal() < level.ordinal()) {
+			level = consoleLevel;
+		}
+		pipeline.setLogLevel(level);
+
+		// expose metrics via JMX
+		try {
+			pipeline.getMetrics().registerMBean("ipfix:type=TinyIPFIXListener,source=" + ObjectName.quote(usbDevice));
+		} catch (Exception e) {
+			System.err.println("Couldn't register metrics MBean: " + e.getMessage());
+		}
+	}
+}
@@ -1,274 +1,435 @@
-package ipfix;
-
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.List;
-import java.util.Map;
-
-
-/**
- * Extension to IPFIXParser to enable it for the TinyIPFIX protocol.
- * TinyIPFIX compresses the header by omitting several unnecessary fields. Also omits nodeID since it may be generated out of the IPv6 IP-address of the source.
- * 
- * @author André Freitag, adapted by Michael Meister
- *
- */
-public class TinyIPFIXParser extends IPFIXParser {
-
-
-	/**
-	 * Parses an IPFIX or tinyIPFIX packet. Generates nodeID out of source for tinyIPFIX packets (since it isn't transmitted in tinyIPFIX).
-	 * 
-	 * @param packet
-	 * @param source
-	 * @throws Exception
-	 */
-	public Map<String,List<IPFIXField>> parse(byte[] packet, InetAddress source) throws ParseException {
-
-		try {
-			// try to convert packet into IPFIX format
-			packet = translatePacket(packet, source);
-
-			// parse (possibly converted..) packet
-			return super.parse(packet);
-		} catch (IPFIXParser.ParseException e) {
-			throw new ParseException("TinyIPFIXParser: couldn't parse packet.", e);
-		}
-	}
-	/**
-	 * Parses an IPFIX or tinyIPFIX packet. Uses localhost as source (will always generate the same nodeID for tinyIPFIX packets -> use parse(byte[], InetAddress).
-	 * 
-	 * @param packet
-	 * @throws UnknownHostException
-	 * @throws Exception
-	 */
-	@Override
-	public Map<String,List<IPFIXField>> parse(byte[] packet) throws ParseException {
-		try {
-			return parse(packet, InetAddress.getLocalHost());
-		} catch (UnknownHostException e) {
-			throw new ParseException("TinyIPFIXParser: Couldn't get InetAddress of localhost => use TinyIPFIXParser.parse(packet,InetAddress).");
-		}
-	}
-
-	/**
-	 * Takes an IPFIX or TinyIPFIX packet and returns it in IPFIX notation.
-	 * 
-	 * @param packet
-	 * @param source
-	 * @return
-	 * @throws ParseException
-	 */
-	public byte[] translatePacket(byte[] packet, InetAddress source) throws ParseException {
-		try {
-			// convert packet to IPFIX if it is TinyIPFIX
-			if (isTinyIPFIX(packet)) {
-				packet = translateHeader(packet, source);
-			}
-
-			// parse (possibly converted..) packet
-			return packet;
-		} catch (IPFIXParser.ParseException e) {
-			throw new ParseException("TinyIPFIXParser: couldn't parse packet.", e);
-		}
-	}
-
-
-	/**
-	 * This TinyIPFIX implementation only supports IPFIX version 0xA
-	 */
-	@Override
-	protected int getSupportedVersion() {
-		return 0xA;
-	}
-
-	/**
-	 * determine whether packet may be TinyIPFIX packet.
-	 * 
-	 * @param packet
-	 */
-	protected boolean isTinyIPFIX(byte[] packet) {
-		try {
-
-			// get IPFIX version
-			int version = new DataInputStream(new ByteArrayInputStream(packet)).readUnsignedShort();
-
-			// TinyIPFIX compresses the normal IPFIX header.
-			// if the IPFIX version field doesn't match 0xA, packet is probably TinyIPFIX.
-			// if packet.length==10 the version field only accidently matches the right version.
-			if (version != getSupportedVersion() || packet.length == 10) {
-				return true;
-			}
-
-		} catch (IOException e) {}
-
-		return false;
-	}
-
-	/**
-	 * Convert TinyIPFIX to IPFIX packet. Reconstructs original header.
-	 * Uses `source` for generating a nodeID.
-	 * 
-	 * @author Thomas Kothmayr, adapted by André Freitag
-	 * @param packet
-	 */
-	protected byte[] translateHeader(byte[] packet, InetAddress source) throws ParseException {
-
-		try {
-			byte[] ipfixPacket = null;
-
-			// wrap DataInputStream around packet
-			DataInputStream stream = new DataInputStream(new ByteArrayInputStream(packet));
-
-
-			// unsigned integers are needed for the bit-shifting that follows.
-			int byte1 = stream.readUnsignedByte();
-			int byte2 = stream.readUnsignedByte();
-
-
-
-			// construct the length
-			int len = (byte1 & 0x03) + byte2;
-			// construct the flags
-			int flags = byte1 >> 6;
-			// construct the set lookup field
-			int set_lookup = (byte1 & 0x3F) >> 2;
-
-			if (packet.length != len) {
-				throw new ParseException("TinyIPFIXParser: invalid header. invalid packet length.");
-			}
-
-			// calculate payload length from flags
-			if (flags == 0) {
-				len -= 3;
-			} else if (flags == 3) {
-				len -= 5;
-			} else {
-				len -= 4;
-			}
-			// array that will hold the package with a full IPFIX Header
-			ipfixPacket = new byte[20 + len];
-
-			// write the version number
-			ipfixPacket[1] = 0x0a;
-
-			// write the length
-			ipfixPacket[2] = (byte) (ipfixPacket.length >> 8);
-			ipfixPacket[3] = (byte) (ipfixPacket.length & 0xff);
-
-			// write system time, for lack of better values use the current time
-			long now = System.currentTimeMillis();
-			ipfixPacket[4] = (byte) ((now & 0xff000000l) >> 24);
-			ipfixPacket[5] = (byte) ((now & 0x00ff0000l) >> 16);
-			ipfixPacket[6] = (byte) ((now & 0x0000ff00l) >> 8);
-			ipfixPacket[7] = (byte) ((now & 0x000000ffl) >> 0);
-
-			// write sequence id, handle extended sequence field
-			if ((flags == 1) || (flags == 3)) {
-				ipfixPacket[8] = (byte) 0xff;
-				ipfixPacket[9] = (byte) 0xff;
-				ipfixPacket[10] = packet[2];
-				ipfixPacket[11] = packet[3];
-			} else {
-				ipfixPacket[8] = (byte) 0xff;
-				ipfixPacket[9] = (byte) 0xff;
-				ipfixPacket[10] = (byte) 0xff;
-				ipfixPacket[11] = packet[2];
-			}
-
-			// get the node ID from the IPv6 address that was given and write it to
-			// the observation domain id field
-			String obsDomain = "0x"	+ source.getHostAddress()
-					.replaceAll("^([a-fA-F0-9]*:){3}", "")
-					.replaceAll("(:[a-fA-F0-9]*){4}$", "");
-			int obsdomain = Integer.decode(obsDomain);
-			ipfixPacket[14] = (byte) ((obsdomain & 0xff00) >> 8);
-			ipfixPacket[15] = (byte) ((obsdomain & 0x00ff) >> 0);
-
-			// write the set id
-			if ((flags == 2) || (flags == 3)) {
-				// extended field is present, check if it is used
-				if (set_lookup == 0x0F) {
-					if (flags == 2) {
-						ipfixPacket[17] = packet[3];
-					} else {
-						ipfixPacket[17] = packet[4];
-					}
-				} else if (set_lookup == 0) {
-					if (flags == 2) {
-						ipfixPacket[16] = packet[3];
-					} else {
-						ipfixPacket[16] = packet[4];
-					}
-				} else if (set_lookup == 1) {
-					ipfixPacket[17] = 2;
-				} else if (set_lookup == 2) {
-					ipfixPacket[16] = 1;
-				}
-			} else {
-				if (set_lookup == 1) {
-					ipfixPacket[17] = 2;
-				} else if (set_lookup == 2) {
-					ipfixPacket[16] = 1;
-				}
-			}
-
-			// write the set length
-			ipfixPacket[18] = (byte) (((ipfixPacket.length - 16) & 0xff00) >> 8);
-			ipfixPacket[19] = (byte) ((ipfixPacket.length - 16) & 0xff);
-
-			// copy payload
-			System.arraycopy(packet, packet.length - len, ipfixPacket, 20, len);
-
-			return ipfixPacket;
-		} catch (Exception e) {
-			throw new ParseException("TinyIPFIXParser: couldn't translate packet header.", e);
-		}
-	}
-
-
-
-	/* helper classes */
-	/**
-	 * Exception that gets thrown if parsing of a packet went wrong.
-	 * 
-	 * @author André Freitag
-	 */
-	public class ParseException extends IPFIXParser.ParseException {
-		/**
-		 * constructor
-		 * 
-		 * @see Exception#Exception(String)
-		 * @param msg
-		 */
-		public ParseException(String msg) {
-			super(msg);
-		}
-		/**
-		 * constructor
-		 * 
-		 * @see Exception#Exception(Throwable)
-		 * @param cause
-		 */
-		public ParseException(Throwable cause) {
-			super(cause);
-		}
-		/**
-		 * constructor
-		 * 
-		 * @see Exception#Exception(String, Throwable)
-		 * @param msg
-		 * @param cause
-		 */
-		public ParseException(String msg, Throwable cause) {
-			super(msg,cause);
-		}
-
-
-		/* private member */
-		private static final long serialVersionUID = 1L;
-	}
-}
+package ipfix;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Extension to IPFIXParser to enable it for the TinyIPFIX protocol.
+ * TinyIPFIX compresses the header by omitting several unnecessary fields. Also omits nodeID since it may be generated out of the IPv6 IP-address of the source.
+ * 
+ * @author André Freitag, adapted by Michael Meister
+ *
+ */
+public class TinyIPFIXParser extends IPFIXParser {
+
+
+	/**
+	 * Parses an IPFIX or tinyIPFIX packet. Generates nodeID out of source for tinyIPFIX packets (since it isn't transmitted in tinyIPFIX).
+	 * 
+	 * @param packet
+	 * @param source
+	 * @throws Exception
+	 */
+	public Map<String,List<IPFIXField>> parse(byte[] packet, InetAddress source) throws ParseException {
+		return parse(ByteBuffer.wrap(packet), source);
+	}
+
+	/**
+	 * Parses the IPFIX or tinyIPFIX packet between the buffer's position and limit. Generates nodeID out of source for tinyIPFIX packets.
+	 * 
+	 * @param packet
+	 * @param source
+	 * @throws ParseException
+	 */
+	public Map<String,List<IPFIXField>> parse(ByteBuffer packet, InetAddress source) throws ParseException {
+		return parse(packet, getNodeID(source));
+	}
+
+	/**
+	 * Parses the IPFIX or tinyIPFIX packet between the buffer's position and limit.
+	 * TinyIPFIX packets are decoded directly from their compressed header, no IPFIX header is reconstructed.
+	 * On success the buffer's position is advanced to the end of the message.
+	 * 
+	 * @param packet
+	 * @param nodeID used for tinyIPFIX packets, IPFIX packets carry their own
+	 * @throws ParseException
+	 */
+	public Map<String,List<IPFIXField>> parse(ByteBuffer packet, long nodeID) throws ParseException {
+		FieldCollector collector = new FieldCollector();
+		boolean data = parse(packet, nodeID, collector);
+		return data || !collector.fields.isEmpty() ? collector.fields : null; // templates may release parked data
+	}
+
+	/**
+	 * Parses the IPFIX or tinyIPFIX packet of a registered node, like parse(ByteBuffer, long, IPFIXRecord.Handler).
+	 * The sequence numbers of its tinyIPFIX messages are checked against the node's window.
+	 * 
+	 * @param packet
+	 * @param node node the packet was received from
+	 * @param handler
+	 * @return true for data messages, false for template messages
+	 * @throws ParseException
+	 */
+	public boolean parse(ByteBuffer packet, IPFIXNode node, IPFIXRecord.Handler handler) throws ParseException {
+		_node = node;
+		try {
+			return parse(packet, node.nodeID, handler);
+		} finally {
+			_node = null;
+		}
+	}
+
+	/**
+	 * Parses the IPFIX or tinyIPFIX packet between the buffer's position and limit without copying it or its fields.
+	 * Hands every data record to `handler` as a flyweight view into the buffer.
+	 * 
+	 * @param packet
+	 * @param nodeID used for tinyIPFIX packets, IPFIX packets carry their own
+	 * @param handler
+	 * @return true for data messages, false for template messages
+	 * @throws ParseException
+	 */
+	public boolean parse(ByteBuffer packet, long nodeID, IPFIXRecord.Handler handler) throws ParseException {
+		try {
+			ByteBuffer buffer = _bigEndian(packet);
+			if (!isTinyIPFIX(buffer)) {
+				return super.parse(packet, handler);
+			}
+
+			int offset = buffer.position();
+			int length = buffer.remaining();
+			if (length < 3) {
+				throw new ParseException("TinyIPFIXParser: invalid header. packet too short.");
+			}
+
+			/* parse compressed header */
+			int byte1 = _u8(buffer, offset);
+			// flags: bit 0 extended sequence number, bit 1 extended set ID
+			int flags = byte1 >> 6;
+			// set lookup field
+			int set_lookup = (byte1 & 0x3F) >> 2;
+			// 10 bit message length
+			int len = ((byte1 & 0x03) << 8) | _u8(buffer, offset + 1);
+
+			if (length != len) {
+				throw new ParseException("TinyIPFIXParser: invalid header. invalid packet length.");
+			}
+
+			// header: 3 bytes, +1 for the extended sequence number, +1 for the extended set ID
+			int headerLength = 3 + (flags & 0x01) + ((flags & 0x02) >> 1);
+			if (len < headerLength) {
+				throw new ParseException("TinyIPFIXParser: invalid header. packet too short.");
+			}
+
+			// sequence number, mapped like the reconstructed IPFIX header always did
+			long sequenceNumber;
+			if ((flags & 0x01) != 0) {
+				sequenceNumber = 0xffff0000L | _u16(buffer, offset + 2);
+				_sequenceNumberBits = 16;
+			} else {
+				sequenceNumber = 0xffffff00L | _u8(buffer, offset + 2);
+				_sequenceNumberBits = 8;
+			}
+
+			// set ID, handle extended set ID field (the header's last byte)
+			int setID = set_lookup;
+			if ((flags & 0x02) != 0) {
+				int extended = _u8(buffer, offset + headerLength - 1);
+				if (set_lookup == 0x0F) {
+					setID = extended;
+				} else if (set_lookup == 0) {
+					setID = extended << 8;
+				} else if (set_lookup > 2) {
+					setID = (set_lookup << 8) | extended;
+				}
+			}
+			if (set_lookup == 1) {
+				setID = _getTemplateSetID();
+			} else if (set_lookup == 2) {
+				setID = 256;
+			}
+
+			/* the payload is a single set without set header */
+			int pos = offset + headerLength;
+			int end = offset + len;
+			boolean data = setID != _getTemplateSetID();
+			if (!data) {
+				try {
+					_parseTemplateSet(buffer, pos, end, nodeID, sequenceNumber, handler);
+				} catch (Exception e) {
+					throw new ParseException("IPFIXParser: couldn't parse template.", e);
+				}
+			} else if (_checkSequenceNumber(nodeID, sequenceNumber)) {
+				try {
+					_parseDataSet(buffer, pos, setID, end - pos, end, nodeID, sequenceNumber, handler);
+				} catch (Exception e) {
+					throw new ParseException("IPFIXParser: couldn't parse template.", e);
+				}
+				// a malformed message doesn't slide the window
+				_commitSequenceNumber(nodeID, sequenceNumber);
+			}
+
+			packet.position(end);
+			return data;
+		} catch (IPFIXParser.ParseException e) {
+			_log.error(e.getMessage(), e);
+
+			throw new ParseException("TinyIPFIXParser: couldn't parse packet.", e);
+		}
+	}
+	/**
+	 * Parses an IPFIX or tinyIPFIX packet. Uses localhost as source (will always generate the same nodeID for tinyIPFIX packets -> use parse(byte[], InetAddress).
+	 * 
+	 * @param packet
+	 * @throws UnknownHostException
+	 * @throws Exception
+	 */
+	@Override
+	public Map<String,List<IPFIXField>> parse(byte[] packet) throws ParseException {
+		try {
+			return parse(packet, InetAddress.getLocalHost());
+		} catch (UnknownHostException e) {
+			throw new ParseException("TinyIPFIXParser: Couldn't get InetAddress of localhost => use TinyIPFIXParser.parse(packet,InetAddress).");
+		}
+	}
+
+	/**
+	 * Takes an IPFIX or TinyIPFIX packet and returns it in IPFIX notation.
+	 * parse() decodes TinyIPFIX directly, this is only needed to hand packets to other IPFIX consumers.
+	 * 
+	 * @param packet
+	 * @param source
+	 * @return
+	 * @throws ParseException
+	 */
+	public byte[] translatePacket(byte[] packet, InetAddress source) throws ParseException {
+		try {
+			// convert packet to IPFIX if it is TinyIPFIX
+			if (isTinyIPFIX(packet)) {
+				packet = translateHeader(packet, source);
+			}
+
+			// parse (possibly converted..) packet
+			return packet;
+		} catch (IPFIXParser.ParseException e) {
+			throw new ParseException("TinyIPFIXParser: couldn't parse packet.", e);
+		}
+	}
+
+
+	/**
+	 * This TinyIPFIX implementation only supports IPFIX version 0xA
+	 */
+	@Override
+	protected int getSupportedVersion() {
+		return 0xA;
+	}
+
+	/**
+	 * determine whether packet may be TinyIPFIX packet.
+	 * 
+	 * @param packet
+	 */
+	protected boolean isTinyIPFIX(byte[] packet) {
+		return isTinyIPFIX(ByteBuffer.wrap(packet));
+	}
+
+	/**
+	 * determine whether the packet between the buffer's position and limit may be TinyIPFIX packet.
+	 * 
+	 * @param packet big-endian buffer
+	 */
+	protected boolean isTinyIPFIX(ByteBuffer packet) {
+		if (packet.remaining() < 2) {
+			return false;
+		}
+
+		// get IPFIX version
+		int version = _u16(packet, packet.position());
+
+		// TinyIPFIX compresses the normal IPFIX header.
+		// if the IPFIX version field doesn't match 0xA, packet is probably TinyIPFIX.
+		// if packet.length==10 the version field only accidently matches the right version.
+		return version != getSupportedVersion() || packet.remaining() == 10;
+	}
+
+	/**
+	 * Generates the nodeID of a TinyIPFIX node out of its source address,
+	 * the last 16 bits of the address (of the interface identifier for IPv6).
+	 * 
+	 * @param source
+	 * @return nodeID
+	 */
+	public static long getNodeID(InetAddress source) {
+		return getNodeID(source.getAddress());
+	}
+
+	/**
+	 * Generates the nodeID of a TinyIPFIX node out of its raw source address.
+	 * 
+	 * @see #getNodeID(InetAddress)
+	 * @param address
+	 * @return nodeID
+	 */
+	public static long getNodeID(byte[] address) {
+		int i = address.length - 2;
+		return ((address[i] & 0xff) << 8) | (address[i + 1] & 0xff);
+	}
+
+	/**
+	 * Convert TinyIPFIX to IPFIX packet. Reconstructs original header.
+	 * Uses `source` for generating a nodeID.
+	 * 
+	 * @author Thomas Kothmayr, adapted by André Freitag
+	 * @param packet
+	 */
+	protected byte[] translateHeader(byte[] packet, InetAddress source) throws ParseException {
+
+		try {
+			byte[] ipfixPacket = null;
+
+			// wrap DataInputStream around packet
+			DataInputStream stream = new DataInputStream(new ByteArrayInputStream(packet));
+
+
+			// unsigned integers are needed for the bit-shifting that follows.
+			int byte1 = stream.readUnsignedByte();
+			int byte2 = stream.readUnsignedByte();
+
+
+
+			// construct the length
+			int len = ((byte1 & 0x03) << 8) | byte2;
+			// construct the flags
+			int flags = byte1 >> 6;
+			// construct the set lookup field
+			int set_lookup = (byte1 & 0x3F) >> 2;
+
+			if (packet.length != len) {
+				throw new ParseException("TinyIPFIXParser: invalid header. invalid packet length.");
+			}
+
+			// calculate payload length from flags
+			if (flags == 0) {
+				len -= 3;
+			} else if (flags == 3) {
+				len -= 5;
+			} else {
+				len -= 4;
+			}
+			// array that will hold the package with a full IPFIX Header
+			ipfixPacket = new byte[20 + len];
+
+			// write the version number
+			ipfixPacket[1] = 0x0a;
+
+			// write the length
+			ipfixPacket[2] = (byte) (ipfixPacket.length >> 8);
+			ipfixPacket[3] = (byte) (ipfixPacket.length & 0xff);
+
+			// write system time, for lack of better values use the current time
+			long now = System.currentTimeMillis();
+			ipfixPacket[4] = (byte) ((now & 0xff000000l) >> 24);
+			ipfixPacket[5] = (byte) ((now & 0x00ff0000l) >> 16);
+			ipfixPacket[6] = (byte) ((now & 0x0000ff00l) >> 8);
+			ipfixPacket[7] = (byte) ((now & 0x000000ffl) >> 0);
+
+			// write sequence id, handle extended sequence field
+			if ((flags == 1) || (flags == 3)) {
+				ipfixPacket[8] = (byte) 0xff;
+				ipfixPacket[9] = (byte) 0xff;
+				ipfixPacket[10] = packet[2];
+				ipfixPacket[11] = packet[3];
+			} else {
+				ipfixPacket[8] = (byte) 0xff;
+				ipfixPacket[9] = (byte) 0xff;
+				ipfixPacket[10] = (byte) 0xff;
+				ipfixPacket[11] = packet[2];
+			}
+
+			// get the node ID from the IPv6 address that was given and write it to
+			// the observation domain id field
+			long obsdomain = getNodeID(source);
+			ipfixPacket[14] = (byte) ((obsdomain & 0xff00) >> 8);
+			ipfixPacket[15] = (byte) ((obsdomain & 0x00ff) >> 0);
+
+			// write the set id
+			if ((flags == 2) || (flags == 3)) {
+				// extended field is present, check if it is used
+				if (set_lookup == 0x0F) {
+					if (flags == 2) {
+						ipfixPacket[17] = packet[3];
+					} else {
+						ipfixPacket[17] = packet[4];
+					}
+				} else if (set_lookup == 0) {
+					if (flags == 2) {
+						ipfixPacket[16] = packet[3];
+					} else {
+						ipfixPacket[16] = packet[4];
+					}
+				} else if (set_lookup == 1) {
+					ipfixPacket[17] = 2;
+				} else if (set_lookup == 2) {
+					ipfixPacket[16] = 1;
+				}
+			} else {
+				if (set_lookup == 1) {
+					ipfixPacket[17] = 2;
+				} else if (set_lookup == 2) {
+					ipfixPacket[16] = 1;
+				}
+			}
+
+			// write the set length
+			ipfixPacket[18] = (byte) (((ipfixPacket.length - 16) & 0xff00) >> 8);
+			ipfixPacket[19] = (byte) ((ipfixPacket.length - 16) & 0xff);
+
+			// copy payload
+			System.arraycopy(packet, packet.length - len, ipfixPacket, 20, len);
+
+			return ipfixPacket;
+		} catch (Exception e) {
+			throw new ParseException("TinyIPFIXParser: couldn't translate packet header.", e);
+		}
+	}
+
+
+
+	/* helper classes */
+	/**
+	 * Exception that gets thrown if parsing of a packet went wrong.
+	 * 
+	 * @author André Freitag
+	 */
+	public class ParseException extends IPFIXParser.ParseException {
+		/**
+		 * constructor
+		 * 
+		 * @see Exception#Exception(String)
+		 * @param msg
+		 */
+		public ParseException(String msg) {
+			super(msg);
+		}
+		/**
+		 * constructor
+		 * 
+		 * @see Exception#Exception(Throwable)
+		 * @param cause
+		 */
+		public ParseException(Throwable cause) {
+			super(cause);
+		}
+		/**
+		 * constructor
+		 * 
+		 * @see Exception#Exception(String, Throwable)
+		 * @param msg
+		 * @param cause
+		 */
+		public ParseException(String msg, Throwable cause) {
+			super(msg,cause);
+		}
+
+
+		/* private member */
+		private static final long serialVersionUID = 1L;
+	}
+}
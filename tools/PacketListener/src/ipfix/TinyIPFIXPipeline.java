@@ -0,0 +1,708 @@
+package ipfix;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import utils.Hashing;
+
+/**
+ * Multi-stage ingest pipeline:
+ * reader -> bounded queue per worker -> parse/enrich workers -> bounded queue -> sink.
+ *
+ * The reader interns the node of every packet by its source address
+ * (IPFIXNodeRegistry) and shards packets by nodeID, all packets of a node are
+ * processed in order by the same worker, which also owns the node's sequence window. Every worker owns its parser (templates, sequence
+ * numbers, data parked until its template arrives) and enricher, so no state
+ * is shared between workers and different nodes are processed in parallel.
+ * The reader fills packets from a fixed pool, it blocks when all of them are
+ * queued (backpressure instead of unbounded memory). A slow sink only stalls the workers once its queue is full.
+ *
+ * @author Michael Meister
+ */
+public class TinyIPFIXPipeline {
+
+	/** default number of packets that may be queued per worker */
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+
+
+	/**
+	 * constructor
+	 *
+	 * @param pathToMetadata metadata file used to enrich incoming packets
+	 * @param sink receives the parse and enrich events of every packet, null to not log them
+	 * @param store store the enriched measurements are appended to, null to not store them
+	 * @param workers number of parse/enrich workers, < 1 for one per core
+	 * @param queueSize number of packets that may be queued per worker (and texts for the sink)
+	 * @throws Exception if the metadata can't be loaded
+	 */
+	public TinyIPFIXPipeline(String pathToMetadata, Sink sink, MeasurementStore store, int workers, int queueSize)
+			throws Exception {
+		if (workers < 1) {
+			workers = Runtime.getRuntime().availableProcessors();
+		}
+		if (queueSize < 1) {
+			queueSize = DEFAULT_QUEUE_SIZE;
+		}
+
+		this.sink = sink;
+		this.store = store;
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++) {
+			this.workers[i] = new Worker(pathToMetadata, queueSize);
+		}
+
+		int poolSize = workers * queueSize + workers + 1;
+		this.pool = new ArrayBlockingQueue<PacketSource.Packet>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			pool.add(new PacketSource.Packet());
+		}
+		this.sinkQueue = new ArrayBlockingQueue<List<IPFIXLog.Event>>(queueSize);
+
+		// queue depths and parked data are read when metrics are exported
+		for (int i = 0; i < workers; i++) {
+			final BlockingQueue<PacketSource.Packet> queue = this.workers[i].queue;
+			metrics.addGauge("queue.worker" + i, new IPFIXMetrics.Gauge() {
+				@Override
+				public long get() {
+					return queue.size();
+				}
+			});
+			final TinyIPFIXParser parser = this.workers[i].parser;
+			metrics.addGauge("pending.worker" + i + ".bytes", new IPFIXMetrics.Gauge() {
+				@Override
+				public long get() {
+					IPFIXPendingBuffer pending = parser.getPendingBuffer();
+					return pending != null ? pending.getBytes() : 0;
+				}
+			});
+		}
+		metrics.addGauge("nodes.count", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				return nodes.size();
+			}
+		});
+		metrics.addGauge("nodes.collisions", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				return nodes.getCollisions();
+			}
+		});
+		metrics.addGauge("nodes.expired", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				return nodes.getExpired();
+			}
+		});
+		metrics.addGauge("queue.sink", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				return sinkQueue.size();
+			}
+		});
+
+		// template heaps of all workers
+		metrics.addGauge("templates.count", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				long count = 0;
+				for (Worker worker : TinyIPFIXPipeline.this.workers) {
+					count += worker.parser.getTemplateHeap().size();
+				}
+				return count;
+			}
+		});
+		metrics.addGauge("templates.bytes", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				long bytes = 0;
+				for (Worker worker : TinyIPFIXPipeline.this.workers) {
+					bytes += worker.parser.getTemplateHeap().getBytes();
+				}
+				return bytes;
+			}
+		});
+		metrics.addGauge("templates.evicted", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				long evicted = 0;
+				for (Worker worker : TinyIPFIXPipeline.this.workers) {
+					evicted += worker.parser.getTemplateHeap().getEvictions();
+				}
+				return evicted;
+			}
+		});
+		metrics.addGauge("templates.withdrawn", new IPFIXMetrics.Gauge() {
+			@Override
+			public long get() {
+				long withdrawn = 0;
+				for (Worker worker : TinyIPFIXPipeline.this.workers) {
+					withdrawn += worker.parser.getTemplateHeap().getWithdrawals();
+				}
+				return withdrawn;
+			}
+		});
+	}
+
+	/**
+	 * gets the metrics of the pipeline
+	 */
+	public IPFIXMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * gets number of workers
+	 */
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * gets parser of a worker
+	 *
+	 * @param worker index of the worker
+	 */
+	public TinyIPFIXParser getParser(int worker) {
+		return workers[worker].parser;
+	}
+
+	/**
+	 * gets the sequence window of a node (received, lost, duplicate and reordered messages)
+	 *
+	 * @param nodeID
+	 * @return window, null if no data of the node was received yet
+	 */
+	public IPFIXSequenceWindow getSequenceWindow(long nodeID) {
+		IPFIXNode node = nodes.get(nodeID);
+		if (node != null) {
+			return node.sequenceWindow;
+		}
+		return workers[getShard(nodeID)].parser.getSequenceTracker().get(nodeID);
+	}
+
+	/**
+	 * gets the nodes packets were received from
+	 */
+	public IPFIXNodeRegistry getNodeRegistry() {
+		return nodes;
+	}
+
+	/**
+	 * gets number of packets queued for a worker
+	 *
+	 * @param worker index of the worker
+	 */
+	public int getQueueDepth(int worker) {
+		return workers[worker].queue.size();
+	}
+
+	/**
+	 * gets number of packets queued for the sink
+	 */
+	public int getSinkQueueDepth() {
+		return sinkQueue.size();
+	}
+
+	/**
+	 * sets minimum level of the events handed to the sink
+	 *
+	 * @param level
+	 */
+	public void setLogLevel(IPFIXLog.Level level) {
+		for (Worker worker : workers) {
+			worker.log.setLevel(level);
+		}
+	}
+
+	/**
+	 * bounds the template heaps, the memory budget is split evenly between the workers.
+	 * Nodes are removed from the registry once they are idle for maxIdle too. Every
+	 * worker sweeps its heap for idle templates each maxIdle / 4, even without packets.
+	 * The heaps belong to the workers, so the limits are set before run().
+	 *
+	 * @see IPFIXTemplateHeap#setLimits(long, long)
+	 * @param maxBytes memory budget of all templates in bytes, 0 for none
+	 * @param maxIdle time in milliseconds a template is kept without being used, 0 for unlimited
+	 * @throws IllegalStateException if run() has been called
+	 */
+	public void setTemplateLimits(long maxBytes, long maxIdle) {
+		_checkNotRunning();
+		for (Worker worker : workers) {
+			worker.parser.getTemplateHeap().setLimits(maxBytes > 0 ? Math.max(1, maxBytes / workers.length) : 0, maxIdle);
+		}
+		nodes.setMaxIdle(maxIdle);
+		sweepInterval = maxIdle > 0 ? Math.max(1, maxIdle / 4) : 0;
+	}
+
+	/**
+	 * registers the nodes of a snapshot, so their addresses keep their nodeIDs and
+	 * sequence windows, and adds the templates to the parsers of their nodes' workers.
+	 * Templates are added (and announced to the enrichers) by the calling thread, so
+	 * they are restored before run(), the first packet is decoded with them.
+	 *
+	 * @param snapshot
+	 * @return number of restored templates
+	 * @throws IOException if the snapshot can't be read
+	 * @throws IllegalStateException if run() has been called
+	 */
+	public int restoreTemplates(IPFIXTemplateSnapshot snapshot) throws IOException {
+		_checkNotRunning();
+		List<IPFIXNode> restoredNodes = new ArrayList<IPFIXNode>();
+		List<IPFIXTemplate> templates = snapshot.read(restoredNodes);
+		for (IPFIXNode node : restoredNodes) {
+			nodes.restore(node);
+		}
+		int restored = 0;
+		for (IPFIXTemplate template : templates) {
+			if (workers[getShard(template.nodeID)].parser.getTemplateHeap().addIfAbsent(template)) {
+				restored++;
+			}
+		}
+		return restored;
+	}
+
+	/**
+	 * writes the templates of all workers and the nodes with their sequence windows to a snapshot
+	 *
+	 * @param snapshot
+	 * @return number of written templates
+	 * @throws IOException
+	 */
+	public int checkpoint(IPFIXTemplateSnapshot snapshot) throws IOException {
+		List<IPFIXTemplate> templates = new ArrayList<IPFIXTemplate>();
+		for (Worker worker : workers) {
+			templates.addAll(worker.parser.getTemplateHeap().getTemplates());
+		}
+		snapshot.write(templates, nodes.getNodes());
+		return templates.size();
+	}
+
+	/**
+	 * checkpoints the templates to a snapshot periodically and once more when run() returns
+	 *
+	 * @param snapshot snapshot to write, null to stop checkpointing
+	 * @param interval time between checkpoints in milliseconds, 0 to only checkpoint when run() returns
+	 */
+	public synchronized void setSnapshot(final IPFIXTemplateSnapshot snapshot, final long interval) {
+		checkpointer = null;
+		notifyAll();
+		this.snapshot = snapshot;
+		if (snapshot == null || interval <= 0) {
+			return;
+		}
+
+		checkpointer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (_awaitCheckpoint(interval)) {
+					_checkpoint(snapshot);
+				}
+			}
+		}, "TinyIPFIX checkpoint");
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+
+	/**
+	 * stops reading: interrupts the reader and closes the source, so run() returns
+	 * once the packets read so far have been processed and handed to the sink.
+	 * Can be called from any thread, e.g. a shutdown hook.
+	 */
+	public void stop() {
+		_stopping = true;
+		Thread reader = _reader;
+		if (reader != null) {
+			reader.interrupt();
+		}
+		PacketSource source = _source;
+		if (source != null) {
+			try {
+				source.close();
+			} catch (Exception e) {
+				// closed again by run()
+			}
+		}
+	}
+
+	/**
+	 * gets worker index for a node
+	 *
+	 * @param nodeID
+	 * @return index of the worker the node's packets are processed by
+	 */
+	public int getShard(long nodeID) {
+		return (Hashing.hash(nodeID) & 0x7FFFFFFF) % workers.length;
+	}
+
+	/**
+	 * runs the pipeline in the calling thread (as reader) until the source is exhausted or the thread is interrupted.
+	 * Returns after all queued packets have been processed and handed to the sink, the source is closed.
+	 *
+	 * @param source source the packets are read from
+	 */
+	public void run(PacketSource source) {
+		_reader = Thread.currentThread();
+		_source = source;
+		if (_stopping) {
+			_reader.interrupt();
+		}
+		List<IPFIXNode> expired = new ArrayList<IPFIXNode>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < workers.length; i++) {
+			threads.add(new Thread(workers[i], "TinyIPFIX worker " + i));
+		}
+		threads.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_runSink();
+			}
+		}, "TinyIPFIX sink"));
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				PacketSource.Packet packet = pool.take();
+
+				// read packet from source
+				long start = System.nanoTime();
+				try {
+					if (!source.read(packet)) {
+						break;
+					}
+				} catch (Exception e) {
+					if (!_stopping) { // stop() closes the source under the reader
+						e.printStackTrace();
+					}
+					break;
+				}
+				packet.queueTime = System.nanoTime();
+				metrics.latency(IPFIXMetrics.Stage.READ, packet.queueTime - start);
+
+				// empty datagrams carry nothing to parse, the source may have more
+				if (!packet.buffer.hasRemaining()) {
+					pool.put(packet);
+					continue;
+				}
+
+				// forget idle nodes in their workers before their IDs are reused
+				if (nodes.expire(packet.receiveTime, expired) > 0) {
+					for (IPFIXNode node : expired) {
+						workers[getShard(node.nodeID)].queue.put(new Expired(node));
+					}
+					expired.clear();
+				}
+
+				// hand it to the worker of its node
+				IPFIXNode node = nodes.node(packet.sourceAddress);
+				node.received(packet.buffer.remaining(), packet.receiveTime);
+				packet.node = node;
+				metrics.packet(node.nodeID);
+				workers[getShard(node.nodeID)].queue.put(packet);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// let the workers drain their queues, then the sink
+			for (Worker worker : workers) {
+				_putUninterruptibly(worker.queue, END_OF_STREAM);
+			}
+			for (Thread thread : threads) {
+				_joinUninterruptibly(thread);
+			}
+			_stopCheckpoints();
+			try {
+				source.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+
+	/* private helper methods */
+	private void _checkNotRunning() {
+		if (_reader != null) {
+			throw new IllegalStateException("TinyIPFIXPipeline has been started, the workers own the templates");
+		}
+	}
+
+	private void _checkpoint(IPFIXTemplateSnapshot snapshot) {
+		try {
+			checkpoint(snapshot);
+		} catch (IOException e) {
+			System.err.println("Couldn't write template snapshot '" + snapshot.getFile() + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * waits for the next checkpoint, a checkpoint being written is never interrupted
+	 *
+	 * @return false if the calling checkpoint thread has been replaced or stopped
+	 */
+	private synchronized boolean _awaitCheckpoint(long interval) {
+		long deadline = System.currentTimeMillis() + interval;
+		long remaining = interval;
+		while (checkpointer == Thread.currentThread() && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				return false;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return checkpointer == Thread.currentThread();
+	}
+
+	/** final checkpoint once all packets have been processed */
+	private void _stopCheckpoints() {
+		IPFIXTemplateSnapshot snapshot;
+		synchronized (this) {
+			checkpointer = null;
+			notifyAll();
+			snapshot = this.snapshot;
+		}
+		if (snapshot != null) {
+			_checkpoint(snapshot);
+		}
+	}
+
+	private void _runSink() {
+		int finished = 0;
+		try {
+			while (finished < workers.length) {
+				List<IPFIXLog.Event> events = sinkQueue.take();
+				if (events == END_OF_OUTPUT) {
+					finished++;
+				} else if (sink != null) {
+					long start = System.nanoTime();
+					try {
+						sink.write(events);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					metrics.latency(IPFIXMetrics.Stage.WRITE, System.nanoTime() - start);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static <T> void _putUninterruptibly(BlockingQueue<T> queue, T element) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(element);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void _joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	/* private member */
+	private final Sink sink;
+	private final MeasurementStore store;
+	private final IPFIXMetrics metrics = new IPFIXMetrics();
+	/** nodes by source address, written by the reader */
+	private final IPFIXNodeRegistry nodes = new IPFIXNodeRegistry();
+	private final Worker[] workers;
+	private final BlockingQueue<PacketSource.Packet> pool;
+	private final BlockingQueue<List<IPFIXLog.Event>> sinkQueue;
+	/** time in milliseconds between the workers' sweeps for idle templates, 0 for none */
+	private volatile long sweepInterval = 0;
+	private IPFIXTemplateSnapshot snapshot = null;
+	private Thread checkpointer = null;
+	/** thread running run() and its source, set by run() for stop() */
+	private volatile Thread _reader = null;
+	private volatile PacketSource _source = null;
+	private volatile boolean _stopping = false;
+
+	private static final PacketSource.Packet END_OF_STREAM = new PacketSource.Packet(java.nio.ByteBuffer.allocate(0));
+	private static final List<IPFIXLog.Event> END_OF_OUTPUT = new ArrayList<IPFIXLog.Event>(0);
+
+
+
+	/* helper classes */
+	/**
+	 * Receives the events of every parsed and enriched packet. Called by the sink thread only.
+	 */
+	public interface Sink {
+		void write(List<IPFIXLog.Event> events) throws IOException;
+	}
+
+	/**
+	 * Queued to the worker of a node the registry expired, in order with the packets.
+	 */
+	private static final class Expired extends PacketSource.Packet {
+		Expired(IPFIXNode node) {
+			super(java.nio.ByteBuffer.allocate(0));
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Parses and enriches the packets of its shard of nodes.
+	 */
+	private class Worker implements Runnable {
+		final TinyIPFIXParser parser = new TinyIPFIXParser();
+		final IPFIXEnricher enricher;
+		final BlockingQueue<PacketSource.Packet> queue;
+		/** log of parser and enricher, collects the events of a packet if there is a sink */
+		final IPFIXLog log = new IPFIXLog();
+		final IPFIXLog.Collector collector = new IPFIXLog.Collector();
+		/** records of the packet being processed */
+		final IPFIXRecordBatch batch = new IPFIXRecordBatch();
+
+		Worker(String pathToMetadata, int queueSize) throws Exception {
+			this.enricher = new IPFIXEnricher(pathToMetadata);
+			this.parser.getTemplateHeap().addListener(enricher);
+			this.queue = new ArrayBlockingQueue<PacketSource.Packet>(queueSize);
+			if (sink != null) {
+				log.addSink(collector);
+			}
+			parser.setLogger(log);
+			parser.setMetrics(metrics);
+			IPFIXPendingBuffer pending = new IPFIXPendingBuffer();
+			pending.setMetrics(metrics);
+			parser.setPendingBuffer(pending);
+			enricher.setLogger(log);
+		}
+
+		@Override
+		public void run() {
+			long interval = sweepInterval;
+			long lastSweep = System.currentTimeMillis();
+			try {
+				while (true) {
+					PacketSource.Packet packet = interval > 0 ? queue.poll(interval, TimeUnit.MILLISECONDS) : queue.take();
+
+					// evict idle templates on the worker's own thread, add() only does while templates arrive
+					if (interval > 0) {
+						long now = System.currentTimeMillis();
+						if (now - lastSweep >= interval) {
+							parser.getTemplateHeap().evict(now);
+							lastSweep = now;
+						}
+						if (packet == null) {
+							continue;
+						}
+					}
+					if (packet == END_OF_STREAM) {
+						break;
+					}
+					if (packet instanceof Expired) { // not from the pool
+						_expire(packet.node);
+						continue;
+					}
+					try {
+						try {
+							_process(packet);
+						} catch (RuntimeException e) {
+							log.error("COULDN'T PROCESS IPFIX PACKET: " + e, e);
+							metrics.parseFailure();
+						}
+						List<IPFIXLog.Event> events = collector.drain();
+						if (!events.isEmpty()) {
+							sinkQueue.put(events);
+						}
+					} finally {
+						pool.put(packet);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				_putUninterruptibly(sinkQueue, END_OF_OUTPUT);
+			}
+		}
+
+		/** drops the state of a node the registry forgot, packets of its nodeID may follow for another node */
+		private void _expire(IPFIXNode node) {
+			parser.getTemplateHeap().removeNode(node.nodeID);
+			IPFIXPendingBuffer pending = parser.getPendingBuffer();
+			if (pending != null) {
+				pending.removeNode(node.nodeID);
+			}
+			enricher.removeNode(node.nodeID);
+		}
+
+		private void _process(PacketSource.Packet packet) {
+			long start = System.nanoTime();
+			metrics.latency(IPFIXMetrics.Stage.QUEUE, start - packet.queueTime);
+
+			// parse packet into the worker's batch
+			batch.clear();
+			batch.setKeepFields(log.isEnabled(IPFIXLog.Level.INFO));
+			try {
+				parser.parse(packet.buffer, packet.node, batch);
+			} catch (IPFIXParser.ParseException e) {
+				// logged by the parser
+				metrics.parseFailure();
+				return;
+			} catch (RuntimeException e) {
+				// a bug must not stop the worker, the reader would block on its queue forever
+				log.error("COULDN'T PARSE IPFIX PACKET: " + e, e);
+				metrics.parseFailure();
+				return;
+			}
+			long parsed = System.nanoTime();
+			metrics.latency(IPFIXMetrics.Stage.PARSE, parsed - start);
+			if (batch.size() == 0) {
+				return;
+			}
+
+			// enrich all received records at once
+			long writing = 0;
+			try {
+				enricher.enrichAll(batch);
+
+				if (store != null) {
+					long write = System.nanoTime();
+					for (int row = 0; row < batch.size(); row++) {
+						for (int field = 0; field < batch.getFieldCount(row); field++) {
+							store.append(packet.receiveTime, batch.getNodeID(row),
+									MeasurementStore.getFieldKey(batch.getTemplateField(row, field)), batch.getValue(row, field));
+						}
+					}
+					writing += System.nanoTime() - write;
+				}
+			} catch (Exception e) {
+				log.error("COULDN'T PROCESS IPFIX PACKET: " + e.getMessage(), e);
+				metrics.enrichFailure();
+			}
+			metrics.latency(IPFIXMetrics.Stage.ENRICH, System.nanoTime() - parsed - writing);
+			if (store != null) {
+				metrics.latency(IPFIXMetrics.Stage.WRITE, writing);
+			}
+		}
+	}
+}
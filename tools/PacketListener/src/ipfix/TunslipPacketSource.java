@@ -0,0 +1,176 @@
+package ipfix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import utils.Converter;
+import utils.PacketUtils;
+
+/**
+ * Reads packets from the verbose output (-v5) of a stock tunslip6 process.
+ * Every packet written to the tun interface is dumped as a hex line following a
+ * "write TUN" line.
+ *
+ * The output is scanned as bytes in a fixed buffer: the marker is matched on
+ * the last bytes of each line and the hex dump is decoded with a lookup table
+ * straight into the packet's buffer, no Strings are created.
+ *
+ * @author Michael Meister
+ */
+public class TunslipPacketSource implements PacketSource {
+
+	/** marker at the end of the line preceding a packet dump */
+	public static final byte[] MARKER = { 'w', 'r', 'i', 't', 'e', ' ', 'T', 'U', 'N' };
+	/** number of characters preceding the hex dump in a dump line */
+	public static final int DUMP_PREFIX_LENGTH = 5;
+
+
+	/**
+	 * starts tunslip6
+	 *
+	 * @param command full tunslip6 command line, has to include -v5
+	 * @throws IOException
+	 */
+	public TunslipPacketSource(String command) throws IOException {
+		this.name = "'" + command + "'";
+		this.tunslip6Process = Runtime.getRuntime().exec(command);
+		this.in = tunslip6Process.getInputStream();
+	}
+
+	/**
+	 * reads tunslip6 output from a stream, e.g. a recorded log
+	 *
+	 * @param in
+	 * @param name description for console output
+	 */
+	public TunslipPacketSource(InputStream in, String name) {
+		this.name = name;
+		this.tunslip6Process = null;
+		this.in = in;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Read packets from input stream of tunslip.
+	 */
+	@Override
+	public boolean read(Packet packet) throws IOException {
+		ByteBuffer buffer = packet.buffer;
+
+		while (true) {
+			// skip lines up to the marker
+			if (!_skipToMarker()) {
+				return false;
+			}
+
+			// decode dump line into the packet buffer
+			buffer.clear();
+			int column = 0;
+			int length = 0;
+			int high = -1;
+			boolean overflow = false;
+			int c;
+			while ((c = _next()) >= 0 && c != '\n') {
+				if (column++ < DUMP_PREFIX_LENGTH) {
+					continue;
+				}
+				int nibble = Converter.hexValue(c);
+				if (nibble < 0) { // spaces, '\r'
+					continue;
+				}
+				if (high < 0) {
+					high = nibble;
+				} else {
+					if (length < buffer.capacity()) {
+						buffer.put(length, (byte) ((high << 4) | nibble));
+					} else {
+						overflow = true;
+					}
+					length++;
+					high = -1;
+				}
+			}
+			if (c < 0) {
+				return false;
+			}
+
+			if (overflow || length <= PacketUtils.IP_UDP_HEADER_SIZE) {
+				throw new IOException("TunslipPacketSource: invalid packet of " + length + " bytes.");
+			}
+
+			buffer.limit(length);
+			buffer.position(PacketUtils.IP_UDP_HEADER_SIZE);
+			PacketUtils.extractSourceAddress(buffer, 0, packet.sourceAddress);
+			packet.receiveTime = System.currentTimeMillis();
+			return true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			if (tunslip6Process != null) {
+				tunslip6Process.destroy();
+			}
+		}
+	}
+
+
+
+	/* private helper methods */
+	/**
+	 * consumes lines until a line ending with the marker has been read
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean _skipToMarker() throws IOException {
+		int matched = 0; // length of the marker prefix the line currently ends with
+		int c;
+		while ((c = _next()) >= 0) {
+			if (c == '\n') {
+				if (matched == MARKER.length) {
+					return true;
+				}
+				matched = 0;
+			} else if (c != '\r') {
+				if (matched < MARKER.length && c == MARKER[matched]) {
+					matched++;
+				} else {
+					matched = c == MARKER[0] ? 1 : 0;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** next byte of the stream, reads in blocks */
+	private int _next() throws IOException {
+		if (_pos == _count) {
+			_count = in.read(_buffer);
+			_pos = 0;
+			if (_count <= 0) {
+				_count = 0;
+				return -1;
+			}
+		}
+		return _buffer[_pos++] & 0xFF;
+	}
+
+
+
+	/* private member */
+	private final String name;
+	private final Process tunslip6Process;
+	private final InputStream in;
+
+	private final byte[] _buffer = new byte[8192];
+	private int _pos = 0;
+	private int _count = 0;
+}
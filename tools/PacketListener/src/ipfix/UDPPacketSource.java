@@ -0,0 +1,146 @@
+package ipfix;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Receives (Tiny)IPFIX messages as plain UDP datagrams, e.g. on the tun
+ * interface of a tunslip6 running as system service. Several ports can be
+ * bound, they are served round robin from one selector. The node address is
+ * taken from the sender of the datagram.
+ *
+ * @author Michael Meister
+ */
+public class UDPPacketSource implements PacketSource {
+
+	/** port the nodes send to, see BORDER_ROUTER_PORT in networking.h */
+	public static final int DEFAULT_PORT = 40001;
+
+
+	/**
+	 * binds the given ports on all interfaces
+	 *
+	 * @param ports
+	 * @throws IOException
+	 */
+	public UDPPacketSource(int... ports) throws IOException {
+		this(null, 0, ports);
+	}
+
+	/**
+	 * binds the given ports
+	 *
+	 * @param bindAddress local address to bind to, null for all interfaces
+	 * @param receiveBufferSize SO_RCVBUF of each channel in bytes, 0 for the system default
+	 * @param ports
+	 * @throws IOException
+	 */
+	public UDPPacketSource(InetAddress bindAddress, int receiveBufferSize, int... ports) throws IOException {
+		this.selector = Selector.open();
+		this.channels = new DatagramChannel[ports.length];
+
+		try {
+			for (int i = 0; i < ports.length; i++) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels[i] = channel;
+				if (receiveBufferSize > 0) {
+					channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+				}
+				channel.bind(new InetSocketAddress(bindAddress, ports[i]));
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		StringBuilder name = new StringBuilder("UDP port");
+		for (int port : ports) {
+			name.append(' ').append(port);
+		}
+		this.name = name.toString();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean read(Packet packet) throws IOException {
+		while (selector.isOpen()) {
+			if (_receive(packet)) {
+				return true;
+			}
+			selector.select();
+			selector.selectedKeys().clear();
+		}
+		return false;
+	}
+
+	/**
+	 * gets the port a channel is bound to (useful when binding port 0)
+	 *
+	 * @param channel index of the channel
+	 * @return port
+	 * @throws IOException
+	 */
+	public int getLocalPort(int channel) throws IOException {
+		return ((InetSocketAddress) channels[channel].getLocalAddress()).getPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException error = null;
+		for (DatagramChannel channel : channels) {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		selector.close();
+		if (error != null) {
+			throw error;
+		}
+	}
+
+
+
+	/* private helper methods */
+	/** polls the channels round robin without blocking */
+	private boolean _receive(Packet packet) throws IOException {
+		for (int n = 0; n < channels.length; n++) {
+			DatagramChannel channel = channels[_next];
+			_next = (_next + 1) % channels.length;
+
+			packet.buffer.clear();
+			SocketAddress sender = channel.receive(packet.buffer);
+			if (sender != null) {
+				packet.buffer.flip();
+				byte[] address = ((InetSocketAddress) sender).getAddress().getAddress();
+				packet.setSourceAddress(address, 0, address.length);
+				packet.receiveTime = System.currentTimeMillis();
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+
+	/* private member */
+	private final Selector selector;
+	private final DatagramChannel[] channels;
+	private final String name;
+	private int _next = 0;
+}
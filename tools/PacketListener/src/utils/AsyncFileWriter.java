@@ -0,0 +1,311 @@
+package utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writer appending to a file from a dedicated thread (group commit).
+ *
+ * Writes only copy the characters into a buffer. The writer thread swaps the
+ * buffer once it holds bufferSize characters or its oldest characters are
+ * flushInterval milliseconds old, and writes it with a single write (and
+ * fsync, if enabled). Writers only block if the backlog of unwritten
+ * characters is full.
+ *
+ * flush() waits until everything written before has reached the file. Errors
+ * of the writer thread are thrown by the next write, flush or close.
+ *
+ * @author Michael Meister
+ */
+public class AsyncFileWriter extends Writer {
+
+	/** default number of characters written at once */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	/** default maximum age of buffered characters in milliseconds */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+
+	/**
+	 * appends to a file with the default buffer size and flush interval, without forcing to disk
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public AsyncFileWriter(File file) throws IOException {
+		this(file, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL, false);
+	}
+
+	/**
+	 * appends to a file
+	 *
+	 * @param file
+	 * @param bufferSize number of characters written at once, the backlog holds four buffers
+	 * @param flushInterval maximum age of buffered characters in milliseconds
+	 * @param force force every write to disk (fsync)
+	 * @throws IOException
+	 */
+	public AsyncFileWriter(File file, int bufferSize, long flushInterval, boolean force) throws IOException {
+		this.channel = new FileOutputStream(file, true).getChannel();
+		this.charset = Charset.defaultCharset();
+		this.bufferSize = bufferSize;
+		this.maxBacklog = 4L * bufferSize;
+		this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+		this.force = force;
+		this._pending = new StringBuilder(bufferSize);
+		this._writing = new StringBuilder(bufferSize);
+
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_run();
+			}
+		}, "AsyncFileWriter " + file.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		_append(null, cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		_append(str, null, off, len);
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		_append(str, null, 0, str.length());
+	}
+
+	/**
+	 * writes buffered characters immediately and waits until they have been written
+	 */
+	@Override
+	public void flush() throws IOException {
+		_lock.lock();
+		try {
+			_checkOpen();
+			long target = _appended;
+			_flushRequested = true;
+			_notEmpty.signal();
+			while (_written < target && _error == null) {
+				_flushed.await();
+			}
+			_checkError();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * writes buffered characters, stops the writer thread and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		_lock.lock();
+		try {
+			if (_closed) {
+				return;
+			}
+			_closed = true;
+			_notEmpty.signal();
+			_notFull.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		channel.close();
+		_lock.lock();
+		try {
+			_checkError();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * gets number of characters not written yet
+	 */
+	public long getBacklog() {
+		_lock.lock();
+		try {
+			return _appended - _written;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+
+
+	/* private helper methods */
+	private void _append(String str, char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		_lock.lock();
+		try {
+			_checkOpen();
+			// only block if the backlog is full, a single huge write is let through on an empty backlog
+			while (_appended - _written + len > maxBacklog && _appended > _written) {
+				_notFull.await();
+				_checkOpen();
+			}
+
+			if (_pending.length() == 0) {
+				_pendingSince = System.nanoTime();
+				_notEmpty.signal();
+			}
+			if (str != null) {
+				_pending.append(str, off, off + len);
+			} else {
+				_pending.append(cbuf, off, len);
+			}
+			_appended += len;
+			if (_pending.length() >= bufferSize) {
+				_notEmpty.signal();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void _checkOpen() throws IOException {
+		_checkError();
+		if (_closed) {
+			throw new IOException("AsyncFileWriter: writer closed.");
+		}
+	}
+
+	private void _checkError() throws IOException {
+		if (_error != null) {
+			throw new IOException("AsyncFileWriter: writing failed.", _error);
+		}
+	}
+
+	/** writer thread: waits for a full buffer, the flush interval, flush() or close() and writes the buffer */
+	private void _run() {
+		while (true) {
+			long target;
+			_lock.lock();
+			try {
+				while (true) {
+					int length = _pending.length();
+					if (_closed || (length > 0 && (length >= bufferSize || _flushRequested))) {
+						break;
+					}
+					if (length == 0) {
+						_flushRequested = false;
+						_notEmpty.await();
+					} else {
+						long wait = _pendingSince + flushInterval - System.nanoTime();
+						if (wait <= 0) {
+							break;
+						}
+						_notEmpty.awaitNanos(wait);
+					}
+				}
+				if (_closed && _pending.length() == 0) {
+					return;
+				}
+
+				// swap buffers, writers continue on the empty one
+				StringBuilder buffer = _writing;
+				_writing = _pending;
+				_pending = buffer;
+				_flushRequested = false;
+				target = _appended;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				_lock.unlock();
+			}
+
+			Throwable error = null;
+			try {
+				ByteBuffer bytes = charset.encode(CharBuffer.wrap(_writing));
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+				if (force) {
+					channel.force(false);
+				}
+			} catch (Throwable e) {
+				error = e;
+			}
+			_writing.setLength(0);
+
+			_lock.lock();
+			try {
+				if (error != null && _error == null) {
+					_error = error;
+				}
+				_written = target;
+				_flushed.signalAll();
+				_notFull.signalAll();
+				if (_error != null) {
+					return;
+				}
+			} finally {
+				_lock.unlock();
+			}
+		}
+	}
+
+
+
+	/* private member */
+	private final FileChannel channel;
+	private final Charset charset;
+	private final int bufferSize;
+	private final long maxBacklog;
+	private final long flushInterval;
+	private final boolean force;
+	private final Thread thread;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	/** signalled when characters are appended to an empty buffer, the buffer is full, on flush() and close() */
+	private final Condition _notEmpty = _lock.newCondition();
+	/** signalled when a buffer was written */
+	private final Condition _notFull = _lock.newCondition();
+	private final Condition _flushed = _lock.newCondition();
+
+	private StringBuilder _pending;
+	private StringBuilder _writing;
+	private long _pendingSince;
+	private long _appended = 0;
+	private long _written = 0;
+	private boolean _flushRequested = false;
+	private boolean _closed = false;
+	private Throwable _error = null;
+}
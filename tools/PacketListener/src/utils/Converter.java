@@ -1,8 +1,30 @@
 package utils;
 
+import java.util.Arrays;
+
 public final class Converter {
 
 	final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
+
+	/** value of every ASCII hex digit, -1 for other characters */
+	final private static byte[] hexValues = new byte[256];
+	static {
+		Arrays.fill(hexValues, (byte) -1);
+		for (int i = 0; i < 16; i++) {
+			hexValues[Character.toLowerCase(hexArray[i])] = (byte) i;
+			hexValues[hexArray[i]] = (byte) i;
+		}
+	}
+	
+	/**
+	 * gets value of a hex digit
+	 * 
+	 * @param c ASCII character (0-255)
+	 * @return value, -1 if c is no hex digit
+	 */
+	public static int hexValue(int c) {
+		return hexValues[c & 0xFF];
+	}
 	
 	public static String byteArrayToHexString(byte[] byteArray) {
 		char[] hexChars = new char[byteArray.length * 2];
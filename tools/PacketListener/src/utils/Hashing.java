@@ -0,0 +1,27 @@
+package utils;
+
+/**
+ * Hash functions for the open addressing tables keyed by node IDs, template
+ * keys and field keys.
+ *
+ * @author Michael Meister
+ */
+public final class Hashing {
+
+	private Hashing() {
+	}
+
+	/**
+	 * spreads the bits of a key over the lower 32 bits (murmur3 finalizer), so
+	 * masking the result gives evenly used table slots for sequential keys
+	 *
+	 * @param key
+	 * @return hash, mask it to the table size
+	 */
+	public static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
@@ -2,12 +2,19 @@ package utils;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 public class PacketUtils {
 
 	// IP header = 40, UDP header = 8 bytes
 	public static final int IP_UDP_HEADER_SIZE = 48;
 	public static final int IP_ADDRESS_SIZE = 16;
+
+	// offsets within the IPv6 header
+	public static final int IP_NEXT_HEADER_OFFSET = 6;
+	public static final int IP_SOURCE_ADDRESS_OFFSET = 8;
+	public static final int IP_DESTINATION_ADDRESS_OFFSET = 24;
+	public static final int IP_PROTOCOL_UDP = 17;
 	
 	public static byte[] extractPayload(byte[] packet) throws IllegalArgumentException {
 		
@@ -29,7 +36,7 @@ public class PacketUtils {
 		}
 		
 		byte[] sourceAddress = new byte[16];
-		System.arraycopy(packet, IP_ADDRESS_SIZE, sourceAddress, 0, IP_ADDRESS_SIZE);
+		System.arraycopy(packet, IP_SOURCE_ADDRESS_OFFSET, sourceAddress, 0, IP_ADDRESS_SIZE);
 		
 		return InetAddress.getByAddress(sourceAddress);
 	}
@@ -42,8 +49,27 @@ public class PacketUtils {
 		}
 		
 		byte[] destinationAddress = new byte[16];
-		System.arraycopy(packet, 0, destinationAddress, 0, IP_ADDRESS_SIZE);
+		System.arraycopy(packet, IP_DESTINATION_ADDRESS_OFFSET, destinationAddress, 0, IP_ADDRESS_SIZE);
 		
 		return InetAddress.getByAddress(destinationAddress);
 	}
+
+	/**
+	 * checks whether `length` bytes at `offset` hold an IPv6 packet carrying a UDP datagram with payload
+	 * directly after the fixed header (no extension headers).
+	 */
+	public static boolean isUDP6(ByteBuffer packet, int offset, int length) {
+		return length > IP_UDP_HEADER_SIZE
+				&& (packet.get(offset) & 0xF0) == 0x60
+				&& (packet.get(offset + IP_NEXT_HEADER_OFFSET) & 0xFF) == IP_PROTOCOL_UDP;
+	}
+
+	/**
+	 * copies the source address of the IPv6 packet at `offset` into `address`
+	 */
+	public static void extractSourceAddress(ByteBuffer packet, int offset, byte[] address) {
+		for (int i = 0; i < IP_ADDRESS_SIZE; i++) {
+			address[i] = packet.get(offset + IP_SOURCE_ADDRESS_OFFSET + i);
+		}
+	}
 }